@@ -0,0 +1,155 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
+import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
+import com.ning.metrics.serialization.thrift.ThriftEnvelope;
+import com.ning.metrics.serialization.thrift.ThriftField;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
+import com.ning.metrics.serialization.writer.EventHandler;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.SyncType;
+import com.ning.metrics.serialization.writer.ThresholdEventWriter;
+import org.joda.time.DateTime;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Fixtures shared by the benchmarks
+ */
+final class BenchmarkSupport
+{
+    private BenchmarkSupport()
+    {
+    }
+
+    static File createTempDirectory(final String prefix)
+    {
+        final File directory = new File(System.getProperty("java.io.tmpdir"), prefix + "-" + UUID.randomUUID().toString());
+        if (!directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create " + directory);
+        }
+
+        return directory;
+    }
+
+    static void deleteRecursively(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Build the default writer chain (ThresholdEventWriter -> DiskSpoolEventWriter), with a sender which
+     * acknowledges files right away.
+     */
+    static ThresholdEventWriter createWriter(final File spoolDirectory, final EventSerializer serializer, final SyncType syncType)
+    {
+        return createWriter(spoolDirectory, serializer, syncType, new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                handler.onSuccess(file);
+            }
+        }, 1);
+    }
+
+    static ThresholdEventWriter createWriter(final File spoolDirectory, final EventSerializer serializer, final SyncType syncType,
+                                             final EventHandler eventHandler, final int flushIntervalInSeconds)
+    {
+        final DiskSpoolEventWriter diskWriter = new DiskSpoolEventWriter(eventHandler, spoolDirectory.getAbsolutePath(), true,
+            flushIntervalInSeconds, new FailsafeScheduledExecutor(1, "BenchmarkFlusher"), syncType, 50, new NoCompressionCodec(), serializer);
+
+        return new ThresholdEventWriter(diskWriter, 10000, 60);
+    }
+
+    /**
+     * Same as the default writer chain, with events serialized through memory-mapped segments
+     */
+    static ThresholdEventWriter createMappedWriter(final File spoolDirectory, final EventSerializer serializer, final SyncType syncType,
+                                                   final long segmentSizeInBytes)
+    {
+        final DiskSpoolEventWriter diskWriter = new DiskSpoolEventWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                handler.onSuccess(file);
+            }
+        }, spoolDirectory.getAbsolutePath(), true, 1, new FailsafeScheduledExecutor(1, "BenchmarkFlusher"), syncType, 50, new NoCompressionCodec(), serializer);
+        final MappedSpoolEventWriter mappedWriter = new MappedSpoolEventWriter(diskWriter, serializer, new NoCompressionCodec(), syncType, 50, segmentSizeInBytes);
+
+        return new ThresholdEventWriter(mappedWriter, 10000, 60);
+    }
+
+    static ThriftEnvelopeEvent createThriftEvent(final int sequence)
+    {
+        final List<ThriftField> fields = new ArrayList<ThriftField>();
+        fields.add(ThriftField.createThriftField(sequence, (short) 1));
+        fields.add(ThriftField.createThriftField(1234567L, (short) 2));
+        fields.add(ThriftField.createThriftField("/profile/" + sequence, (short) 3));
+        fields.add(ThriftField.createThriftField("Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)", (short) 4));
+        fields.add(ThriftField.createThriftField(12.5, (short) 5));
+
+        return new ThriftEnvelopeEvent(new DateTime(), new ThriftEnvelope("PageView", fields));
+    }
+
+    static SmileEnvelopeEvent createSmileEvent(final int sequence)
+    {
+        final Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("sequence", sequence);
+        payload.put("userId", 1234567L);
+        payload.put("path", "/profile/" + sequence);
+        payload.put("userAgent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)");
+        payload.put("latencyMillis", 12.5);
+
+        try {
+            return new SmileEnvelopeEvent("PageView", new DateTime(), payload);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static List<Event> createSmileEvents(final int count)
+    {
+        final List<Event> events = new ArrayList<Event>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(createSmileEvent(i));
+        }
+
+        return events;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.CompressionCodec;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a Smile spool file through each SpoolCompression codec: CPU spent on the client vs bytes uploaded
+ * to the collector. Scores are per event; bytesWritten is reported as a rate too, so bytesWritten / score is the
+ * spool size per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompressionBenchmark
+{
+    private static final int EVENTS_PER_FILE = 1000;
+
+    @Param({"NONE", "GZIP", "DEFLATE"})
+    public SpoolCompression compression;
+
+    @Param({"1", "6"})
+    public int level;
+
+    private CompressionCodec codec;
+    private EventSerializer serializer;
+    private List<Event> events;
+    private ByteArrayOutputStream out;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class FileSize
+    {
+        public long bytesWritten;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        codec = compression.createCodec(level);
+        serializer = new SmileEnvelopeEventSerializer(false);
+        events = BenchmarkSupport.createSmileEvents(EVENTS_PER_FILE);
+        out = new ByteArrayOutputStream(1024 * 1024);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_FILE)
+    public int writeSpoolFile(final FileSize fileSize) throws IOException
+    {
+        out.reset();
+        final OutputStream stream = StreamCompressionCodec.wrap(codec, out);
+        serializer.open(stream);
+        for (final Event event : events) {
+            serializer.serialize(event);
+        }
+        serializer.close();
+        stream.close();
+
+        fileSize.bytesWritten += out.size();
+        return out.size();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CollectorController.offerEvent called from many request threads at once, in synchronous mode (callers
+ * serialize on the writer chain), in asynchronous mode (callers only enqueue) and with one writer chain per
+ * thread (SHARDED).
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class ControllerContentionBenchmark
+{
+    // One per benchmark thread
+    private static final int SHARDS = 8;
+
+    @Param({"SYNC", "ASYNC", "SHARDED"})
+    public String mode;
+
+    private File spoolDirectory;
+    private CollectorController controller;
+    private Event event;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        spoolDirectory = BenchmarkSupport.createTempDirectory("ControllerContentionBenchmark");
+        if ("SHARDED".equals(mode)) {
+            final List<EventWriter> shards = new ArrayList<EventWriter>(SHARDS);
+            for (int i = 0; i < SHARDS; i++) {
+                final File shardDirectory = new File(spoolDirectory, "shard-" + i);
+                shards.add(BenchmarkSupport.createWriter(shardDirectory, new SmileEnvelopeEventSerializer(false), SyncType.NONE));
+            }
+            controller = new CollectorController(new ShardedEventWriter(shards, ShardRouting.THREAD, spoolDirectory.getAbsolutePath()));
+        }
+        else {
+            final EventWriter writer = BenchmarkSupport.createWriter(spoolDirectory, new SmileEnvelopeEventSerializer(false), SyncType.NONE);
+            if ("ASYNC".equals(mode)) {
+                controller = new CollectorController(new AsyncEventWriter(writer, 8192, OverflowPolicy.BLOCK, 256));
+            }
+            else {
+                controller = new CollectorController(writer);
+            }
+        }
+        event = BenchmarkSupport.createSmileEvent(1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        controller.close();
+        BenchmarkSupport.deleteRecursively(spoolDirectory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void offerEvent() throws IOException
+    {
+        controller.offerEvent(event);
+    }
+
+    /**
+     * Same as offerEvent, sampled to get the latency distribution seen by callers
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void offerEventLatency() throws IOException
+    {
+        controller.offerEvent(event);
+    }
+}
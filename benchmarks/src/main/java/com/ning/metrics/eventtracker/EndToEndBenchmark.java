@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.EventHandler;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Spool to sender throughput: each operation writes eventsPerFile events, promotes them to a spool file,
+ * flushes it to a local stand-in collector via the HttpSender and waits for the collector acknowledgement.
+ * <p/>
+ * Scores are per spool file: multiply by eventsPerFile to get events per second.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark
+{
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+
+    @Param({"100", "1000"})
+    public int eventsPerFile;
+
+    @Param({"NONE", "FLUSH"})
+    public String syncType;
+
+    private final Semaphore acks = new Semaphore(0);
+    private final AtomicReference<Throwable> lastError = new AtomicReference<Throwable>();
+
+    private StandInCollector collector;
+    private File spoolDirectory;
+    private HttpSender sender;
+    private CollectorController controller;
+    private List<Event> events;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        collector = new StandInCollector();
+        collector.start();
+
+        sender = new HttpSender("127.0.0.1", collector.getPort(), EventType.SMILE, 10000, 120000, 8);
+        spoolDirectory = BenchmarkSupport.createTempDirectory("EndToEndBenchmark");
+        // Files are flushed explicitly by the benchmark, don't let the background flusher interfere
+        controller = new CollectorController(BenchmarkSupport.createWriter(spoolDirectory, new SmileEnvelopeEventSerializer(false),
+            SyncType.valueOf(syncType), new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                sender.send(file, new CallbackHandler()
+                {
+                    @Override
+                    public void onError(final Throwable t, final File file)
+                    {
+                        lastError.set(t);
+                        handler.onError(t, file);
+                        acks.release();
+                    }
+
+                    @Override
+                    public void onSuccess(final File file)
+                    {
+                        handler.onSuccess(file);
+                        acks.release();
+                    }
+                });
+            }
+        }, 3600));
+        events = BenchmarkSupport.createSmileEvents(eventsPerFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        controller.close();
+        sender.close();
+        collector.stop();
+        BenchmarkSupport.deleteRecursively(spoolDirectory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void spoolToCollector() throws Exception
+    {
+        sendOneFile();
+    }
+
+    /**
+     * Same as spoolToCollector, sampled to get the distribution of the write-to-acknowledgement latency
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void spoolToCollectorLatency() throws Exception
+    {
+        sendOneFile();
+    }
+
+    private void sendOneFile() throws Exception
+    {
+        controller.offerEvents(events);
+        controller.commit();
+        controller.flush();
+
+        if (!acks.tryAcquire(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Collector didn't acknowledge the file in " + ACK_TIMEOUT_SECONDS + " seconds");
+        }
+
+        final Throwable error = lastError.getAndSet(null);
+        if (error != null) {
+            throw new IOException("Unable to send the file to the collector", error);
+        }
+    }
+}
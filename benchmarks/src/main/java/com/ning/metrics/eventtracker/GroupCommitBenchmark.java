@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
+import com.ning.metrics.serialization.writer.EventHandler;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.SyncType;
+import com.ning.metrics.serialization.writer.ThresholdEventWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent producers with every event on disk before offerEvent returns: SYNC with a batch size of 1 (each caller
+ * syncs while holding the writer) versus group commits (concurrent callers share syncs).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class GroupCommitBenchmark
+{
+    @Param({"SYNC_EACH_EVENT", "GROUP_COMMIT"})
+    public String mode;
+
+    private File spoolDirectory;
+    private CollectorController controller;
+    private Event event;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        spoolDirectory = BenchmarkSupport.createTempDirectory("GroupCommitBenchmark");
+        event = BenchmarkSupport.createSmileEvent(0);
+
+        final boolean groupCommit = "GROUP_COMMIT".equals(mode);
+        final DiskSpoolEventWriter diskWriter = new DiskSpoolEventWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                handler.onSuccess(file);
+            }
+        }, spoolDirectory.getAbsolutePath(), true, 1, new FailsafeScheduledExecutor(1, "BenchmarkFlusher"), SyncType.SYNC, 1,
+            new NoCompressionCodec(), new SmileEnvelopeEventSerializer(false));
+
+        if (groupCommit) {
+            final MappedSpoolEventWriter mappedWriter = new MappedSpoolEventWriter(diskWriter, new SmileEnvelopeEventSerializer(false),
+                new NoCompressionCodec(), SyncType.SYNC, Integer.MAX_VALUE, 4 * 1024 * 1024);
+            controller = new CollectorController(new GroupCommitEventWriter(new ThresholdEventWriter(mappedWriter, 10000, 60), mappedWriter));
+        }
+        else {
+            controller = new CollectorController(new ThresholdEventWriter(diskWriter, 10000, 60));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        controller.close();
+        BenchmarkSupport.deleteRecursively(spoolDirectory);
+    }
+
+    @Benchmark
+    public void offerEvent() throws IOException
+    {
+        controller.offerEvent(event);
+    }
+}
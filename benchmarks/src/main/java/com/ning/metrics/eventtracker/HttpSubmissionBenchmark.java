@@ -0,0 +1,145 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadSafeAsyncHttpClient.executeRequest called from many sender threads at once. SYNCHRONIZED reproduces
+ * the former behavior (all submissions serialized on one monitor), LOCK_FREE is the current implementation.
+ * <p/>
+ * Each thread keeps at most MAX_IN_FLIGHT requests outstanding against a local stand-in collector, so that the
+ * score reflects submission throughput rather than an ever-growing backlog.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class HttpSubmissionBenchmark
+{
+    private static final int MAX_IN_FLIGHT = 16;
+
+    @Param({"SYNCHRONIZED", "LOCK_FREE"})
+    public String mode;
+
+    private StandInCollector collector;
+    private ThreadSafeAsyncHttpClient client;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        collector = new StandInCollector();
+        collector.start();
+
+        if ("SYNCHRONIZED".equals(mode)) {
+            client = new SynchronizedAsyncHttpClient(collector.getPort());
+        }
+        else {
+            client = new ThreadSafeAsyncHttpClient("127.0.0.1", collector.getPort(), EventType.SMILE, 120000);
+        }
+
+        file = File.createTempFile("HttpSubmissionBenchmark", ".smile");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[1024]);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+    {
+        client.close();
+        collector.stop();
+        file.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class InFlight
+    {
+        private final AtomicInteger requests = new AtomicInteger(0);
+        private final AsyncCompletionHandler<Response> completionHandler = new AsyncCompletionHandler<Response>()
+        {
+            @Override
+            public Response onCompleted(final Response response)
+            {
+                requests.decrementAndGet();
+                return response;
+            }
+
+            @Override
+            public void onThrowable(final Throwable t)
+            {
+                requests.decrementAndGet();
+            }
+        };
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void executeRequest(final InFlight inFlight) throws IOException
+    {
+        while (inFlight.requests.get() >= MAX_IN_FLIGHT) {
+            Thread.yield();
+        }
+
+        inFlight.requests.incrementAndGet();
+        client.executeRequest(file, inFlight.completionHandler);
+    }
+
+    private static final class SynchronizedAsyncHttpClient extends ThreadSafeAsyncHttpClient
+    {
+        private SynchronizedAsyncHttpClient(final int collectorPort)
+        {
+            super("127.0.0.1", collectorPort, EventType.SMILE, 120000);
+        }
+
+        @Override
+        public synchronized ListenableFuture<Response> executeRequest(final File file, final AsyncCompletionHandler<Response> completionHandler)
+        {
+            return super.executeRequest(file, completionHandler);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event (offerEvent in a loop) versus batched (offerEvents) ingestion of a request's worth of events,
+ * through the default synchronous writer chain.
+ * <p/>
+ * Each invocation offers batchSize events, so scores are comparable between the two styles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OfferEventsBenchmark
+{
+    @Param({"20", "100"})
+    public int batchSize;
+
+    private File spoolDirectory;
+    private CollectorController controller;
+    private List<Event> events;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        spoolDirectory = BenchmarkSupport.createTempDirectory("OfferEventsBenchmark");
+        controller = new CollectorController(BenchmarkSupport.createWriter(spoolDirectory, new SmileEnvelopeEventSerializer(false), SyncType.NONE));
+        events = BenchmarkSupport.createSmileEvents(batchSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        controller.close();
+        BenchmarkSupport.deleteRecursively(spoolDirectory);
+    }
+
+    @Benchmark
+    public void perEvent() throws IOException
+    {
+        for (final Event event : events) {
+            controller.offerEvent(event);
+        }
+    }
+
+    @Benchmark
+    public void batched() throws IOException
+    {
+        controller.offerEvents(events);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void perEventContended() throws IOException
+    {
+        perEvent();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void batchedContended() throws IOException
+    {
+        batched();
+    }
+}
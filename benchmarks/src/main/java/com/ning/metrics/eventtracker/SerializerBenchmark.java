@@ -0,0 +1,94 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serializing events to a spool file, per serializer (what DiskSpoolEventWriter does on each write).
+ * <p/>
+ * Each invocation opens the serializer, writes a file worth of events and closes it: scores are per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SerializerBenchmark
+{
+    private static final int EVENTS_PER_FILE = 100;
+
+    @Param({"SMILE", "JSON", "OBJECT_OUTPUT"})
+    public String serializerType;
+
+    private EventSerializer serializer;
+    private List<Event> events;
+    private ByteArrayOutputStream out;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        if ("SMILE".equals(serializerType)) {
+            serializer = new SmileEnvelopeEventSerializer(false);
+        }
+        else if ("JSON".equals(serializerType)) {
+            serializer = new SmileEnvelopeEventSerializer(true);
+        }
+        else {
+            serializer = new ObjectOutputEventSerializer();
+        }
+
+        events = BenchmarkSupport.createSmileEvents(EVENTS_PER_FILE);
+        out = new ByteArrayOutputStream(64 * 1024);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_FILE)
+    public int serialize() throws IOException
+    {
+        out.reset();
+        serializer.open(out);
+        for (final Event event : events) {
+            serializer.serialize(event);
+        }
+        serializer.close();
+
+        return out.size();
+    }
+}
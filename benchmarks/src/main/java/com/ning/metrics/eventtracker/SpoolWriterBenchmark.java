@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
+import com.ning.metrics.serialization.writer.SyncType;
+import com.ning.metrics.serialization.writer.ThresholdEventWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stream-based (DiskSpoolEventWriter) versus memory-mapped (MappedSpoolEventWriter) writes to the _tmp area,
+ * for each SyncType (applied every 50 events).
+ * <p/>
+ * Each invocation writes a file worth of events and commits it: scores are per event.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SpoolWriterBenchmark
+{
+    private static final int EVENTS_PER_FILE = 1000;
+
+    @Param({"STREAM", "MMAP"})
+    public String writerType;
+
+    @Param({"NONE", "FLUSH", "SYNC"})
+    public SyncType syncType;
+
+    private File spoolDirectory;
+    private ThresholdEventWriter writer;
+    private List<Event> events;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        spoolDirectory = BenchmarkSupport.createTempDirectory("SpoolWriterBenchmark");
+        if ("MMAP".equals(writerType)) {
+            writer = BenchmarkSupport.createMappedWriter(spoolDirectory, new SmileEnvelopeEventSerializer(false), syncType, 4 * 1024 * 1024);
+        }
+        else {
+            writer = BenchmarkSupport.createWriter(spoolDirectory, new SmileEnvelopeEventSerializer(false), syncType);
+        }
+        events = BenchmarkSupport.createSmileEvents(EVENTS_PER_FILE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        writer.close();
+        BenchmarkSupport.deleteRecursively(spoolDirectory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_FILE)
+    public void writeAndCommit() throws IOException
+    {
+        for (final Event event : events) {
+            writer.write(event);
+        }
+        writer.forceCommit();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local collector stand-in: reads the posted spool file and acknowledges it with a 202, like the real collector.
+ */
+class StandInCollector
+{
+    private final AtomicLong filesReceived = new AtomicLong(0);
+    private final AtomicLong bytesReceived = new AtomicLong(0);
+    private final Server server;
+
+    StandInCollector()
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException
+            {
+                final byte[] buffer = new byte[8192];
+                final InputStream in = request.getInputStream();
+                long read = 0;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    read += n;
+                }
+
+                filesReceived.incrementAndGet();
+                bytesReceived.addAndGet(read);
+
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                baseRequest.setHandled(true);
+            }
+        });
+    }
+
+    void start() throws Exception
+    {
+        server.start();
+    }
+
+    void stop() throws Exception
+    {
+        server.stop();
+    }
+
+    int getPort()
+    {
+        return server.getConnectors()[0].getLocalPort();
+    }
+
+    long getFilesReceived()
+    {
+        return filesReceived.get();
+    }
+
+    long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+}
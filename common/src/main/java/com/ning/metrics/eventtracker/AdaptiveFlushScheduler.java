@@ -0,0 +1,265 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.google.inject.Inject;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flushes the spool area at an interval adapted to the backlog and to the health of the sender:
+ * <ul>
+ * <li>files waiting in the spool area and the sender healthy: the minimum interval, to drain the backlog quickly
+ * <li>sends failing (no success since the previous flush): the interval backs off exponentially, up to the maximum
+ * <li>otherwise: the configured flush interval
+ * </ul>
+ * A file promoted to the spool area also triggers an immediate flush, unless the sender is failing.
+ * <p/>
+ * The backlog is the number of files the flushes handed to the sender since the previous adaptive flush (see wrap),
+ * rather than a scan of the spool areas on each flush.
+ * <p/>
+ * Flushes run on the flusher executor, the same one DiskSpoolEventWriter uses for its own periodic flushes.
+ */
+public class AdaptiveFlushScheduler
+{
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveFlushScheduler.class);
+
+    private final ScheduledExecutorService executor;
+    private final long minIntervalInMillis;
+    private final long baseIntervalInMillis;
+    private final ExponentialBackoff backoff;
+
+    // Outcome of the sends since the previous flush
+    private final AtomicBoolean sendSucceeded = new AtomicBoolean(false);
+    private final AtomicBoolean sendFailed = new AtomicBoolean(false);
+    private final AtomicLong currentIntervalInMillis;
+    private final AtomicLong flushes = new AtomicLong(0);
+    // Files handed to the sender since the previous adaptive flush
+    private final AtomicInteger filesSent = new AtomicInteger(0);
+    // Files found in the spool areas by the flushes before the previous adaptive flush
+    private volatile int backlogSize = 0;
+
+    // Guarded by this
+    private final List<EventWriter> eventWriters = new ArrayList<EventWriter>();
+    private ScheduledFuture<?> nextFlush = null;
+    private long nextFlushTimeInMillis = 0;
+    private boolean stopped = false;
+
+    private final Runnable flushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flushAndReschedule();
+        }
+    };
+
+    @Inject
+    public AdaptiveFlushScheduler(final EventTrackerConfig config, final ScheduledExecutorService executor)
+    {
+        this(executor, config.getFlushMinInterval().getMillis(), TimeUnit.SECONDS.toMillis(config.getFlushIntervalInSeconds()),
+            config.getFlushMaxInterval().getMillis());
+    }
+
+    AdaptiveFlushScheduler(final ScheduledExecutorService executor, final long minIntervalInMillis, final long baseIntervalInMillis, final long maxIntervalInMillis)
+    {
+        if (minIntervalInMillis <= 0 || baseIntervalInMillis < minIntervalInMillis || maxIntervalInMillis < baseIntervalInMillis) {
+            throw new IllegalArgumentException(String.format("Invalid flush intervals: min=%d, base=%d, max=%d",
+                minIntervalInMillis, baseIntervalInMillis, maxIntervalInMillis));
+        }
+
+        this.executor = executor;
+        this.minIntervalInMillis = minIntervalInMillis;
+        this.baseIntervalInMillis = baseIntervalInMillis;
+        // The first failure already lengthens the interval
+        this.backoff = new ExponentialBackoff(Math.min(2 * baseIntervalInMillis, maxIntervalInMillis), maxIntervalInMillis);
+        this.currentIntervalInMillis = new AtomicLong(baseIntervalInMillis);
+    }
+
+    /**
+     * Start flushing the given writer. Several writers (one per shard) can be registered: they are flushed together.
+     *
+     * @param eventWriter writer to flush
+     */
+    public synchronized void start(final EventWriter eventWriter)
+    {
+        eventWriters.add(eventWriter);
+        if (eventWriters.size() == 1) {
+            schedule(currentIntervalInMillis.get());
+        }
+        log.info("Adaptive flushes of {} enabled, every {} ms to start with", eventWriter.getSpoolPath(), currentIntervalInMillis.get());
+    }
+
+    /**
+     * Stop flushing, for good. The scheduler is shared by all the writers: this is up to the owner of the scheduler
+     * (e.g. on shutdown), not to the writers.
+     */
+    public synchronized void stop()
+    {
+        stopped = true;
+        if (nextFlush != null) {
+            nextFlush.cancel(false);
+            nextFlush = null;
+        }
+    }
+
+    /**
+     * A file was promoted to the spool area: flush it right away, unless the sender is failing
+     */
+    public void requestFlush()
+    {
+        if (backoff.getConsecutiveFailures() == 0) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Wrap the send callback of a file handed to the sender by a flush, to track the health of the sender and the backlog
+     *
+     * @param handler callback to notify
+     * @return callback to give to the sender
+     */
+    public CallbackHandler wrap(final CallbackHandler handler)
+    {
+        filesSent.incrementAndGet();
+        return new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                sendFailed.set(true);
+                handler.onError(t, file);
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                sendSucceeded.set(true);
+                handler.onSuccess(file);
+            }
+        };
+    }
+
+    private synchronized void schedule(final long delayInMillis)
+    {
+        if (eventWriters.isEmpty() || stopped) {
+            return;
+        }
+
+        final long flushTimeInMillis = System.currentTimeMillis() + delayInMillis;
+        if (nextFlush != null) {
+            if (nextFlushTimeInMillis <= flushTimeInMillis) {
+                // A flush is coming soon enough
+                return;
+            }
+            nextFlush.cancel(false);
+        }
+
+        nextFlushTimeInMillis = flushTimeInMillis;
+        nextFlush = executor.schedule(flushRunnable, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushAndReschedule()
+    {
+        final List<EventWriter> writers;
+        synchronized (this) {
+            // From now on, requests for a flush need a new one
+            nextFlush = null;
+            writers = new ArrayList<EventWriter>(eventWriters);
+        }
+
+        try {
+            for (final EventWriter writer : writers) {
+                try {
+                    writer.flush();
+                }
+                catch (IOException e) {
+                    log.warn("Unable to flush the spool area " + writer.getSpoolPath(), e);
+                }
+            }
+            flushes.incrementAndGet();
+        }
+        finally {
+            backlogSize = filesSent.getAndSet(0);
+            final long interval = computeNextInterval();
+            currentIntervalInMillis.set(interval);
+            schedule(interval);
+        }
+    }
+
+    long computeNextInterval()
+    {
+        final boolean succeeded = sendSucceeded.getAndSet(false);
+        final boolean failed = sendFailed.getAndSet(false);
+        if (succeeded) {
+            backoff.onSuccess();
+        }
+        else if (failed) {
+            return backoff.onFailure();
+        }
+
+        final int backlogSize = getBacklogSize();
+        if (backoff.getConsecutiveFailures() > 0) {
+            if (backlogSize > 0) {
+                // Nothing was sent since: keep on waiting before trying again
+                return backoff.getCurrentDelayInMillis();
+            }
+            // Nothing left to send
+            backoff.onSuccess();
+        }
+
+        return backlogSize > 0 ? minIntervalInMillis : baseIntervalInMillis;
+    }
+
+    @Managed(description = "Current delay between flushes, in milliseconds")
+    public long getCurrentFlushIntervalInMillis()
+    {
+        return currentIntervalInMillis.get();
+    }
+
+    @Managed(description = "Number of files found in the spool areas by the flushes, up to the last adaptive one")
+    public int getBacklogSize()
+    {
+        return backlogSize;
+    }
+
+    @Managed(description = "Number of consecutive flushes which didn't send anything successfully")
+    public int getConsecutiveFailedFlushes()
+    {
+        return backoff.getConsecutiveFailures();
+    }
+
+    @Managed(description = "Number of adaptive flushes since startup")
+    public long getFlushes()
+    {
+        return flushes.get();
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * EventWriter which decouples callers from the underlying (disk) writer: events are published into
+ * a bounded in-memory ring buffer, and a dedicated thread drains them in batches into the delegate.
+ * <p/>
+ * Commits, rollbacks, flushes and close drain the buffer first, so that they apply to all events written before.
+ * <p/>
+ * The writer thread sleeps while the buffer is empty, and producers blocked on a full buffer (BLOCK policy) sleep
+ * until the writer thread makes room: both are woken up rather than polling.
+ */
+public class AsyncEventWriter implements BatchEventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncEventWriter.class);
+
+    private final EventWriter delegate;
+    private final EventRingBuffer queue;
+    private final OverflowPolicy overflowPolicy;
+    private final int maxBatchSize;
+    private final ExecutorService executor;
+
+    // Serializes access to the delegate between the writer thread and commit/flush callers
+    private final Object delegateLock = new Object();
+
+    private final AtomicBoolean acceptsEvents = new AtomicBoolean(true);
+    private final AtomicLong eventsDropped = new AtomicLong(0);
+    private final AtomicLong writeFailures = new AtomicLong(0);
+    private final List<AtomicLong> eventsLostCounters = new CopyOnWriteArrayList<AtomicLong>();
+
+    // Writer thread, and whether it is (about to go) to sleep on an empty buffer
+    private volatile Thread writerThread = null;
+    private volatile boolean writerIdle = false;
+    // Set by close: the writer thread drains the buffer, then exits
+    private volatile boolean stopping = false;
+    // Producers waiting for room in the buffer, waiting on notFull
+    private final Object notFull = new Object();
+    private final AtomicInteger blockedProducers = new AtomicInteger(0);
+
+    public AsyncEventWriter(final EventWriter delegate, final int capacity, final OverflowPolicy overflowPolicy, final int maxBatchSize)
+    {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+
+        this.delegate = delegate;
+        this.queue = new EventRingBuffer(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.maxBatchSize = maxBatchSize;
+
+        this.executor = new FailsafeScheduledExecutor(1, "EventtrackerAsyncWriter");
+        executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writerThread = Thread.currentThread();
+                final List<Event> batch = new ArrayList<Event>(maxBatchSize);
+                while (!Thread.currentThread().isInterrupted()) {
+                    if (drainBatch(batch) > 0) {
+                        continue;
+                    }
+                    if (stopping) {
+                        return;
+                    }
+
+                    writerIdle = true;
+                    // Check again once idle, an event published meanwhile would not wake us up
+                    if (queue.isEmpty() && !stopping) {
+                        LockSupport.park(this);
+                    }
+                    writerIdle = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Publish an event to the in-memory queue. This never touches the disk: the event is written
+     * asynchronously, by the writer thread.
+     *
+     * @param event event to write
+     * @throws IOException if the caller is interrupted while waiting for space in the queue (BLOCK policy)
+     */
+    @Override
+    public void write(final Event event) throws IOException
+    {
+        if (!acceptsEvents.get()) {
+            log.warn("Writer not ready, discarding event: {}", event);
+            return;
+        }
+
+        if (queue.offer(event)) {
+            wakeUpWriter();
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                onDropped();
+                break;
+            case DROP_OLDEST:
+                do {
+                    if (queue.poll() != null) {
+                        onDropped();
+                    }
+                }
+                while (!queue.offer(event));
+                wakeUpWriter();
+                break;
+            case BLOCK:
+            default:
+                waitForRoom(event);
+                wakeUpWriter();
+                break;
+        }
+    }
+
+    /**
+     * Publish events to the in-memory queue. Producers aren't serialized, the queue is lock-free.
+     *
+     * @param events events to write
+     * @return the number of events published
+     * @throws BatchWriteException if a caller is interrupted while waiting for space in the queue (BLOCK policy)
+     */
+    @Override
+    public int writeAll(final Iterable<? extends Event> events) throws BatchWriteException
+    {
+        int written = 0;
+        for (final Event event : events) {
+            try {
+                write(event);
+            }
+            catch (IOException e) {
+                throw new BatchWriteException(written + 1, 1, e);
+            }
+            written++;
+        }
+
+        return written;
+    }
+
+    /**
+     * Add dropped events, and events the delegate failed to write, to the given counter, e.g. the events lost of the
+     * CollectorController
+     *
+     * @param eventsLost counter to update when events are dropped or fail to be written
+     */
+    public void reportDropsTo(final AtomicLong eventsLost)
+    {
+        eventsLostCounters.add(eventsLost);
+    }
+
+    private void onDropped()
+    {
+        eventsDropped.incrementAndGet();
+        onLost();
+    }
+
+    private void onWriteFailure()
+    {
+        writeFailures.incrementAndGet();
+        onLost();
+    }
+
+    private void onLost()
+    {
+        for (final AtomicLong eventsLost : eventsLostCounters) {
+            eventsLost.incrementAndGet();
+        }
+    }
+
+    private void waitForRoom(final Event event) throws IOException
+    {
+        synchronized (notFull) {
+            blockedProducers.incrementAndGet();
+            try {
+                while (!queue.offer(event)) {
+                    if (!acceptsEvents.get()) {
+                        throw new IOException("Writer closed while waiting for space in the event queue");
+                    }
+                    notFull.wait();
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for space in the event queue");
+            }
+            finally {
+                blockedProducers.decrementAndGet();
+            }
+        }
+    }
+
+    private void wakeUpWriter()
+    {
+        if (writerIdle) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void wakeUpProducers()
+    {
+        if (blockedProducers.get() > 0) {
+            synchronized (notFull) {
+                notFull.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void commit() throws IOException
+    {
+        synchronized (delegateLock) {
+            drainAll();
+            delegate.commit();
+        }
+    }
+
+    @Override
+    public void forceCommit() throws IOException
+    {
+        synchronized (delegateLock) {
+            drainAll();
+            delegate.forceCommit();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        synchronized (delegateLock) {
+            drainAll();
+        }
+        // Sending doesn't need the delegate lock
+        delegate.flush();
+    }
+
+    @Override
+    public void rollback() throws IOException
+    {
+        synchronized (delegateLock) {
+            drainAll();
+            delegate.rollback();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        acceptsEvents.set(false);
+        wakeUpProducers();
+
+        // Let the writer thread drain the buffer and exit, rather than interrupting it in the middle of a write
+        stopping = true;
+        executor.shutdown();
+        final Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Writer thread still busy after 5 seconds, interrupting it");
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (delegateLock) {
+            drainAll();
+            delegate.close();
+        }
+    }
+
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+
+    private void drainAll()
+    {
+        final List<Event> batch = new ArrayList<Event>(maxBatchSize);
+        while (drainBatch(batch) > 0) {
+            // Keep going
+        }
+    }
+
+    private int drainBatch(final List<Event> batch)
+    {
+        synchronized (delegateLock) {
+            final int drained = queue.drainTo(batch, maxBatchSize);
+            for (final Event event : batch) {
+                try {
+                    delegate.write(event);
+                }
+                catch (IOException e) {
+                    log.error(String.format("Failed to write event: %s", event), e);
+                    onWriteFailure();
+                }
+            }
+            batch.clear();
+            if (drained > 0) {
+                wakeUpProducers();
+            }
+
+            return drained;
+        }
+    }
+
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    public int getQueueCapacity()
+    {
+        return queue.capacity();
+    }
+
+    public long getEventsDropped()
+    {
+        return eventsDropped.get();
+    }
+
+    public long getWriteFailures()
+    {
+        return writeFailures.get();
+    }
+}
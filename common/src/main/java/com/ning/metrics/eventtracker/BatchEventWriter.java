@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+
+/**
+ * EventWriter writing batches of events more cheaply than one at a time, see CollectorController.offerEvents.
+ * Callers don't need to lock the writer around a batch.
+ */
+public interface BatchEventWriter extends EventWriter
+{
+    /**
+     * Write events, in order. On failure, events after the failing one are not written.
+     *
+     * @param events events to write
+     * @return the number of events written
+     * @throws BatchWriteException if an event couldn't be written, with the number of events written and lost
+     */
+    int writeAll(Iterable<? extends Event> events) throws BatchWriteException;
+}
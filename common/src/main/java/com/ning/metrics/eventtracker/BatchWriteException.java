@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.ning.metrics.eventtracker;
+
+import java.io.IOException;
+
+/**
+ * Failure to write part of a batch of events
+ */
+public class BatchWriteException extends IOException
+{
+    private final int eventsReceived;
+    private final int eventsLost;
+
+    /**
+     * @param eventsReceived number of events of the batch handed to the writer, including the failed ones
+     * @param eventsLost     number of events of the batch which won't make it to disk
+     * @param cause          underlying failure
+     */
+    public BatchWriteException(final int eventsReceived, final int eventsLost, final IOException cause)
+    {
+        super(String.format("Lost %d of %d events written", eventsLost, eventsReceived), cause);
+        this.eventsReceived = eventsReceived;
+        this.eventsLost = eventsLost;
+    }
+
+    public int getEventsReceived()
+    {
+        return eventsReceived;
+    }
+
+    public int getEventsLost()
+    {
+        return eventsLost;
+    }
+}
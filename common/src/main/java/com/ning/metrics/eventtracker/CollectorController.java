@@ -36,14 +36,39 @@ public class CollectorController
     private static final Logger log = LoggerFactory.getLogger(CollectorController.class);
 
     private final EventWriter eventWriter;
+    // Non-null in asynchronous mode only
+    private final AsyncEventWriter asyncEventWriter;
+    // Non-null if the writer writes batches by itself, e.g. without locking
+    private final BatchEventWriter batchEventWriter;
 
     private final AtomicLong eventsReceived = new AtomicLong(0);
     private final AtomicLong eventsLost = new AtomicLong(0);
     private final AtomicBoolean acceptEvents = new AtomicBoolean(true);
 
     public CollectorController(final EventWriter eventWriter)
+    {
+        this(eventWriter, null);
+    }
+
+    /**
+     * Asynchronous mode: offered events are queued in memory and written to disk by a dedicated thread.
+     *
+     * @param eventWriter asynchronous writer, in front of the persister layer
+     */
+    public CollectorController(final AsyncEventWriter eventWriter)
+    {
+        this(eventWriter, eventWriter);
+    }
+
+    private CollectorController(final EventWriter eventWriter, final AsyncEventWriter asyncEventWriter)
     {
         this.eventWriter = eventWriter;
+        this.asyncEventWriter = asyncEventWriter;
+        if (asyncEventWriter != null) {
+            // Events dropped from the in-memory queue never make it to disk
+            asyncEventWriter.reportDropsTo(eventsLost);
+        }
+        this.batchEventWriter = eventWriter instanceof BatchEventWriter ? (BatchEventWriter) eventWriter : null;
         log.debug("Initialized Collector Controller with file manager [{}]", eventWriter);
     }
 
@@ -74,6 +99,58 @@ public class CollectorController
         }
     }
 
+    /**
+     * Offer a batch of events to the queue.
+     * <p/>
+     * This is cheaper than calling offerEvent for each event: counters are updated once per batch, and the
+     * writer is locked once for the whole batch, so that the underlying writers are re-entered uncontended for each
+     * event. Events of a batch are written contiguously. Writers implementing BatchEventWriter write the batch
+     * themselves instead: without locking in asynchronous mode, with one lock per shard or queue for sharded writers
+     * and spool queues, and with a single sync for group commits.
+     * <p/>
+     * On failure, events after the failing one are neither written nor counted as received.
+     *
+     * @param events events to collect
+     * @throws IOException if a serialization exception (to disk) occurs
+     */
+    public void offerEvents(final Iterable<? extends Event> events) throws IOException
+    {
+        if (!acceptEvents.get()) {
+            return;
+        }
+
+        int written = 0;
+        try {
+            if (batchEventWriter != null) {
+                written = batchEventWriter.writeAll(events);
+            }
+            else {
+                synchronized (eventWriter) {
+                    for (final Event event : events) {
+                        try {
+                            eventWriter.write(event);
+                        }
+                        catch (IOException e) {
+                            throw new BatchWriteException(written + 1, 1, e);
+                        }
+                        written++;
+                    }
+                }
+            }
+        }
+        catch (BatchWriteException e) {
+            log.error(String.format("Failed to write batch of events after %d events", e.getEventsReceived() - 1), e);
+            eventsLost.addAndGet(e.getEventsLost());
+            written = e.getEventsReceived();
+
+            throw (IOException) e.getCause();
+        }
+        finally {
+            eventsReceived.addAndGet(written);
+            log.debug("Wrote {} events", written);
+        }
+    }
+
     public void close()
     {
         setAcceptEvents(false);
@@ -104,12 +181,36 @@ public class CollectorController
         return eventsReceived;
     }
 
-    @Managed(description = "Number of events lost (unable to serialize them to disk)")
+    @Managed(description = "Number of events lost (unable to serialize them to disk, or evicted from the spool area)")
     public AtomicLong getEventsLost()
     {
         return eventsLost;
     }
 
+    @Managed(description = "Number of events waiting in the in-memory queue (asynchronous mode only)")
+    public int getQueueDepth()
+    {
+        return asyncEventWriter == null ? 0 : asyncEventWriter.getQueueDepth();
+    }
+
+    @Managed(description = "Capacity of the in-memory queue (asynchronous mode only)")
+    public int getQueueCapacity()
+    {
+        return asyncEventWriter == null ? 0 : asyncEventWriter.getQueueCapacity();
+    }
+
+    @Managed(description = "Number of events dropped because the in-memory queue was full, included in the events lost (asynchronous mode only)")
+    public long getEventsDropped()
+    {
+        return asyncEventWriter == null ? 0 : asyncEventWriter.getEventsDropped();
+    }
+
+    @Managed(description = "Number of events dequeued but not written to disk (asynchronous mode only)")
+    public long getAsyncWriteFailures()
+    {
+        return asyncEventWriter == null ? 0 : asyncEventWriter.getWriteFailures();
+    }
+
     @Managed(description = "Promote events to final spool area")
     public void commit() throws IOException
     {
@@ -51,7 +51,11 @@ class CollectorControllerModule extends AbstractModule
         bind(ScheduledExecutorService.class).toInstance(new FailsafeScheduledExecutor(1, "EventtrackerFlusher"));
 
         bind(CollectorController.class).toProvider(CollectorControllerProvider.class).asEagerSingleton();
+        bind(AdaptiveFlushScheduler.class).asEagerSingleton();
+        bind(SpoolQuota.class).asEagerSingleton();
 
+        // Shared by the main spool writer and the ones of the shards and queues
+        bind(DiskSpoolEventWriterProvider.class).asEagerSingleton();
         bind(DiskSpoolEventWriter.class).toProvider(DiskSpoolEventWriterProvider.class).asEagerSingleton();
         bind(EventWriter.class).toProvider(ThresholdEventWriterProvider.class).asEagerSingleton();
     }
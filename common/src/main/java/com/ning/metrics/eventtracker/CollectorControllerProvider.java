@@ -26,20 +26,38 @@ class CollectorControllerProvider implements Provider<CollectorController>
 {
     private static final Logger log = LoggerFactory.getLogger(CollectorControllerProvider.class);
 
+    private final EventTrackerConfig config;
     private final EventWriter eventWriter;
     private final EventSender eventSender;
+    private final SpoolQuota spoolQuota;
+    private final AdaptiveFlushScheduler flushScheduler;
 
     @Inject
-    public CollectorControllerProvider(final EventWriter eventWriter, final EventSender eventSender)
+    public CollectorControllerProvider(final EventTrackerConfig config, final EventWriter eventWriter, final EventSender eventSender,
+                                       final SpoolQuota spoolQuota, final AdaptiveFlushScheduler flushScheduler)
     {
+        this.config = config;
         this.eventWriter = eventWriter;
         this.eventSender = eventSender;
+        this.spoolQuota = spoolQuota;
+        this.flushScheduler = flushScheduler;
     }
 
     @Override
     public CollectorController get()
     {
-        final CollectorController controller = new CollectorController(eventWriter);
+        final CollectorController controller;
+        if (config.isAsyncEnabled()) {
+            controller = new CollectorController(new AsyncEventWriter(eventWriter, config.getAsyncQueueCapacity(),
+                config.getAsyncOverflowPolicy(), config.getAsyncMaxBatchSize()));
+            log.info("Enabled asynchronous event writes, queue capacity {}", config.getAsyncQueueCapacity());
+        }
+        else {
+            controller = new CollectorController(eventWriter);
+        }
+
+        // Events evicted from the spool area are lost as well
+        spoolQuota.reportEvictionsTo(controller.getEventsLost());
 
         // Make sure to flush all files on shutdown
         Runtime.getRuntime().addShutdownHook(new Thread()
@@ -47,6 +65,8 @@ class CollectorControllerProvider implements Provider<CollectorController>
             @Override
             public void run()
             {
+                // Shared by all the spool writers, which don't stop it themselves
+                flushScheduler.stop();
                 mainEventTrackerShutdownHook(eventSender, controller);
             }
         });
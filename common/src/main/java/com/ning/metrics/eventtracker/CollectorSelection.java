@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+/**
+ * How spool files are spread over the collectors
+ * <p/>
+ * Public for config-magic
+ */
+public enum CollectorSelection
+{
+    /**
+     * The collector with the fewest requests in flight
+     */
+    LEAST_OUTSTANDING,
+    /**
+     * A random collector, weighted by the inverse of its recent latency and of its requests in flight
+     */
+    LATENCY_WEIGHTED
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Zlib (RFC 1950) spool files, sent with Content-Encoding: deflate
+ */
+class DeflateCompressionCodec extends StreamCompressionCodec
+{
+    private final int level;
+
+    DeflateCompressionCodec(final int level)
+    {
+        this.level = level;
+    }
+
+    @Override
+    OutputStream wrapOutputStream(final OutputStream outputStream)
+    {
+        final Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(outputStream, deflater)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    // We provided the deflater, we need to free its native memory
+                    deflater.end();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifies spool files towards the collector, so that it can cheaply drop what it already received when an
+ * upload is retried (e.g. after its acknowledgement was lost), and counts the attempts of each file.
+ * <p/>
+ * The id of a spool file is host/generation/name. The generation is a random id created with the spool directory
+ * (in _generation/id), so that names reused after the spool area is wiped don't clash. Spool files keep their name
+ * when moved around by the writer (_lock, _quarantine), hence the id is stable across retries and restarts.
+ * <p/>
+ * Attempts are counted in memory, for the most recent files not delivered yet.
+ */
+public class DeliveryTracker
+{
+    private static final Logger log = LoggerFactory.getLogger(DeliveryTracker.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String GENERATION_DIRECTORY = "_generation";
+    private static final String GENERATION_FILE = "id";
+    private static final int MAX_TRACKED_FILES = 10000;
+
+    private final String host;
+    private final ConcurrentMap<File, String> generations = new ConcurrentHashMap<File, String>();
+
+    // Guarded by itself. Attempts so far, by spool directory and file name, oldest first
+    private final Map<String, Integer> attempts = new LinkedHashMap<String, Integer>()
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest)
+        {
+            // Files evicted from the spool are never delivered
+            return size() > MAX_TRACKED_FILES;
+        }
+    };
+    private final AtomicLong retries = new AtomicLong(0);
+
+    public DeliveryTracker()
+    {
+        this(getLocalHostName());
+    }
+
+    DeliveryTracker(final String host)
+    {
+        this.host = host;
+    }
+
+    /**
+     * @param file spool file, in the spool directory or one of its _ areas
+     * @return the stable id of the file
+     */
+    public String getFileId(final File file)
+    {
+        return String.format("%s/%s/%s", host, getGeneration(getSpoolDirectory(file)), file.getName());
+    }
+
+    /**
+     * Record an attempt to send a file
+     *
+     * @param file spool file about to be sent
+     * @return the attempt number, 1 for the first one
+     */
+    public int onAttempt(final File file)
+    {
+        final String key = getAttemptsKey(file);
+        final int attempt;
+        synchronized (attempts) {
+            final Integer previousAttempts = attempts.remove(key);
+            attempt = previousAttempts == null ? 1 : previousAttempts + 1;
+            attempts.put(key, attempt);
+        }
+
+        if (attempt > 1) {
+            retries.incrementAndGet();
+        }
+        return attempt;
+    }
+
+    /**
+     * Forget a file once acknowledged
+     *
+     * @param file spool file sent
+     */
+    public void onDelivered(final File file)
+    {
+        synchronized (attempts) {
+            attempts.remove(getAttemptsKey(file));
+        }
+    }
+
+    /**
+     * @param file spool file
+     * @return the number of attempts to send the file so far, 0 if it was delivered (or never sent)
+     */
+    public int getAttempts(final File file)
+    {
+        synchronized (attempts) {
+            final Integer fileAttempts = attempts.get(getAttemptsKey(file));
+            return fileAttempts == null ? 0 : fileAttempts;
+        }
+    }
+
+    /**
+     * @param file spool file
+     * @return the spool directory the file belongs to
+     */
+    public static File getSpoolDirectory(final File file)
+    {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory.getName().startsWith("_")) {
+            // e.g. sent from the _lock area
+            return directory.getParentFile();
+        }
+        return directory;
+    }
+
+    // Like the id, without touching the disk for the generation
+    private String getAttemptsKey(final File file)
+    {
+        return new File(getSpoolDirectory(file), file.getName()).getPath();
+    }
+
+    private String getGeneration(final File spoolDirectory)
+    {
+        String generation = generations.get(spoolDirectory);
+        if (generation == null) {
+            synchronized (generations) {
+                generation = generations.get(spoolDirectory);
+                if (generation == null) {
+                    generation = loadOrCreateGeneration(spoolDirectory);
+                    generations.put(spoolDirectory, generation);
+                }
+            }
+        }
+        return generation;
+    }
+
+    private String loadOrCreateGeneration(final File spoolDirectory)
+    {
+        final File generationDirectory = new File(spoolDirectory, GENERATION_DIRECTORY);
+        final File generationFile = new File(generationDirectory, GENERATION_FILE);
+        try {
+            if (generationFile.exists()) {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(generationFile), UTF_8));
+                try {
+                    final String generation = reader.readLine();
+                    if (generation != null && generation.length() > 0) {
+                        return generation;
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+
+            if (!generationDirectory.isDirectory() && !generationDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + generationDirectory);
+            }
+
+            final String generation = UUID.randomUUID().toString();
+            final File newGenerationFile = new File(generationDirectory, GENERATION_FILE + ".new");
+            final OutputStream out = new FileOutputStream(newGenerationFile);
+            try {
+                out.write(generation.getBytes(UTF_8));
+            }
+            finally {
+                out.close();
+            }
+            if (!newGenerationFile.renameTo(generationFile)) {
+                throw new IOException(String.format("Unable to rename %s to %s", newGenerationFile, generationFile));
+            }
+
+            log.info("New spool generation {} for {}", generation, spoolDirectory);
+            return generation;
+        }
+        catch (IOException e) {
+            // The collector will see the files again under new ids after a restart, as duplicates
+            final String generation = UUID.randomUUID().toString();
+            log.warn(String.format("Unable to persist the spool generation of %s, using %s until restart", spoolDirectory, generation), e);
+            return generation;
+        }
+    }
+
+    private static String getLocalHostName()
+    {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e) {
+            // The generation is unique anyway
+            return "localhost";
+        }
+    }
+
+    @Managed(description = "Get the number of files sent more than once, waiting to be acknowledged")
+    public int getFilesBeingRetried()
+    {
+        int filesBeingRetried = 0;
+        synchronized (attempts) {
+            for (final Integer fileAttempts : attempts.values()) {
+                if (fileAttempts > 1) {
+                    filesBeingRetried++;
+                }
+            }
+        }
+        return filesBeingRetried;
+    }
+
+    @Managed(description = "Get the highest number of attempts of a file waiting to be acknowledged")
+    public int getMaxAttempts()
+    {
+        int maxAttempts = 0;
+        synchronized (attempts) {
+            for (final Integer fileAttempts : attempts.values()) {
+                maxAttempts = Math.max(maxAttempts, fileAttempts);
+            }
+        }
+        return maxAttempts;
+    }
+
+    @Managed(description = "Get the number of retries (attempts after the first one) since startup")
+    public long getRetries()
+    {
+        return retries.get();
+    }
+}
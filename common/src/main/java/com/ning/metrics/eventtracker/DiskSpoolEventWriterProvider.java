@@ -22,31 +22,95 @@ import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.writer.CallbackHandler;
 import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
 import com.ning.metrics.serialization.writer.EventHandler;
-import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.CompressionCodec;
 import com.ning.metrics.serialization.writer.SyncType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 class DiskSpoolEventWriterProvider implements Provider<DiskSpoolEventWriter>
 {
+    private static final Logger log = LoggerFactory.getLogger(DiskSpoolEventWriterProvider.class);
+
     private final EventTrackerConfig config;
-    private final EventSender eventSender;
     private final ScheduledExecutorService executor;
-    private final EventSerializer serializer;
+    private final Provider<EventSerializer> serializerProvider;
+    private final AdaptiveFlushScheduler flushScheduler;
+    private final boolean isFlushAdaptive;
+    // Sender of the spool writers, tracking the health of the sender for adaptive flushes and sent files for the quota,
+    // and forgetting the files once done with them
+    private final EventSender sender;
+    private final SpoolQueue defaultQueue;
+    // Spool queues by decreasing priority, including the default one (empty if routing by event name is disabled)
+    private final List<SpoolQueue> queues;
+    private final PrioritizedEventSender queueSender;
+    // Indexes of the spool directories, by directory (if enabled)
+    private final ConcurrentMap<File, SpoolIndex> indexes = new ConcurrentHashMap<File, SpoolIndex>();
 
     @Inject
     public DiskSpoolEventWriterProvider(
         final EventTrackerConfig config,
         final EventSender eventSender,
         final ScheduledExecutorService executor,
-        final EventSerializer serializer
+        final Provider<EventSerializer> serializerProvider,
+        final AdaptiveFlushScheduler flushScheduler,
+        final SpoolQuota spoolQuota
     )
     {
         this.config = config;
-        this.eventSender = eventSender;
         this.executor = executor;
-        this.serializer = serializer;
+        this.serializerProvider = serializerProvider;
+        this.flushScheduler = flushScheduler;
+        this.isFlushAdaptive = config.isFlushEnabled() && config.isFlushAdaptive();
+        this.sender = new EventSender()
+        {
+            @Override
+            public void send(final File file, final CallbackHandler handler)
+            {
+                CallbackHandler trackedHandler = SpoolFiles.forgetOnCompletion(handler);
+                trackedHandler = config.isSpoolIndexEnabled() ? wrapForIndex(trackedHandler) : trackedHandler;
+                trackedHandler = spoolQuota.isEnabled() ? spoolQuota.wrap(trackedHandler) : trackedHandler;
+                eventSender.send(file, isFlushAdaptive ? flushScheduler.wrap(trackedHandler) : trackedHandler);
+            }
+
+            @Override
+            public void close()
+            {
+                eventSender.close();
+            }
+        };
+
+        this.defaultQueue = SpoolQueue.createDefault(config);
+        final List<SpoolQueue> routedQueues = SpoolQueue.parse(config);
+        if (routedQueues.isEmpty()) {
+            this.queues = Collections.emptyList();
+            this.queueSender = null;
+        }
+        else {
+            final List<SpoolQueue> allQueues = new ArrayList<SpoolQueue>(routedQueues);
+            allQueues.add(defaultQueue);
+            Collections.sort(allQueues, new Comparator<SpoolQueue>()
+            {
+                @Override
+                public int compare(final SpoolQueue first, final SpoolQueue second)
+                {
+                    return Integer.valueOf(second.getPriority()).compareTo(first.getPriority());
+                }
+            });
+            this.queues = Collections.unmodifiableList(allQueues);
+            // Deferred sends don't count as failures for adaptive flushes
+            this.queueSender = new PrioritizedEventSender(sender, queues);
+        }
     }
 
     /**
@@ -58,14 +122,143 @@ class DiskSpoolEventWriterProvider implements Provider<DiskSpoolEventWriter>
     @Override
     public DiskSpoolEventWriter get()
     {
-        return new DiskSpoolEventWriter(new EventHandler()
+        return create(config.getSpoolDirectoryName());
+    }
+
+    /**
+     * @param spoolDirectoryName spool directory of the writer (e.g. the one of a shard)
+     * @return instance of a DiskSpoolEventWriter, for the default spool queue
+     */
+    DiskSpoolEventWriter create(final String spoolDirectoryName)
+    {
+        return create(defaultQueue, spoolDirectoryName);
+    }
+
+    /**
+     * @param queue spool queue routed by event name
+     * @return instance of a DiskSpoolEventWriter, in the spool directory of the queue
+     */
+    DiskSpoolEventWriter create(final SpoolQueue queue)
+    {
+        return create(queue, queue.getSpoolDirectoryName(config.getSpoolDirectoryName()));
+    }
+
+    /**
+     * @return spool queues by decreasing priority, including the default one, or an empty list if events aren't routed
+     */
+    List<SpoolQueue> getQueues()
+    {
+        return queues;
+    }
+
+    /**
+     * @param spoolPath spool directory of a writer created by this provider
+     * @return the index of the spool directory, null if spool indexes are disabled
+     */
+    SpoolIndex getIndex(final String spoolPath)
+    {
+        return indexes.get(new File(spoolPath).getAbsoluteFile());
+    }
+
+    private DiskSpoolEventWriter create(final SpoolQueue queue, final String spoolDirectoryName)
+    {
+        final EventSender queueOrDefaultSender = queueSender == null ? sender : queueSender.forQueue(queue.getName());
+
+        final SpoolCompression compression = getSpoolCompression(config);
+        if (compression != config.getSpoolCompression()) {
+            log.warn("Spool compression is not supported with Scribe, disabling it");
+        }
+        final CompressionCodec codec = compression.createCodec(config.getSpoolCompressionLevel());
+
+        // With adaptive flushes, the writer's own periodic flush is only a safety net
+        final int flushIntervalInSeconds = isFlushAdaptive ? (int) TimeUnit.MILLISECONDS.toSeconds(config.getFlushMaxInterval().getMillis()) : queue.getFlushIntervalInSeconds();
+
+        // Before the DiskSpoolEventWriter looks at the _tmp area
+        final SpoolIndex index = config.isSpoolIndexEnabled() ? openIndex(spoolDirectoryName) : null;
+
+        final DiskSpoolEventWriter eventWriter = new DiskSpoolEventWriter(new EventHandler()
         {
             @Override
             public void handle(final File file, final CallbackHandler handler)
             {
-                eventSender.send(file, handler);
+                queueOrDefaultSender.send(file, handler);
             }
-        }, config.getSpoolDirectoryName(), config.isFlushEnabled(), config.getFlushIntervalInSeconds(), executor,
-            SyncType.valueOf(config.getSyncType()), config.getSyncBatchSize(), new NoCompressionCodec(), serializer);
+        }, spoolDirectoryName, config.isFlushEnabled(), flushIntervalInSeconds, executor,
+            SyncType.valueOf(config.getSyncType()), config.getSyncBatchSize(), codec, serializerProvider.get());
+
+        if (isFlushAdaptive) {
+            flushScheduler.start(eventWriter);
+        }
+
+        if (index != null && !index.getSpoolFiles().isEmpty() && config.isFlushEnabled()) {
+            // Resume sending right away, rather than after the first flush interval
+            executor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    eventWriter.flush();
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        }
+
+        return eventWriter;
+    }
+
+    private SpoolIndex openIndex(final String spoolDirectoryName)
+    {
+        final File spoolDirectory = new File(spoolDirectoryName).getAbsoluteFile();
+        try {
+            final SpoolIndex index = new SpoolIndex(spoolDirectory);
+            final int recovered = index.recoverTmpFiles();
+            log.info("Loaded the index of {}: {} files to send, {} recovered from _tmp",
+                new Object[]{spoolDirectory, index.getSpoolFiles().size(), recovered});
+            indexes.put(spoolDirectory, index);
+            return index;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Unable to open the index of " + spoolDirectory, e);
+        }
+    }
+
+    // Forget files once sent
+    private CallbackHandler wrapForIndex(final CallbackHandler handler)
+    {
+        return new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                handler.onError(t, file);
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                // Sent from the _lock area
+                final File spoolDirectory = DeliveryTracker.getSpoolDirectory(file);
+                final SpoolIndex index = indexes.get(spoolDirectory);
+                if (index != null) {
+                    try {
+                        index.onRemoved(file.getName());
+                    }
+                    catch (IOException e) {
+                        log.warn("Unable to update the index of " + spoolDirectory, e);
+                    }
+                }
+                handler.onSuccess(file);
+            }
+        };
+    }
+
+    static SpoolCompression getSpoolCompression(final EventTrackerConfig config)
+    {
+        if (config.getType() == CollectorControllerModule.Type.SCRIBE) {
+            // The Scribe sender reads the events back from the spool files
+            return SpoolCompression.NONE;
+        }
+        else {
+            return config.getSpoolCompression();
+        }
     }
 }
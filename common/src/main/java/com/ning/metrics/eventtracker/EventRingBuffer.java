@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free, multi-producer multi-consumer queue of events.
+ * <p/>
+ * Each slot carries a sequence number telling producers and consumers whether it is free or full for the
+ * current lap around the ring, so that claiming a slot is a single CAS on the tail (producers) or the
+ * head (consumers). Multiple consumers are needed to support the DROP_OLDEST overflow policy, where
+ * producers evict entries themselves.
+ */
+class EventRingBuffer
+{
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Event> slots;
+    private final AtomicLongArray sequences;
+
+    // Next position to read from
+    private final AtomicLong head = new AtomicLong(0);
+    // Next position to write to
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * @param requestedCapacity minimum number of events the buffer can hold, rounded up to the next power of two
+     */
+    EventRingBuffer(final int requestedCapacity)
+    {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + requestedCapacity);
+        }
+        if (requestedCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity is too large: " + requestedCapacity);
+        }
+
+        int actualCapacity = 1;
+        while (actualCapacity < requestedCapacity) {
+            actualCapacity <<= 1;
+        }
+
+        this.capacity = actualCapacity;
+        this.mask = actualCapacity - 1;
+        this.slots = new AtomicReferenceArray<Event>(actualCapacity);
+        this.sequences = new AtomicLongArray(actualCapacity);
+        for (int i = 0; i < actualCapacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Enqueue an event, if there is room for it.
+     *
+     * @param event event to enqueue
+     * @return true if the event was enqueued, false if the buffer is full
+     */
+    boolean offer(final Event event)
+    {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(index, event);
+                    // Publish the slot to consumers
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            }
+            else if (difference < 0) {
+                // The consumer hasn't released this slot yet from the previous lap
+                return false;
+            }
+
+            position = tail.get();
+        }
+    }
+
+    /**
+     * Dequeue the oldest event.
+     *
+     * @return the oldest event, null if the buffer is empty
+     */
+    Event poll()
+    {
+        long position = head.get();
+        while (true) {
+            final int index = (int) (position & mask);
+            final long difference = sequences.get(index) - (position + 1);
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    final Event event = slots.get(index);
+                    slots.lazySet(index, null);
+                    // Release the slot for the next lap
+                    sequences.lazySet(index, position + capacity);
+                    return event;
+                }
+            }
+            else if (difference < 0) {
+                // The producer hasn't published this slot yet
+                return null;
+            }
+
+            position = head.get();
+        }
+    }
+
+    /**
+     * Dequeue up to maxEvents events, oldest first.
+     *
+     * @param destination collection to add the events to
+     * @param maxEvents   maximum number of events to dequeue
+     * @return number of events dequeued
+     */
+    int drainTo(final Collection<Event> destination, final int maxEvents)
+    {
+        int drained = 0;
+        while (drained < maxEvents) {
+            final Event event = poll();
+            if (event == null) {
+                break;
+            }
+
+            destination.add(event);
+            drained++;
+        }
+
+        return drained;
+    }
+
+    /**
+     * @return approximate number of events in the buffer
+     */
+    int size()
+    {
+        // Read head first: a concurrent poll can only make the result smaller, never negative
+        final long currentHead = head.get();
+        final long currentTail = tail.get();
+        final long size = currentTail - currentHead;
+
+        if (size < 0) {
+            return 0;
+        }
+        else if (size > capacity) {
+            return capacity;
+        }
+        else {
+            return (int) size;
+        }
+    }
+
+    boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    int capacity()
+    {
+        return capacity;
+    }
+}
@@ -66,6 +66,36 @@ public interface EventTrackerConfig
     @Default("60")
     int getFlushIntervalInSeconds();
 
+    /**
+     * If true, the delay between flushes adapts to the spool backlog and to the sender health: it drops down to
+     * eventtracker.diskspool.flush-min-interval while files are waiting and the sender is healthy, and backs off up to
+     * eventtracker.diskspool.flush-max-interval while the sender fails. Files promoted to the spool area are flushed
+     * right away.
+     *
+     * @return whether to adapt the delay between flushes
+     */
+    @Config("eventtracker.diskspool.flush-adaptive")
+    @Default("false")
+    boolean isFlushAdaptive();
+
+    /**
+     * Minimum delay between flushes (adaptive flushes only)
+     *
+     * @return minimum delay between flushes
+     */
+    @Config("eventtracker.diskspool.flush-min-interval")
+    @Default("1s")
+    TimeSpan getFlushMinInterval();
+
+    /**
+     * Maximum delay between flushes while the sender is failing (adaptive flushes only)
+     *
+     * @return maximum delay between flushes
+     */
+    @Config("eventtracker.diskspool.flush-max-interval")
+    @Default("10m")
+    TimeSpan getFlushMaxInterval();
+
     /**
      * Type of outputter to use when spooling: NONE, FLUSH, or SYNC
      *
@@ -110,6 +140,170 @@ public interface EventTrackerConfig
     @Default("60")
     int getMaxUncommittedPeriodInSeconds();
 
+    /**
+     * Maximum size of the spool files waiting to be sent (all shards and queues, quarantined files excluded). Past it, the oldest
+     * files are evicted and their events counted as lost.
+     *
+     * @return the maximum size of the spool files in bytes, 0 for no limit
+     * @see SpoolQuota
+     */
+    @Config("eventtracker.diskspool.max-size-bytes")
+    @Default("0")
+    long getSpoolMaxSizeInBytes();
+
+    /**
+     * Maximum number of spool files waiting to be sent (all shards and queues, quarantined files excluded). Past it, the oldest
+     * files are evicted and their events counted as lost.
+     *
+     * @return the maximum number of spool files, 0 for no limit
+     * @see SpoolQuota
+     */
+    @Config("eventtracker.diskspool.max-files")
+    @Default("0")
+    int getSpoolMaxFiles();
+
+    /**
+     * Compression of the spool files: NONE, GZIP or DEFLATE. With the HTTP sender, compressed files are uploaded
+     * as is, with the matching Content-Encoding header. Not supported by the Scribe sender.
+     *
+     * @return the compression of the spool files
+     */
+    @Config("eventtracker.diskspool.compression")
+    @Default("NONE")
+    SpoolCompression getSpoolCompression();
+
+    /**
+     * Compression level, from 1 (fastest) to 9 (smallest)
+     *
+     * @return the compression level of the spool files
+     */
+    @Config("eventtracker.diskspool.compression-level")
+    @Default("1")
+    int getSpoolCompressionLevel();
+
+    /**
+     * If true, events are serialized in the _tmp area through memory-mapped files instead of streams.
+     * The eventtracker.diskspool.synctype is honored every eventtracker.diskspool.batch-size events: SYNC forces
+     * the mapped pages to disk, NONE and FLUSH leave it to the OS.
+     *
+     * @return whether to write spool files through memory-mapped segments
+     * @see MappedSpoolEventWriter
+     */
+    @Config("eventtracker.diskspool.mmap.enabled")
+    @Default("false")
+    boolean isSpoolMemoryMapped();
+
+    /**
+     * Size of the segments preallocated in the _tmp area (memory-mapped writes only). Files grow one segment at a time
+     * and are truncated to their actual size when promoted.
+     *
+     * @return the segment size in bytes
+     */
+    @Config("eventtracker.diskspool.mmap.segment-size-bytes")
+    @Default("4194304")
+    long getSpoolSegmentSizeInBytes();
+
+    /**
+     * If true (with eventtracker.diskspool.synctype=SYNC), offerEvent returns once the event is on disk, and
+     * concurrent callers share syncs instead of each batch of eventtracker.diskspool.batch-size events being synced by
+     * the caller holding the writer. Implies memory-mapped writes. Not supported with spool compression nor with
+     * asynchronous writes.
+     *
+     * @return whether to group syncs of concurrent writers
+     * @see GroupCommitEventWriter
+     */
+    @Config("eventtracker.diskspool.group-commit")
+    @Default("false")
+    boolean isSpoolGroupCommit();
+
+    /**
+     * If true, each spool directory keeps an append-only index of its files (_index/spool.idx). On startup, the
+     * files of the index are sent right away, the spool quota starts from it instead of scanning the spool area, and
+     * the file left in _tmp by a crash is truncated to its last checkpoint and sent, instead of being quarantined.
+     * Implies memory-mapped writes. Checkpoints are taken every eventtracker.diskspool.batch-size events (on each
+     * sync with group commits) and are not supported with spool compression.
+     *
+     * @return whether to index the spool directories
+     * @see SpoolIndex
+     */
+    @Config("eventtracker.diskspool.index.enabled")
+    @Default("false")
+    boolean isSpoolIndexEnabled();
+
+    /**
+     * Number of independent spool writers, each with its own _tmp file under shard-N in the spool directory.
+     * With more than one shard, producer threads don't contend on a single writer lock (e.g. set it to the number
+     * of cores). Thresholds (eventtracker.diskspool.max-uncommitted-*) apply per shard.
+     *
+     * @return the number of spool writer shards
+     * @see ShardedEventWriter
+     */
+    @Config("eventtracker.diskspool.shards")
+    @Default("1")
+    int getSpoolShards();
+
+    /**
+     * How events are spread over the shards: THREAD (each producer thread sticks to a shard) or EVENT_NAME
+     * (events of the same name share a shard, and spool files)
+     *
+     * @return the routing of events to shards
+     */
+    @Config("eventtracker.diskspool.shard-routing")
+    @Default("THREAD")
+    ShardRouting getSpoolShardRouting();
+
+    /**
+     * Spool queues, to route events by name to separate spool directories with their own thresholds, flush interval
+     * and sender budget, e.g. billing:Billing,Refund:priority=10:max-senders=4;impressions:PageImpression:max-senders=1
+     * While a queue uses its whole sender budget, queues of lower priority wait. Other events go to the default queue.
+     *
+     * @return the spool queues, empty to disable routing by event name
+     * @see SpoolQueue
+     */
+    @Config("eventtracker.diskspool.queues")
+    @Default("")
+    String getSpoolQueues();
+
+    //------------------- Asynchronous ingestion -------------------//
+
+    /**
+     * If true, events offered to the CollectorController are queued in memory and written to the spool area
+     * by a dedicated thread, instead of synchronously on the caller's thread.
+     *
+     * @return whether to write events asynchronously
+     */
+    @Config("eventtracker.async.enabled")
+    @Default("false")
+    boolean isAsyncEnabled();
+
+    /**
+     * Maximum number of events buffered in memory (asynchronous mode only).
+     * The value is rounded up to the next power of two.
+     *
+     * @return the capacity of the in-memory event queue
+     */
+    @Config("eventtracker.async.queue-capacity")
+    @Default("8192")
+    int getAsyncQueueCapacity();
+
+    /**
+     * What to do when the in-memory event queue is full (asynchronous mode only): BLOCK, DROP_NEWEST or DROP_OLDEST
+     *
+     * @return the policy to apply when the in-memory event queue is full
+     */
+    @Config("eventtracker.async.overflow-policy")
+    @Default("BLOCK")
+    OverflowPolicy getAsyncOverflowPolicy();
+
+    /**
+     * Maximum number of events written to the spool area per batch by the writer thread (asynchronous mode only)
+     *
+     * @return the maximum batch size for the writer thread
+     */
+    @Config("eventtracker.async.max-batch-size")
+    @Default("256")
+    int getAsyncMaxBatchSize();
+
     //------------------- HTTP Sender -------------------//
 
     /**
@@ -130,6 +324,35 @@ public interface EventTrackerConfig
     @Default("8080")
     int getCollectorPort();
 
+    /**
+     * Comma-separated list of collectors (host or host:port, eventtracker.collector.port by default) to spread spool
+     * files over. If empty, eventtracker.collector.host is the only collector.
+     *
+     * @return the collectors to use
+     */
+    @Config("eventtracker.collector.hosts")
+    @Default("")
+    String getCollectorHosts();
+
+    /**
+     * How to pick a collector for each request (several collectors only): LEAST_OUTSTANDING or LATENCY_WEIGHTED
+     *
+     * @return the collector selection
+     */
+    @Config("eventtracker.collector.selection")
+    @Default("LEAST_OUTSTANDING")
+    CollectorSelection getCollectorSelection();
+
+    @Config("eventtracker.collector.eject-after-failures")
+    @Description("Number of consecutive failed requests (connection errors and 5xx responses) taking a collector out of the rotation, 0 to never do it")
+    @Default("3")
+    int getCollectorEjectAfterFailures();
+
+    @Config("eventtracker.collector.ejection-duration")
+    @Description("Time a failing collector is left out of the rotation for, before being tried again")
+    @Default("30s")
+    TimeSpan getCollectorEjectionDuration();
+
     /**
      * Type of payload, valid only for HTTP protocol
      *
@@ -188,6 +411,79 @@ public interface EventTrackerConfig
     @Default("4")
     int getScribeMaxIdleTimeInMinutes();
 
+    /**
+     * Number of connections to open to Scribe. With more than one connection, spool files are sent concurrently,
+     * one per connection. Each connection is refreshed independently (see eventtracker.scribe.refresh_rate and
+     * eventtracker.scribe.max-idle-minutes).
+     *
+     * @return the number of connections to Scribe
+     */
+    @Config("eventtracker.scribe.connections")
+    @Default("1")
+    int getScribeConnections();
+
+    /**
+     * Number of events to send to Scribe per Log call. When positive, spool files are read incrementally and sent
+     * in chunks of that size instead of being loaded in memory as a whole. If Scribe asks to try a chunk later, the
+     * retry of that file resumes after the last acknowledged chunk. A file failed back to the spool is sent again in full.
+     *
+     * @return the number of events per Log call, 0 to send each file in a single call
+     */
+    @Config("eventtracker.scribe.chunk-size")
+    @Default("0")
+    int getScribeChunkSize();
+
+    /**
+     * Initial delay before resending a file Scribe answered TRY_LATER for. The delay doubles (with jitter) for each
+     * consecutive TRY_LATER. Meanwhile, other files are left in the spool for a later flush.
+     *
+     * @return the initial backoff delay
+     */
+    @Config("eventtracker.scribe.backoff.initial")
+    @Default("1s")
+    TimeSpan getScribeInitialBackoff();
+
+    /**
+     * Maximum delay between two attempts while Scribe answers TRY_LATER
+     *
+     * @return the maximum backoff delay
+     */
+    @Config("eventtracker.scribe.backoff.max")
+    @Default("60s")
+    TimeSpan getScribeMaxBackoff();
+
+    /**
+     * Whether to send to Scribe over non-blocking connections. The flusher thread doesn't wait for Scribe to answer:
+     * up to eventtracker.scribe.connections Log requests are in flight, driven by a single selector thread.
+     * Files are always sent in a single call (eventtracker.scribe.chunk-size is ignored).
+     *
+     * @return true to use the non-blocking Scribe sender
+     */
+    @Config("eventtracker.scribe.async")
+    @Default("false")
+    boolean isScribeAsyncEnabled();
+
+    /**
+     * Maximum time to wait for Scribe to answer a Log request sent by the non-blocking sender
+     * (eventtracker.scribe.async). The file is failed, and the connection re-opened, when Scribe doesn't answer in time.
+     *
+     * @return the Log request timeout
+     */
+    @Config("eventtracker.scribe.async.timeout")
+    @Default("60s")
+    TimeSpan getScribeAsyncTimeout();
+
+    /**
+     * Whether to prefix each message sent to Scribe with a dedupe token, after the timestamp:
+     * "&lt;timestamp&gt;:&lt;host&gt;/&lt;spool generation&gt;/&lt;file name&gt;#&lt;event sequence&gt;:&lt;payload&gt;".
+     * Consumers must understand this format. Applies to both the blocking and the non-blocking (eventtracker.scribe.async) senders.
+     *
+     * @return true to identify the messages sent to Scribe
+     */
+    @Config("eventtracker.scribe.dedupe-tokens")
+    @Default("false")
+    boolean isScribeDedupeTokensEnabled();
+
     /**
      * How long can we keep on using the same HTTP persistent connection?
      * Default is 2 minutes, to balance efficiency (longer) and load-balancing
@@ -198,7 +494,86 @@ public interface EventTrackerConfig
     TimeSpan getHttpMaxKeepAlive();
 
     @Config("eventtracker.http.connection.workersPoolSize")
-    @Description("Maximum number of concurrent file uploads to the collector")
-    @Default("50")
+    @Description("Number of threads submitting file uploads to the collector. Uploads are asynchronous, a few threads are enough")
+    @Default("4")
     int getHttpWorkersPoolSize();
+
+    @Config("eventtracker.http.connection.queueCapacity")
+    @Description("Maximum number of files waiting to be uploaded to the collector. Files rejected when full stay in the spool for a later flush")
+    @Default("10000")
+    int getHttpQueueCapacity();
+
+    /**
+     * Maximum number of bytes of spool files sent to the collector in a single request. Smaller files are held
+     * (see eventtracker.http.batch.linger) and sent together in one multipart request, each file being acknowledged
+     * once the combined request succeeds. The collector needs to accept multipart uploads.
+     *
+     * @return the maximum size of a batch in bytes, 0 to send one file per request
+     */
+    @Config("eventtracker.http.batch.max-bytes")
+    @Default("0")
+    long getHttpMaxBatchSizeInBytes();
+
+    /**
+     * Maximum time a small spool file waits for other files to be batched with
+     *
+     * @return the batch linger time
+     */
+    @Config("eventtracker.http.batch.linger")
+    @Default("1s")
+    TimeSpan getHttpBatchLinger();
+
+    /**
+     * If true, requests to the collector go through a circuit breaker: once eventtracker.http.circuit-breaker.failure-rate-percent
+     * of the last eventtracker.http.circuit-breaker.window-size requests failed, spool files are left in the spool
+     * without any request for eventtracker.http.circuit-breaker.open-duration, then a single probe request decides
+     * whether to resume sending. Flushes aren't backed off while the breaker is open: they are no-ops.
+     *
+     * @return whether to enable the collector circuit breaker
+     */
+    @Config("eventtracker.http.circuit-breaker.enabled")
+    @Default("false")
+    boolean isHttpCircuitBreakerEnabled();
+
+    @Config("eventtracker.http.circuit-breaker.failure-rate-percent")
+    @Description("Percentage of failed requests (connection errors and 5xx responses) opening the circuit breaker")
+    @Default("50")
+    int getHttpCircuitBreakerFailureRatePercent();
+
+    @Config("eventtracker.http.circuit-breaker.window-size")
+    @Description("Number of recent requests the failure rate of the circuit breaker is computed on")
+    @Default("20")
+    int getHttpCircuitBreakerWindowSize();
+
+    @Config("eventtracker.http.circuit-breaker.open-duration")
+    @Description("Time the circuit breaker stays open before probing the collector")
+    @Default("30s")
+    TimeSpan getHttpCircuitBreakerOpenDuration();
+
+    /**
+     * If greater than 0, an upload still pending after this percentile of the recent upload times (e.g. 0.95) is sent
+     * again to another collector (see eventtracker.collector.hosts), and the first acknowledgement wins. The collector
+     * may then receive the same file twice.
+     *
+     * @return percentile of the upload times past which an upload is hedged, 0 to disable hedging
+     */
+    @Config("eventtracker.http.hedge.percentile")
+    @Default("0")
+    double getHttpHedgePercentile();
+
+    @Config("eventtracker.http.hedge.min-delay")
+    @Description("Minimum time to wait for before hedging an upload")
+    @Default("100ms")
+    TimeSpan getHttpHedgeMinDelay();
+
+    /**
+     * If true, uploads of single uncompressed spool files let the collector acknowledge part of the file: it can
+     * answer 206 with the number of bytes it accepted (X-Accepted-Bytes), and only the remaining events are sent again.
+     * Ignored for compressed spools.
+     *
+     * @return whether to accept partial acknowledgements from the collector
+     */
+    @Config("eventtracker.http.partial-ack.enabled")
+    @Default("false")
+    boolean isHttpPartialAckEnabled();
 }
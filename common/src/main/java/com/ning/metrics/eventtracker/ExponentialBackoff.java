@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exponential backoff with jitter: each consecutive failure doubles the delay, up to a maximum, and a success
+ * resets it. The actual delay is drawn uniformly in [delay / 2, delay], so that hosts don't retry in lockstep.
+ */
+class ExponentialBackoff
+{
+    private final long initialDelayInMillis;
+    private final long maxDelayInMillis;
+    private final Random random = new Random();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    private final AtomicLong currentDelayInMillis = new AtomicLong(0);
+    private final AtomicLong backoffUntilMillis = new AtomicLong(0);
+
+    ExponentialBackoff(final long initialDelayInMillis, final long maxDelayInMillis)
+    {
+        if (initialDelayInMillis <= 0 || maxDelayInMillis < initialDelayInMillis) {
+            throw new IllegalArgumentException(String.format("Invalid backoff delays: initial=%d, max=%d", initialDelayInMillis, maxDelayInMillis));
+        }
+
+        this.initialDelayInMillis = initialDelayInMillis;
+        this.maxDelayInMillis = maxDelayInMillis;
+    }
+
+    /**
+     * Record a failure and compute the delay before the next attempt
+     *
+     * @return the delay to wait for, in milliseconds
+     */
+    long onFailure()
+    {
+        final int failures = consecutiveFailures.incrementAndGet();
+
+        long ceiling = maxDelayInMillis;
+        // Avoid overflowing on long outages
+        if (failures <= 31 && (initialDelayInMillis << (failures - 1)) < maxDelayInMillis) {
+            ceiling = initialDelayInMillis << (failures - 1);
+        }
+
+        final long delay = ceiling - (long) (random.nextDouble() * (ceiling / 2));
+        currentDelayInMillis.set(delay);
+        backoffUntilMillis.set(System.currentTimeMillis() + delay);
+
+        return delay;
+    }
+
+    void onSuccess()
+    {
+        consecutiveFailures.set(0);
+        currentDelayInMillis.set(0);
+        backoffUntilMillis.set(0);
+    }
+
+    /**
+     * @return how long callers should still hold off, in milliseconds (0 if not backing off)
+     */
+    long getRemainingDelayInMillis()
+    {
+        return Math.max(0, backoffUntilMillis.get() - System.currentTimeMillis());
+    }
+
+    /**
+     * @return the last delay computed, 0 if the last attempt succeeded
+     */
+    long getCurrentDelayInMillis()
+    {
+        return currentDelayInMillis.get();
+    }
+
+    int getConsecutiveFailures()
+    {
+        return consecutiveFailures.get();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+
+import java.io.IOException;
+
+/**
+ * Sits between the ThresholdEventWriter and the DiskSpoolEventWriter: each commit promotes a file to the spool area,
+ * which the AdaptiveFlushScheduler is asked to flush right away.
+ */
+class FlushOnCommitEventWriter implements EventWriter
+{
+    private final EventWriter delegate;
+    private final AdaptiveFlushScheduler flushScheduler;
+
+    FlushOnCommitEventWriter(final EventWriter delegate, final AdaptiveFlushScheduler flushScheduler)
+    {
+        this.delegate = delegate;
+        this.flushScheduler = flushScheduler;
+    }
+
+    @Override
+    public void write(final Event event) throws IOException
+    {
+        delegate.write(event);
+    }
+
+    @Override
+    public void commit() throws IOException
+    {
+        delegate.commit();
+        flushScheduler.requestFlush();
+    }
+
+    @Override
+    public void forceCommit() throws IOException
+    {
+        delegate.forceCommit();
+        flushScheduler.requestFlush();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        delegate.flush();
+    }
+
+    @Override
+    public void rollback() throws IOException
+    {
+        delegate.rollback();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        // The flush scheduler is shared with the other writers, and stopped on shutdown
+        delegate.close();
+    }
+
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.weakref.jmx.Managed;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventWriter which returns from write only once the event is on disk, sharing syncs between concurrent writers.
+ * <p/>
+ * Events are appended to the memory-mapped spool file right away. The first writer to wait for its event becomes the
+ * leader: it flushes the serializer and forces the file while others keep on appending, then wakes up all writers whose events were covered.
+ * The next writer still waiting leads the following sync. Under contention, a single sync acknowledges as many events
+ * as were appended while the previous one was in progress.
+ */
+public class GroupCommitEventWriter implements BatchEventWriter
+{
+    private final EventWriter delegate;
+    private final MappedSpoolEventWriter spoolWriter;
+
+    // Sequence number of the last event appended
+    private final AtomicLong appended = new AtomicLong(0);
+    private final AtomicLong syncs = new AtomicLong(0);
+
+    private final Object syncLock = new Object();
+    // Guarded by syncLock
+    private long durable = 0;
+    private long failedUpTo = 0;
+    private boolean syncInProgress = false;
+
+    /**
+     * @param delegate    writer to append events to (e.g. the ThresholdEventWriter)
+     * @param spoolWriter memory-mapped writer at the bottom of the chain, to sync
+     */
+    public GroupCommitEventWriter(final EventWriter delegate, final MappedSpoolEventWriter spoolWriter)
+    {
+        this.delegate = delegate;
+        this.spoolWriter = spoolWriter;
+    }
+
+    @Override
+    public void write(final Event event) throws IOException
+    {
+        awaitDurable(append(event));
+    }
+
+    /**
+     * Append events, then wait for a single sync covering all of them. The writer isn't locked meanwhile.
+     *
+     * @param events events to write
+     * @return the number of events written
+     * @throws BatchWriteException if an event couldn't be appended, or the sync failed
+     */
+    @Override
+    public int writeAll(final Iterable<? extends Event> events) throws BatchWriteException
+    {
+        int written = 0;
+        long lastSequence = 0;
+        for (final Event event : events) {
+            try {
+                lastSequence = append(event);
+            }
+            catch (IOException e) {
+                throw new BatchWriteException(written + 1, 1, e);
+            }
+            written++;
+        }
+
+        try {
+            awaitDurable(lastSequence);
+        }
+        catch (IOException e) {
+            throw new BatchWriteException(written, written, e);
+        }
+
+        return written;
+    }
+
+    /**
+     * Append an event, without waiting for it to be on disk
+     *
+     * @param event event to write
+     * @return the sequence number to wait for
+     * @throws IOException generic I/O exception
+     * @see #awaitDurable(long)
+     */
+    public long append(final Event event) throws IOException
+    {
+        delegate.write(event);
+        // Assigned once the event is written: a sync started afterwards covers it
+        return appended.incrementAndGet();
+    }
+
+    /**
+     * Wait for all events appended up to the given sequence number to be on disk
+     *
+     * @param sequence sequence number returned by append
+     * @throws IOException if the sync covering these events failed
+     */
+    public void awaitDurable(final long sequence) throws IOException
+    {
+        while (true) {
+            final long target;
+            synchronized (syncLock) {
+                while (durable < sequence && syncInProgress) {
+                    try {
+                        syncLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for events to be synced");
+                    }
+                }
+
+                if (durable >= sequence) {
+                    return;
+                }
+                if (failedUpTo >= sequence) {
+                    throw new IOException("Unable to sync events up to " + failedUpTo);
+                }
+
+                // Lead the next sync
+                syncInProgress = true;
+                target = appended.get();
+            }
+
+            boolean synced = false;
+            try {
+                spoolWriter.sync();
+                syncs.incrementAndGet();
+                synced = true;
+            }
+            finally {
+                synchronized (syncLock) {
+                    syncInProgress = false;
+                    if (synced) {
+                        durable = Math.max(durable, target);
+                    }
+                    else {
+                        failedUpTo = Math.max(failedUpTo, target);
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void commit() throws IOException
+    {
+        delegate.commit();
+    }
+
+    @Override
+    public void forceCommit() throws IOException
+    {
+        delegate.forceCommit();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        delegate.flush();
+    }
+
+    @Override
+    public void rollback() throws IOException
+    {
+        delegate.rollback();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        delegate.close();
+    }
+
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+
+    @Managed(description = "Number of syncs since startup")
+    public long getSyncs()
+    {
+        return syncs.get();
+    }
+
+    @Managed(description = "Number of events written since startup")
+    public long getEventsAppended()
+    {
+        return appended.get();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip spool files, sent with Content-Encoding: gzip
+ */
+class GzipCompressionCodec extends StreamCompressionCodec
+{
+    private final int level;
+
+    GzipCompressionCodec(final int level)
+    {
+        this.level = level;
+    }
+
+    @Override
+    OutputStream wrapOutputStream(final OutputStream outputStream) throws IOException
+    {
+        return new GZIPOutputStream(outputStream)
+        {
+            {
+                // GZIPOutputStream doesn't expose the level
+                def.setLevel(level);
+            }
+        };
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.writer.CompressionCodec;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventWriter which serializes events in the _tmp area through memory-mapped files, instead of a FileOutputStream.
+ * <p/>
+ * Each file is preallocated by segments of segmentSizeInBytes and grows one segment at a time. On commit, it is
+ * truncated to the bytes actually written and promoted to the spool area: the files are identical to the ones
+ * DiskSpoolEventWriter produces, and the delegate (a DiskSpoolEventWriter on the same spool path) flushes them to
+ * the EventSender as usual.
+ * <p/>
+ * Every syncBatchSize events, SyncType.SYNC forces the mapped pages to disk. Data written to the mapping is in the
+ * page cache right away, so NONE and FLUSH don't need to do anything.
+ * <p/>
+ * sync() forces the events written so far without holding up writers, for group commits. It first flushes the events
+ * buffered by the serializer into the mapped file: the EventSerializer interface doesn't support it, so this only
+ * works for serializers implementing Flushable, or writing each event through (e.g. ObjectOutputEventSerializer).
+ * <p/>
+ * With a SpoolIndex, promoted files are recorded, and so is the file being written every syncBatchSize events (and
+ * on each sync), so that it can be recovered up to that point after a crash. The serializer is flushed first (see
+ * sync), and the index is forced along with the data. Checkpoints are disabled with compression (the codec buffers
+ * data until the file is closed).
+ *
+ * @see GroupCommitEventWriter
+ */
+public class MappedSpoolEventWriter implements EventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(MappedSpoolEventWriter.class);
+
+    private final EventWriter delegate;
+    private final File spoolDirectory;
+    private final File tmpSpoolDirectory;
+    private final EventSerializer serializer;
+    private final CompressionCodec codec;
+    private final SyncType syncType;
+    private final int syncBatchSize;
+    private final long segmentSizeInBytes;
+    // Null if the spool directory isn't indexed
+    private final SpoolIndex index;
+    private final boolean checkpointsEnabled;
+
+    private final AtomicLong segmentsMapped = new AtomicLong(0);
+    private final AtomicLong filesPromoted = new AtomicLong(0);
+    private long fileSequence = 0;
+
+    // Current _tmp file, null until the first write
+    private File currentFile = null;
+    private MappedFileOutputStream currentOutput = null;
+    private OutputStream currentStream = null;
+    private int writesSinceSync = 0;
+    private long eventsInFile = 0;
+    // Number of sync() calls forcing the current file outside of the lock
+    private int syncsInProgress = 0;
+
+    public MappedSpoolEventWriter(final EventWriter delegate, final EventSerializer serializer, final CompressionCodec codec,
+                                  final SyncType syncType, final int syncBatchSize, final long segmentSizeInBytes)
+    {
+        this(delegate, serializer, codec, syncType, syncBatchSize, segmentSizeInBytes, null);
+    }
+
+    /**
+     * @param index index of the spool directory to maintain, null for none
+     */
+    public MappedSpoolEventWriter(final EventWriter delegate, final EventSerializer serializer, final CompressionCodec codec,
+                                  final SyncType syncType, final int syncBatchSize, final long segmentSizeInBytes,
+                                  final SpoolIndex index)
+    {
+        if (segmentSizeInBytes <= 0 || segmentSizeInBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSizeInBytes);
+        }
+
+        this.delegate = delegate;
+        this.spoolDirectory = new File(delegate.getSpoolPath());
+        this.tmpSpoolDirectory = new File(spoolDirectory, "_tmp");
+        this.serializer = serializer;
+        this.codec = codec;
+        this.syncType = syncType;
+        this.syncBatchSize = syncBatchSize;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.index = index;
+        this.checkpointsEnabled = index != null && codec instanceof NoCompressionCodec;
+
+        if (!tmpSpoolDirectory.exists() && !tmpSpoolDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create " + tmpSpoolDirectory);
+        }
+    }
+
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        if (currentFile == null) {
+            open();
+        }
+
+        serializer.serialize(event);
+        eventsInFile++;
+
+        writesSinceSync++;
+        if (writesSinceSync >= syncBatchSize) {
+            if (checkpointsEnabled) {
+                // The checkpoint must cover whole events
+                flushSerializer();
+            }
+            if (syncType == SyncType.SYNC) {
+                currentOutput.force();
+            }
+            // Even if not forced, the data survives a crash of the process
+            checkpoint(currentFile.getName(), eventsInFile, currentOutput.position(), syncType == SyncType.SYNC);
+            writesSinceSync = 0;
+        }
+    }
+
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        awaitSyncs();
+        if (currentFile == null) {
+            return;
+        }
+
+        serializer.close();
+        currentStream.close();
+        final long length = currentOutput.closeAndTruncate(syncType == SyncType.SYNC);
+
+        final File spoolFile = new File(spoolDirectory, currentFile.getName());
+        if (!currentFile.renameTo(spoolFile)) {
+            throw new IOException(String.format("Unable to promote %s to %s", currentFile, spoolFile));
+        }
+        filesPromoted.incrementAndGet();
+        log.debug("Promoted {} ({} bytes) to the spool area", spoolFile, length);
+        if (index != null) {
+            index.onTmpClosed(currentFile.getName());
+            index.onPromoted(currentFile.getName(), eventsInFile, length);
+        }
+
+        reset();
+    }
+
+    @Override
+    public void forceCommit() throws IOException
+    {
+        commit();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        // The delegate hands the promoted files over to the sender
+        delegate.flush();
+    }
+
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        awaitSyncs();
+        if (currentFile == null) {
+            return;
+        }
+
+        try {
+            serializer.close();
+            currentStream.close();
+            currentOutput.closeAndTruncate(false);
+        }
+        finally {
+            if (!currentFile.delete()) {
+                log.warn("Unable to delete {}", currentFile);
+            }
+            if (index != null) {
+                index.onTmpClosed(currentFile.getName());
+            }
+            reset();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try {
+            commit();
+        }
+        finally {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Force all events written so far to disk. Writers are only blocked while the serializer is flushed: events
+     * written concurrently may or may not be forced by this call.
+     * <p/>
+     * Data the compression codec doesn't flush isn't covered.
+     *
+     * @throws IOException if the serializer can't be flushed, or the checkpoint can't be recorded in the index
+     */
+    public void sync() throws IOException
+    {
+        final MappedByteBuffer segment;
+        final String name;
+        final long events;
+        final long position;
+        synchronized (this) {
+            if (currentOutput == null) {
+                // Committed files are forced when promoted (SYNC), or nothing was written
+                return;
+            }
+            flushSerializer();
+            // Previous segments were forced when filled up (SYNC)
+            segment = currentOutput.segment;
+            name = currentFile.getName();
+            events = eventsInFile;
+            position = currentOutput.position();
+            syncsInProgress++;
+        }
+
+        try {
+            segment.force();
+            // The file can't be promoted meanwhile
+            checkpoint(name, events, position, true);
+        }
+        finally {
+            synchronized (this) {
+                syncsInProgress--;
+                notifyAll();
+            }
+        }
+    }
+
+    // Don't truncate a file being forced
+    private void awaitSyncs() throws IOException
+    {
+        while (syncsInProgress > 0) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for syncs to complete");
+            }
+        }
+    }
+
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+
+    // Push the events buffered by the serializer, and the codec if it can, to the mapped file
+    private void flushSerializer() throws IOException
+    {
+        if (serializer instanceof Flushable) {
+            ((Flushable) serializer).flush();
+        }
+        currentStream.flush();
+    }
+
+    private void checkpoint(final String name, final long events, final long position, final boolean sync) throws IOException
+    {
+        if (checkpointsEnabled) {
+            index.onTmpCheckpoint(name, events, position, sync);
+        }
+    }
+
+    private void open() throws IOException
+    {
+        currentFile = new File(tmpSpoolDirectory, String.format("mmap-%d-%d.bin", System.currentTimeMillis(), fileSequence++));
+        currentOutput = new MappedFileOutputStream(currentFile);
+        currentStream = StreamCompressionCodec.wrap(codec, currentOutput);
+        serializer.open(currentStream);
+        writesSinceSync = 0;
+        eventsInFile = 0;
+        checkpoint(currentFile.getName(), 0, currentOutput.position(), false);
+    }
+
+    private void reset()
+    {
+        currentFile = null;
+        currentOutput = null;
+        currentStream = null;
+        writesSinceSync = 0;
+        eventsInFile = 0;
+    }
+
+    @Managed(description = "Number of segments mapped in the _tmp area")
+    public long getSegmentsMapped()
+    {
+        return segmentsMapped.get();
+    }
+
+    @Managed(description = "Number of files promoted to the spool area")
+    public long getFilesPromoted()
+    {
+        return filesPromoted.get();
+    }
+
+    /**
+     * Appends to a file mapped one segment at a time. Close is a no-op, so that closing the serializer or the
+     * compression stream leaves the file open for closeAndTruncate.
+     */
+    private final class MappedFileOutputStream extends OutputStream
+    {
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private MappedByteBuffer segment;
+        // Position of the current segment in the file
+        private long segmentOffset = 0;
+
+        private MappedFileOutputStream(final File file) throws IOException
+        {
+            this.file = new RandomAccessFile(file, "rw");
+            this.channel = this.file.getChannel();
+            this.segment = map(0);
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            if (!segment.hasRemaining()) {
+                nextSegment();
+            }
+            segment.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] bytes, int offset, int length) throws IOException
+        {
+            while (length > 0) {
+                if (!segment.hasRemaining()) {
+                    nextSegment();
+                }
+
+                final int chunk = Math.min(length, segment.remaining());
+                segment.put(bytes, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        @Override
+        public void close()
+        {
+        }
+
+        void force()
+        {
+            segment.force();
+        }
+
+        long position()
+        {
+            return segmentOffset + segment.position();
+        }
+
+        /**
+         * @param sync whether to force the last segment to disk
+         * @return the number of bytes written
+         * @throws IOException if the file can't be truncated
+         */
+        long closeAndTruncate(final boolean sync) throws IOException
+        {
+            if (sync) {
+                segment.force();
+            }
+
+            final long length = position();
+            try {
+                // Drop the preallocated tail, readers would otherwise see trailing zeros
+                channel.truncate(length);
+            }
+            finally {
+                file.close();
+            }
+
+            return length;
+        }
+
+        private void nextSegment() throws IOException
+        {
+            if (syncType == SyncType.SYNC) {
+                segment.force();
+            }
+            segmentOffset += segment.capacity();
+            segment = map(segmentOffset);
+        }
+
+        private MappedByteBuffer map(final long offset) throws IOException
+        {
+            // Mapping past the end of the file extends it
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, segmentSizeInBytes);
+            segmentsMapped.incrementAndGet();
+            return buffer;
+        }
+    }
+}
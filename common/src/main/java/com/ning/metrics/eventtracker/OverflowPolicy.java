@@ -0,0 +1,38 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+/**
+ * What to do when the in-memory event queue is full (asynchronous mode only).
+ * <p/>
+ * Public for config-magic
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Make the caller wait until the writer thread frees up some space
+     */
+    BLOCK,
+    /**
+     * Discard the event being offered
+     */
+    DROP_NEWEST,
+    /**
+     * Discard the oldest queued event to make room for the new one
+     */
+    DROP_OLDEST
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * EventWriter dispatching each event to one of several independent writer chains (partitions).
+ * <p/>
+ * Each partition has its own lock, so callers don't need to serialize on this writer, even for batches. Commits, flushes, rollbacks
+ * and close apply to all partitions, in order, even if some of them fail.
+ */
+abstract class PartitionedEventWriter implements BatchEventWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(PartitionedEventWriter.class);
+
+    private final List<EventWriter> partitions;
+    private final String spoolPath;
+
+    private final AtomicLongArray eventsWritten;
+    private final AtomicLongArray writeFailures;
+
+    protected PartitionedEventWriter(final List<? extends EventWriter> partitions, final String spoolPath)
+    {
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition is required");
+        }
+
+        this.partitions = new ArrayList<EventWriter>(partitions);
+        this.spoolPath = spoolPath;
+        this.eventsWritten = new AtomicLongArray(partitions.size());
+        this.writeFailures = new AtomicLongArray(partitions.size());
+    }
+
+    /**
+     * @param event event to write
+     * @return the index of the partition to write the event to
+     */
+    abstract int getPartition(Event event);
+
+    protected int getPartitionCount()
+    {
+        return partitions.size();
+    }
+
+    @Override
+    public void write(final Event event) throws IOException
+    {
+        final int partition = getPartition(event);
+        try {
+            partitions.get(partition).write(event);
+            eventsWritten.incrementAndGet(partition);
+        }
+        catch (IOException e) {
+            writeFailures.incrementAndGet(partition);
+            throw e;
+        }
+    }
+
+    @Override
+    public int writeAll(final Iterable<? extends Event> events) throws BatchWriteException
+    {
+        int written = 0;
+        for (final Event event : events) {
+            try {
+                write(event);
+            }
+            catch (IOException e) {
+                throw new BatchWriteException(written + 1, 1, e);
+            }
+            written++;
+        }
+
+        return written;
+    }
+
+    @Override
+    public void commit() throws IOException
+    {
+        new PartitionOperation("commit")
+        {
+            @Override
+            void apply(final EventWriter partition) throws IOException
+            {
+                partition.commit();
+            }
+        }.run();
+    }
+
+    @Override
+    public void forceCommit() throws IOException
+    {
+        new PartitionOperation("forceCommit")
+        {
+            @Override
+            void apply(final EventWriter partition) throws IOException
+            {
+                partition.forceCommit();
+            }
+        }.run();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        new PartitionOperation("flush")
+        {
+            @Override
+            void apply(final EventWriter partition) throws IOException
+            {
+                partition.flush();
+            }
+        }.run();
+    }
+
+    @Override
+    public void rollback() throws IOException
+    {
+        new PartitionOperation("rollback")
+        {
+            @Override
+            void apply(final EventWriter partition) throws IOException
+            {
+                partition.rollback();
+            }
+        }.run();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        new PartitionOperation("close")
+        {
+            @Override
+            void apply(final EventWriter partition) throws IOException
+            {
+                partition.close();
+            }
+        }.run();
+    }
+
+    @Override
+    public String getSpoolPath()
+    {
+        return spoolPath;
+    }
+
+    protected long[] getEventsWrittenPerPartition()
+    {
+        return toArray(eventsWritten);
+    }
+
+    protected long[] getWriteFailuresPerPartition()
+    {
+        return toArray(writeFailures);
+    }
+
+    private long[] toArray(final AtomicLongArray counters)
+    {
+        final long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+
+        return values;
+    }
+
+    /**
+     * Applies an operation to all partitions, even if some of them fail
+     */
+    private abstract class PartitionOperation
+    {
+        private final String name;
+
+        private PartitionOperation(final String name)
+        {
+            this.name = name;
+        }
+
+        abstract void apply(EventWriter partition) throws IOException;
+
+        void run() throws IOException
+        {
+            IOException firstException = null;
+            for (int i = 0; i < partitions.size(); i++) {
+                try {
+                    apply(partitions.get(i));
+                }
+                catch (IOException e) {
+                    log.warn(String.format("Unable to %s partition %d of %s", name, i, spoolPath), e);
+                    if (firstException == null) {
+                        firstException = e;
+                    }
+                }
+            }
+
+            if (firstException != null) {
+                throw firstException;
+            }
+        }
+    }
+}
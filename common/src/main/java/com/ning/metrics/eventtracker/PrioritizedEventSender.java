@@ -0,0 +1,183 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares an EventSender between spool queues, enforcing their sender budgets and priorities:
+ * <ul>
+ * <li>a queue never has more than max-senders files being sent at once
+ * <li>while a queue uses its whole budget, queues of lower priority don't send anything
+ * </ul>
+ * Files which can't be sent right away are moved back to the spool area, for a later flush to send them. Their
+ * callback isn't invoked: failing them would quarantine them.
+ */
+class PrioritizedEventSender
+{
+    private static final Logger log = LoggerFactory.getLogger(PrioritizedEventSender.class);
+
+    private final EventSender delegate;
+    private final List<QueueSender> senders = new ArrayList<QueueSender>();
+
+    PrioritizedEventSender(final EventSender delegate, final List<SpoolQueue> queues)
+    {
+        this.delegate = delegate;
+        for (final SpoolQueue queue : queues) {
+            senders.add(new QueueSender(queue));
+        }
+    }
+
+    /**
+     * @param queueName name of the spool queue
+     * @return the sender to give to the spool writer of the queue
+     */
+    EventSender forQueue(final String queueName)
+    {
+        for (final QueueSender sender : senders) {
+            if (sender.queue.getName().equals(queueName)) {
+                return sender;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown spool queue: " + queueName);
+    }
+
+    private QueueSender findSaturatedQueue(final int priority)
+    {
+        for (final QueueSender sender : senders) {
+            if (sender.queue.getPriority() > priority && sender.isSaturated()) {
+                return sender;
+            }
+        }
+
+        return null;
+    }
+
+    @Managed(description = "Number of files being sent, per spool queue")
+    public String getFilesInFlightPerQueue()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final QueueSender sender : senders) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(sender.queue.getName()).append('=').append(sender.inFlight.size());
+        }
+        return sb.toString();
+    }
+
+    @Managed(description = "Number of sends deferred because of sender budgets or priorities, per spool queue")
+    public String getSendsDeferredPerQueue()
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (final QueueSender sender : senders) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(sender.queue.getName()).append('=').append(sender.deferred.get());
+        }
+        return sb.toString();
+    }
+
+    private final class QueueSender implements EventSender
+    {
+        private final SpoolQueue queue;
+        // Files handed over to the delegate and not acknowledged yet
+        private final Set<File> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        private final AtomicLong deferred = new AtomicLong(0);
+
+        private QueueSender(final SpoolQueue queue)
+        {
+            this.queue = queue;
+        }
+
+        private boolean isSaturated()
+        {
+            return queue.getMaxSenders() > 0 && inFlight.size() >= queue.getMaxSenders();
+        }
+
+        @Override
+        public void send(final File file, final CallbackHandler handler)
+        {
+            if (inFlight.contains(file)) {
+                // Flushed again before being acknowledged: don't fail it, the delegate deals with duplicates
+                delegate.send(file, handler);
+                return;
+            }
+
+            final QueueSender saturatedQueue = findSaturatedQueue(queue.getPriority());
+            if (saturatedQueue != null) {
+                defer(file, handler, String.format("spool queue %s has priority", saturatedQueue.queue.getName()));
+                return;
+            }
+
+            // Check and reserve under the lock, for the budget to be exact
+            synchronized (this) {
+                if (isSaturated()) {
+                    defer(file, handler, String.format("spool queue %s is sending %d files already", queue.getName(), inFlight.size()));
+                    return;
+                }
+                inFlight.add(file);
+            }
+
+            delegate.send(file, new CallbackHandler()
+            {
+                @Override
+                public void onError(final Throwable t, final File file)
+                {
+                    inFlight.remove(file);
+                    handler.onError(t, file);
+                }
+
+                @Override
+                public void onSuccess(final File file)
+                {
+                    inFlight.remove(file);
+                    handler.onSuccess(file);
+                }
+            });
+        }
+
+        private void defer(final File file, final CallbackHandler handler, final String reason)
+        {
+            deferred.incrementAndGet();
+            log.debug("Deferring {}: {}", file, reason);
+            if (!SpoolFiles.requeue(file)) {
+                handler.onError(new IOException("Send deferred, " + reason + ", and unable to leave the file in the spool"), file);
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            // The delegate is shared, and closed on shutdown
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sits right above the DiskSpoolEventWriter (or the memory-mapped writer): counts the events of the file being
+ * written, and reports each promoted file to the SpoolQuota, which enforces the quota.
+ * <p/>
+ * The spool writers name the file in _tmp on its first event, and keep that name when promoting it: the _tmp area
+ * (a single file) is listed once per file, and the spool area never.
+ */
+class QuotaEventWriter implements EventWriter
+{
+    private final EventWriter delegate;
+    private final SpoolQuota spoolQuota;
+    private final File spoolDirectory;
+    private final File tmpSpoolDirectory;
+
+    // Events written since the last commit
+    private long uncommittedEvents = 0;
+    // Name of the file being written, null until its first event
+    private String currentFileName = null;
+
+    QuotaEventWriter(final EventWriter delegate, final SpoolQuota spoolQuota)
+    {
+        this(delegate, spoolQuota, null);
+    }
+
+    /**
+     * @param index index of the spool directory, to start from instead of scanning it (null for none)
+     */
+    QuotaEventWriter(final EventWriter delegate, final SpoolQuota spoolQuota, final SpoolIndex index)
+    {
+        this.delegate = delegate;
+        this.spoolQuota = spoolQuota;
+        this.spoolDirectory = new File(delegate.getSpoolPath());
+        this.tmpSpoolDirectory = new File(spoolDirectory, "_tmp");
+        if (index == null) {
+            spoolQuota.register(spoolDirectory);
+        }
+        else {
+            spoolQuota.register(spoolDirectory, index);
+        }
+    }
+
+    @Override
+    public synchronized void write(final Event event) throws IOException
+    {
+        delegate.write(event);
+        if (uncommittedEvents == 0) {
+            currentFileName = findTmpFile();
+        }
+        uncommittedEvents++;
+    }
+
+    @Override
+    public synchronized void commit() throws IOException
+    {
+        delegate.commit();
+        onCommit();
+    }
+
+    @Override
+    public synchronized void forceCommit() throws IOException
+    {
+        delegate.forceCommit();
+        onCommit();
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        delegate.flush();
+    }
+
+    @Override
+    public synchronized void rollback() throws IOException
+    {
+        delegate.rollback();
+        uncommittedEvents = 0;
+        currentFileName = null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        // Closing commits the current file
+        delegate.close();
+        onCommit();
+    }
+
+    @Override
+    public String getSpoolPath()
+    {
+        return delegate.getSpoolPath();
+    }
+
+    private void onCommit()
+    {
+        if (uncommittedEvents > 0 && currentFileName != null) {
+            File promotedFile = new File(spoolDirectory, currentFileName);
+            if (!promotedFile.isFile()) {
+                // Already handed over to the sender by a concurrent flush
+                promotedFile = new File(new File(spoolDirectory, "_lock"), currentFileName);
+            }
+            // Otherwise, not promoted (e.g. set aside after a serialization error), or already sent
+            if (promotedFile.isFile()) {
+                spoolQuota.onPromoted(spoolDirectory, currentFileName, promotedFile.length(), uncommittedEvents);
+            }
+        }
+
+        uncommittedEvents = 0;
+        currentFileName = null;
+    }
+
+    private String findTmpFile()
+    {
+        final File[] tmpFiles = tmpSpoolDirectory.listFiles();
+        if (tmpFiles == null) {
+            return null;
+        }
+
+        File newestFile = null;
+        for (final File file : tmpFiles) {
+            if (file.isFile() && (newestFile == null || file.lastModified() > newestFile.lastModified())) {
+                newestFile = file;
+            }
+        }
+
+        return newestFile == null ? null : newestFile.getName();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * EventWriter routing events to the writer chain of their spool queue, by event name. Events not routed to any
+ * queue go to the default one.
+ * <p/>
+ * Flushes go through the queues by decreasing priority.
+ *
+ * @see SpoolQueue
+ */
+public class RoutingEventWriter extends PartitionedEventWriter
+{
+    private final List<String> queueNames = new ArrayList<String>();
+    private final Map<String, Integer> partitionsByEventName = new HashMap<String, Integer>();
+    private final int defaultPartition;
+
+    /**
+     * @param queues    spool queues, including the default one, sorted by decreasing priority
+     * @param writers   writer chains of the queues, in the same order
+     * @param spoolPath main spool directory
+     */
+    RoutingEventWriter(final List<SpoolQueue> queues, final List<? extends EventWriter> writers, final String spoolPath)
+    {
+        super(writers, spoolPath);
+        if (queues.size() != writers.size()) {
+            throw new IllegalArgumentException(String.format("%d spool queues but %d writers", queues.size(), writers.size()));
+        }
+
+        int defaultPartition = -1;
+        for (int i = 0; i < queues.size(); i++) {
+            final SpoolQueue queue = queues.get(i);
+            queueNames.add(queue.getName());
+            if (SpoolQueue.DEFAULT_QUEUE_NAME.equals(queue.getName())) {
+                defaultPartition = i;
+            }
+            for (final String eventName : queue.getEventNames()) {
+                partitionsByEventName.put(eventName, i);
+            }
+        }
+
+        if (defaultPartition < 0) {
+            throw new IllegalArgumentException("The default spool queue is required");
+        }
+        this.defaultPartition = defaultPartition;
+    }
+
+    @Override
+    int getPartition(final Event event)
+    {
+        final Integer partition = event.getName() == null ? null : partitionsByEventName.get(event.getName());
+        return partition == null ? defaultPartition : partition;
+    }
+
+    @Managed(description = "Names of the spool queues, by decreasing priority")
+    public String[] getQueueNames()
+    {
+        return queueNames.toArray(new String[queueNames.size()]);
+    }
+
+    @Managed(description = "Number of events written, per spool queue")
+    public long[] getEventsWrittenPerQueue()
+    {
+        return getEventsWrittenPerPartition();
+    }
+
+    @Managed(description = "Number of events which couldn't be written, per spool queue")
+    public long[] getWriteFailuresPerQueue()
+    {
+        return getWriteFailuresPerPartition();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+/**
+ * How events are spread over the spool writer shards
+ * <p/>
+ * Public for config-magic
+ */
+public enum ShardRouting
+{
+    /**
+     * Each producer thread sticks to a shard, threads being assigned to shards round-robin
+     */
+    THREAD,
+    /**
+     * All events of a given name go to the same shard
+     */
+    EVENT_NAME
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.weakref.jmx.Managed;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EventWriter spreading events over independent writer chains (shards), each with its own _tmp file, thresholds and
+ * flushes, so that producer threads don't all contend on a single writer.
+ * <p/>
+ * Commits, flushes, rollbacks and close apply to all shards.
+ */
+public class ShardedEventWriter extends PartitionedEventWriter
+{
+    private final ShardRouting routing;
+
+    private final AtomicInteger nextThreadShard = new AtomicInteger(0);
+    private final ThreadLocal<Integer> threadShard = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return (nextThreadShard.getAndIncrement() & Integer.MAX_VALUE) % getPartitionCount();
+        }
+    };
+
+    /**
+     * @param shards    writer chains, one per shard
+     * @param routing   how to pick the shard of an event
+     * @param spoolPath root of the spool areas of the shards
+     */
+    public ShardedEventWriter(final List<? extends EventWriter> shards, final ShardRouting routing, final String spoolPath)
+    {
+        super(shards, spoolPath);
+        this.routing = routing;
+    }
+
+    @Override
+    int getPartition(final Event event)
+    {
+        switch (routing) {
+            case EVENT_NAME:
+                final String name = event.getName();
+                return name == null ? 0 : (name.hashCode() & Integer.MAX_VALUE) % getPartitionCount();
+            case THREAD:
+            default:
+                return threadShard.get();
+        }
+    }
+
+    @Managed(description = "Number of spool writer shards")
+    public int getShardCount()
+    {
+        return getPartitionCount();
+    }
+
+    @Managed(description = "Number of events written, per shard")
+    public long[] getEventsWrittenPerShard()
+    {
+        return getEventsWrittenPerPartition();
+    }
+
+    @Managed(description = "Number of events which couldn't be written, per shard")
+    public long[] getWriteFailuresPerShard()
+    {
+        return getWriteFailuresPerPartition();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.writer.CompressionCodec;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+
+/**
+ * Compression of the spool files. Compressed files are sent as is to the collector, with the matching
+ * Content-Encoding header.
+ * <p/>
+ * Both codecs are built on java.util.zip, no native library is required.
+ * <p/>
+ * Public for config-magic
+ */
+public enum SpoolCompression
+{
+    NONE(null),
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    private final String contentEncoding;
+
+    SpoolCompression(final String contentEncoding)
+    {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return the HTTP Content-Encoding of compressed files, null if not compressed
+     */
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    /**
+     * @param level compression level, from 1 (fastest) to 9 (smallest)
+     * @return the codec to give to the DiskSpoolEventWriter
+     */
+    public CompressionCodec createCodec(final int level)
+    {
+        switch (this) {
+            case GZIP:
+                return new GzipCompressionCodec(level);
+            case DEFLATE:
+                return new DeflateCompressionCodec(level);
+            default:
+                return new NoCompressionCodec();
+        }
+    }
+}
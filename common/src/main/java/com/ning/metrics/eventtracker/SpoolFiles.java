@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * Moves spool files between the areas of the DiskSpoolEventWriter, for senders, and cleans up what senders keep
+ * next to them.
+ */
+public final class SpoolFiles
+{
+    private static final Logger log = LoggerFactory.getLogger(SpoolFiles.class);
+
+    // Offsets of partially acknowledged files (see the HTTP sender), next to the spool files but not one of them
+    private static final String PARTIAL_DIRECTORY = "_partial";
+    private static final String OFFSETS_SUFFIX = ".offsets";
+
+    private SpoolFiles()
+    {
+    }
+
+    /**
+     * Put a file handed to a sender back in the spool area, for the next flush to send it again.
+     * <p/>
+     * The DiskSpoolEventWriter moves files to the _lock area before sending them, and never looks at them again until
+     * their callback is invoked. Failing a file (CallbackHandler.onError) quarantines it: use this instead when the
+     * file couldn't be sent for now (sender overloaded or collector down). The callback of the file must not be
+     * invoked afterwards.
+     *
+     * @param file file being sent, in the _lock area
+     * @return true if the file is back in the spool area, false if it couldn't be moved (and should be failed instead)
+     */
+    public static boolean requeue(final File file)
+    {
+        final File directory = file.getAbsoluteFile().getParentFile();
+        if (directory == null || !directory.getName().startsWith("_")) {
+            // Not sent from the _lock area
+            return true;
+        }
+
+        final File spooledFile = new File(DeliveryTracker.getSpoolDirectory(file), file.getName());
+        if (!file.renameTo(spooledFile)) {
+            log.warn("Unable to move {} back to {}", file, spooledFile.getParentFile());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param file spool file, in any area
+     * @return the file recording the offsets of the file in the original spool file, after partial acknowledgements
+     */
+    public static File getOffsetsFile(final File file)
+    {
+        return new File(new File(DeliveryTracker.getSpoolDirectory(file), PARTIAL_DIRECTORY), file.getName() + OFFSETS_SUFFIX);
+    }
+
+    /**
+     * Forget what senders recorded about a spool file, once it left the spool (sent, quarantined or evicted): a later
+     * file with the same name must not inherit it.
+     *
+     * @param file spool file
+     */
+    public static void forget(final File file)
+    {
+        final File offsetsFile = getOffsetsFile(file);
+        if (offsetsFile.exists() && !offsetsFile.delete()) {
+            log.warn("Unable to delete {}", offsetsFile);
+        }
+    }
+
+    /**
+     * Wrap a send callback, to forget files once the writer is done with them
+     *
+     * @param handler callback of the writer
+     * @return callback to hand to the sender
+     */
+    public static CallbackHandler forgetOnCompletion(final CallbackHandler handler)
+    {
+        return new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                // Quarantined
+                handler.onError(t, file);
+                forget(file);
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                handler.onSuccess(file);
+                forget(file);
+            }
+        };
+    }
+}
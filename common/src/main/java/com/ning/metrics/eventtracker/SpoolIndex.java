@@ -0,0 +1,313 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append-only index of a spool directory, maintained by the MappedSpoolEventWriter, so that startup doesn't need to
+ * rediscover the spool area.
+ * <p/>
+ * Records, one per line in _index/spool.idx:
+ * <ul>
+ * <li>T name events bytes: checkpoint of the file being written in _tmp, at an event boundary
+ * <li>X name: the file in _tmp was promoted or rolled back
+ * <li>P name events bytes: a file was promoted to the spool area
+ * <li>R name: a spool file was sent or evicted
+ * </ul>
+ * A truncated last record (crash while appending) is ignored. The index is compacted when opened, and whenever
+ * most of its records are obsolete.
+ */
+public class SpoolIndex
+{
+    private static final Logger log = LoggerFactory.getLogger(SpoolIndex.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String INDEX_DIRECTORY = "_index";
+    private static final String INDEX_FILE = "spool.idx";
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 10000;
+
+    private final File spoolDirectory;
+    private final File indexFile;
+
+    // Guarded by this
+    private final Map<String, Entry> spoolFiles = new LinkedHashMap<String, Entry>();
+    private final Map<String, Entry> checkpoints = new LinkedHashMap<String, Entry>();
+    private FileOutputStream out;
+    private int records = 0;
+
+    /**
+     * Load the index of a spool directory (empty if there is none yet) and compact it
+     *
+     * @param spoolDirectory spool directory
+     * @throws IOException if the index can't be read or written
+     */
+    public SpoolIndex(final File spoolDirectory) throws IOException
+    {
+        this.spoolDirectory = spoolDirectory;
+        final File indexDirectory = new File(spoolDirectory, INDEX_DIRECTORY);
+        if (!indexDirectory.exists() && !indexDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + indexDirectory);
+        }
+        this.indexFile = new File(indexDirectory, INDEX_FILE);
+
+        if (indexFile.exists()) {
+            load();
+        }
+        compact();
+    }
+
+    public File getSpoolDirectory()
+    {
+        return spoolDirectory;
+    }
+
+    /**
+     * Promote the files left in _tmp by a crash, up to their last checkpoint, instead of leaving them to be
+     * quarantined. Must be called before the DiskSpoolEventWriter of the directory is created.
+     *
+     * @return the number of files recovered
+     * @throws IOException if the index can't be written
+     */
+    public synchronized int recoverTmpFiles() throws IOException
+    {
+        int recovered = 0;
+        final File tmpDirectory = new File(spoolDirectory, "_tmp");
+        for (final Map.Entry<String, Entry> checkpoint : new LinkedHashMap<String, Entry>(checkpoints).entrySet()) {
+            final String name = checkpoint.getKey();
+            final Entry entry = checkpoint.getValue();
+            final File tmpFile = new File(tmpDirectory, name);
+
+            if (!tmpFile.isFile() || tmpFile.length() < entry.bytes) {
+                // Gone, or shorter than what was synced: leave it to the DiskSpoolEventWriter
+                log.warn("Unable to recover {}: expected at least {} bytes", tmpFile, entry.bytes);
+            }
+            else if (entry.events == 0) {
+                if (!tmpFile.delete()) {
+                    log.warn("Unable to delete empty file {}", tmpFile);
+                }
+            }
+            else {
+                // Drop what was written after the checkpoint, and the preallocated tail
+                final RandomAccessFile file = new RandomAccessFile(tmpFile, "rw");
+                try {
+                    file.setLength(entry.bytes);
+                }
+                finally {
+                    file.close();
+                }
+
+                final File spoolFile = new File(spoolDirectory, name);
+                if (tmpFile.renameTo(spoolFile)) {
+                    onPromoted(name, entry.events, entry.bytes);
+                    recovered++;
+                    log.info("Recovered {} events ({} bytes) from {}", new Object[]{entry.events, entry.bytes, tmpFile});
+                }
+                else {
+                    log.warn("Unable to promote {} to {}", tmpFile, spoolFile);
+                }
+            }
+
+            onTmpClosed(name);
+        }
+
+        return recovered;
+    }
+
+    /**
+     * @return the files waiting in the spool area, oldest first
+     */
+    public synchronized Map<String, Entry> getSpoolFiles()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Entry>(spoolFiles));
+    }
+
+    public synchronized void onTmpCheckpoint(final String name, final long events, final long bytes) throws IOException
+    {
+        onTmpCheckpoint(name, events, bytes, false);
+    }
+
+    /**
+     * @param sync whether to force the index to disk, e.g. when the data of the checkpoint was forced
+     */
+    public synchronized void onTmpCheckpoint(final String name, final long events, final long bytes, final boolean sync) throws IOException
+    {
+        checkpoints.put(name, new Entry(events, bytes));
+        append("T", name, events, bytes);
+        if (sync) {
+            out.getFD().sync();
+        }
+    }
+
+    public synchronized void onTmpClosed(final String name) throws IOException
+    {
+        if (checkpoints.remove(name) != null) {
+            append("X", name);
+        }
+    }
+
+    public synchronized void onPromoted(final String name, final long events, final long bytes) throws IOException
+    {
+        spoolFiles.put(name, new Entry(events, bytes));
+        append("P", name, events, bytes);
+    }
+
+    public synchronized void onRemoved(final String name) throws IOException
+    {
+        if (spoolFiles.remove(name) == null) {
+            return;
+        }
+
+        append("R", name);
+        if (records > MIN_RECORDS_BEFORE_COMPACTION && records > 2 * (spoolFiles.size() + checkpoints.size())) {
+            compact();
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    private void load() throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                try {
+                    if (fields[0].equals("T") && fields.length == 4) {
+                        checkpoints.put(fields[1], new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                    }
+                    else if (fields[0].equals("X") && fields.length == 2) {
+                        checkpoints.remove(fields[1]);
+                    }
+                    else if (fields[0].equals("P") && fields.length == 4) {
+                        spoolFiles.put(fields[1], new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                    }
+                    else if (fields[0].equals("R") && fields.length == 2) {
+                        spoolFiles.remove(fields[1]);
+                    }
+                    else {
+                        log.warn("Ignoring invalid record in {}: {}", indexFile, line);
+                    }
+                }
+                catch (NumberFormatException e) {
+                    // Truncated record
+                    log.warn("Ignoring invalid record in {}: {}", indexFile, line);
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        // Files sent or deleted while the index wasn't maintained
+        for (final String name : new LinkedHashMap<String, Entry>(spoolFiles).keySet()) {
+            if (!isInSpoolArea(name)) {
+                spoolFiles.remove(name);
+            }
+        }
+    }
+
+    private boolean isInSpoolArea(final String name)
+    {
+        return new File(spoolDirectory, name).isFile() || new File(new File(spoolDirectory, "_quarantine"), name).isFile() ||
+            new File(new File(spoolDirectory, "_lock"), name).isFile();
+    }
+
+    // Rewrite the live records only
+    private void compact() throws IOException
+    {
+        close();
+
+        final File newIndexFile = new File(indexFile.getParentFile(), INDEX_FILE + ".new");
+        out = new FileOutputStream(newIndexFile);
+        records = 0;
+        for (final Map.Entry<String, Entry> entry : spoolFiles.entrySet()) {
+            append("P", entry.getKey(), entry.getValue().events, entry.getValue().bytes);
+        }
+        for (final Map.Entry<String, Entry> entry : checkpoints.entrySet()) {
+            append("T", entry.getKey(), entry.getValue().events, entry.getValue().bytes);
+        }
+        out.close();
+
+        if (!newIndexFile.renameTo(indexFile)) {
+            throw new IOException(String.format("Unable to rename %s to %s", newIndexFile, indexFile));
+        }
+        out = new FileOutputStream(indexFile, true);
+    }
+
+    private void append(final String type, final String name, final long events, final long bytes) throws IOException
+    {
+        append(type + "\t" + name + "\t" + events + "\t" + bytes);
+    }
+
+    private void append(final String type, final String name) throws IOException
+    {
+        append(type + "\t" + name);
+    }
+
+    private void append(final String record) throws IOException
+    {
+        if (out == null) {
+            throw new IOException("Spool index closed: " + indexFile);
+        }
+
+        // Unbuffered: each record reaches the OS right away
+        out.write((record + "\n").getBytes(UTF_8));
+        records++;
+    }
+
+    public static final class Entry
+    {
+        private final long events;
+        private final long bytes;
+
+        private Entry(final long events, final long bytes)
+        {
+            this.events = events;
+            this.bytes = bytes;
+        }
+
+        public long getEvents()
+        {
+            return events;
+        }
+
+        public long getBytes()
+        {
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Spool queue for a set of event names, with its own spool subdirectory, thresholds, flush interval and sender budget.
+ * <p/>
+ * Queues are configured via eventtracker.diskspool.queues, as a semicolon-separated list of
+ * name:EventA,EventB[:option=value]*, options being priority (higher drains first, 0 by default), max-senders
+ * (maximum number of files being sent at once, 0 for no limit), flush-interval-seconds,
+ * max-uncommitted-write-count and max-uncommitted-period-seconds (the global settings by default), e.g.
+ * <pre>
+ * billing:Billing,Refund:priority=10:max-senders=4;impressions:PageImpression:priority=-10:max-senders=1
+ * </pre>
+ * Other events go to the default queue (the main spool directory), of priority 0 without sender limit.
+ */
+class SpoolQueue
+{
+    static final String DEFAULT_QUEUE_NAME = "default";
+
+    private final String name;
+    private final Set<String> eventNames;
+    private final int priority;
+    private final int maxSenders;
+    private final int flushIntervalInSeconds;
+    private final long maxUncommittedWriteCount;
+    private final int maxUncommittedPeriodInSeconds;
+
+    SpoolQueue(final String name, final Set<String> eventNames, final int priority, final int maxSenders, final int flushIntervalInSeconds,
+               final long maxUncommittedWriteCount, final int maxUncommittedPeriodInSeconds)
+    {
+        this.name = name;
+        this.eventNames = Collections.unmodifiableSet(eventNames);
+        this.priority = priority;
+        this.maxSenders = maxSenders;
+        this.flushIntervalInSeconds = flushIntervalInSeconds;
+        this.maxUncommittedWriteCount = maxUncommittedWriteCount;
+        this.maxUncommittedPeriodInSeconds = maxUncommittedPeriodInSeconds;
+    }
+
+    /**
+     * @param config eventtracker configuration
+     * @return the queue of the events not routed anywhere else
+     */
+    static SpoolQueue createDefault(final EventTrackerConfig config)
+    {
+        return new SpoolQueue(DEFAULT_QUEUE_NAME, Collections.<String>emptySet(), 0, 0, config.getFlushIntervalInSeconds(),
+            config.getMaxUncommittedWriteCount(), config.getMaxUncommittedPeriodInSeconds());
+    }
+
+    /**
+     * @param config eventtracker configuration
+     * @return the queues configured via eventtracker.diskspool.queues, without the default one
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    static List<SpoolQueue> parse(final EventTrackerConfig config)
+    {
+        final List<SpoolQueue> queues = new ArrayList<SpoolQueue>();
+        final Set<String> queueNames = new HashSet<String>();
+        final Set<String> routedEventNames = new HashSet<String>();
+
+        for (final String spec : config.getSpoolQueues().split(";")) {
+            if (spec.trim().length() == 0) {
+                continue;
+            }
+
+            final SpoolQueue queue = parseQueue(spec.trim(), config);
+            if (queue.getName().equals(DEFAULT_QUEUE_NAME) || !queueNames.add(queue.getName())) {
+                throw new IllegalArgumentException("Duplicate spool queue: " + queue.getName());
+            }
+            for (final String eventName : queue.getEventNames()) {
+                if (!routedEventNames.add(eventName)) {
+                    throw new IllegalArgumentException(String.format("Event %s is routed to several spool queues", eventName));
+                }
+            }
+            queues.add(queue);
+        }
+
+        return queues;
+    }
+
+    private static SpoolQueue parseQueue(final String spec, final EventTrackerConfig config)
+    {
+        final String[] parts = spec.split(":");
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Invalid spool queue, expected name:EventA,EventB[:option=value]*: " + spec);
+        }
+
+        final String name = parts[0].trim();
+        if (!name.matches("[A-Za-z0-9_-]+")) {
+            // Used as a directory name
+            throw new IllegalArgumentException("Invalid spool queue name: " + name);
+        }
+
+        final Set<String> eventNames = new LinkedHashSet<String>();
+        for (final String eventName : parts[1].split(",")) {
+            if (eventName.trim().length() > 0) {
+                eventNames.add(eventName.trim());
+            }
+        }
+        if (eventNames.isEmpty()) {
+            throw new IllegalArgumentException("No event routed to spool queue " + name);
+        }
+
+        int priority = 0;
+        int maxSenders = 0;
+        int flushIntervalInSeconds = config.getFlushIntervalInSeconds();
+        long maxUncommittedWriteCount = config.getMaxUncommittedWriteCount();
+        int maxUncommittedPeriodInSeconds = config.getMaxUncommittedPeriodInSeconds();
+        for (int i = 2; i < parts.length; i++) {
+            final String[] option = parts[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException(String.format("Invalid option for spool queue %s: %s", name, parts[i]));
+            }
+
+            final String key = option[0].trim();
+            final String value = option[1].trim();
+            try {
+                if (key.equals("priority")) {
+                    priority = Integer.parseInt(value);
+                }
+                else if (key.equals("max-senders")) {
+                    maxSenders = Integer.parseInt(value);
+                }
+                else if (key.equals("flush-interval-seconds")) {
+                    flushIntervalInSeconds = Integer.parseInt(value);
+                }
+                else if (key.equals("max-uncommitted-write-count")) {
+                    maxUncommittedWriteCount = Long.parseLong(value);
+                }
+                else if (key.equals("max-uncommitted-period-seconds")) {
+                    maxUncommittedPeriodInSeconds = Integer.parseInt(value);
+                }
+                else {
+                    throw new IllegalArgumentException(String.format("Unknown option for spool queue %s: %s", name, key));
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid value for option %s of spool queue %s: %s", key, name, value));
+            }
+        }
+
+        if (maxSenders < 0) {
+            throw new IllegalArgumentException(String.format("Invalid max-senders for spool queue %s: %d", name, maxSenders));
+        }
+
+        return new SpoolQueue(name, eventNames, priority, maxSenders, flushIntervalInSeconds, maxUncommittedWriteCount, maxUncommittedPeriodInSeconds);
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public Set<String> getEventNames()
+    {
+        return eventNames;
+    }
+
+    public int getPriority()
+    {
+        return priority;
+    }
+
+    public int getMaxSenders()
+    {
+        return maxSenders;
+    }
+
+    public int getFlushIntervalInSeconds()
+    {
+        return flushIntervalInSeconds;
+    }
+
+    public long getMaxUncommittedWriteCount()
+    {
+        return maxUncommittedWriteCount;
+    }
+
+    public int getMaxUncommittedPeriodInSeconds()
+    {
+        return maxUncommittedPeriodInSeconds;
+    }
+
+    /**
+     * @param spoolDirectoryName main spool directory
+     * @return the spool directory of this queue
+     */
+    String getSpoolDirectoryName(final String spoolDirectoryName)
+    {
+        if (DEFAULT_QUEUE_NAME.equals(name)) {
+            return spoolDirectoryName;
+        }
+        else {
+            return new File(spoolDirectoryName, "queue-" + name).getPath();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("SpoolQueue");
+        sb.append("{name='").append(name).append('\'');
+        sb.append(", eventNames=").append(eventNames);
+        sb.append(", priority=").append(priority);
+        sb.append(", maxSenders=").append(maxSenders);
+        sb.append('}');
+        return sb.toString();
+    }
+}
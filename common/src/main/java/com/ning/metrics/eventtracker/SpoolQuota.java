@@ -0,0 +1,379 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.google.inject.Inject;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the size of the spool areas, in bytes and in number of files, evicting the oldest files first.
+ * <p/>
+ * The quota covers the files waiting to be sent. Sizes are tracked incrementally: spool directories are scanned once at
+ * startup, then the QuotaEventWriter reports each promoted file (name and size) on commit, and files are forgotten
+ * once the sender is done with them, sent or quarantined. Spool files keep their name when the writer moves them to
+ * the _lock area; files being sent (_lock) are never evicted.
+ * <p/>
+ * The number of events of each promoted file is known, so evictions are accounted for exactly in the events lost.
+ * Files found at startup have an unknown number of events: their evictions are counted separately, unless the spool
+ * directory is indexed, in which case the index is used instead of a scan.
+ *
+ * @see QuotaEventWriter
+ */
+public class SpoolQuota
+{
+    private static final Logger log = LoggerFactory.getLogger(SpoolQuota.class);
+
+    static final long UNKNOWN_EVENT_COUNT = -1;
+
+    private final long maxSizeInBytes;
+    private final int maxFiles;
+
+    // Guarded by this. Tracked files, oldest first
+    private final Map<String, SpoolFile> files = new LinkedHashMap<String, SpoolFile>();
+    private final Set<File> spoolDirectories = new HashSet<File>();
+    private final Map<File, SpoolIndex> indexes = new HashMap<File, SpoolIndex>();
+    private long sizeInBytes = 0;
+
+    private final AtomicLong filesEvicted = new AtomicLong(0);
+    private final AtomicLong eventsEvicted = new AtomicLong(0);
+    private final AtomicLong filesEvictedWithUnknownEventCount = new AtomicLong(0);
+    private final List<AtomicLong> eventsLostCounters = new ArrayList<AtomicLong>();
+
+    @Inject
+    public SpoolQuota(final EventTrackerConfig config)
+    {
+        this(config.getSpoolMaxSizeInBytes(), config.getSpoolMaxFiles());
+    }
+
+    /**
+     * @param maxSizeInBytes maximum size of the spool files, 0 for no limit
+     * @param maxFiles       maximum number of spool files, 0 for no limit
+     */
+    SpoolQuota(final long maxSizeInBytes, final int maxFiles)
+    {
+        if (maxSizeInBytes < 0 || maxFiles < 0) {
+            throw new IllegalArgumentException(String.format("Invalid spool quota: %d bytes, %d files", maxSizeInBytes, maxFiles));
+        }
+
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    public boolean isEnabled()
+    {
+        return maxSizeInBytes > 0 || maxFiles > 0;
+    }
+
+    /**
+     * Add evicted events to the given counter, e.g. the events lost of the CollectorController
+     *
+     * @param eventsLost counter to update on eviction
+     */
+    public synchronized void reportEvictionsTo(final AtomicLong eventsLost)
+    {
+        eventsLostCounters.add(eventsLost);
+    }
+
+    /**
+     * Start tracking a spool directory, with the files already there (e.g. left over by a previous run)
+     *
+     * @param spoolDirectory spool directory of a writer
+     */
+    public synchronized void register(final File spoolDirectory)
+    {
+        if (!spoolDirectories.add(spoolDirectory)) {
+            return;
+        }
+
+        final List<File> existingFiles = new ArrayList<File>();
+        for (final File directory : Arrays.asList(spoolDirectory, new File(spoolDirectory, "_lock"))) {
+            final File[] directoryFiles = directory.listFiles();
+            if (directoryFiles == null) {
+                continue;
+            }
+            for (final File file : directoryFiles) {
+                if (file.isFile()) {
+                    existingFiles.add(file);
+                }
+            }
+        }
+
+        Collections.sort(existingFiles, new Comparator<File>()
+        {
+            @Override
+            public int compare(final File first, final File second)
+            {
+                return Long.valueOf(first.lastModified()).compareTo(second.lastModified());
+            }
+        });
+        for (final File file : existingFiles) {
+            track(spoolDirectory, file, UNKNOWN_EVENT_COUNT);
+        }
+
+        if (!existingFiles.isEmpty()) {
+            log.info("Found {} spool files in {}, {} bytes in total tracked", new Object[]{existingFiles.size(), spoolDirectory, sizeInBytes});
+            enforce();
+        }
+    }
+
+    /**
+     * Start tracking an indexed spool directory, with the files of the index. Files left over in the spool area from
+     * before the index was enabled aren't counted.
+     *
+     * @param spoolDirectory spool directory of a writer
+     * @param index          index of the spool directory, updated on eviction
+     */
+    public synchronized void register(final File spoolDirectory, final SpoolIndex index)
+    {
+        if (!spoolDirectories.add(spoolDirectory)) {
+            return;
+        }
+        indexes.put(spoolDirectory, index);
+
+        final Map<String, SpoolIndex.Entry> indexedFiles = index.getSpoolFiles();
+        for (final Map.Entry<String, SpoolIndex.Entry> entry : indexedFiles.entrySet()) {
+            track(new SpoolFile(spoolDirectory, entry.getKey(), entry.getValue().getBytes(), entry.getValue().getEvents(), index));
+        }
+
+        if (!indexedFiles.isEmpty()) {
+            log.info("Found {} indexed spool files in {}, {} bytes in total tracked", new Object[]{indexedFiles.size(), spoolDirectory, sizeInBytes});
+            enforce();
+        }
+    }
+
+    /**
+     * A commit promoted a file to the spool area
+     *
+     * @param spoolDirectory spool directory of the writer
+     * @param name           name of the promoted file
+     * @param sizeInBytes    size of the promoted file
+     * @param eventCount     number of events in the file
+     */
+    public synchronized void onPromoted(final File spoolDirectory, final String name, final long sizeInBytes, final long eventCount)
+    {
+        track(new SpoolFile(spoolDirectory, name, sizeInBytes, eventCount, indexes.get(spoolDirectory)));
+        enforce();
+    }
+
+    /**
+     * Wrap a send callback, to forget files once sent or failed (the writer quarantines failed files)
+     *
+     * @param handler callback to notify
+     * @return callback to give to the sender
+     */
+    public CallbackHandler wrap(final CallbackHandler handler)
+    {
+        return new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                forget(file);
+                handler.onError(t, file);
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                forget(file);
+                handler.onSuccess(file);
+            }
+        };
+    }
+
+    private synchronized void forget(final File file)
+    {
+        File spoolDirectory = file.getParentFile();
+        if (spoolDirectory != null && spoolDirectory.getName().startsWith("_")) {
+            // Sent from the _lock area
+            spoolDirectory = spoolDirectory.getParentFile();
+        }
+
+        final SpoolFile spoolFile = files.remove(getKey(spoolDirectory, file.getName()));
+        if (spoolFile != null) {
+            sizeInBytes -= spoolFile.sizeInBytes;
+        }
+    }
+
+    private void track(final File spoolDirectory, final File file, final long eventCount)
+    {
+        track(new SpoolFile(spoolDirectory, file.getName(), file.length(), eventCount, indexes.get(spoolDirectory)));
+    }
+
+    private void track(final SpoolFile spoolFile)
+    {
+        final String key = getKey(spoolFile.spoolDirectory, spoolFile.name);
+        if (files.containsKey(key)) {
+            return;
+        }
+
+        files.put(key, spoolFile);
+        sizeInBytes += spoolFile.sizeInBytes;
+    }
+
+    // Evict the oldest files until within the quota
+    private void enforce()
+    {
+        final Iterator<SpoolFile> iterator = files.values().iterator();
+        while (isOverQuota() && iterator.hasNext()) {
+            final SpoolFile spoolFile = iterator.next();
+
+            final File file = spoolFile.locate();
+            if (file == null) {
+                // Deleted behind our back
+                iterator.remove();
+                sizeInBytes -= spoolFile.sizeInBytes;
+            }
+            else if (file.getParentFile().getName().equals("_lock")) {
+                // Being sent
+                continue;
+            }
+            else if (file.delete()) {
+                SpoolFiles.forget(file);
+                iterator.remove();
+                sizeInBytes -= spoolFile.sizeInBytes;
+                recordEviction(spoolFile);
+                spoolFile.onEvicted();
+            }
+            else {
+                log.warn("Unable to evict {}", file);
+            }
+        }
+    }
+
+    private boolean isOverQuota()
+    {
+        return (maxSizeInBytes > 0 && sizeInBytes > maxSizeInBytes) || (maxFiles > 0 && files.size() > maxFiles);
+    }
+
+    private void recordEviction(final SpoolFile spoolFile)
+    {
+        filesEvicted.incrementAndGet();
+        if (spoolFile.eventCount == UNKNOWN_EVENT_COUNT) {
+            filesEvictedWithUnknownEventCount.incrementAndGet();
+            log.warn("Spool quota exceeded, evicted {} ({} bytes, unknown number of events)", spoolFile.name, spoolFile.sizeInBytes);
+        }
+        else {
+            eventsEvicted.addAndGet(spoolFile.eventCount);
+            for (final AtomicLong eventsLost : eventsLostCounters) {
+                eventsLost.addAndGet(spoolFile.eventCount);
+            }
+            log.warn("Spool quota exceeded, evicted {} ({} bytes, {} events)", new Object[]{spoolFile.name, spoolFile.sizeInBytes, spoolFile.eventCount});
+        }
+    }
+
+    private static String getKey(final File spoolDirectory, final String name)
+    {
+        return new File(spoolDirectory, name).getAbsolutePath();
+    }
+
+    @Managed(description = "Size of the spool files, in bytes")
+    public synchronized long getSizeInBytes()
+    {
+        return sizeInBytes;
+    }
+
+    @Managed(description = "Number of spool files")
+    public synchronized int getFileCount()
+    {
+        return files.size();
+    }
+
+    @Managed(description = "Number of spool files evicted because of the quota")
+    public long getFilesEvicted()
+    {
+        return filesEvicted.get();
+    }
+
+    @Managed(description = "Number of events evicted because of the quota")
+    public long getEventsEvicted()
+    {
+        return eventsEvicted.get();
+    }
+
+    @Managed(description = "Number of spool files evicted whose number of events is unknown (found at startup)")
+    public long getFilesEvictedWithUnknownEventCount()
+    {
+        return filesEvictedWithUnknownEventCount.get();
+    }
+
+    private static final class SpoolFile
+    {
+        private final File spoolDirectory;
+        private final String name;
+        private final long sizeInBytes;
+        private final long eventCount;
+        // Null if the file isn't indexed
+        private final SpoolIndex index;
+
+        private SpoolFile(final File spoolDirectory, final String name, final long sizeInBytes, final long eventCount, final SpoolIndex index)
+        {
+            this.spoolDirectory = spoolDirectory;
+            this.name = name;
+            this.sizeInBytes = sizeInBytes;
+            this.eventCount = eventCount;
+            this.index = index;
+        }
+
+        private void onEvicted()
+        {
+            if (index == null) {
+                return;
+            }
+
+            try {
+                index.onRemoved(name);
+            }
+            catch (IOException e) {
+                log.warn("Unable to update the index of " + spoolDirectory, e);
+            }
+        }
+
+        /**
+         * @return where the writer moved the file, null if it is gone
+         */
+        private File locate()
+        {
+            for (final File directory : Arrays.asList(spoolDirectory, new File(spoolDirectory, "_lock"))) {
+                final File file = new File(directory, name);
+                if (file.isFile()) {
+                    return file;
+                }
+            }
+
+            return null;
+        }
+    }
+}
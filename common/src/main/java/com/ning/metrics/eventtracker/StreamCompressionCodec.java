@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.writer.CompressionCodec;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Codec compressing any output stream. The DiskSpoolEventWriter only knows about file streams, which are
+ * compressed as they are written.
+ */
+abstract class StreamCompressionCodec implements CompressionCodec
+{
+    /**
+     * @param outputStream stream to compress into
+     * @return the compressing stream, closing outputStream when closed
+     * @throws IOException if the stream couldn't be set up
+     */
+    abstract OutputStream wrapOutputStream(OutputStream outputStream) throws IOException;
+
+    @Override
+    public FileOutputStream getFileOutputStream(final File file) throws FileNotFoundException
+    {
+        return new CompressedFileOutputStream(file);
+    }
+
+    /**
+     * @param codec        codec of the spool files
+     * @param outputStream stream to compress into
+     * @return the compressing stream, outputStream itself if the codec doesn't compress
+     * @throws IOException if the stream couldn't be set up
+     */
+    static OutputStream wrap(final CompressionCodec codec, final OutputStream outputStream) throws IOException
+    {
+        if (codec instanceof StreamCompressionCodec) {
+            return ((StreamCompressionCodec) codec).wrapOutputStream(outputStream);
+        }
+        return outputStream;
+    }
+
+    private final class CompressedFileOutputStream extends FileOutputStream
+    {
+        private final OutputStream compressed;
+        private boolean closed = false;
+
+        private CompressedFileOutputStream(final File file) throws FileNotFoundException
+        {
+            super(file);
+            try {
+                compressed = wrapOutputStream(new OutputStream()
+                {
+                    @Override
+                    public void write(final int b) throws IOException
+                    {
+                        writeCompressed(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException
+                    {
+                        writeCompressed(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        closeFile();
+                    }
+                });
+            }
+            catch (IOException e) {
+                final FileNotFoundException exception = new FileNotFoundException("Unable to compress " + file);
+                exception.initCause(e);
+                throw exception;
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException
+        {
+            compressed.write(b);
+        }
+
+        @Override
+        public void write(final byte[] b) throws IOException
+        {
+            compressed.write(b, 0, b.length);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            compressed.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            compressed.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException
+        {
+            if (!closed) {
+                closed = true;
+                // Writes the trailer, then closes the file
+                compressed.close();
+            }
+        }
+
+        private void writeCompressed(final byte[] b, final int off, final int len) throws IOException
+        {
+            super.write(b, off, len);
+        }
+
+        private void closeFile() throws IOException
+        {
+            super.close();
+        }
+    }
+}
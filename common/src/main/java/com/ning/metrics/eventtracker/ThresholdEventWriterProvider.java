@@ -18,26 +18,170 @@ package com.ning.metrics.eventtracker;
 
 import com.google.inject.Inject;
 import com.google.inject.Provider;
+import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.SyncType;
 import com.ning.metrics.serialization.writer.ThresholdEventWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-class ThresholdEventWriterProvider implements Provider<ThresholdEventWriter>
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+class ThresholdEventWriterProvider implements Provider<EventWriter>
 {
+    private static final Logger log = LoggerFactory.getLogger(ThresholdEventWriterProvider.class);
+
     private final DiskSpoolEventWriter eventWriter;
-    private final long maxUncommittedWriteCount;
-    private final int maxUncommittedPeriodInSeconds;
+    private final DiskSpoolEventWriterProvider diskSpoolEventWriterProvider;
+    private final Provider<EventSerializer> serializerProvider;
+    private final EventTrackerConfig config;
+    private final AdaptiveFlushScheduler flushScheduler;
+    private final SpoolQuota spoolQuota;
+    private final boolean flushOnCommit;
 
     @Inject
-    public ThresholdEventWriterProvider(final DiskSpoolEventWriter eventWriter, final EventTrackerConfig config)
+    public ThresholdEventWriterProvider(final DiskSpoolEventWriter eventWriter, final DiskSpoolEventWriterProvider diskSpoolEventWriterProvider,
+                                        final Provider<EventSerializer> serializerProvider, final AdaptiveFlushScheduler flushScheduler,
+                                        final SpoolQuota spoolQuota, final EventTrackerConfig config)
     {
         this.eventWriter = eventWriter;
-        this.maxUncommittedWriteCount = config.getMaxUncommittedWriteCount();
-        this.maxUncommittedPeriodInSeconds = config.getMaxUncommittedPeriodInSeconds();
+        this.diskSpoolEventWriterProvider = diskSpoolEventWriterProvider;
+        this.serializerProvider = serializerProvider;
+        this.config = config;
+        this.flushScheduler = flushScheduler;
+        this.spoolQuota = spoolQuota;
+        this.flushOnCommit = config.isFlushEnabled() && config.isFlushAdaptive();
     }
 
     @Override
-    public ThresholdEventWriter get()
+    public EventWriter get()
+    {
+        final boolean groupCommit = isGroupCommitEnabled();
+        if (!config.isSpoolMemoryMapped() && (groupCommit || config.isSpoolIndexEnabled())) {
+            log.warn("{} implies memory-mapped writes, ignoring eventtracker.diskspool.mmap.enabled=false",
+                groupCommit ? "eventtracker.diskspool.group-commit" : "eventtracker.diskspool.index.enabled");
+        }
+        final EventWriter defaultWriter = createDefaultWriter(groupCommit);
+
+        final List<SpoolQueue> queues = diskSpoolEventWriterProvider.getQueues();
+        if (queues.isEmpty()) {
+            return defaultWriter;
+        }
+
+        // Each queue has its own spool area, thresholds and flushes. Sharding only applies to the default queue.
+        final List<EventWriter> writers = new ArrayList<EventWriter>(queues.size());
+        for (final SpoolQueue queue : queues) {
+            if (SpoolQueue.DEFAULT_QUEUE_NAME.equals(queue.getName())) {
+                writers.add(defaultWriter);
+            }
+            else {
+                writers.add(createChain(diskSpoolEventWriterProvider.create(queue), queue.getMaxUncommittedWriteCount(),
+                    queue.getMaxUncommittedPeriodInSeconds(), groupCommit));
+            }
+        }
+        log.info("Routing events to spool queues {}", queues);
+
+        return new RoutingEventWriter(queues, writers, config.getSpoolDirectoryName());
+    }
+
+    private EventWriter createDefaultWriter(final boolean groupCommit)
     {
-        return new ThresholdEventWriter(eventWriter, maxUncommittedWriteCount, maxUncommittedPeriodInSeconds);
+        final long maxUncommittedWriteCount = config.getMaxUncommittedWriteCount();
+        final int maxUncommittedPeriodInSeconds = config.getMaxUncommittedPeriodInSeconds();
+
+        final int shards = config.getSpoolShards();
+        if (shards <= 1) {
+            return createChain(eventWriter, maxUncommittedWriteCount, maxUncommittedPeriodInSeconds, groupCommit);
+        }
+
+        // Each shard has its own spool area (and _tmp file). The main writer keeps on flushing files left over in
+        // the root spool area, e.g. before sharding was enabled.
+        if (spoolQuota.isEnabled()) {
+            // Not written to anymore, but still counts
+            final SpoolIndex rootIndex = diskSpoolEventWriterProvider.getIndex(eventWriter.getSpoolPath());
+            if (rootIndex == null) {
+                spoolQuota.register(new File(config.getSpoolDirectoryName()));
+            }
+            else {
+                spoolQuota.register(new File(config.getSpoolDirectoryName()), rootIndex);
+            }
+        }
+        final List<EventWriter> chains = new ArrayList<EventWriter>(shards);
+        for (int i = 0; i < shards; i++) {
+            final String shardDirectoryName = new File(config.getSpoolDirectoryName(), "shard-" + i).getPath();
+            chains.add(createChain(diskSpoolEventWriterProvider.create(shardDirectoryName), maxUncommittedWriteCount,
+                maxUncommittedPeriodInSeconds, groupCommit));
+        }
+
+        final ShardRouting routing = config.getSpoolShardRouting();
+        if (routing == ShardRouting.THREAD && config.isAsyncEnabled()) {
+            log.warn("All events are written by the same thread in asynchronous mode, consider routing by event name");
+        }
+        log.info("Spreading events over {} spool shards, by {}", shards, routing);
+
+        return new ShardedEventWriter(chains, routing, config.getSpoolDirectoryName());
+    }
+
+    private EventWriter createChain(final DiskSpoolEventWriter eventWriter, final long maxUncommittedWriteCount,
+                                    final int maxUncommittedPeriodInSeconds, final boolean groupCommit)
+    {
+        EventWriter spoolWriter = eventWriter;
+        MappedSpoolEventWriter mappedWriter = null;
+        // The index is maintained by the memory-mapped writer
+        final SpoolIndex index = diskSpoolEventWriterProvider.getIndex(eventWriter.getSpoolPath());
+        if (config.isSpoolMemoryMapped() || groupCommit || index != null) {
+            // With group commits, syncs are driven by the GroupCommitEventWriter, not by batches
+            final int syncBatchSize = groupCommit ? Integer.MAX_VALUE : config.getSyncBatchSize();
+            // The DiskSpoolEventWriter only flushes the files promoted by the memory-mapped writer
+            mappedWriter = new MappedSpoolEventWriter(eventWriter, serializerProvider.get(),
+                DiskSpoolEventWriterProvider.getSpoolCompression(config).createCodec(config.getSpoolCompressionLevel()),
+                SyncType.valueOf(config.getSyncType()), syncBatchSize, config.getSpoolSegmentSizeInBytes(), index);
+            spoolWriter = mappedWriter;
+            log.info("Writing the spool area through memory-mapped segments of {} bytes", config.getSpoolSegmentSizeInBytes());
+        }
+
+        if (spoolQuota.isEnabled()) {
+            spoolWriter = new QuotaEventWriter(spoolWriter, spoolQuota, index);
+        }
+
+        if (flushOnCommit) {
+            spoolWriter = new FlushOnCommitEventWriter(spoolWriter, flushScheduler);
+        }
+
+        final ThresholdEventWriter thresholdEventWriter = new ThresholdEventWriter(spoolWriter, maxUncommittedWriteCount, maxUncommittedPeriodInSeconds);
+        if (groupCommit) {
+            log.info("Enabled group commits");
+            return new GroupCommitEventWriter(thresholdEventWriter, mappedWriter);
+        }
+        else {
+            return thresholdEventWriter;
+        }
+    }
+
+    private boolean isGroupCommitEnabled()
+    {
+        if (!config.isSpoolGroupCommit()) {
+            return false;
+        }
+
+        if (SyncType.valueOf(config.getSyncType()) != SyncType.SYNC) {
+            log.warn("Group commits require eventtracker.diskspool.synctype=SYNC, disabling them");
+            return false;
+        }
+        else if (DiskSpoolEventWriterProvider.getSpoolCompression(config) != SpoolCompression.NONE) {
+            // The codec buffers compressed data until the file is promoted
+            log.warn("Group commits are not supported with spool compression, disabling them");
+            return false;
+        }
+        else if (config.isAsyncEnabled()) {
+            // A single writer thread would wait for each sync in turn
+            log.warn("Group commits are not supported with asynchronous writes, disabling them");
+            return false;
+        }
+
+        return true;
     }
 }
@@ -17,10 +17,12 @@
 package com.ning.metrics.eventtracker;
 
 import com.google.inject.AbstractModule;
+import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.writer.CallbackHandler;
 import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
 import com.ning.metrics.serialization.writer.EventHandler;
 import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
 import com.ning.metrics.serialization.writer.StubScheduledExecutorService;
 import com.ning.metrics.serialization.writer.SyncType;
 import org.skife.config.ConfigurationObjectFactory;
@@ -81,6 +83,9 @@ public class MockCollectorControllerModule extends AbstractModule
         bind(ScheduledExecutorService.class).toInstance(executor);
 
         bind(CollectorController.class).toProvider(CollectorControllerProvider.class).asEagerSingleton();
+        bind(AdaptiveFlushScheduler.class).asEagerSingleton();
+        bind(SpoolQuota.class).asEagerSingleton();
+        bind(DiskSpoolEventWriterProvider.class).asEagerSingleton();
 
         bind(DiskSpoolEventWriter.class).toInstance(new DiskSpoolEventWriter(new EventHandler()
         {
@@ -92,6 +97,7 @@ public class MockCollectorControllerModule extends AbstractModule
             }
         }, config.getSpoolDirectoryName(), config.isFlushEnabled(), config.getFlushIntervalInSeconds(), executor,
             SyncType.valueOf(config.getSyncType()), config.getSyncBatchSize()));
+        bind(EventSerializer.class).to(ObjectOutputEventSerializer.class);
         bind(EventWriter.class).toProvider(ThresholdEventWriterProvider.class);
     }
 }
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.StubScheduledExecutorService;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class TestAdaptiveFlushScheduler
+{
+    private File spoolDirectory;
+    private EventWriter eventWriter;
+    private RecordingScheduledExecutorService executor;
+    private AdaptiveFlushScheduler scheduler;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestAdaptiveFlushScheduler", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+        Assert.assertTrue(new File(spoolDirectory, "_tmp").mkdir());
+
+        eventWriter = Mockito.mock(EventWriter.class);
+        Mockito.when(eventWriter.getSpoolPath()).thenReturn(spoolDirectory.getAbsolutePath());
+        // Like the DiskSpoolEventWriter, hand every file of the spool area to the sender
+        Mockito.doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable
+            {
+                for (final File file : spoolDirectory.listFiles()) {
+                    if (file.isFile()) {
+                        scheduler.wrap(Mockito.mock(CallbackHandler.class));
+                    }
+                }
+                return null;
+            }
+        }).when(eventWriter).flush();
+
+        executor = new RecordingScheduledExecutorService();
+        scheduler = new AdaptiveFlushScheduler(executor, 1000, 60000, 600000);
+        scheduler.start(eventWriter);
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        scheduler.stop();
+        for (final File file : spoolDirectory.listFiles()) {
+            file.delete();
+        }
+        spoolDirectory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testBacklogShortensTheInterval() throws Exception
+    {
+        Assert.assertEquals(executor.getLastDelayInMillis(), 60000);
+        Assert.assertEquals(scheduler.getBacklogSize(), 0);
+
+        final File spoolFile = createSpoolFile();
+        executor.runNext();
+        Mockito.verify(eventWriter, Mockito.times(1)).flush();
+        Assert.assertEquals(scheduler.getBacklogSize(), 1);
+        Assert.assertEquals(scheduler.getCurrentFlushIntervalInMillis(), 1000);
+        Assert.assertEquals(executor.getLastDelayInMillis(), 1000);
+
+        // Drained
+        Assert.assertTrue(spoolFile.delete());
+        executor.runNext();
+        Assert.assertEquals(scheduler.getCurrentFlushIntervalInMillis(), 60000);
+        Assert.assertEquals(scheduler.getFlushes(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testFailuresLengthenTheInterval() throws Exception
+    {
+        createSpoolFile();
+        final CallbackHandler handler = scheduler.wrap(Mockito.mock(CallbackHandler.class));
+
+        handler.onError(new IOException("Collector down"), spoolDirectory);
+        executor.runNext();
+        final long firstBackoff = scheduler.getCurrentFlushIntervalInMillis();
+        Assert.assertTrue(firstBackoff >= 60000 && firstBackoff <= 120000, "Unexpected interval " + firstBackoff);
+        Assert.assertEquals(scheduler.getConsecutiveFailedFlushes(), 1);
+
+        // Promoted files don't trigger a flush while failing
+        scheduler.requestFlush();
+        Assert.assertEquals(executor.getScheduledCount(), 1);
+
+        for (int i = 0; i < 10; i++) {
+            handler.onError(new IOException("Collector down"), spoolDirectory);
+            executor.runNext();
+        }
+        Assert.assertTrue(scheduler.getCurrentFlushIntervalInMillis() <= 600000);
+        Assert.assertTrue(scheduler.getCurrentFlushIntervalInMillis() >= 300000);
+
+        // Back to draining the backlog as soon as the sender recovers
+        handler.onSuccess(spoolDirectory);
+        executor.runNext();
+        Assert.assertEquals(scheduler.getConsecutiveFailedFlushes(), 0);
+        Assert.assertEquals(scheduler.getCurrentFlushIntervalInMillis(), 1000);
+    }
+
+    @Test(groups = "fast")
+    public void testPromotionTriggersAFlush() throws Exception
+    {
+        final ScheduledFuture<?> periodicFlush = executor.getLastFuture();
+
+        scheduler.requestFlush();
+        Mockito.verify(periodicFlush, Mockito.times(1)).cancel(false);
+        Assert.assertEquals(executor.getLastDelayInMillis(), 0);
+        Assert.assertEquals(executor.getScheduledCount(), 2);
+
+        // Already coming
+        scheduler.requestFlush();
+        Assert.assertEquals(executor.getScheduledCount(), 2);
+
+        executor.runNext();
+        Mockito.verify(eventWriter, Mockito.times(1)).flush();
+        Assert.assertEquals(executor.getLastDelayInMillis(), 60000);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidIntervals() throws Exception
+    {
+        new AdaptiveFlushScheduler(executor, 1000, 500, 600000);
+    }
+
+    private File createSpoolFile() throws IOException
+    {
+        final File file = new File(spoolDirectory, "spool-" + System.nanoTime() + ".bin");
+        Assert.assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private static final class RecordingScheduledExecutorService extends StubScheduledExecutorService
+    {
+        private final List<Runnable> scheduled = new ArrayList<Runnable>();
+        private long lastDelayInMillis = -1;
+        private ScheduledFuture<?> lastFuture = null;
+
+        @Override
+        public ScheduledFuture<?> schedule(final Runnable runnable, final long delay, final TimeUnit unit)
+        {
+            final ScheduledFuture<?> future = Mockito.mock(ScheduledFuture.class);
+            scheduled.add(runnable);
+            lastDelayInMillis = unit.toMillis(delay);
+            lastFuture = future;
+            return future;
+        }
+
+        /**
+         * Run the last scheduled task, dropping the ones it replaced
+         */
+        public void runNext()
+        {
+            final Runnable runnable = scheduled.get(scheduled.size() - 1);
+            scheduled.clear();
+            runnable.run();
+        }
+
+        /**
+         * @return the number of tasks scheduled since the last run
+         */
+        public int getScheduledCount()
+        {
+            return scheduled.size();
+        }
+
+        public long getLastDelayInMillis()
+        {
+            return lastDelayInMillis;
+        }
+
+        public ScheduledFuture<?> getLastFuture()
+        {
+            return lastFuture;
+        }
+    }
+}
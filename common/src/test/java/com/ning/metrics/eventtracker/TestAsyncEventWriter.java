@@ -0,0 +1,291 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.MockEventWriter;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestAsyncEventWriter
+{
+    @Test(groups = "fast")
+    public void testCommitDrainsTheQueue() throws Exception
+    {
+        final MockEventWriter delegate = new MockEventWriter();
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 1024, OverflowPolicy.BLOCK, 16);
+
+        for (int i = 0; i < 100; i++) {
+            writer.write(new StubEvent());
+        }
+        writer.commit();
+
+        Assert.assertEquals(writer.getQueueDepth(), 0);
+        Assert.assertEquals(delegate.getCommittedEventList().size(), 100);
+
+        writer.close();
+        Assert.assertTrue(delegate.isClosed());
+    }
+
+    @Test(groups = "fast")
+    public void testDropNewest() throws Exception
+    {
+        final BlockingEventWriter delegate = new BlockingEventWriter();
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 4, OverflowPolicy.DROP_NEWEST, 1);
+
+        // The writer thread picks up the first event and blocks on it
+        writer.write(new StubEvent());
+        Assert.assertTrue(delegate.blocked.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 10; i++) {
+            writer.write(new StubEvent());
+        }
+
+        Assert.assertEquals(writer.getQueueDepth(), 4);
+        Assert.assertEquals(writer.getEventsDropped(), 6);
+
+        delegate.release.countDown();
+        writer.forceCommit();
+        Assert.assertEquals(delegate.getCommittedEventList().size(), 5);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testDropOldest() throws Exception
+    {
+        final BlockingEventWriter delegate = new BlockingEventWriter();
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 4, OverflowPolicy.DROP_OLDEST, 1);
+
+        writer.write(new StubEvent());
+        Assert.assertTrue(delegate.blocked.await(5, TimeUnit.SECONDS));
+
+        Event lastEvent = null;
+        for (int i = 0; i < 10; i++) {
+            lastEvent = new StubEvent();
+            writer.write(lastEvent);
+        }
+
+        Assert.assertEquals(writer.getQueueDepth(), 4);
+        Assert.assertEquals(writer.getEventsDropped(), 6);
+
+        delegate.release.countDown();
+        writer.forceCommit();
+        Assert.assertEquals(delegate.getCommittedEventList().size(), 5);
+        // The most recent event must have been kept
+        Assert.assertTrue(delegate.getCommittedEventList().contains(lastEvent));
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testDroppedEventsAreLost() throws Exception
+    {
+        final BlockingEventWriter delegate = new BlockingEventWriter();
+        final CollectorController controller = new CollectorController(new AsyncEventWriter(delegate, 4, OverflowPolicy.DROP_NEWEST, 1));
+
+        controller.offerEvent(new StubEvent());
+        Assert.assertTrue(delegate.blocked.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            controller.offerEvent(new StubEvent());
+        }
+
+        Assert.assertEquals(controller.getEventsReceived().get(), 11);
+        Assert.assertEquals(controller.getEventsDropped(), 6);
+        Assert.assertEquals(controller.getEventsLost().get(), 6);
+
+        delegate.release.countDown();
+        controller.close();
+    }
+
+    @Test(groups = "fast")
+    public void testFlushDrainsTheQueue() throws Exception
+    {
+        final AtomicInteger writtenBeforeFlush = new AtomicInteger(-1);
+        final MockEventWriter delegate = new MockEventWriter()
+        {
+            @Override
+            public synchronized void flush() throws IOException
+            {
+                writtenBeforeFlush.compareAndSet(-1, getWrittenEventList().size());
+                super.flush();
+            }
+        };
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 1024, OverflowPolicy.BLOCK, 16);
+
+        for (int i = 0; i < 100; i++) {
+            writer.write(new StubEvent());
+        }
+        writer.flush();
+
+        // Events accepted before the flush reached the delegate
+        Assert.assertEquals(writtenBeforeFlush.get(), 100);
+        Assert.assertEquals(writer.getQueueDepth(), 0);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testCloseDrainsWithoutInterrupting() throws Exception
+    {
+        final AtomicBoolean interrupted = new AtomicBoolean(false);
+        final AtomicInteger written = new AtomicInteger(0);
+        final MockEventWriter delegate = new MockEventWriter()
+        {
+            @Override
+            public synchronized void write(final Event event) throws IOException
+            {
+                try {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e) {
+                    interrupted.set(true);
+                    Thread.currentThread().interrupt();
+                }
+                written.incrementAndGet();
+                super.write(event);
+            }
+        };
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 1024, OverflowPolicy.BLOCK, 16);
+
+        for (int i = 0; i < 200; i++) {
+            writer.write(new StubEvent());
+        }
+        writer.close();
+
+        Assert.assertFalse(interrupted.get());
+        Assert.assertTrue(delegate.isClosed());
+        Assert.assertEquals(written.get(), 200);
+    }
+
+    @Test(groups = "slow")
+    public void testBlockedProducersAreWokenUp() throws Exception
+    {
+        final BlockingEventWriter delegate = new BlockingEventWriter();
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 2, OverflowPolicy.BLOCK, 1);
+
+        writer.write(new StubEvent());
+        Assert.assertTrue(delegate.blocked.await(5, TimeUnit.SECONDS));
+        writer.write(new StubEvent());
+        writer.write(new StubEvent());
+
+        // The queue is full: the producer waits until the writer thread makes room
+        final CountDownLatch written = new CountDownLatch(1);
+        final Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    writer.write(new StubEvent());
+                    written.countDown();
+                }
+                catch (IOException e) {
+                    Assert.fail();
+                }
+            }
+        };
+        producer.start();
+        Assert.assertFalse(written.await(100, TimeUnit.MILLISECONDS));
+
+        delegate.release.countDown();
+        Assert.assertTrue(written.await(5, TimeUnit.SECONDS));
+        writer.forceCommit();
+        Assert.assertEquals(delegate.getCommittedEventList().size(), 4);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testWriteFailuresAreCounted() throws Exception
+    {
+        final MockEventWriter delegate = new MockEventWriter();
+        delegate.setWriteThrowsException(true);
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 16, OverflowPolicy.BLOCK, 16);
+
+        writer.write(new StubEvent());
+        writer.write(new StubEvent());
+        writer.forceCommit();
+
+        Assert.assertEquals(writer.getWriteFailures(), 2);
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testWriteFailuresAreLost() throws Exception
+    {
+        final MockEventWriter delegate = new MockEventWriter();
+        delegate.setWriteThrowsException(true);
+        final CollectorController controller = new CollectorController(new AsyncEventWriter(delegate, 16, OverflowPolicy.BLOCK, 16));
+
+        controller.offerEvent(new StubEvent());
+        controller.offerEvent(new StubEvent());
+        controller.commit();
+
+        Assert.assertEquals(controller.getEventsReceived().get(), 2);
+        Assert.assertEquals(controller.getEventsDropped(), 0);
+        Assert.assertEquals(controller.getAsyncWriteFailures(), 2);
+        Assert.assertEquals(controller.getEventsLost().get(), 2);
+        controller.close();
+    }
+
+    @Test(groups = "fast")
+    public void testControllerGauges() throws Exception
+    {
+        final MockEventWriter delegate = new MockEventWriter();
+        final AsyncEventWriter writer = new AsyncEventWriter(delegate, 100, OverflowPolicy.BLOCK, 16);
+        final CollectorController controller = new CollectorController(writer);
+
+        Assert.assertEquals(controller.getQueueCapacity(), 128);
+        controller.offerEvent(new StubEvent());
+        Assert.assertEquals(controller.getEventsReceived().get(), 1);
+
+        controller.commit();
+        Assert.assertEquals(controller.getQueueDepth(), 0);
+        Assert.assertEquals(controller.getEventsDropped(), 0);
+        Assert.assertEquals(delegate.getCommittedEventList().size(), 1);
+
+        controller.close();
+        Assert.assertTrue(delegate.isClosed());
+
+        // Synchronous mode
+        Assert.assertEquals(new CollectorController(new MockEventWriter()).getQueueCapacity(), 0);
+    }
+
+    private static final class BlockingEventWriter extends MockEventWriter
+    {
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void write(final Event event) throws IOException
+        {
+            blocked.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            super.write(event);
+        }
+    }
+}
@@ -29,6 +29,8 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 @Guice(modules = MockCollectorControllerModule.class)
 public class TestCollectorController
@@ -105,4 +107,113 @@ public class TestCollectorController
         Assert.assertEquals(diskWriter.getWrittenEventList().size(), 0);
         Assert.assertEquals(diskWriter.getCommittedEventList().size(), 0);
     }
+
+    @Test(groups = "fast")
+    public void testOfferEvents() throws Exception
+    {
+        final MockEventWriter diskWriter = new MockEventWriter();
+        final CollectorController controller = new CollectorController(diskWriter);
+
+        final List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 20; i++) {
+            events.add(new StubEvent());
+        }
+
+        controller.offerEvents(events);
+        Assert.assertEquals(controller.getEventsReceived().get(), 20);
+        Assert.assertEquals(controller.getEventsLost().get(), 0);
+        Assert.assertEquals(diskWriter.getWrittenEventList().size(), 20);
+
+        controller.commit();
+        Assert.assertEquals(diskWriter.getCommittedEventList().size(), 20);
+
+        // Batches are ignored once the controller stops accepting events
+        controller.setAcceptEvents(false);
+        controller.offerEvents(events);
+        Assert.assertEquals(controller.getEventsReceived().get(), 20);
+    }
+
+    @Test(groups = "fast")
+    public void testOfferEventsWriterThrowsException() throws Exception
+    {
+        final MockEventWriter diskWriter = new MockEventWriter();
+        diskWriter.setWriteThrowsException(true);
+        final CollectorController controller = new CollectorController(diskWriter);
+
+        final List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 5; i++) {
+            events.add(new StubEvent());
+        }
+
+        try {
+            controller.offerEvents(events);
+            Assert.fail("Should have thrown an IOException");
+        }
+        catch (IOException e) {
+            Assert.assertEquals(diskWriter.getWrittenEventList().size(), 0);
+            Assert.assertEquals(controller.getEventsReceived().get(), 1);
+            Assert.assertEquals(controller.getEventsLost().get(), 1);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testOfferEventsBatchWriterThrowsException() throws Exception
+    {
+        final MockBatchEventWriter diskWriter = new MockBatchEventWriter();
+        final CollectorController controller = new CollectorController(diskWriter);
+
+        final List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 5; i++) {
+            events.add(new StubEvent());
+        }
+
+        controller.offerEvents(events);
+        Assert.assertEquals(controller.getEventsReceived().get(), 5);
+        Assert.assertEquals(diskWriter.getWrittenEventList().size(), 5);
+
+        // The writer decides how many events of the batch are lost
+        diskWriter.setWriteThrowsException(true);
+        try {
+            controller.offerEvents(events);
+            Assert.fail("Should have thrown an IOException");
+        }
+        catch (IOException e) {
+            Assert.assertFalse(e instanceof BatchWriteException);
+            Assert.assertEquals(controller.getEventsReceived().get(), 10);
+            Assert.assertEquals(controller.getEventsLost().get(), 5);
+        }
+    }
+
+    private static final class MockBatchEventWriter extends MockEventWriter implements BatchEventWriter
+    {
+        private boolean writeThrowsException = false;
+
+        @Override
+        public void setWriteThrowsException(final boolean writeThrowsException)
+        {
+            this.writeThrowsException = writeThrowsException;
+        }
+
+        @Override
+        public int writeAll(final Iterable<? extends Event> events) throws BatchWriteException
+        {
+            int written = 0;
+            for (final Event event : events) {
+                written++;
+            }
+            if (writeThrowsException) {
+                throw new BatchWriteException(written, written, new IOException("IGNORE - Expected exception for tests"));
+            }
+
+            for (final Event event : events) {
+                try {
+                    write(event);
+                }
+                catch (IOException e) {
+                    throw new BatchWriteException(written, 1, e);
+                }
+            }
+            return written;
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+public class TestDeliveryTracker
+{
+    private File spoolDirectory;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestDeliveryTracker", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        delete(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testStableFileIds() throws Exception
+    {
+        final DeliveryTracker tracker = new DeliveryTracker("host-1");
+        final File file = new File(spoolDirectory, "spool-file.bin");
+        final String fileId = tracker.getFileId(file);
+        Assert.assertTrue(fileId.startsWith("host-1/"));
+        Assert.assertTrue(fileId.endsWith("/spool-file.bin"));
+
+        // Same file, moved to the lock area by the writer
+        Assert.assertEquals(tracker.getFileId(new File(new File(spoolDirectory, "_lock"), "spool-file.bin")), fileId);
+        // After a restart
+        Assert.assertEquals(new DeliveryTracker("host-1").getFileId(file), fileId);
+
+        // Same name, after the spool area was wiped
+        delete(spoolDirectory);
+        Assert.assertTrue(spoolDirectory.mkdir());
+        Assert.assertFalse(new DeliveryTracker("host-1").getFileId(file).equals(fileId));
+    }
+
+    @Test(groups = "fast")
+    public void testAttempts() throws Exception
+    {
+        final DeliveryTracker tracker = new DeliveryTracker("host-1");
+        final File file = new File(spoolDirectory, "spool-file.bin");
+        final File otherFile = new File(spoolDirectory, "other-spool-file.bin");
+
+        Assert.assertEquals(tracker.onAttempt(file), 1);
+        Assert.assertEquals(tracker.onAttempt(otherFile), 1);
+        Assert.assertEquals(tracker.onAttempt(new File(new File(spoolDirectory, "_quarantine"), "spool-file.bin")), 2);
+        Assert.assertEquals(tracker.onAttempt(file), 3);
+        Assert.assertEquals(tracker.getAttempts(file), 3);
+        Assert.assertEquals(tracker.getRetries(), 2);
+        Assert.assertEquals(tracker.getFilesBeingRetried(), 1);
+        Assert.assertEquals(tracker.getMaxAttempts(), 3);
+
+        tracker.onDelivered(file);
+        Assert.assertEquals(tracker.getAttempts(file), 0);
+        Assert.assertEquals(tracker.getFilesBeingRetried(), 0);
+        Assert.assertEquals(tracker.getMaxAttempts(), 1);
+        // Attempts are counted without a spool generation
+        Assert.assertFalse(new File(spoolDirectory, "_generation").exists());
+    }
+
+    private static void delete(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class TestEventRingBuffer
+{
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidCapacity()
+    {
+        new EventRingBuffer(0);
+    }
+
+    @Test(groups = "fast")
+    public void testCapacityIsRoundedUp()
+    {
+        Assert.assertEquals(new EventRingBuffer(1).capacity(), 1);
+        Assert.assertEquals(new EventRingBuffer(5).capacity(), 8);
+        Assert.assertEquals(new EventRingBuffer(1024).capacity(), 1024);
+    }
+
+    @Test(groups = "fast")
+    public void testOfferAndPollInOrder()
+    {
+        final EventRingBuffer buffer = new EventRingBuffer(4);
+        Assert.assertTrue(buffer.isEmpty());
+        Assert.assertNull(buffer.poll());
+
+        final List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 4; i++) {
+            final Event event = new StubEvent();
+            events.add(event);
+            Assert.assertTrue(buffer.offer(event));
+            Assert.assertEquals(buffer.size(), i + 1);
+        }
+
+        // Full
+        Assert.assertFalse(buffer.offer(new StubEvent()));
+        Assert.assertEquals(buffer.size(), 4);
+
+        for (final Event event : events) {
+            Assert.assertSame(buffer.poll(), event);
+        }
+        Assert.assertNull(buffer.poll());
+        Assert.assertTrue(buffer.isEmpty());
+
+        // Slots are re-usable on the next lap
+        for (int lap = 0; lap < 3; lap++) {
+            final Event event = new StubEvent();
+            Assert.assertTrue(buffer.offer(event));
+            Assert.assertSame(buffer.poll(), event);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDrainTo()
+    {
+        final EventRingBuffer buffer = new EventRingBuffer(16);
+        for (int i = 0; i < 10; i++) {
+            buffer.offer(new StubEvent());
+        }
+
+        final List<Event> batch = new ArrayList<Event>();
+        Assert.assertEquals(buffer.drainTo(batch, 4), 4);
+        Assert.assertEquals(batch.size(), 4);
+        Assert.assertEquals(buffer.size(), 6);
+
+        Assert.assertEquals(buffer.drainTo(batch, 100), 6);
+        Assert.assertEquals(batch.size(), 10);
+        Assert.assertTrue(buffer.isEmpty());
+    }
+
+    @Test(groups = "slow")
+    public void testConcurrentProducersAndConsumer() throws Exception
+    {
+        final int producers = 8;
+        final int eventsPerProducer = 20000;
+        final EventRingBuffer buffer = new EventRingBuffer(128);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            final Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        start.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int j = 0; j < eventsPerProducer; j++) {
+                        final Event event = new StubEvent();
+                        while (!buffer.offer(event)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+
+        // Every event must come out exactly once
+        final Set<Event> seen = new HashSet<Event>();
+        final int expected = producers * eventsPerProducer;
+        while (seen.size() < expected) {
+            final Event event = buffer.poll();
+            if (event == null) {
+                Thread.yield();
+            }
+            else {
+                Assert.assertTrue(seen.add(event));
+            }
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestExponentialBackoff
+{
+    @Test(groups = "fast")
+    public void testDelaysGrowUpToTheMaximum() throws Exception
+    {
+        final ExponentialBackoff backoff = new ExponentialBackoff(100, 1000);
+        Assert.assertEquals(backoff.getRemainingDelayInMillis(), 0);
+
+        long ceiling = 100;
+        for (int i = 0; i < 40; i++) {
+            final long delay = backoff.onFailure();
+            Assert.assertTrue(delay >= ceiling / 2 && delay <= ceiling, "Unexpected delay " + delay + " for ceiling " + ceiling);
+            Assert.assertEquals(backoff.getCurrentDelayInMillis(), delay);
+            ceiling = Math.min(2 * ceiling, 1000);
+        }
+
+        Assert.assertEquals(backoff.getConsecutiveFailures(), 40);
+        Assert.assertTrue(backoff.getRemainingDelayInMillis() > 0);
+
+        backoff.onSuccess();
+        Assert.assertEquals(backoff.getConsecutiveFailures(), 0);
+        Assert.assertEquals(backoff.getCurrentDelayInMillis(), 0);
+        Assert.assertEquals(backoff.getRemainingDelayInMillis(), 0);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidDelays() throws Exception
+    {
+        new ExponentialBackoff(1000, 100);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestGroupCommitEventWriter
+{
+    private static final int RECORD_SIZE = 8;
+
+    private File spoolDirectory;
+    private EventWriter diskWriter;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestGroupCommitEventWriter", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+
+        diskWriter = Mockito.mock(EventWriter.class);
+        Mockito.when(diskWriter.getSpoolPath()).thenReturn(spoolDirectory.getAbsolutePath());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        for (final File file : new File(spoolDirectory, "_tmp").listFiles()) {
+            file.delete();
+        }
+        for (final File file : spoolDirectory.listFiles()) {
+            file.delete();
+        }
+        spoolDirectory.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testSequentialWritesAreSynced() throws Exception
+    {
+        final SlowMappedSpoolEventWriter spoolWriter = new SlowMappedSpoolEventWriter(diskWriter, 0);
+        final GroupCommitEventWriter writer = new GroupCommitEventWriter(spoolWriter, spoolWriter);
+
+        for (int i = 0; i < 5; i++) {
+            writer.write(new StubEvent());
+            Assert.assertEquals(spoolWriter.syncs.get(), i + 1);
+        }
+        Assert.assertEquals(writer.getSyncs(), 5);
+        Assert.assertEquals(writer.getEventsAppended(), 5);
+
+        // A batch needs a single sync
+        long lastSequence = 0;
+        for (int i = 0; i < 10; i++) {
+            lastSequence = writer.append(new StubEvent());
+        }
+        writer.awaitDurable(lastSequence);
+        Assert.assertEquals(writer.getSyncs(), 6);
+
+        writer.close();
+        Assert.assertEquals(getSpoolFilesLength(), 15 * RECORD_SIZE);
+    }
+
+    @Test(groups = "slow")
+    public void testConcurrentWritersShareSyncs() throws Exception
+    {
+        final SlowMappedSpoolEventWriter spoolWriter = new SlowMappedSpoolEventWriter(diskWriter, 5);
+        final GroupCommitEventWriter writer = new GroupCommitEventWriter(spoolWriter, spoolWriter);
+
+        final int threads = 8;
+        final int eventsPerThread = 50;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger failures = new AtomicInteger(0);
+        final List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            writers.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        for (int j = 0; j < eventsPerThread; j++) {
+                            writer.write(new StubEvent());
+                        }
+                    }
+                    catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+        for (final Thread thread : writers) {
+            thread.start();
+        }
+        done.await();
+
+        Assert.assertEquals(failures.get(), 0);
+        Assert.assertEquals(writer.getEventsAppended(), threads * eventsPerThread);
+        // Each sync acknowledged several writers
+        Assert.assertTrue(writer.getSyncs() < threads * eventsPerThread / 2, "Too many syncs: " + writer.getSyncs());
+
+        writer.commit();
+        Assert.assertEquals(getSpoolFilesLength(), threads * eventsPerThread * RECORD_SIZE);
+    }
+
+    @Test(groups = "fast")
+    public void testFailedSync() throws Exception
+    {
+        final SlowMappedSpoolEventWriter spoolWriter = new SlowMappedSpoolEventWriter(diskWriter, 0);
+        final GroupCommitEventWriter writer = new GroupCommitEventWriter(spoolWriter, spoolWriter);
+
+        spoolWriter.failNextSync = true;
+        try {
+            writer.write(new StubEvent());
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals(writer.getSyncs(), 0);
+        }
+
+        // Later events are synced again
+        writer.write(new StubEvent());
+        Assert.assertEquals(writer.getSyncs(), 1);
+        writer.rollback();
+    }
+
+    @Test(groups = "fast")
+    public void testFailedSyncLosesTheBatch() throws Exception
+    {
+        final SlowMappedSpoolEventWriter spoolWriter = new SlowMappedSpoolEventWriter(diskWriter, 0);
+        final GroupCommitEventWriter writer = new GroupCommitEventWriter(spoolWriter, spoolWriter);
+
+        spoolWriter.failNextSyncWithIOException = true;
+        try {
+            writer.writeAll(Arrays.asList(new StubEvent(), new StubEvent(), new StubEvent()));
+            Assert.fail();
+        }
+        catch (BatchWriteException e) {
+            // None of the events of the batch is known to be on disk
+            Assert.assertEquals(e.getEventsReceived(), 3);
+            Assert.assertEquals(e.getEventsLost(), 3);
+        }
+        writer.rollback();
+    }
+
+    @Test(groups = "fast")
+    public void testSyncFlushesTheSerializer() throws Exception
+    {
+        final BufferingSerializer serializer = new BufferingSerializer();
+        final MappedSpoolEventWriter spoolWriter = new MappedSpoolEventWriter(diskWriter, serializer, new NoCompressionCodec(),
+                                                                              SyncType.SYNC, Integer.MAX_VALUE, 1024 * 1024);
+        final GroupCommitEventWriter writer = new GroupCommitEventWriter(spoolWriter, spoolWriter);
+
+        writer.write(new StubEvent());
+        Assert.assertEquals(serializer.buffer.size(), 0);
+        Assert.assertEquals(serializer.flushes, 1);
+
+        writer.writeAll(Arrays.asList(new StubEvent(), new StubEvent()));
+        Assert.assertEquals(serializer.buffer.size(), 0);
+        Assert.assertEquals(serializer.flushes, 2);
+
+        writer.commit();
+        Assert.assertEquals(getSpoolFilesLength(), 3 * RECORD_SIZE);
+    }
+
+    private long getSpoolFilesLength()
+    {
+        long length = 0;
+        for (final File file : spoolDirectory.listFiles()) {
+            if (file.isFile()) {
+                length += file.length();
+            }
+        }
+
+        return length;
+    }
+
+    private static final class SlowMappedSpoolEventWriter extends MappedSpoolEventWriter
+    {
+        private final long syncTimeInMillis;
+        private final AtomicInteger syncs = new AtomicInteger(0);
+        private volatile boolean failNextSync = false;
+        private volatile boolean failNextSyncWithIOException = false;
+
+        private SlowMappedSpoolEventWriter(final EventWriter delegate, final long syncTimeInMillis)
+        {
+            super(delegate, new RecordSerializer(), new NoCompressionCodec(), SyncType.SYNC, Integer.MAX_VALUE, 1024 * 1024);
+            this.syncTimeInMillis = syncTimeInMillis;
+        }
+
+        @Override
+        public void sync() throws IOException
+        {
+            if (failNextSync) {
+                failNextSync = false;
+                throw new IllegalStateException("Disk full");
+            }
+            if (failNextSyncWithIOException) {
+                failNextSyncWithIOException = false;
+                throw new IOException("Disk full");
+            }
+
+            super.sync();
+            syncs.incrementAndGet();
+            if (syncTimeInMillis > 0) {
+                try {
+                    Thread.sleep(syncTimeInMillis);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private static final class RecordSerializer implements EventSerializer
+    {
+        private OutputStream out;
+
+        @Override
+        public void open(final OutputStream out) throws IOException
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void serialize(final Event event) throws IOException
+        {
+            out.write(new byte[RECORD_SIZE]);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    // Holds events until flushed, like a serializer with an internal buffer
+    private static final class BufferingSerializer implements EventSerializer, Flushable
+    {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private OutputStream out;
+        private int flushes = 0;
+
+        @Override
+        public void open(final OutputStream out) throws IOException
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void serialize(final Event event) throws IOException
+        {
+            buffer.write(new byte[RECORD_SIZE]);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            buffer.writeTo(out);
+            buffer.reset();
+            flushes++;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            flush();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public class TestMappedSpoolEventWriter
+{
+    private static final byte[] RECORD = "0123456789".getBytes();
+
+    private File spoolDirectory;
+    private EventWriter delegate;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestMappedSpoolEventWriter", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+
+        delegate = Mockito.mock(EventWriter.class);
+        Mockito.when(delegate.getSpoolPath()).thenReturn(spoolDirectory.getAbsolutePath());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        deleteRecursively(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testCommitPromotesTruncatedFile() throws Exception
+    {
+        // Records span segments
+        final MappedSpoolEventWriter writer = new MappedSpoolEventWriter(delegate, new RecordSerializer(), new NoCompressionCodec(), SyncType.SYNC, 3, 16);
+        for (int i = 0; i < 10; i++) {
+            writer.write(new StubEvent());
+        }
+        Assert.assertEquals(getSpoolFiles().length, 0);
+        Assert.assertEquals(new File(spoolDirectory, "_tmp").listFiles().length, 1);
+
+        writer.commit();
+        Assert.assertEquals(new File(spoolDirectory, "_tmp").listFiles().length, 0);
+        final File[] spoolFiles = getSpoolFiles();
+        Assert.assertEquals(spoolFiles.length, 1);
+        Assert.assertEquals(spoolFiles[0].length(), 10 * RECORD.length);
+        Assert.assertEquals(readFile(spoolFiles[0]), repeat(10));
+        Assert.assertEquals(writer.getSegmentsMapped(), 7);
+        Assert.assertEquals(writer.getFilesPromoted(), 1);
+
+        // Nothing written since
+        writer.commit();
+        Assert.assertEquals(getSpoolFiles().length, 1);
+
+        writer.flush();
+        Mockito.verify(delegate, Mockito.times(1)).flush();
+    }
+
+    @Test(groups = "fast")
+    public void testRollbackDeletesFile() throws Exception
+    {
+        final MappedSpoolEventWriter writer = new MappedSpoolEventWriter(delegate, new RecordSerializer(), new NoCompressionCodec(), SyncType.NONE, 50, 1024);
+        writer.write(new StubEvent());
+        writer.rollback();
+
+        Assert.assertEquals(new File(spoolDirectory, "_tmp").listFiles().length, 0);
+        Assert.assertEquals(getSpoolFiles().length, 0);
+
+        // The next file starts from scratch
+        writer.write(new StubEvent());
+        writer.close();
+        Assert.assertEquals(readFile(getSpoolFiles()[0]), repeat(1));
+        Mockito.verify(delegate, Mockito.times(1)).close();
+    }
+
+    private File[] getSpoolFiles()
+    {
+        return spoolDirectory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(final File file)
+            {
+                return file.isFile();
+            }
+        });
+    }
+
+    private byte[] readFile(final File file) throws IOException
+    {
+        final byte[] bytes = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += in.read(bytes, offset, bytes.length - offset);
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        return bytes;
+    }
+
+    private byte[] repeat(final int times)
+    {
+        final byte[] bytes = new byte[times * RECORD.length];
+        for (int i = 0; i < times; i++) {
+            System.arraycopy(RECORD, 0, bytes, i * RECORD.length, RECORD.length);
+        }
+
+        return bytes;
+    }
+
+    private void deleteRecursively(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes a fixed record per event
+     */
+    private static final class RecordSerializer implements EventSerializer
+    {
+        private OutputStream out;
+
+        @Override
+        public void open(final OutputStream out) throws IOException
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void serialize(final Event event) throws IOException
+        {
+            out.write(RECORD);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+}
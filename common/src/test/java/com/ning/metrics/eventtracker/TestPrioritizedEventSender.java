@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
+import com.ning.metrics.serialization.writer.EventHandler;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+public class TestPrioritizedEventSender
+{
+    private RecordingEventSender delegate;
+    private PrioritizedEventSender sender;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        delegate = new RecordingEventSender();
+        sender = new PrioritizedEventSender(delegate, Arrays.asList(
+            new SpoolQueue("billing", Collections.singleton("Billing"), 10, 1, 60, 10000, 60),
+            new SpoolQueue(SpoolQueue.DEFAULT_QUEUE_NAME, Collections.<String>emptySet(), 0, 0, 60, 10000, 60),
+            new SpoolQueue("impressions", Collections.singleton("PageImpression"), 0, 2, 60, 10000, 60)));
+    }
+
+    @Test(groups = "fast")
+    public void testSenderBudget() throws Exception
+    {
+        final EventSender impressions = sender.forQueue("impressions");
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+
+        impressions.send(new File("a"), handler);
+        impressions.send(new File("b"), handler);
+        // Over budget: left for a later flush, without failing it
+        impressions.send(new File("c"), handler);
+        Assert.assertEquals(delegate.files.size(), 2);
+        Mockito.verify(handler, Mockito.never()).onError(Mockito.<Throwable>any(), Mockito.eq(new File("c")));
+
+        // A file flushed again while in flight isn't failed
+        impressions.send(new File("a"), handler);
+        Assert.assertEquals(delegate.files.size(), 3);
+
+        // Once acknowledged, its slot is free again
+        delegate.handlers.get(0).onSuccess(new File("a"));
+        Mockito.verify(handler, Mockito.times(1)).onSuccess(new File("a"));
+        impressions.send(new File("c"), handler);
+        Assert.assertEquals(delegate.files.size(), 4);
+        Assert.assertEquals(sender.getFilesInFlightPerQueue(), "billing=0, default=0, impressions=2");
+        Assert.assertEquals(sender.getSendsDeferredPerQueue(), "billing=0, default=0, impressions=1");
+    }
+
+    @Test(groups = "fast")
+    public void testHigherPriorityQueuesDrainFirst() throws Exception
+    {
+        final EventSender billing = sender.forQueue("billing");
+        final EventSender defaultQueue = sender.forQueue(SpoolQueue.DEFAULT_QUEUE_NAME);
+        final CallbackHandler billingHandler = Mockito.mock(CallbackHandler.class);
+        final CallbackHandler defaultHandler = Mockito.mock(CallbackHandler.class);
+
+        // Billing uses its whole budget: lower-priority queues wait
+        billing.send(new File("billing-1"), billingHandler);
+        defaultQueue.send(new File("default-1"), defaultHandler);
+        Assert.assertEquals(delegate.files, Arrays.asList(new File("billing-1")));
+        Mockito.verifyZeroInteractions(defaultHandler);
+
+        // Failed sends free the budget as well
+        delegate.handlers.get(0).onError(new IOException("collector down"), new File("billing-1"));
+        Mockito.verify(billingHandler, Mockito.times(1)).onError(Mockito.<Throwable>any(), Mockito.eq(new File("billing-1")));
+        defaultQueue.send(new File("default-1"), defaultHandler);
+        Assert.assertEquals(delegate.files, Arrays.asList(new File("billing-1"), new File("default-1")));
+    }
+
+    @Test(groups = "fast")
+    public void testDeferredFilesStayInTheSpool() throws Exception
+    {
+        final File spoolDirectory = File.createTempFile("TestPrioritizedEventSender", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+
+        final EventSender billing = sender.forQueue("billing");
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        // Don't wait for the periodic flush on close
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        final DiskSpoolEventWriter writer = new DiskSpoolEventWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                billing.send(file, handler);
+            }
+        }, spoolDirectory.getAbsolutePath(), true, 3600, executor, SyncType.NONE, 1,
+            new NoCompressionCodec(), new ObjectOutputEventSerializer());
+        try {
+            for (int i = 0; i < 2; i++) {
+                writer.write(new StubEvent());
+                writer.commit();
+            }
+
+            // Billing sends one file at a time: the other one is deferred
+            writer.flush();
+            Assert.assertEquals(delegate.files.size(), 1);
+            Assert.assertEquals(sender.getSendsDeferredPerQueue(), "billing=1, default=0, impressions=0");
+            Assert.assertEquals(countFiles(new File(spoolDirectory, "_quarantine")), 0);
+            Assert.assertEquals(countFiles(spoolDirectory), 1);
+
+            // Sent by the next flush, once the first one is acknowledged
+            delegate.handlers.get(0).onSuccess(delegate.files.get(0));
+            writer.flush();
+            Assert.assertEquals(delegate.files.size(), 2);
+            Assert.assertFalse(delegate.files.get(0).equals(delegate.files.get(1)));
+            Assert.assertEquals(countFiles(new File(spoolDirectory, "_quarantine")), 0);
+        }
+        finally {
+            writer.close();
+            deleteRecursively(spoolDirectory);
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownQueue() throws Exception
+    {
+        sender.forQueue("unknown");
+    }
+
+    private static int countFiles(final File directory)
+    {
+        int count = 0;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                if (file.isFile()) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void deleteRecursively(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class RecordingEventSender implements EventSender
+    {
+        private final List<File> files = new ArrayList<File>();
+        private final List<CallbackHandler> handlers = new ArrayList<CallbackHandler>();
+
+        @Override
+        public void send(final File file, final CallbackHandler handler)
+        {
+            files.add(file);
+            handlers.add(handler);
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
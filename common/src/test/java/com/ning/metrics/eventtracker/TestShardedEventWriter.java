@@ -0,0 +1,169 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TestShardedEventWriter
+{
+    private static final int SHARDS = 4;
+
+    private List<EventWriter> shards;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        shards = new ArrayList<EventWriter>();
+        for (int i = 0; i < SHARDS; i++) {
+            shards.add(Mockito.mock(EventWriter.class));
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testThreadRouting() throws Exception
+    {
+        final ShardedEventWriter writer = new ShardedEventWriter(shards, ShardRouting.THREAD, "/tmp");
+
+        // A thread sticks to its shard
+        final Event event = new StubEvent();
+        final int shard = writer.getPartition(event);
+        for (int i = 0; i < 10; i++) {
+            writer.write(event);
+        }
+        Mockito.verify(shards.get(shard), Mockito.times(10)).write(event);
+        Assert.assertEquals(writer.getEventsWrittenPerShard()[shard], 10);
+
+        // Threads are spread over all shards
+        final Set<Integer> threadShards = new HashSet<Integer>();
+        threadShards.add(shard);
+        for (int i = 0; i < SHARDS - 1; i++) {
+            final Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (threadShards) {
+                        threadShards.add(writer.getPartition(event));
+                    }
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        Assert.assertEquals(threadShards.size(), SHARDS);
+    }
+
+    @Test(groups = "fast")
+    public void testEventNameRouting() throws Exception
+    {
+        final ShardedEventWriter writer = new ShardedEventWriter(shards, ShardRouting.EVENT_NAME, "/tmp");
+
+        final Set<Integer> usedShards = new HashSet<Integer>();
+        for (int i = 0; i < 100; i++) {
+            final Event event = createEvent("event-" + i);
+            final int shard = writer.getPartition(event);
+            Assert.assertEquals(writer.getPartition(createEvent("event-" + i)), shard);
+            usedShards.add(shard);
+
+            writer.write(event);
+            Mockito.verify(shards.get(shard), Mockito.times(1)).write(event);
+        }
+        Assert.assertEquals(usedShards.size(), SHARDS);
+
+        long total = 0;
+        for (final long count : writer.getEventsWrittenPerShard()) {
+            total += count;
+        }
+        Assert.assertEquals(total, 100);
+    }
+
+    @Test(groups = "fast")
+    public void testWriteFailure() throws Exception
+    {
+        final ShardedEventWriter writer = new ShardedEventWriter(shards, ShardRouting.EVENT_NAME, "/tmp");
+        final Event event = createEvent("failing");
+        final int shard = writer.getPartition(event);
+        Mockito.doThrow(new IOException("disk full")).when(shards.get(shard)).write(event);
+
+        try {
+            writer.write(event);
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals(e.getMessage(), "disk full");
+        }
+        Assert.assertEquals(writer.getEventsWrittenPerShard()[shard], 0);
+        Assert.assertEquals(writer.getWriteFailuresPerShard()[shard], 1);
+    }
+
+    @Test(groups = "fast")
+    public void testOperationsApplyToAllShards() throws Exception
+    {
+        final ShardedEventWriter writer = new ShardedEventWriter(shards, ShardRouting.THREAD, "/tmp");
+        Assert.assertEquals(writer.getShardCount(), SHARDS);
+        Assert.assertEquals(writer.getSpoolPath(), "/tmp");
+
+        // A failing shard doesn't prevent the others from committing
+        final IOException failure = new IOException("commit failed");
+        Mockito.doThrow(failure).when(shards.get(1)).commit();
+        try {
+            writer.commit();
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertSame(e, failure);
+        }
+
+        writer.forceCommit();
+        writer.flush();
+        writer.rollback();
+        writer.close();
+        for (final EventWriter shard : shards) {
+            Mockito.verify(shard, Mockito.times(1)).commit();
+            Mockito.verify(shard, Mockito.times(1)).forceCommit();
+            Mockito.verify(shard, Mockito.times(1)).flush();
+            Mockito.verify(shard, Mockito.times(1)).rollback();
+            Mockito.verify(shard, Mockito.times(1)).close();
+        }
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
+    public void testNoShards() throws Exception
+    {
+        new ShardedEventWriter(Arrays.<EventWriter>asList(), ShardRouting.THREAD, "/tmp");
+    }
+
+    private Event createEvent(final String name)
+    {
+        final Event event = Mockito.mock(Event.class);
+        Mockito.when(event.getName()).thenReturn(name);
+        return event;
+    }
+}
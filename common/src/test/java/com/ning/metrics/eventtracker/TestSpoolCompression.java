@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class TestSpoolCompression
+{
+    private static final byte[] PAYLOAD = "{ \"eventName\":\"Hello\", \"payload\": { \"dontcare\": \"World\" } }\n".getBytes();
+
+    @Test(groups = "fast")
+    public void testNone() throws Exception
+    {
+        Assert.assertNull(SpoolCompression.NONE.getContentEncoding());
+        Assert.assertEquals(compress(SpoolCompression.NONE, 1), createPayload());
+    }
+
+    @Test(groups = "fast")
+    public void testGzip() throws Exception
+    {
+        Assert.assertEquals(SpoolCompression.GZIP.getContentEncoding(), "gzip");
+        for (final int level : new int[]{1, 9}) {
+            final byte[] compressed = compress(SpoolCompression.GZIP, level);
+            Assert.assertTrue(compressed.length < createPayload().length);
+            Assert.assertEquals(decompress(new GZIPInputStream(new ByteArrayInputStream(compressed))), createPayload());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDeflate() throws Exception
+    {
+        Assert.assertEquals(SpoolCompression.DEFLATE.getContentEncoding(), "deflate");
+        for (final int level : new int[]{1, 9}) {
+            final byte[] compressed = compress(SpoolCompression.DEFLATE, level);
+            Assert.assertTrue(compressed.length < createPayload().length);
+            Assert.assertEquals(decompress(new InflaterInputStream(new ByteArrayInputStream(compressed))), createPayload());
+        }
+    }
+
+    private byte[] compress(final SpoolCompression compression, final int level) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OutputStream stream = StreamCompressionCodec.wrap(compression.createCodec(level), out);
+        stream.write(createPayload());
+        stream.close();
+
+        return out.toByteArray();
+    }
+
+    private byte[] decompress(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+
+        return out.toByteArray();
+    }
+
+    private byte[] createPayload()
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            out.write(PAYLOAD, 0, PAYLOAD.length);
+        }
+
+        return out.toByteArray();
+    }
+}
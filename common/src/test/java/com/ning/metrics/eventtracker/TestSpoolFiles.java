@@ -0,0 +1,104 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class TestSpoolFiles
+{
+    private File spoolDirectory;
+    private File lockDirectory;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestSpoolFiles", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        lockDirectory = new File(spoolDirectory, "_lock");
+        Assert.assertTrue(lockDirectory.mkdirs());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        delete(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testRequeue() throws Exception
+    {
+        final File file = new File(lockDirectory, "spool-file.bin");
+        Assert.assertTrue(file.createNewFile());
+
+        Assert.assertTrue(SpoolFiles.requeue(file));
+        Assert.assertFalse(file.exists());
+        Assert.assertTrue(new File(spoolDirectory, "spool-file.bin").isFile());
+    }
+
+    @Test(groups = "fast")
+    public void testOffsetsAreForgottenOnCompletion() throws Exception
+    {
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+        final CallbackHandler forgettingHandler = SpoolFiles.forgetOnCompletion(handler);
+
+        // Same file whichever the area
+        final File sentFile = new File(lockDirectory, "sent-file.bin");
+        Assert.assertEquals(SpoolFiles.getOffsetsFile(sentFile), SpoolFiles.getOffsetsFile(new File(spoolDirectory, "sent-file.bin")));
+
+        final File sentOffsets = createOffsetsFile(sentFile);
+        forgettingHandler.onSuccess(sentFile);
+        Mockito.verify(handler).onSuccess(sentFile);
+        Assert.assertFalse(sentOffsets.exists());
+
+        final File failedFile = new File(lockDirectory, "failed-file.bin");
+        final File failedOffsets = createOffsetsFile(failedFile);
+        final Throwable error = new IOException("Collector down");
+        forgettingHandler.onError(error, failedFile);
+        Mockito.verify(handler).onError(error, failedFile);
+        Assert.assertFalse(failedOffsets.exists());
+
+        // Nothing recorded
+        forgettingHandler.onSuccess(new File(lockDirectory, "other-file.bin"));
+    }
+
+    private File createOffsetsFile(final File file) throws IOException
+    {
+        final File offsetsFile = SpoolFiles.getOffsetsFile(file);
+        offsetsFile.getParentFile().mkdirs();
+        Assert.assertTrue(offsetsFile.createNewFile());
+        return offsetsFile;
+    }
+
+    private static void delete(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
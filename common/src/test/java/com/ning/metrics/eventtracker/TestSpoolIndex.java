@@ -0,0 +1,267 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.EventWriter;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+public class TestSpoolIndex
+{
+    private static final int RECORD_SIZE = 8;
+
+    private File spoolDirectory;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestSpoolIndex", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        delete(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testReload() throws Exception
+    {
+        createFile(spoolDirectory, "a.bin", 10);
+        createFile(spoolDirectory, "b.bin", 20);
+        createFile(new File(spoolDirectory, "_quarantine"), "c.bin", 30);
+
+        final SpoolIndex index = new SpoolIndex(spoolDirectory);
+        index.onPromoted("a.bin", 1, 10);
+        index.onPromoted("b.bin", 2, 20);
+        index.onPromoted("c.bin", 3, 30);
+        index.onPromoted("d.bin", 4, 40);
+        index.onRemoved("b.bin");
+        index.close();
+
+        // d.bin was deleted behind the index's back
+        final Map<String, SpoolIndex.Entry> spoolFiles = new SpoolIndex(spoolDirectory).getSpoolFiles();
+        Assert.assertEquals(spoolFiles.size(), 2);
+        Assert.assertEquals(spoolFiles.get("a.bin").getEvents(), 1);
+        Assert.assertEquals(spoolFiles.get("a.bin").getBytes(), 10);
+        Assert.assertEquals(spoolFiles.get("c.bin").getEvents(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testTruncatedRecordIsIgnored() throws Exception
+    {
+        createFile(spoolDirectory, "a.bin", 10);
+        createFile(spoolDirectory, "b.bin", 20);
+
+        final SpoolIndex index = new SpoolIndex(spoolDirectory);
+        index.onPromoted("a.bin", 1, 10);
+        index.close();
+
+        // Crash while appending the next record
+        final OutputStream out = new FileOutputStream(new File(new File(spoolDirectory, "_index"), "spool.idx"), true);
+        out.write("P\tb.bin\t2\t".getBytes("UTF-8"));
+        out.close();
+
+        final SpoolIndex reloaded = new SpoolIndex(spoolDirectory);
+        Assert.assertEquals(reloaded.getSpoolFiles().keySet().toString(), "[a.bin]");
+
+        // The index was compacted, and can be appended to
+        reloaded.onPromoted("b.bin", 2, 20);
+        reloaded.close();
+        Assert.assertEquals(new SpoolIndex(spoolDirectory).getSpoolFiles().keySet().toString(), "[a.bin, b.bin]");
+    }
+
+    @Test(groups = "fast")
+    public void testRecoverTmpFiles() throws Exception
+    {
+        final File tmpDirectory = new File(spoolDirectory, "_tmp");
+        // Written past its last checkpoint, with a preallocated tail
+        createFile(tmpDirectory, "partial.bin", 100);
+        // Opened, nothing written
+        createFile(tmpDirectory, "empty.bin", 100);
+        // Shorter than its checkpoint
+        createFile(tmpDirectory, "short.bin", 10);
+
+        final SpoolIndex index = new SpoolIndex(spoolDirectory);
+        index.onTmpCheckpoint("partial.bin", 3, 24);
+        index.onTmpCheckpoint("empty.bin", 0, 0);
+        index.onTmpCheckpoint("short.bin", 2, 16);
+        index.close();
+
+        final SpoolIndex reloaded = new SpoolIndex(spoolDirectory);
+        Assert.assertEquals(reloaded.recoverTmpFiles(), 1);
+
+        Assert.assertEquals(new File(spoolDirectory, "partial.bin").length(), 24);
+        Assert.assertFalse(new File(tmpDirectory, "partial.bin").exists());
+        Assert.assertFalse(new File(tmpDirectory, "empty.bin").exists());
+        // Left for the DiskSpoolEventWriter to quarantine
+        Assert.assertTrue(new File(tmpDirectory, "short.bin").exists());
+
+        Assert.assertEquals(reloaded.getSpoolFiles().size(), 1);
+        Assert.assertEquals(reloaded.getSpoolFiles().get("partial.bin").getEvents(), 3);
+        reloaded.close();
+
+        // Checkpoints aren't replayed
+        final SpoolIndex again = new SpoolIndex(spoolDirectory);
+        Assert.assertEquals(again.recoverTmpFiles(), 0);
+        Assert.assertEquals(again.getSpoolFiles().size(), 1);
+        again.close();
+    }
+
+    @Test(groups = "fast")
+    public void testMappedWriterMaintainsIndex() throws Exception
+    {
+        final EventWriter diskWriter = Mockito.mock(EventWriter.class);
+        Mockito.when(diskWriter.getSpoolPath()).thenReturn(spoolDirectory.getAbsolutePath());
+
+        final SpoolIndex index = new SpoolIndex(spoolDirectory);
+        final MappedSpoolEventWriter writer = new MappedSpoolEventWriter(diskWriter, new RecordSerializer(), new NoCompressionCodec(),
+            SyncType.NONE, 2, 1024, index);
+
+        for (int i = 0; i < 5; i++) {
+            writer.write(new StubEvent());
+        }
+        writer.commit();
+        Assert.assertEquals(index.getSpoolFiles().size(), 1);
+        Assert.assertEquals(index.getSpoolFiles().values().iterator().next().getEvents(), 5);
+        Assert.assertEquals(index.getSpoolFiles().values().iterator().next().getBytes(), 5 * RECORD_SIZE);
+
+        // Crash in the middle of a file: the checkpoint after 2 events is recovered
+        for (int i = 0; i < 3; i++) {
+            writer.write(new StubEvent());
+        }
+        index.close();
+
+        final SpoolIndex reloaded = new SpoolIndex(spoolDirectory);
+        Assert.assertEquals(reloaded.recoverTmpFiles(), 1);
+        Assert.assertEquals(reloaded.getSpoolFiles().size(), 2);
+
+        long events = 0;
+        for (final Map.Entry<String, SpoolIndex.Entry> entry : reloaded.getSpoolFiles().entrySet()) {
+            Assert.assertEquals(new File(spoolDirectory, entry.getKey()).length(), entry.getValue().getBytes());
+            events += entry.getValue().getEvents();
+        }
+        Assert.assertEquals(events, 7);
+        reloaded.close();
+    }
+
+    @Test(groups = "fast")
+    public void testRecoveredFileIsReadable() throws Exception
+    {
+        final EventWriter diskWriter = Mockito.mock(EventWriter.class);
+        Mockito.when(diskWriter.getSpoolPath()).thenReturn(spoolDirectory.getAbsolutePath());
+
+        final SpoolIndex index = new SpoolIndex(spoolDirectory);
+        final MappedSpoolEventWriter writer = new MappedSpoolEventWriter(diskWriter, new ObjectOutputEventSerializer(),
+            new NoCompressionCodec(), SyncType.SYNC, 2, 1024, index);
+
+        // Crash after 5 events: the checkpoint after 4 events is recovered
+        for (int i = 0; i < 5; i++) {
+            writer.write(new StubEvent());
+        }
+        index.close();
+
+        final SpoolIndex reloaded = new SpoolIndex(spoolDirectory);
+        Assert.assertEquals(reloaded.recoverTmpFiles(), 1);
+        final Map.Entry<String, SpoolIndex.Entry> entry = reloaded.getSpoolFiles().entrySet().iterator().next();
+        Assert.assertEquals(entry.getValue().getEvents(), 4);
+        reloaded.close();
+
+        // The file ends on an event boundary
+        final ObjectInputStream in = new ObjectInputStream(new FileInputStream(new File(spoolDirectory, entry.getKey())));
+        int events = 0;
+        try {
+            while (true) {
+                Assert.assertEquals(in.readByte(), 1);
+                Assert.assertTrue(in.readObject() instanceof StubEvent);
+                events++;
+            }
+        }
+        catch (EOFException e) {
+            Assert.assertEquals(events, 4);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static void createFile(final File directory, final String name, final int length) throws IOException
+    {
+        Assert.assertTrue(directory.isDirectory() || directory.mkdirs());
+        final OutputStream out = new FileOutputStream(new File(directory, name));
+        try {
+            out.write(new byte[length]);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void delete(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static final class RecordSerializer implements EventSerializer
+    {
+        private OutputStream out;
+
+        @Override
+        public void open(final OutputStream out) throws IOException
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void serialize(final Event event) throws IOException
+        {
+            out.write(new byte[RECORD_SIZE]);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.writer.EventWriter;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.skife.config.ConfigurationObjectFactory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+public class TestSpoolQueue
+{
+    @Test(groups = "fast")
+    public void testNoQueues() throws Exception
+    {
+        Assert.assertTrue(SpoolQueue.parse(createConfig("")).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testParse() throws Exception
+    {
+        final EventTrackerConfig config = createConfig("billing:Billing, Refund:priority=10:max-senders=4:flush-interval-seconds=5;" +
+            " impressions:PageImpression:priority=-10:max-uncommitted-write-count=100000:max-uncommitted-period-seconds=300");
+        final List<SpoolQueue> queues = SpoolQueue.parse(config);
+        Assert.assertEquals(queues.size(), 2);
+
+        final SpoolQueue billing = queues.get(0);
+        Assert.assertEquals(billing.getName(), "billing");
+        Assert.assertEquals(billing.getEventNames(), new HashSet<String>(Arrays.asList("Billing", "Refund")));
+        Assert.assertEquals(billing.getPriority(), 10);
+        Assert.assertEquals(billing.getMaxSenders(), 4);
+        Assert.assertEquals(billing.getFlushIntervalInSeconds(), 5);
+        Assert.assertEquals(billing.getMaxUncommittedWriteCount(), config.getMaxUncommittedWriteCount());
+        Assert.assertEquals(billing.getMaxUncommittedPeriodInSeconds(), config.getMaxUncommittedPeriodInSeconds());
+        Assert.assertEquals(billing.getSpoolDirectoryName("/var/spool"), new File("/var/spool", "queue-billing").getPath());
+
+        final SpoolQueue impressions = queues.get(1);
+        Assert.assertEquals(impressions.getName(), "impressions");
+        Assert.assertEquals(impressions.getPriority(), -10);
+        Assert.assertEquals(impressions.getMaxSenders(), 0);
+        Assert.assertEquals(impressions.getFlushIntervalInSeconds(), config.getFlushIntervalInSeconds());
+        Assert.assertEquals(impressions.getMaxUncommittedWriteCount(), 100000);
+        Assert.assertEquals(impressions.getMaxUncommittedPeriodInSeconds(), 300);
+
+        final SpoolQueue defaultQueue = SpoolQueue.createDefault(config);
+        Assert.assertEquals(defaultQueue.getPriority(), 0);
+        Assert.assertEquals(defaultQueue.getSpoolDirectoryName("/var/spool"), "/var/spool");
+    }
+
+    @Test(groups = "fast")
+    public void testInvalidQueues() throws Exception
+    {
+        for (final String spec : Arrays.asList("billing", "billing:", "bil/ling:Billing", "billing:Billing:priority",
+            "billing:Billing:priority=high", "billing:Billing:unknown=1", "billing:Billing:max-senders=-1",
+            "billing:Billing;billing:Refund", "billing:Billing;refunds:Billing", "default:Billing")) {
+            try {
+                SpoolQueue.parse(createConfig(spec));
+                Assert.fail("Expected an invalid spool queue: " + spec);
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testRouting() throws Exception
+    {
+        final EventTrackerConfig config = createConfig("billing:Billing:priority=10;impressions:PageImpression:priority=-10");
+        final List<SpoolQueue> queues = SpoolQueue.parse(config);
+        final List<SpoolQueue> sortedQueues = Arrays.asList(queues.get(0), SpoolQueue.createDefault(config), queues.get(1));
+        final EventWriter billingWriter = Mockito.mock(EventWriter.class);
+        final EventWriter defaultWriter = Mockito.mock(EventWriter.class);
+        final EventWriter impressionsWriter = Mockito.mock(EventWriter.class);
+        final RoutingEventWriter writer = new RoutingEventWriter(sortedQueues, Arrays.asList(billingWriter, defaultWriter, impressionsWriter), "/tmp");
+
+        final Event billing = createEvent("Billing");
+        final Event impression = createEvent("PageImpression");
+        final Event other = createEvent("Click");
+        writer.write(billing);
+        writer.write(impression);
+        writer.write(other);
+        writer.write(createEvent(null));
+
+        Mockito.verify(billingWriter, Mockito.times(1)).write(billing);
+        Mockito.verify(impressionsWriter, Mockito.times(1)).write(impression);
+        Mockito.verify(defaultWriter, Mockito.times(1)).write(other);
+        Assert.assertEquals(writer.getQueueNames(), new String[]{"billing", "default", "impressions"});
+        Assert.assertEquals(writer.getEventsWrittenPerQueue(), new long[]{1, 2, 1});
+
+        // Flushes go by decreasing priority
+        writer.flush();
+        final InOrder inOrder = Mockito.inOrder(billingWriter, defaultWriter, impressionsWriter);
+        inOrder.verify(billingWriter).flush();
+        inOrder.verify(defaultWriter).flush();
+        inOrder.verify(impressionsWriter).flush();
+    }
+
+    private EventTrackerConfig createConfig(final String queues)
+    {
+        final Properties properties = new Properties();
+        properties.put("eventtracker.diskspool.queues", queues);
+        return new ConfigurationObjectFactory(properties).build(EventTrackerConfig.class);
+    }
+
+    private Event createEvent(final String name)
+    {
+        final Event event = Mockito.mock(Event.class);
+        Mockito.when(event.getName()).thenReturn(name);
+        return event;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.StubEvent;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
+import com.ning.metrics.serialization.writer.EventHandler;
+import com.ning.metrics.serialization.writer.NoCompressionCodec;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
+import com.ning.metrics.serialization.writer.SyncType;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestSpoolQuota
+{
+    private static final int EVENTS_PER_FILE = 10;
+
+    private File spoolDirectory;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        spoolDirectory = File.createTempFile("TestSpoolQuota", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        deleteRecursively(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledByDefault() throws Exception
+    {
+        Assert.assertFalse(new SpoolQuota(0, 0).isEnabled());
+        Assert.assertTrue(new SpoolQuota(1024, 0).isEnabled());
+        Assert.assertTrue(new SpoolQuota(0, 10).isEnabled());
+    }
+
+    @Test(groups = "fast")
+    public void testProlongedSenderOutage() throws Exception
+    {
+        final SpoolQuota quota = new SpoolQuota(0, 3);
+        final AtomicLong eventsLost = new AtomicLong(0);
+        quota.reportEvictionsTo(eventsLost);
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        // Don't wait for the periodic flush on close
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        final DiskSpoolEventWriter diskWriter = new DiskSpoolEventWriter(new EventHandler()
+        {
+            @Override
+            public void handle(final File file, final CallbackHandler handler)
+            {
+                // Collector down: the sender leaves the files in the spool
+                SpoolFiles.requeue(file);
+            }
+        }, spoolDirectory.getAbsolutePath(), true, 3600, executor, SyncType.NONE, 1,
+            new NoCompressionCodec(), new ObjectOutputEventSerializer());
+        final QuotaEventWriter writer = new QuotaEventWriter(diskWriter, quota);
+
+        // The collector is down for a long while: files pile up, but never more than the quota
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < EVENTS_PER_FILE; j++) {
+                writer.write(new StubEvent());
+            }
+            writer.commit();
+            writer.flush();
+
+            Assert.assertTrue(countSpoolFiles(spoolDirectory) <= 3);
+            Assert.assertEquals(quota.getFileCount(), Math.min(i + 1, 3));
+        }
+
+        // Oldest files were evicted first, their events exactly accounted for
+        Assert.assertEquals(quota.getFilesEvicted(), 5);
+        Assert.assertEquals(quota.getEventsEvicted(), 5 * EVENTS_PER_FILE);
+        Assert.assertEquals(quota.getFilesEvictedWithUnknownEventCount(), 0);
+        Assert.assertEquals(eventsLost.get(), 5 * EVENTS_PER_FILE);
+
+        writer.close();
+    }
+
+    @Test(groups = "fast")
+    public void testSizeQuota() throws Exception
+    {
+        final SpoolQuota quota = new SpoolQuota(250, 0);
+        quota.register(spoolDirectory);
+
+        final File first = createSpoolFile("first.bin", 100);
+        quota.onPromoted(spoolDirectory, "first.bin", 100, 1);
+        createSpoolFile("second.bin", 100);
+        quota.onPromoted(spoolDirectory, "second.bin", 100, 2);
+        Assert.assertEquals(quota.getSizeInBytes(), 200);
+        Assert.assertEquals(quota.getFilesEvicted(), 0);
+
+        createSpoolFile("third.bin", 100);
+        quota.onPromoted(spoolDirectory, "third.bin", 100, 3);
+        Assert.assertFalse(first.exists());
+        Assert.assertEquals(quota.getSizeInBytes(), 200);
+        Assert.assertEquals(quota.getFileCount(), 2);
+        Assert.assertEquals(quota.getEventsEvicted(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testFilesBeingSentAreNotEvicted() throws Exception
+    {
+        final SpoolQuota quota = new SpoolQuota(0, 1);
+        quota.register(spoolDirectory);
+
+        final File first = createSpoolFile("first.bin", 10);
+        quota.onPromoted(spoolDirectory, "first.bin", 10, 1);
+
+        // The writer hands the file over to the sender
+        final File lockDirectory = new File(spoolDirectory, "_lock");
+        Assert.assertTrue(lockDirectory.mkdir());
+        final File lockedFirst = new File(lockDirectory, first.getName());
+        Assert.assertTrue(first.renameTo(lockedFirst));
+
+        final File second = createSpoolFile("second.bin", 10);
+        quota.onPromoted(spoolDirectory, "second.bin", 10, 1);
+        Assert.assertTrue(lockedFirst.exists());
+        Assert.assertFalse(second.exists());
+        Assert.assertEquals(quota.getFilesEvicted(), 1);
+
+        // Once sent, the file doesn't count anymore
+        quota.wrap(new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+            }
+        }).onSuccess(lockedFirst);
+        Assert.assertEquals(quota.getFileCount(), 0);
+        Assert.assertEquals(quota.getSizeInBytes(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testQuarantinedFilesAreForgotten() throws Exception
+    {
+        final SpoolQuota quota = new SpoolQuota(0, 2);
+        quota.register(spoolDirectory);
+
+        final File first = createSpoolFile("first.bin", 10);
+        quota.onPromoted(spoolDirectory, "first.bin", 10, 1);
+        final File lockDirectory = new File(spoolDirectory, "_lock");
+        Assert.assertTrue(lockDirectory.mkdir());
+        final File lockedFirst = new File(lockDirectory, first.getName());
+        Assert.assertTrue(first.renameTo(lockedFirst));
+
+        // The sender fails the file, and the writer quarantines it
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+        quota.wrap(handler).onError(new IOException("Collector down"), lockedFirst);
+        Mockito.verify(handler, Mockito.times(1)).onError(Mockito.<Throwable>any(), Mockito.eq(lockedFirst));
+        Assert.assertEquals(quota.getFileCount(), 0);
+        Assert.assertEquals(quota.getSizeInBytes(), 0);
+
+        createSpoolFile("second.bin", 10);
+        quota.onPromoted(spoolDirectory, "second.bin", 10, 1);
+        createSpoolFile("third.bin", 10);
+        quota.onPromoted(spoolDirectory, "third.bin", 10, 1);
+        Assert.assertEquals(quota.getFilesEvicted(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testEvictedFilesAreForgotten() throws Exception
+    {
+        final SpoolQuota quota = new SpoolQuota(0, 1);
+        quota.register(spoolDirectory);
+
+        final File first = createSpoolFile("spool-file.bin", 10);
+        quota.onPromoted(spoolDirectory, "spool-file.bin", 10, 1);
+        // Partially acknowledged by the collector
+        final File offsetsFile = SpoolFiles.getOffsetsFile(first);
+        Assert.assertTrue(offsetsFile.getParentFile().mkdirs());
+        Assert.assertTrue(offsetsFile.createNewFile());
+
+        createSpoolFile("other-spool-file.bin", 10);
+        quota.onPromoted(spoolDirectory, "other-spool-file.bin", 10, 1);
+        Assert.assertFalse(first.exists());
+        // A later file with the same name starts afresh
+        Assert.assertFalse(offsetsFile.exists());
+    }
+
+    @Test(groups = "fast")
+    public void testLeftoverFiles() throws Exception
+    {
+        createSpoolFile("leftover-1.bin", 10);
+        createSpoolFile("leftover-2.bin", 10);
+
+        final SpoolQuota quota = new SpoolQuota(0, 1);
+        quota.register(spoolDirectory);
+
+        // The number of events of files from a previous run is unknown
+        Assert.assertEquals(quota.getFileCount(), 1);
+        Assert.assertEquals(quota.getFilesEvicted(), 1);
+        Assert.assertEquals(quota.getFilesEvictedWithUnknownEventCount(), 1);
+        Assert.assertEquals(quota.getEventsEvicted(), 0);
+    }
+
+    private File createSpoolFile(final String name, final int sizeInBytes) throws IOException
+    {
+        final File file = new File(spoolDirectory, name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[sizeInBytes]);
+        }
+        finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private int countSpoolFiles(final File directory)
+    {
+        int count = 0;
+        for (final File file : directory.listFiles()) {
+            if (file.isFile()) {
+                count++;
+            }
+            else if (!file.getName().equals("_tmp")) {
+                count += countSpoolFiles(file);
+            }
+        }
+        return count;
+    }
+
+    private void deleteRecursively(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.google.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Circuit breaker around the requests to the collector:
+ * <ul>
+ * <li>CLOSED: requests go through. Once the last windowSize requests are known, the breaker opens if at least
+ * failureRatePercent of them failed
+ * <li>OPEN: requests are rejected right away, without touching the network, for openDurationInMillis
+ * <li>HALF_OPEN: a single probe request goes through. The breaker closes if it succeeds, and opens again otherwise.
+ * A probe without an outcome after openDurationInMillis (e.g. deduplicated by the workers) is replaced by another one
+ * </ul>
+ * Connection errors and 5xx responses count as failures. Other responses prove the collector is up.
+ * <p/>
+ * The HttpSender moves the files of rejected requests back to the spool area, without notifying their handler: no
+ * backoff is applied to the flushes (adaptive flushes don't see a failure), they just don't reach the network.
+ */
+public class CollectorCircuitBreaker
+{
+    private static final Logger log = LoggerFactory.getLogger(CollectorCircuitBreaker.class);
+
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureRatePercent;
+    private final long openDurationInMillis;
+
+    // Guarded by this. Outcomes of the last requests, true for a failure
+    private final boolean[] window;
+    private int windowPosition = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+    private State state = State.CLOSED;
+    private long stateSinceMillis = System.currentTimeMillis();
+    private boolean probeInFlight = false;
+    private long probeSinceMillis = 0;
+
+    private final AtomicLong transitions = new AtomicLong(0);
+    private final AtomicLong timesOpened = new AtomicLong(0);
+    private final AtomicLong requestsRejected = new AtomicLong(0);
+    // Time spent open, before the current state
+    private final AtomicLong timeOpenInMillis = new AtomicLong(0);
+
+    @Inject
+    public CollectorCircuitBreaker(final EventTrackerConfig config)
+    {
+        this(config.getHttpCircuitBreakerFailureRatePercent(), config.getHttpCircuitBreakerWindowSize(),
+            config.getHttpCircuitBreakerOpenDuration().getMillis());
+    }
+
+    /**
+     * @param failureRatePercent   percentage of failed requests opening the breaker
+     * @param windowSize           number of recent requests the failure rate is computed on
+     * @param openDurationInMillis time to reject requests for, before probing the collector
+     */
+    CollectorCircuitBreaker(final int failureRatePercent, final int windowSize, final long openDurationInMillis)
+    {
+        if (failureRatePercent <= 0 || failureRatePercent > 100 || windowSize <= 0 || openDurationInMillis <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid circuit breaker settings: failure rate=%d%%, window=%d, open duration=%d ms",
+                failureRatePercent, windowSize, openDurationInMillis));
+        }
+
+        this.failureRatePercent = failureRatePercent;
+        this.window = new boolean[windowSize];
+        this.openDurationInMillis = openDurationInMillis;
+    }
+
+    /**
+     * Ask for permission to send a request. Once granted, the outcome must be reported via onSuccess or onFailure,
+     * or the permission given back via release.
+     *
+     * @return true if the request can go through
+     */
+    public synchronized boolean tryAcquire()
+    {
+        if (state == State.OPEN && System.currentTimeMillis() - stateSinceMillis >= openDurationInMillis) {
+            transitionTo(State.HALF_OPEN);
+        }
+
+        if (state == State.CLOSED) {
+            return true;
+        }
+        else if (state == State.HALF_OPEN && !isProbing()) {
+            log.info("Probing the collector");
+            probeInFlight = true;
+            probeSinceMillis = System.currentTimeMillis();
+            return true;
+        }
+
+        requestsRejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Check whether a request would be rejected, without taking a permission (e.g. before batching a file)
+     *
+     * @return true if the request is rejected, and counted as such
+     */
+    public synchronized boolean reject()
+    {
+        final boolean rejected;
+        if (state == State.OPEN) {
+            rejected = System.currentTimeMillis() - stateSinceMillis < openDurationInMillis;
+        }
+        else {
+            rejected = state == State.HALF_OPEN && isProbing();
+        }
+
+        if (rejected) {
+            requestsRejected.incrementAndGet();
+        }
+        return rejected;
+    }
+
+    public synchronized void onSuccess()
+    {
+        if (state == State.HALF_OPEN) {
+            transitionTo(State.CLOSED);
+        }
+        else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure()
+    {
+        if (state == State.HALF_OPEN) {
+            transitionTo(State.OPEN);
+        }
+        else if (state == State.CLOSED) {
+            record(true);
+            if (windowCount == window.length && windowFailures * 100 >= failureRatePercent * windowCount) {
+                transitionTo(State.OPEN);
+            }
+        }
+    }
+
+    /**
+     * Give back a permission without an outcome (e.g. the request couldn't be submitted)
+     */
+    public synchronized void release()
+    {
+        if (state == State.HALF_OPEN) {
+            probeInFlight = false;
+        }
+    }
+
+    private boolean isProbing()
+    {
+        return probeInFlight && System.currentTimeMillis() - probeSinceMillis < openDurationInMillis;
+    }
+
+    private void record(final boolean failure)
+    {
+        if (windowCount == window.length) {
+            if (window[windowPosition]) {
+                windowFailures--;
+            }
+        }
+        else {
+            windowCount++;
+        }
+
+        window[windowPosition] = failure;
+        if (failure) {
+            windowFailures++;
+        }
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    private void transitionTo(final State newState)
+    {
+        final long now = System.currentTimeMillis();
+        if (state == State.OPEN) {
+            timeOpenInMillis.addAndGet(now - stateSinceMillis);
+        }
+
+        if (newState == State.OPEN) {
+            timesOpened.incrementAndGet();
+            log.warn("Collector circuit breaker open ({} -> OPEN), rejecting requests for {} ms", state, openDurationInMillis);
+        }
+        else if (newState == State.CLOSED) {
+            log.info("Collector circuit breaker closed, after {} ms in {}", now - stateSinceMillis, state);
+        }
+
+        state = newState;
+        stateSinceMillis = now;
+        probeInFlight = false;
+        windowPosition = 0;
+        windowCount = 0;
+        windowFailures = 0;
+        transitions.incrementAndGet();
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    @Managed(description = "State of the collector circuit breaker: CLOSED, OPEN or HALF_OPEN")
+    public synchronized String getCurrentState()
+    {
+        return state.toString();
+    }
+
+    @Managed(description = "Time spent in the current state, in milliseconds")
+    public synchronized long getTimeInCurrentStateInMillis()
+    {
+        return System.currentTimeMillis() - stateSinceMillis;
+    }
+
+    @Managed(description = "Time spent open since startup, in milliseconds")
+    public synchronized long getTimeOpenInMillis()
+    {
+        return timeOpenInMillis.get() + (state == State.OPEN ? getTimeInCurrentStateInMillis() : 0);
+    }
+
+    @Managed(description = "Failure rate of the recent requests, in percent")
+    public synchronized int getFailureRatePercent()
+    {
+        return windowCount == 0 ? 0 : windowFailures * 100 / windowCount;
+    }
+
+    @Managed(description = "Number of state transitions since startup")
+    public long getTransitions()
+    {
+        return transitions.get();
+    }
+
+    @Managed(description = "Number of times the circuit breaker opened since startup")
+    public long getTimesOpened()
+    {
+        return timesOpened.get();
+    }
+
+    @Managed(description = "Number of requests rejected while open since startup")
+    public long getRequestsRejected()
+    {
+        return requestsRejected.get();
+    }
+}
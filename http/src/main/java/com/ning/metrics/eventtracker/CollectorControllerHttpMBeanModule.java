@@ -17,6 +17,8 @@
 package com.ning.metrics.eventtracker;
 
 import com.google.inject.AbstractModule;
+import org.weakref.jmx.guice.ExportBuilder;
+import org.weakref.jmx.guice.MBeanModule;
 
 /**
  * Expose JMX properties for the eventtracker library.
@@ -31,6 +33,11 @@ public class CollectorControllerHttpMBeanModule extends AbstractModule
     @Override
     protected void configure()
     {
+        final ExportBuilder builder = MBeanModule.newExporter(binder());
+        builder.export(CollectorCircuitBreaker.class).as("eventtracker:name=CollectorCircuitBreaker");
+        builder.export(CollectorLoadBalancer.class).as("eventtracker:name=CollectorLoadBalancer");
+        builder.export(DeliveryTracker.class).as("eventtracker:name=DeliveryTracker");
+        builder.export(HttpSender.class).as("eventtracker:name=HttpSender");
         install(new CollectorControllerMBeanModule());
     }
 }
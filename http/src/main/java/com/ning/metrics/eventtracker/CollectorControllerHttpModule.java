@@ -37,14 +37,15 @@ public class CollectorControllerHttpModule extends CollectorControllerModule
 
         switch (eventTrackerConfig.getType()) {
             case COLLECTOR:
-                final EventSender httpSender = new HttpSender(
-                    eventTrackerConfig.getCollectorHost(),
-                    eventTrackerConfig.getCollectorPort(),
-                    eventTrackerConfig.getEventType(),
-                    eventTrackerConfig.getHttpMaxWaitTimeInMillis(),
-                    eventTrackerConfig.getHttpMaxKeepAlive().getMillis(),
-                    eventTrackerConfig.getHttpWorkersPoolSize()
-                );
+                // Bound even when disabled, for its JMX attributes
+                final CollectorCircuitBreaker circuitBreaker = new CollectorCircuitBreaker(eventTrackerConfig);
+                bind(CollectorCircuitBreaker.class).toInstance(circuitBreaker);
+                final DeliveryTracker deliveryTracker = new DeliveryTracker();
+                bind(DeliveryTracker.class).toInstance(deliveryTracker);
+                final CollectorLoadBalancer loadBalancer = new CollectorLoadBalancer(eventTrackerConfig, deliveryTracker);
+                bind(CollectorLoadBalancer.class).toInstance(loadBalancer);
+                final HttpSender httpSender = HttpSender.Builder.fromConfig(eventTrackerConfig, loadBalancer, circuitBreaker, deliveryTracker).build();
+                bind(HttpSender.class).toInstance(httpSender);
                 bind(EventSender.class).toInstance(httpSender);
                 log.info("Enabled HTTP Event Logging");
                 break;
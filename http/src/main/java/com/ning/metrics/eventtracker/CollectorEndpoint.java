@@ -0,0 +1,202 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
+import com.yammer.metrics.core.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One collector, with its client and its passively tracked health: requests in flight, recent latency, and
+ * consecutive failures (connection errors and 5xx responses). After ejectAfterFailures consecutive failures, the
+ * collector is ejected for ejectionDurationInMillis. Once reinstated, a single failure ejects it again, until a
+ * request succeeds.
+ */
+class CollectorEndpoint
+{
+    private static final Logger log = LoggerFactory.getLogger(CollectorEndpoint.class);
+    // Weight of the last request in the latency average
+    private static final double LATENCY_ALPHA = 0.2;
+
+    private final String name;
+    private final ThreadSafeAsyncHttpClient client;
+    // Null if not tracked
+    private final Timer sendTimer;
+    private final int ejectAfterFailures;
+    private final long ejectionDurationInMillis;
+
+    private final AtomicInteger outstandingRequests = new AtomicInteger(0);
+    private final AtomicLong ejections = new AtomicLong(0);
+
+    // Guarded by this
+    private double averageLatencyInMillis = 0;
+    private int consecutiveFailures = 0;
+    private long ejectedUntilMillis = 0;
+
+    /**
+     * @param name                     host:port of the collector
+     * @param client                   client to the collector
+     * @param sendTimer                timer of the requests to this collector, null for none
+     * @param ejectAfterFailures       number of consecutive failures ejecting the collector, 0 to never eject it
+     * @param ejectionDurationInMillis time an ejected collector is left out for
+     */
+    CollectorEndpoint(final String name, final ThreadSafeAsyncHttpClient client, final Timer sendTimer,
+                      final int ejectAfterFailures, final long ejectionDurationInMillis)
+    {
+        this.name = name;
+        this.client = client;
+        this.sendTimer = sendTimer;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.ejectionDurationInMillis = ejectionDurationInMillis;
+    }
+
+    /**
+     * Send spool files to this collector, tracking the outcome. The handler is always notified: once the client is
+     * closed, requests fail right away. Cancelling the request (e.g. a losing hedge) doesn't count against the collector.
+     *
+     * @param files             files to send, in a single request
+     * @param completionHandler handler for the request
+     * @return the future of the request, null if it couldn't be sent (the handler was notified)
+     */
+    ListenableFuture<Response> execute(final List<File> files, final AsyncCompletionHandler<Response> completionHandler)
+    {
+        outstandingRequests.incrementAndGet();
+        final long startTime = System.nanoTime();
+        // A request cancelled right after its response came in is notified twice
+        final AtomicBoolean notified = new AtomicBoolean(false);
+
+        final AsyncCompletionHandler<Response> trackingHandler = new AsyncCompletionHandler<Response>()
+        {
+            @Override
+            public Response onCompleted(final Response response) throws Exception
+            {
+                if (!notified.compareAndSet(false, true)) {
+                    return response;
+                }
+
+                final long latencyInNanos = System.nanoTime() - startTime;
+                outstandingRequests.decrementAndGet();
+                if (sendTimer != null) {
+                    sendTimer.update(latencyInNanos, TimeUnit.NANOSECONDS);
+                }
+
+                if (response.getStatusCode() >= 500) {
+                    onFailure();
+                }
+                else {
+                    onSuccess(TimeUnit.NANOSECONDS.toMillis(latencyInNanos));
+                }
+
+                return completionHandler.onCompleted(response);
+            }
+
+            @Override
+            public void onThrowable(final Throwable t)
+            {
+                if (!notified.compareAndSet(false, true)) {
+                    return;
+                }
+
+                outstandingRequests.decrementAndGet();
+                if (!(t instanceof CancellationException)) {
+                    onFailure();
+                }
+                completionHandler.onThrowable(t);
+            }
+        };
+
+        if (files.size() == 1) {
+            return client.executeRequest(files.get(0), trackingHandler);
+        }
+        else {
+            return client.executeBatchRequest(files, trackingHandler);
+        }
+    }
+
+    private synchronized void onSuccess(final long latencyInMillis)
+    {
+        averageLatencyInMillis = averageLatencyInMillis == 0 ? latencyInMillis : LATENCY_ALPHA * latencyInMillis + (1 - LATENCY_ALPHA) * averageLatencyInMillis;
+        if (consecutiveFailures >= ejectAfterFailures && ejectAfterFailures > 0) {
+            log.info("Collector {} is healthy again", name);
+        }
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void onFailure()
+    {
+        consecutiveFailures++;
+        final long now = System.currentTimeMillis();
+        if (ejectAfterFailures > 0 && consecutiveFailures >= ejectAfterFailures && ejectedUntilMillis <= now) {
+            ejectedUntilMillis = now + ejectionDurationInMillis;
+            ejections.incrementAndGet();
+            log.warn("Ejecting collector {} for {} ms, after {} consecutive failures", new Object[]{name, ejectionDurationInMillis, consecutiveFailures});
+        }
+    }
+
+    synchronized boolean isEjected(final long now)
+    {
+        return ejectedUntilMillis > now;
+    }
+
+    synchronized long getEjectedUntilMillis()
+    {
+        return ejectedUntilMillis;
+    }
+
+    synchronized double getAverageLatencyInMillis()
+    {
+        return averageLatencyInMillis;
+    }
+
+    int getOutstandingRequests()
+    {
+        return outstandingRequests.get();
+    }
+
+    long getEjections()
+    {
+        return ejections.get();
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    void close()
+    {
+        client.close();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%s, %d in flight, %.1f ms)", name, isEjected(System.currentTimeMillis()) ? "ejected" : "up",
+            getOutstandingRequests(), getAverageLatencyInMillis());
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.google.inject.Inject;
+import com.yammer.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads the requests of the HttpSender over several collectors (eventtracker.collector.hosts), picking one for
+ * each request as it is submitted.
+ * <p/>
+ * Ejected collectors (see CollectorEndpoint) are skipped. If all of them are ejected, the one reinstated first is
+ * used anyway: the circuit breaker, if enabled, is the one deciding to stop sending altogether.
+ */
+public class CollectorLoadBalancer
+{
+    private static final Logger log = LoggerFactory.getLogger(CollectorLoadBalancer.class);
+
+    private final List<CollectorEndpoint> endpoints;
+    private final CollectorSelection selection;
+    private final String name;
+    private final Random random = new Random();
+    // Spreads ties between equally loaded collectors
+    private final AtomicInteger nextIndex = new AtomicInteger(0);
+
+    @Inject
+    public CollectorLoadBalancer(final EventTrackerConfig config, final DeliveryTracker deliveryTracker)
+    {
+        this(createEndpoints(config, deliveryTracker), config.getCollectorSelection(), getName(config));
+    }
+
+    // Single collector, never ejected
+    CollectorLoadBalancer(final ThreadSafeAsyncHttpClient client)
+    {
+        this(Collections.singletonList(new CollectorEndpoint("collector", client, null, 0, 0)), CollectorSelection.LEAST_OUTSTANDING, "collector");
+    }
+
+    /**
+     * @param endpoints collectors to spread requests over
+     * @param selection how to pick a collector for each request
+     * @param name      name of the collectors, for the HttpSender metrics
+     */
+    CollectorLoadBalancer(final List<CollectorEndpoint> endpoints, final CollectorSelection selection, final String name)
+    {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one collector is required");
+        }
+
+        this.endpoints = endpoints;
+        this.selection = selection;
+        this.name = name;
+        if (endpoints.size() > 1) {
+            log.info("Spreading requests over collectors {}, by {}", endpoints, selection);
+        }
+    }
+
+    /**
+     * @return the collector to send the next request to
+     */
+    CollectorEndpoint select()
+    {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+
+        return select(endpoints);
+    }
+
+    /**
+     * @param excluded collector to avoid, e.g. the one a request is already pending on
+     * @return another collector, or the excluded one if it is the only one
+     */
+    CollectorEndpoint selectOtherThan(final CollectorEndpoint excluded)
+    {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+
+        final List<CollectorEndpoint> others = new ArrayList<CollectorEndpoint>(endpoints);
+        others.remove(excluded);
+        return select(others);
+    }
+
+    private CollectorEndpoint select(final List<CollectorEndpoint> allowed)
+    {
+        final long now = System.currentTimeMillis();
+        final List<CollectorEndpoint> candidates = new ArrayList<CollectorEndpoint>(allowed.size());
+        for (final CollectorEndpoint endpoint : allowed) {
+            if (!endpoint.isEjected(now)) {
+                candidates.add(endpoint);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return getFirstReinstated(allowed);
+        }
+        else if (selection == CollectorSelection.LATENCY_WEIGHTED) {
+            return selectByLatency(candidates);
+        }
+        else {
+            return selectLeastOutstanding(candidates);
+        }
+    }
+
+    private CollectorEndpoint selectLeastOutstanding(final List<CollectorEndpoint> candidates)
+    {
+        final int start = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+        CollectorEndpoint selected = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            final CollectorEndpoint candidate = candidates.get((start + i) % candidates.size());
+            if (selected == null || candidate.getOutstandingRequests() < selected.getOutstandingRequests()) {
+                selected = candidate;
+            }
+        }
+
+        return selected;
+    }
+
+    private CollectorEndpoint selectByLatency(final List<CollectorEndpoint> candidates)
+    {
+        final double[] weights = new double[candidates.size()];
+        double totalWeight = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            final CollectorEndpoint candidate = candidates.get(i);
+            // Collectors without latency yet are tried as if they answered in 1 ms
+            weights[i] = 1.0 / (Math.max(candidate.getAverageLatencyInMillis(), 1.0) * (candidate.getOutstandingRequests() + 1));
+            totalWeight += weights[i];
+        }
+
+        double point = random.nextDouble() * totalWeight;
+        for (int i = 0; i < candidates.size(); i++) {
+            point -= weights[i];
+            if (point < 0) {
+                return candidates.get(i);
+            }
+        }
+
+        // Rounding
+        return candidates.get(candidates.size() - 1);
+    }
+
+    private CollectorEndpoint getFirstReinstated(final List<CollectorEndpoint> allowed)
+    {
+        CollectorEndpoint selected = allowed.get(0);
+        for (final CollectorEndpoint endpoint : allowed) {
+            if (endpoint.getEjectedUntilMillis() < selected.getEjectedUntilMillis()) {
+                selected = endpoint;
+            }
+        }
+
+        return selected;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    List<CollectorEndpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    void close()
+    {
+        for (final CollectorEndpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+    }
+
+    @Managed(description = "Collectors, with their health, requests in flight and average latency")
+    public String getCollectors()
+    {
+        return endpoints.toString();
+    }
+
+    @Managed(description = "Number of collectors currently ejected")
+    public int getEjectedCollectorCount()
+    {
+        final long now = System.currentTimeMillis();
+        int ejected = 0;
+        for (final CollectorEndpoint endpoint : endpoints) {
+            if (endpoint.isEjected(now)) {
+                ejected++;
+            }
+        }
+
+        return ejected;
+    }
+
+    @Managed(description = "Number of collector ejections since startup")
+    public long getEjections()
+    {
+        long ejections = 0;
+        for (final CollectorEndpoint endpoint : endpoints) {
+            ejections += endpoint.getEjections();
+        }
+
+        return ejections;
+    }
+
+    private static List<CollectorEndpoint> createEndpoints(final EventTrackerConfig config, final DeliveryTracker deliveryTracker)
+    {
+        final List<CollectorEndpoint> endpoints = new ArrayList<CollectorEndpoint>();
+        for (final String hostAndPort : getHostsAndPorts(config)) {
+            final int separator = hostAndPort.lastIndexOf(':');
+            final String host = hostAndPort.substring(0, separator);
+            final int port = Integer.valueOf(hostAndPort.substring(separator + 1));
+
+            final ThreadSafeAsyncHttpClient client = new ThreadSafeAsyncHttpClient(host, port, config.getEventType(),
+                config.getHttpMaxKeepAlive().getMillis(), config.getSpoolCompression(), config.isHttpPartialAckEnabled(), deliveryTracker);
+            // Next to the HttpSender timer of all collectors
+            endpoints.add(new CollectorEndpoint(hostAndPort, client,
+                Metrics.newTimer(HttpSender.class, hostAndPort.replace(":", "_"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS),
+                config.getCollectorEjectAfterFailures(), config.getCollectorEjectionDuration().getMillis()));
+        }
+
+        return endpoints;
+    }
+
+    private static List<String> getHostsAndPorts(final EventTrackerConfig config)
+    {
+        final List<String> hostsAndPorts = new ArrayList<String>();
+        for (final String host : config.getCollectorHosts().split(",")) {
+            final String trimmed = host.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            hostsAndPorts.add(trimmed.contains(":") ? trimmed : trimmed + ":" + config.getCollectorPort());
+        }
+
+        if (hostsAndPorts.isEmpty()) {
+            hostsAndPorts.add(config.getCollectorHost() + ":" + config.getCollectorPort());
+        }
+
+        return hostsAndPorts;
+    }
+
+    private static String getName(final EventTrackerConfig config)
+    {
+        // Same metric as with a single collector before
+        return config.getCollectorHosts().trim().isEmpty() ? config.getCollectorHost() : "collectors";
+    }
+}
@@ -16,10 +16,14 @@
 
 package com.ning.metrics.eventtracker;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Simple helper class that encapsulates details of how to keep track
  * of relinquishing of time-bound things: and specifically that of
  * closing of HTTP persistent connections.
+ * <p/>
+ * Lock-free: when several threads see the resource expire, only one of them is told so.
  */
 public class ExpirationTimer
 {
@@ -32,7 +36,7 @@ public class ExpirationTimer
      * When is resource going to expire next time; either
      * undefined (0L), or timestamp of expiration.
      */
-    private long expirationTime = 0L;
+    private final AtomicLong expirationTime = new AtomicLong(0L);
 
     public ExpirationTimer(final long max)
     {
@@ -44,17 +48,30 @@ public class ExpirationTimer
         return isExpired(System.currentTimeMillis());
     }
 
-    public synchronized boolean isExpired(final long now)
+    public boolean isExpired(final long now)
     {
-        if (expirationTime == 0L) { // just starting, set start time, no expiry
-            expirationTime = now + maxKeepAliveMsecs;
+        final long expiration = expirationTime.get();
+        if (expiration == 0L) { // just starting, set start time, no expiry
+            expirationTime.compareAndSet(0L, now + maxKeepAliveMsecs);
             return false;
         }
-        if (now >= maxKeepAliveMsecs) { // yup, expired
-            expirationTime = 0L;
-            return true;
+        if (now >= expiration) { // yup, expired
+            // Reset the timer, the thread doing so is the one in charge of relinquishing the resource
+            return expirationTime.compareAndSet(expiration, 0L);
         }
         // no, still valid
         return false;
     }
+
+    /**
+     * Check for expiration without taking charge of the resource: unlike isExpired, the timer isn't reset
+     *
+     * @param now current time, in milliseconds
+     * @return true if the resource expired
+     */
+    public boolean hasExpired(final long now)
+    {
+        final long expiration = expirationTime.get();
+        return expiration != 0L && now >= expiration;
+    }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.ConnectionsPool;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of persistent connections to the collector, each of them retired once it has been open for longer than
+ * the maximum keep-alive time. This ensures we don't use a single connection indefinitely, for load balancing,
+ * while still reusing connections in between.
+ * <p/>
+ * Each connection has its own ExpirationTimer, started when the connection is first returned to the pool. An
+ * expired connection is refused when offered back (the provider closes it) or closed when polled. Like the default
+ * pool of the client, a reaper closes the idle connections which expired or timed out in between, every half of the
+ * shortest of both delays.
+ */
+class ExpiringConnectionsPool implements ConnectionsPool<String, Channel>
+{
+    // The pool doesn't see connections being opened, only returned to it
+    private final Meter connectionsPooled = Metrics.newMeter(ExpiringConnectionsPool.class, "connectionsPooled", "connections", TimeUnit.MINUTES);
+    private final Meter connectionsRotated = Metrics.newMeter(ExpiringConnectionsPool.class, "connectionsRotated", "connections", TimeUnit.MINUTES);
+
+    private final long maxKeepAliveInMillis;
+    private final long idleTimeoutInMillis;
+    private final ConcurrentMap<String, Queue<IdleChannel>> idleChannels = new ConcurrentHashMap<String, Queue<IdleChannel>>();
+    // All connections known to the pool, idle or in use
+    private final ConcurrentMap<Channel, ExpirationTimer> timers = new ConcurrentHashMap<Channel, ExpirationTimer>();
+    private final AtomicBoolean isDestroyed = new AtomicBoolean(false);
+    // Null if not started
+    private final Timer reaper;
+
+    ExpiringConnectionsPool(final long maxKeepAliveInMillis, final long idleTimeoutInMillis)
+    {
+        this(maxKeepAliveInMillis, idleTimeoutInMillis, Math.max(1, Math.min(maxKeepAliveInMillis, idleTimeoutInMillis) / 2));
+    }
+
+    /**
+     * @param reapIntervalInMillis delay between two runs of the reaper, 0 not to start it
+     */
+    ExpiringConnectionsPool(final long maxKeepAliveInMillis, final long idleTimeoutInMillis, final long reapIntervalInMillis)
+    {
+        this.maxKeepAliveInMillis = maxKeepAliveInMillis;
+        this.idleTimeoutInMillis = idleTimeoutInMillis;
+
+        if (reapIntervalInMillis <= 0) {
+            this.reaper = null;
+            return;
+        }
+
+        this.reaper = new Timer("http-ConnectionsReaper", true);
+        reaper.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                reap(System.currentTimeMillis());
+            }
+        }, reapIntervalInMillis, reapIntervalInMillis);
+    }
+
+    @Override
+    public boolean offer(final String uri, final Channel channel)
+    {
+        return offer(uri, channel, System.currentTimeMillis());
+    }
+
+    boolean offer(final String uri, final Channel channel, final long now)
+    {
+        if (isDestroyed.get() || !channel.isOpen()) {
+            return false;
+        }
+
+        if (getTimer(channel, now).isExpired(now)) {
+            // The provider closes connections we refuse
+            forget(channel);
+            connectionsRotated.mark();
+            return false;
+        }
+
+        Queue<IdleChannel> queue = idleChannels.get(uri);
+        if (queue == null) {
+            final Queue<IdleChannel> newQueue = new ConcurrentLinkedQueue<IdleChannel>();
+            queue = idleChannels.putIfAbsent(uri, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+
+        return queue.add(new IdleChannel(channel, now));
+    }
+
+    @Override
+    public Channel poll(final String uri)
+    {
+        return poll(uri, System.currentTimeMillis());
+    }
+
+    Channel poll(final String uri, final long now)
+    {
+        final Queue<IdleChannel> queue = idleChannels.get(uri);
+        if (queue == null) {
+            return null;
+        }
+
+        IdleChannel idleChannel;
+        while ((idleChannel = queue.poll()) != null) {
+            if (!retireIfStale(idleChannel, now)) {
+                return idleChannel.channel;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Close the idle connections which expired or timed out, without waiting for the next offer or poll
+     */
+    void reap(final long now)
+    {
+        for (final Queue<IdleChannel> queue : idleChannels.values()) {
+            for (final IdleChannel idleChannel : queue) {
+                // Unless handed out in the meantime
+                if (isStale(idleChannel, now) && queue.remove(idleChannel) && !retireIfStale(idleChannel, now)) {
+                    queue.add(idleChannel);
+                }
+            }
+        }
+    }
+
+    // Doesn't reset the expiration timer, unlike retireIfStale
+    private boolean isStale(final IdleChannel idleChannel, final long now)
+    {
+        return !idleChannel.channel.isOpen() || now - idleChannel.idleSince >= idleTimeoutInMillis ||
+            getTimer(idleChannel.channel, now).hasExpired(now);
+    }
+
+    // The idle channel must have been removed from its queue
+    private boolean retireIfStale(final IdleChannel idleChannel, final long now)
+    {
+        final Channel channel = idleChannel.channel;
+        if (!channel.isOpen()) {
+            forget(channel);
+        }
+        else if (now - idleChannel.idleSince >= idleTimeoutInMillis) {
+            forget(channel);
+            channel.close();
+        }
+        else if (getTimer(channel, now).isExpired(now)) {
+            forget(channel);
+            connectionsRotated.mark();
+            channel.close();
+        }
+        else {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(final Channel channel)
+    {
+        boolean removed = false;
+        for (final Queue<IdleChannel> queue : idleChannels.values()) {
+            for (final IdleChannel idleChannel : queue) {
+                if (idleChannel.channel == channel) {
+                    removed |= queue.remove(idleChannel);
+                }
+            }
+        }
+
+        forget(channel);
+        return removed;
+    }
+
+    @Override
+    public boolean canCacheConnection()
+    {
+        return !isDestroyed.get();
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (!isDestroyed.compareAndSet(false, true)) {
+            return;
+        }
+        if (reaper != null) {
+            reaper.cancel();
+        }
+
+        for (final Queue<IdleChannel> queue : idleChannels.values()) {
+            IdleChannel idleChannel;
+            while ((idleChannel = queue.poll()) != null) {
+                idleChannel.channel.close();
+            }
+        }
+        idleChannels.clear();
+        timers.clear();
+    }
+
+    private ExpirationTimer getTimer(final Channel channel, final long now)
+    {
+        final ExpirationTimer timer = timers.get(channel);
+        if (timer != null) {
+            return timer;
+        }
+
+        // First time we see this connection
+        final ExpirationTimer newTimer = new ExpirationTimer(maxKeepAliveInMillis);
+        newTimer.isExpired(now);
+        final ExpirationTimer existingTimer = timers.putIfAbsent(channel, newTimer);
+        if (existingTimer != null) {
+            return existingTimer;
+        }
+
+        connectionsPooled.mark();
+        // Don't leak connections closed while in use, or by the collector
+        channel.getCloseFuture().addListener(new ChannelFutureListener()
+        {
+            @Override
+            public void operationComplete(final ChannelFuture future)
+            {
+                forget(channel);
+            }
+        });
+
+        return newTimer;
+    }
+
+    private void forget(final Channel channel)
+    {
+        timers.remove(channel);
+    }
+
+    int getOpenConnections()
+    {
+        return timers.size();
+    }
+
+    private static final class IdleChannel
+    {
+        private final Channel channel;
+        private final long idleSince;
+
+        private IdleChannel(final Channel channel, final long idleSince)
+        {
+            this.channel = channel;
+            this.idleSince = idleSince;
+        }
+    }
+}
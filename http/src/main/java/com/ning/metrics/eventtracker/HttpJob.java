@@ -17,25 +17,102 @@
 package com.ning.metrics.eventtracker;
 
 import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Response;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
+/**
+ * Upload of one spool file, or of a batch of small spool files in a single request
+ */
 public class HttpJob
 {
+    // One of client and loadBalancer is null
     private final ThreadSafeAsyncHttpClient client;
-    private final File file;
+    private final CollectorLoadBalancer loadBalancer;
+    private final List<File> files;
     private final AsyncCompletionHandler<Response> completionHandler;
+    // Collector picked by the load balancer, once submitted
+    private volatile CollectorEndpoint endpoint = null;
+    // Null until submitted, or if the request couldn't be sent
+    private volatile ListenableFuture<Response> future = null;
 
     public HttpJob(final ThreadSafeAsyncHttpClient client, final File file, final AsyncCompletionHandler<Response> completionHandler)
+    {
+        this(client, Collections.singletonList(file), completionHandler);
+    }
+
+    public HttpJob(final ThreadSafeAsyncHttpClient client, final List<File> files, final AsyncCompletionHandler<Response> completionHandler)
     {
         this.client = client;
-        this.file = file;
+        this.loadBalancer = null;
+        this.files = files;
+        this.completionHandler = completionHandler;
+    }
+
+    /**
+     * @param loadBalancer picks the collector when the request is submitted, rather than when the job is queued
+     */
+    public HttpJob(final CollectorLoadBalancer loadBalancer, final List<File> files, final AsyncCompletionHandler<Response> completionHandler)
+    {
+        this.client = null;
+        this.loadBalancer = loadBalancer;
+        this.files = files;
         this.completionHandler = completionHandler;
     }
 
+    /**
+     * @return the (first) file sent
+     */
+    public File getFile()
+    {
+        return files.get(0);
+    }
+
+    public List<File> getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * @return the collector the request was sent to, null if not submitted yet or not load balanced
+     */
+    CollectorEndpoint getEndpoint()
+    {
+        return endpoint;
+    }
+
+    /**
+     * @return the future of the request, null if not submitted yet or if it couldn't be sent
+     */
+    ListenableFuture<Response> getFuture()
+    {
+        return future;
+    }
+
+    /**
+     * Fail the job, when it couldn't be submitted
+     *
+     * @param t why submitRequest failed
+     */
+    void onSubmitFailed(final Throwable t)
+    {
+        completionHandler.onThrowable(t);
+    }
+
     public void submitRequest()
     {
-        client.executeRequest(file, completionHandler);
+        if (loadBalancer != null) {
+            endpoint = loadBalancer.select();
+            future = endpoint.execute(files, completionHandler);
+        }
+        else if (files.size() == 1) {
+            future = client.executeRequest(files.get(0), completionHandler);
+        }
+        else {
+            future = client.executeBatchRequest(files, completionHandler);
+        }
     }
 }
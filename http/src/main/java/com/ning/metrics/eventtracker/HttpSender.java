@@ -16,7 +16,9 @@
 
 package com.ning.metrics.eventtracker;
 
+import com.mogwee.executors.FailsafeScheduledExecutor;
 import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Response;
 import com.ning.metrics.serialization.writer.CallbackHandler;
 
@@ -24,9 +26,15 @@ import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -36,31 +44,277 @@ public class HttpSender implements EventSender
 
     private final AtomicLong activeRequests = new AtomicLong(0);
     private final LocalQueueAndWorkers workers;
-    private final ThreadSafeAsyncHttpClient client;
+    private final CollectorLoadBalancer loadBalancer;
     private final long httpMaxWaitTimeInMillis;
     private final Timer sendTimer;
+    // Null if disabled
+    private final CollectorCircuitBreaker circuitBreaker;
+
+    // Batching of small files, disabled when batchExecutor is null
+    private final long httpMaxBatchSizeInBytes;
+    private final long httpBatchLingerInMillis;
+    private final ScheduledExecutorService batchExecutor;
+    private final Object batchLock = new Object();
+    private Batch openBatch = null;
+
+    // Hedged uploads, disabled when hedgeExecutor is null
+    private final double hedgePercentile;
+    private final long hedgeMinDelayInMillis;
+    private final ScheduledExecutorService hedgeExecutor;
+    private final AtomicLong hedgedUploads = new AtomicLong(0);
+    private final AtomicLong hedgesWon = new AtomicLong(0);
+    // Partial acknowledgements of uncompressed files, see PartialAcknowledgement
+    private final boolean acceptPartialAcks;
+    private final AtomicLong partialAcks = new AtomicLong(0);
+
+    // Counts the attempts of each file, null not to
+    private final DeliveryTracker deliveryTracker;
 
     public HttpSender(final String collectorHost, final int collectorPort, final EventType eventType,
                       final long httpMaxWaitTimeInMillis, final long httpMaxKeepAliveInMillis, final int httpWorkersPoolSize)
     {
-        this(new ThreadSafeAsyncHttpClient(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis),
-             httpMaxWaitTimeInMillis,
-             Metrics.newTimer(HttpSender.class, collectorHost.replace(":", "_"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS),
-             httpWorkersPoolSize);
+        this(Builder.forCollector(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis, SpoolCompression.NONE)
+                    .httpMaxWaitTimeInMillis(httpMaxWaitTimeInMillis)
+                    .httpWorkersPoolSize(httpWorkersPoolSize));
     }
 
     // For testing
     HttpSender(final ThreadSafeAsyncHttpClient client, final long httpMaxWaitTimeInMillis, final Timer sendTimer, final int httpWorkersPoolSize)
     {
-        this.client = client;
-        this.httpMaxWaitTimeInMillis = httpMaxWaitTimeInMillis;
-        this.sendTimer = sendTimer;
-        this.workers = new LocalQueueAndWorkers(httpWorkersPoolSize);
+        this(new Builder(new CollectorLoadBalancer(client))
+                    .httpMaxWaitTimeInMillis(httpMaxWaitTimeInMillis)
+                    .httpWorkersPoolSize(httpWorkersPoolSize)
+                    .sendTimer(sendTimer));
+    }
+
+    private HttpSender(final Builder builder)
+    {
+        if (builder.hedgePercentile < 0 || builder.hedgePercentile >= 1) {
+            throw new IllegalArgumentException("Invalid hedge percentile: " + builder.hedgePercentile);
+        }
+
+        this.loadBalancer = builder.loadBalancer;
+        this.circuitBreaker = builder.circuitBreaker;
+        this.deliveryTracker = builder.deliveryTracker;
+        this.httpMaxWaitTimeInMillis = builder.httpMaxWaitTimeInMillis;
+        if (builder.sendTimer == null) {
+            this.sendTimer = Metrics.newTimer(HttpSender.class, loadBalancer.getName().replace(":", "_"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        }
+        else {
+            this.sendTimer = builder.sendTimer;
+        }
+        this.workers = new LocalQueueAndWorkers(builder.httpWorkersPoolSize, builder.httpQueueCapacity);
+        // Compressed files are never batched
+        this.httpMaxBatchSizeInBytes = builder.spoolCompression == SpoolCompression.NONE ? builder.httpMaxBatchSizeInBytes : 0;
+        this.httpBatchLingerInMillis = builder.httpBatchLingerInMillis;
+        // Cutting a prefix out of a compressed file would corrupt it
+        this.acceptPartialAcks = builder.acceptPartialAcks && builder.spoolCompression == SpoolCompression.NONE;
+        if (httpMaxBatchSizeInBytes > 0) {
+            this.batchExecutor = new FailsafeScheduledExecutor(1, "http-BatchFlusher");
+        }
+        else {
+            this.batchExecutor = null;
+        }
+        this.hedgePercentile = builder.hedgePercentile;
+        this.hedgeMinDelayInMillis = builder.hedgeMinDelayInMillis;
+        if (hedgePercentile > 0) {
+            this.hedgeExecutor = new FailsafeScheduledExecutor(1, "http-Hedger");
+        }
+        else {
+            this.hedgeExecutor = null;
+        }
+    }
+
+    /**
+     * Settings of an HttpSender. Only the collectors to send to are required, the features are disabled by default.
+     */
+    public static final class Builder
+    {
+        private final CollectorLoadBalancer loadBalancer;
+        private long httpMaxWaitTimeInMillis = 8000;
+        private int httpWorkersPoolSize = 4;
+        private int httpQueueCapacity = LocalQueueAndWorkers.DEFAULT_QUEUE_CAPACITY;
+        private long httpMaxBatchSizeInBytes = 0;
+        private long httpBatchLingerInMillis = 0;
+        private SpoolCompression spoolCompression = SpoolCompression.NONE;
+        private boolean acceptPartialAcks = false;
+        private CollectorCircuitBreaker circuitBreaker = null;
+        private double hedgePercentile = 0;
+        private long hedgeMinDelayInMillis = 0;
+        private DeliveryTracker deliveryTracker = null;
+        private Timer sendTimer = null;
+
+        /**
+         * @param loadBalancer collectors to send to
+         */
+        public Builder(final CollectorLoadBalancer loadBalancer)
+        {
+            this.loadBalancer = loadBalancer;
+        }
+
+        /**
+         * @param collectorHost            collector host
+         * @param collectorPort            collector port
+         * @param eventType                type of payload
+         * @param httpMaxKeepAliveInMillis maximum time a persistent connection is used for
+         * @param spoolCompression         compression of the spool files, to set the Content-Encoding of uploads
+         * @return a builder sending to a single collector
+         */
+        public static Builder forCollector(final String collectorHost, final int collectorPort, final EventType eventType,
+                                           final long httpMaxKeepAliveInMillis, final SpoolCompression spoolCompression)
+        {
+            final DeliveryTracker deliveryTracker = new DeliveryTracker();
+            final ThreadSafeAsyncHttpClient client = new ThreadSafeAsyncHttpClient(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis,
+                                                                                   spoolCompression, false, deliveryTracker);
+            return new Builder(new CollectorLoadBalancer(client))
+                .spoolCompression(spoolCompression)
+                .deliveryTracker(deliveryTracker)
+                .sendTimer(Metrics.newTimer(HttpSender.class, collectorHost.replace(":", "_"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS));
+        }
+
+        /**
+         * @param config          settings of the eventtracker, for all the settings of the sender
+         * @param loadBalancer    collectors to send to
+         * @param circuitBreaker  circuit breaker around the requests to the collectors, used if enabled in the config
+         * @param deliveryTracker counts the attempts of each file. Should be the one of the clients of the load
+         *                        balancer, which identify the files sent
+         * @return a builder with the settings of the config
+         */
+        public static Builder fromConfig(final EventTrackerConfig config, final CollectorLoadBalancer loadBalancer,
+                                         final CollectorCircuitBreaker circuitBreaker, final DeliveryTracker deliveryTracker)
+        {
+            return new Builder(loadBalancer)
+                .httpMaxWaitTimeInMillis(config.getHttpMaxWaitTimeInMillis())
+                .httpWorkersPoolSize(config.getHttpWorkersPoolSize())
+                .httpQueueCapacity(config.getHttpQueueCapacity())
+                .httpBatching(config.getHttpMaxBatchSizeInBytes(), config.getHttpBatchLinger().getMillis())
+                .spoolCompression(config.getSpoolCompression())
+                .acceptPartialAcks(config.isHttpPartialAckEnabled())
+                .circuitBreaker(config.isHttpCircuitBreakerEnabled() ? circuitBreaker : null)
+                .hedging(config.getHttpHedgePercentile(), config.getHttpHedgeMinDelay().getMillis())
+                .deliveryTracker(deliveryTracker);
+        }
+
+        /**
+         * @param httpMaxWaitTimeInMillis time to wait for pending requests on shutdown
+         * @return this builder
+         */
+        public Builder httpMaxWaitTimeInMillis(final long httpMaxWaitTimeInMillis)
+        {
+            this.httpMaxWaitTimeInMillis = httpMaxWaitTimeInMillis;
+            return this;
+        }
+
+        /**
+         * @param httpWorkersPoolSize number of threads submitting requests
+         * @return this builder
+         */
+        public Builder httpWorkersPoolSize(final int httpWorkersPoolSize)
+        {
+            this.httpWorkersPoolSize = httpWorkersPoolSize;
+            return this;
+        }
+
+        /**
+         * @param httpQueueCapacity maximum number of requests waiting to be submitted
+         * @return this builder
+         */
+        public Builder httpQueueCapacity(final int httpQueueCapacity)
+        {
+            this.httpQueueCapacity = httpQueueCapacity;
+            return this;
+        }
+
+        /**
+         * @param httpMaxBatchSizeInBytes maximum size of files sent in a single request, 0 to send one file per request
+         * @param httpBatchLingerInMillis maximum time a small file waits for others to be batched with
+         * @return this builder
+         */
+        public Builder httpBatching(final long httpMaxBatchSizeInBytes, final long httpBatchLingerInMillis)
+        {
+            this.httpMaxBatchSizeInBytes = httpMaxBatchSizeInBytes;
+            this.httpBatchLingerInMillis = httpBatchLingerInMillis;
+            return this;
+        }
+
+        /**
+         * @param spoolCompression compression of the spool files (the clients of the load balancer set the matching
+         *                         Content-Encoding). Compressed files are never batched
+         * @return this builder
+         */
+        public Builder spoolCompression(final SpoolCompression spoolCompression)
+        {
+            this.spoolCompression = spoolCompression;
+            return this;
+        }
+
+        /**
+         * @param acceptPartialAcks whether the collector can acknowledge part of an uncompressed spool file (the clients
+         *                          of the load balancer advertise it). Ignored for compressed spool files
+         * @return this builder
+         */
+        public Builder acceptPartialAcks(final boolean acceptPartialAcks)
+        {
+            this.acceptPartialAcks = acceptPartialAcks;
+            return this;
+        }
+
+        /**
+         * @param circuitBreaker circuit breaker around the requests to the collectors, null for none
+         * @return this builder
+         */
+        public Builder circuitBreaker(final CollectorCircuitBreaker circuitBreaker)
+        {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * @param hedgePercentile       percentile of the upload times (e.g. 0.95) past which an upload is sent again to
+         *                              another collector, 0 to never do it
+         * @param hedgeMinDelayInMillis minimum time to wait for before hedging an upload
+         * @return this builder
+         */
+        public Builder hedging(final double hedgePercentile, final long hedgeMinDelayInMillis)
+        {
+            this.hedgePercentile = hedgePercentile;
+            this.hedgeMinDelayInMillis = hedgeMinDelayInMillis;
+            return this;
+        }
+
+        /**
+         * @param deliveryTracker counts the attempts of each file, null not to. Should be the one of the clients of the
+         *                        load balancer, which identify the files sent
+         * @return this builder
+         */
+        public Builder deliveryTracker(final DeliveryTracker deliveryTracker)
+        {
+            this.deliveryTracker = deliveryTracker;
+            return this;
+        }
+
+        // For testing
+        Builder sendTimer(final Timer sendTimer)
+        {
+            this.sendTimer = sendTimer;
+            return this;
+        }
+
+        public HttpSender build()
+        {
+            return new HttpSender(this);
+        }
     }
 
     /**
      * Send a file full of events to the collector. This does zero-bytes-copy by default (the async-http-client does
      * it for us).
+     * <p/>
+     * When batching is enabled, files smaller than the batch size are held for up to the batch linger time and
+     * sent together, in a single multipart request.
+     * <p/>
+     * While the circuit breaker is open, files are moved back to the spool area right away, for a later flush.
+     * Their handler isn't invoked.
      *
      * @param file    File to send
      * @param handler callback handler for the serialization-writer library
@@ -68,44 +322,492 @@ public class HttpSender implements EventSender
     @Override
     public void send(final File file, final CallbackHandler handler)
     {
-        log.info("Sending local file to collector: {}", file.getAbsolutePath());
-        final long startTime = System.nanoTime();
+        if (circuitBreaker != null && circuitBreaker.reject()) {
+            rejectOpen(new Batch(file, handler));
+            return;
+        }
+
+        final long fileSize = file.length();
+        if (batchExecutor == null || fileSize >= httpMaxBatchSizeInBytes) {
+            log.info("Sending local file to collector: {}", file.getAbsolutePath());
+            submit(new Batch(file, handler));
+            return;
+        }
+
+        if (workers.isPending(file)) {
+            // Already on its way
+            return;
+        }
+
+        Batch fullBatch = null;
+        Batch rejectedBatch = null;
+        synchronized (batchLock) {
+            if (openBatch != null && openBatch.contains(file)) {
+                return;
+            }
+
+            if (openBatch != null && openBatch.sizeInBytes + fileSize > httpMaxBatchSizeInBytes) {
+                fullBatch = openBatch;
+                openBatch = null;
+            }
+
+            if (openBatch == null) {
+                final Batch batch = new Batch();
+                if (scheduleBatchFlush(batch)) {
+                    openBatch = batch;
+                }
+                else {
+                    // Closed
+                    rejectedBatch = new Batch(file, handler);
+                }
+            }
+            if (rejectedBatch == null) {
+                openBatch.add(file, handler, fileSize);
+            }
+        }
+
+        if (fullBatch != null) {
+            submitBatch(fullBatch);
+        }
+        if (rejectedBatch != null) {
+            rejectedBatch.requeue();
+        }
+    }
+
+    /**
+     * @return false if the sender is closed, in which case the batch won't be sent
+     */
+    private boolean scheduleBatchFlush(final Batch batch)
+    {
+        try {
+            batchExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (batchLock) {
+                        if (openBatch != batch) {
+                            // Already sent, because full
+                            return;
+                        }
+                        openBatch = null;
+                    }
+
+                    submitBatch(batch);
+                }
+            }, httpBatchLingerInMillis, TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("HTTP sender closed, not scheduling batch flush");
+            return false;
+        }
+    }
+
+    private void submitBatch(final Batch batch)
+    {
+        log.info("Sending {} local files ({} bytes) to collector in one request", batch.files.size(), batch.sizeInBytes);
+        submit(batch);
+    }
 
-        final AsyncCompletionHandler<Response> asyncCompletionHandler = new AsyncCompletionHandler<Response>()
+    private void submit(final Batch batch)
+    {
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            rejectOpen(batch);
+            return;
+        }
+
+        final Upload upload = new Upload(batch);
+        final Upload.Attempt primary = upload.newAttempt();
+        final HttpJob job = new HttpJob(loadBalancer, batch.files, primary)
         {
             @Override
-            public Response onCompleted(final Response response)
+            public void submitRequest()
             {
-                activeRequests.decrementAndGet();
+                activeRequests.incrementAndGet();
+                if (deliveryTracker != null) {
+                    // Before the request carries the attempt number
+                    for (final File file : batch.files) {
+                        deliveryTracker.onAttempt(file);
+                    }
+                }
+                super.submitRequest();
+                upload.onSubmitted(primary, getFuture());
+                if (hedgeExecutor != null) {
+                    upload.scheduleHedge(getEndpoint());
+                }
+            }
+        };
+        final LocalQueueAndWorkers.Offer offer = workers.tryOffer(job);
+        if (offer != LocalQueueAndWorkers.Offer.QUEUED && circuitBreaker != null) {
+            // No request will be sent
+            circuitBreaker.release();
+        }
+        if (offer == LocalQueueAndWorkers.Offer.FULL) {
+            // The collector can't keep up, leave the files in the spool for a later flush
+            log.warn("Too many files waiting to be sent to the collector, leaving {} in the spool", batch.files);
+            batch.requeue();
+        }
+    }
+
+    /**
+     * Upload of a batch, possibly hedged: the first 202 wins, and the upload fails only once all attempts failed.
+     * Either way, the handlers of the files are notified exactly once. The request of the losing attempt is cancelled.
+     */
+    private final class Upload
+    {
+        private final Batch batch;
+        private final long startTime = System.nanoTime();
+
+        // Guarded by this
+        private final List<Attempt> attempts = new ArrayList<Attempt>();
+        private int pendingAttempts = 0;
+        private boolean done = false;
+        private boolean hedged = false;
+        private ScheduledFuture<?> hedge = null;
+        private Attempt winner = null;
+        // Longest prefix of the (single) file accepted by a collector
+        private long acceptedBytes = 0;
+
+        private Upload(final Batch batch)
+        {
+            this.batch = batch;
+        }
+
+        private synchronized Attempt newAttempt()
+        {
+            pendingAttempts++;
+            final Attempt attempt = new Attempt(hedged);
+            attempts.add(attempt);
+            return attempt;
+        }
+
+        /**
+         * @param attempt attempt sent
+         * @param future  future of its request, null if it couldn't be sent
+         */
+        private void onSubmitted(final Attempt attempt, final ListenableFuture<Response> future)
+        {
+            if (future == null) {
+                return;
+            }
+
+            synchronized (this) {
+                attempt.future = future;
+                if (winner == null || winner == attempt) {
+                    return;
+                }
+            }
+
+            // Sent while the other attempt was winning
+            future.cancel(true);
+        }
+
+        // Partial acknowledgement of a single uncompressed file, see PartialAcknowledgement
+        private boolean isFullyAccepted(final Response response)
+        {
+            if (!acceptPartialAcks || response.getStatusCode() != PartialAcknowledgement.PARTIAL_ACK_STATUS || batch.files.size() != 1) {
+                return false;
+            }
+
+            final File file = batch.files.get(0);
+            final long accepted = PartialAcknowledgement.getAcceptedBytes(response, file);
+            if (accepted == file.length()) {
+                return true;
+            }
+
+            synchronized (this) {
+                acceptedBytes = Math.max(acceptedBytes, accepted);
+            }
+            return false;
+        }
 
-                if (response.getStatusCode() == 202) {
-                    handler.onSuccess(file);
+        private void scheduleHedge(final CollectorEndpoint primary)
+        {
+            final long delayInMillis = Math.max(hedgeMinDelayInMillis, (long) sendTimer.getSnapshot().getValue(hedgePercentile));
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+
+                try {
+                    hedge = hedgeExecutor.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            sendHedge(primary, delayInMillis);
+                        }
+                    }, delayInMillis, TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException e) {
+                    log.debug("HTTP sender closed, not hedging {}", batch.files);
+                }
+            }
+        }
+
+        private void sendHedge(final CollectorEndpoint primary, final long delayInMillis)
+        {
+            final Attempt handler;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                hedged = true;
+                handler = newAttempt();
+            }
+
+            final CollectorEndpoint endpoint = loadBalancer.selectOtherThan(primary);
+            hedgedUploads.incrementAndGet();
+            log.info("Upload of {} still pending after {} ms, sending it to {} too", new Object[]{batch.files, delayInMillis, endpoint.getName()});
+            onSubmitted(handler, endpoint.execute(batch.files, handler));
+        }
+
+        private void onAttemptSucceeded(final Attempt attempt)
+        {
+            final List<ListenableFuture<Response>> losers = new ArrayList<ListenableFuture<Response>>();
+            synchronized (this) {
+                pendingAttempts--;
+                if (done) {
+                    return;
+                }
+                done = true;
+                winner = attempt;
+                cancelHedge();
+                for (final Attempt other : attempts) {
+                    if (other != attempt && other.future != null) {
+                        losers.add(other.future);
+                    }
+                }
+            }
+
+            // Don't keep the slower collector busy with a request nobody waits for anymore
+            for (final ListenableFuture<Response> loser : losers) {
+                loser.cancel(true);
+            }
+            if (attempt.isHedge) {
+                hedgesWon.incrementAndGet();
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.onSuccess();
+            }
+            for (final File file : batch.files) {
+                if (deliveryTracker != null) {
+                    deliveryTracker.onDelivered(file);
+                }
+            }
+            batch.onSuccess();
+            complete(true);
+        }
+
+        private void onAttemptFailed(final Throwable t, final boolean collectorFailure, final boolean responded)
+        {
+            final long accepted;
+            synchronized (this) {
+                pendingAttempts--;
+                if (done || pendingAttempts > 0) {
+                    // The other attempt may still succeed
+                    return;
+                }
+                done = true;
+                cancelHedge();
+                accepted = acceptedBytes;
+            }
+
+            if (accepted > 0) {
+                trimAcceptedEvents(accepted);
+            }
+            if (circuitBreaker != null) {
+                if (collectorFailure) {
+                    circuitBreaker.onFailure();
                 }
                 else {
-                    handler.onError(new IOException(String.format("Received response %d: %s",
-                                                                  response.getStatusCode(), response.getStatusText())), file);
+                    circuitBreaker.onSuccess();
                 }
+            }
+            batch.onError(t);
+            complete(responded);
+        }
+
+        // No attempt is pending anymore: nobody is reading the file
+        private void trimAcceptedEvents(final long accepted)
+        {
+            final File file = batch.files.get(0);
+            final long fileSize = file.length();
+            try {
+                PartialAcknowledgement.trim(file, accepted);
+                partialAcks.incrementAndGet();
+                log.info("Collector accepted {} of {} bytes of {}, keeping the remaining events in the spool", new Object[]{accepted, fileSize, file});
+            }
+            catch (IOException e) {
+                log.warn(String.format("Unable to cut the accepted events from %s, all of them will be sent again", file), e);
+            }
+        }
+
+        private void cancelHedge()
+        {
+            if (hedge != null) {
+                hedge.cancel(false);
+                hedge = null;
+            }
+        }
 
+        private void complete(final boolean responded)
+        {
+            activeRequests.decrementAndGet();
+            // Accept the files again only once the handlers are done with them
+            batch.release();
+            if (responded) {
                 sendTimer.update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Request of the batch to one collector
+         */
+        private final class Attempt extends AsyncCompletionHandler<Response>
+        {
+            private final boolean isHedge;
+            // Guarded by Upload.this. Null until sent
+            private ListenableFuture<Response> future = null;
+
+            private Attempt(final boolean isHedge)
+            {
+                this.isHedge = isHedge;
+            }
+
+            @Override
+            public Response onCompleted(final Response response)
+            {
+                // All files of the request are acknowledged (or failed) together
+                if (response.getStatusCode() == 202 || isFullyAccepted(response)) {
+                    onAttemptSucceeded(this);
+                }
+                else {
+                    // The collector answered: only server errors count against it
+                    onAttemptFailed(new IOException(String.format("Received response %d: %s", response.getStatusCode(), response.getStatusText())),
+                                    response.getStatusCode() >= 500, true);
+                }
                 return response; // never read
             }
 
             @Override
             public void onThrowable(final Throwable t)
             {
-                activeRequests.decrementAndGet();
-                handler.onError(t, file);
+                onAttemptFailed(t, true, false);
             }
-        };
+        }
+    }
+
+    @Managed(description = "Get the number of hedged uploads since startup")
+    public long getHedgedUploads()
+    {
+        return hedgedUploads.get();
+    }
+
+    @Managed(description = "Get the number of hedged uploads acknowledged first by the second collector")
+    public long getHedgesWon()
+    {
+        return hedgesWon.get();
+    }
+
+    @Managed(description = "Get the number of uploads partially acknowledged, whose remaining events were left in the spool")
+    public long getPartialAcks()
+    {
+        return partialAcks.get();
+    }
+
+    // No request, no socket: the flush is a no-op until the breaker lets a probe through. There is no backoff: the
+    // handler isn't notified (failing the file would quarantine it), so flushes keep their interval
+    private void rejectOpen(final Batch batch)
+    {
+        log.debug("Collector circuit breaker open, leaving {} in the spool", batch.files);
+        batch.requeue();
+    }
+
+    /**
+     * Files sent in a single request, along with their handlers
+     */
+    private final class Batch
+    {
+        private final List<File> files = new ArrayList<File>();
+        private final List<CallbackHandler> handlers = new ArrayList<CallbackHandler>();
+        private long sizeInBytes = 0;
+
+        private Batch()
+        {
+        }
 
-        final HttpJob job = new HttpJob(client, file, asyncCompletionHandler);
-        workers.offer(job);
+        private Batch(final File file, final CallbackHandler handler)
+        {
+            add(file, handler, 0);
+        }
+
+        private void add(final File file, final CallbackHandler handler, final long fileSize)
+        {
+            files.add(file);
+            handlers.add(handler);
+            sizeInBytes += fileSize;
+        }
+
+        private boolean contains(final File file)
+        {
+            return files.contains(file);
+        }
+
+        private void onSuccess()
+        {
+            for (int i = 0; i < files.size(); i++) {
+                handlers.get(i).onSuccess(files.get(i));
+            }
+        }
+
+        private void onError(final Throwable t)
+        {
+            for (int i = 0; i < files.size(); i++) {
+                handlers.get(i).onError(t, files.get(i));
+            }
+        }
+
+        // Back in the spool area, without notifying the handlers (failing the files would quarantine them)
+        private void requeue()
+        {
+            for (int i = 0; i < files.size(); i++) {
+                if (!SpoolFiles.requeue(files.get(i))) {
+                    handlers.get(i).onError(new IOException("Unable to leave the file in the spool"), files.get(i));
+                }
+            }
+        }
+
+        private void release()
+        {
+            for (final File file : files) {
+                workers.release(file);
+            }
+        }
     }
 
     @Override
     public synchronized void close()
     {
-        client.close();
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+
+            // The files of the open batch were moved to the _lock area by the writer, which won't look at them again
+            final Batch batch;
+            synchronized (batchLock) {
+                batch = openBatch;
+                openBatch = null;
+            }
+            if (batch != null) {
+                log.info("HTTP sender closing, leaving {} in the spool", batch.files);
+                batch.requeue();
+            }
+        }
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
+        loadBalancer.close();
 
         try {
             if (activeRequests.get() > 0) {
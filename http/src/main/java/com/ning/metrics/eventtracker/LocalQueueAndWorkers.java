@@ -19,26 +19,74 @@ package com.ning.metrics.eventtracker;
 import com.mogwee.executors.FailsafeScheduledExecutor;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
 
+import java.io.File;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Bounded queue of HTTP jobs, drained by a pool of SenderWorker.
+ * <p/>
+ * Jobs are scheduled oldest spool file first. A file is only queued once until its job completes (see
+ * {@link #release(java.io.File)}): the flusher may offer again files whose upload is still queued or in flight.
+ * A job sending several files is dropped if any of them is already pending.
+ */
 public class LocalQueueAndWorkers
 {
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    private static final MetricName QUEUE_SIZE = new MetricName(LocalQueueAndWorkers.class, "queueSize");
+
     private final Counter jobsEnqueued = Metrics.newCounter(LocalQueueAndWorkers.class, "jobsEnqueued");
     private final Counter jobsDropped = Metrics.newCounter(LocalQueueAndWorkers.class, "jobsDropped");
+    private final Counter jobsDeduplicated = Metrics.newCounter(LocalQueueAndWorkers.class, "jobsDeduplicated");
+    private final Timer jobsWaitTime = Metrics.newTimer(LocalQueueAndWorkers.class, "jobsWaitTime", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    private final Gauge<Integer> queueSize = new Gauge<Integer>()
+    {
+        @Override
+        public Integer value()
+        {
+            return queue.size();
+        }
+    };
 
-    private final BlockingQueue<HttpJob> queue = new LinkedBlockingQueue<HttpJob>();
+    private final int capacity;
+    private final BlockingQueue<QueuedJob> queue = new PriorityBlockingQueue<QueuedJob>();
+    // Files queued or in flight
+    private final ConcurrentMap<File, Boolean> pendingFiles = new ConcurrentHashMap<File, Boolean>();
+    private final AtomicLong sequence = new AtomicLong(0);
     private final ExecutorService executor;
 
     public LocalQueueAndWorkers(final int senderCount)
     {
+        this(senderCount, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public LocalQueueAndWorkers(final int senderCount, final int capacity)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+
+        this.capacity = capacity;
         this.executor = new FailsafeScheduledExecutor(senderCount, "http-SenderWorkers");
 
+        // The registry keeps the first gauge registered under a name: replace the one of a previous (closed) instance
+        synchronized (QUEUE_SIZE) {
+            Metrics.defaultRegistry().removeMetric(QUEUE_SIZE);
+            Metrics.newGauge(QUEUE_SIZE, queueSize);
+        }
+
         for (int idx = 0; idx < senderCount; idx++) {
-            executor.submit(new SenderWorker(queue));
+            executor.submit(new SenderWorker(this));
         }
     }
 
@@ -54,18 +102,107 @@ public class LocalQueueAndWorkers
 
         executor.shutdownNow();
         queue.clear();
+        pendingFiles.clear();
+
+        synchronized (QUEUE_SIZE) {
+            // Unless a newer instance took over the gauge
+            if (Metrics.defaultRegistry().allMetrics().get(QUEUE_SIZE) == queueSize) {
+                Metrics.defaultRegistry().removeMetric(QUEUE_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Outcome of an offer
+     */
+    enum Offer
+    {
+        QUEUED,
+        // A file of the job is already queued or in flight, the job was dropped
+        DUPLICATE,
+        // The queue is full, the job was dropped
+        FULL
     }
 
-    public void offer(final HttpJob job)
+    /**
+     * Queue a job, unless its file is already queued or in flight
+     *
+     * @param job job to schedule
+     * @return false if the queue is full, true otherwise (including when the job was a duplicate)
+     */
+    public boolean offer(final HttpJob job)
     {
-        if (queue.offer(job)) {
-            jobsEnqueued.inc();
+        return tryOffer(job) != Offer.FULL;
+    }
+
+    /**
+     * Queue a job, unless its file is already queued or in flight
+     *
+     * @param job job to schedule
+     * @return whether the job was queued, and why not
+     */
+    Offer tryOffer(final HttpJob job)
+    {
+        final List<File> files = job.getFiles();
+        for (int i = 0; i < files.size(); i++) {
+            if (pendingFiles.putIfAbsent(files.get(i), Boolean.TRUE) != null) {
+                releaseAll(files.subList(0, i));
+                jobsDeduplicated.inc();
+                return Offer.DUPLICATE;
+            }
         }
-        else {
+
+        // The capacity is a soft limit: concurrent offers may overshoot it by the number of flusher threads
+        if (queue.size() >= capacity) {
+            releaseAll(files);
             jobsDropped.inc();
+            return Offer.FULL;
+        }
+
+        queue.add(new QueuedJob(job, job.getFile().lastModified(), sequence.getAndIncrement()));
+        jobsEnqueued.inc();
+        return Offer.QUEUED;
+    }
+
+    /**
+     * Called once the job for this file has completed (successfully or not), to accept it again
+     *
+     * @param file file sent
+     */
+    public void release(final File file)
+    {
+        pendingFiles.remove(file);
+    }
+
+    void releaseAll(final List<File> files)
+    {
+        for (final File file : files) {
+            release(file);
         }
     }
 
+    /**
+     * @param file spool file
+     * @return true if a job for this file is queued or in flight
+     */
+    public boolean isPending(final File file)
+    {
+        return pendingFiles.containsKey(file);
+    }
+
+    /**
+     * Wait for the next job, oldest file first
+     *
+     * @return the next job to submit
+     * @throws InterruptedException if interrupted while waiting
+     */
+    HttpJob take() throws InterruptedException
+    {
+        final QueuedJob queuedJob = queue.take();
+        jobsWaitTime.update(System.nanoTime() - queuedJob.enqueuedNanos, TimeUnit.NANOSECONDS);
+        return queuedJob.job;
+    }
+
     int queueSize()
     {
         return queue.size();
@@ -75,4 +212,30 @@ public class LocalQueueAndWorkers
     {
         return executor.isShutdown();
     }
-}
\ No newline at end of file
+
+    private static final class QueuedJob implements Comparable<QueuedJob>
+    {
+        private final HttpJob job;
+        private final long fileTimestamp;
+        private final long sequence;
+        private final long enqueuedNanos = System.nanoTime();
+
+        private QueuedJob(final HttpJob job, final long fileTimestamp, final long sequence)
+        {
+            this.job = job;
+            this.fileTimestamp = fileTimestamp;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(final QueuedJob other)
+        {
+            if (fileTimestamp != other.fileTimestamp) {
+                return fileTimestamp < other.fileTimestamp ? -1 : 1;
+            }
+
+            // FIFO for files of the same age
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
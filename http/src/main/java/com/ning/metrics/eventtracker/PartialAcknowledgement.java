@@ -0,0 +1,177 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Event-level acknowledgement of a spool file upload (opt-in, see eventtracker.http.partial-ack.enabled).
+ * <p/>
+ * The request advertises it with an X-Accept-Partial: bytes header, only for uncompressed spool files. Instead of
+ * failing the whole file, the collector can then answer with a 206 status and an X-Accepted-Bytes header: the length
+ * of the prefix of the file it accepted, which must end on an event boundary. The accepted prefix is cut from the
+ * spool file, so that only the remaining events are sent again. The header is ignored with any other status, or
+ * when the sender didn't opt in.
+ * <p/>
+ * The offset of a trimmed file in the original one is kept next to it (see getOffset), so that the collector can
+ * tell events apart by their offset in the original file (see DeliveryTracker). It is forgotten once the file leaves
+ * the spool (see SpoolFiles).
+ */
+final class PartialAcknowledgement
+{
+    private static final Logger log = LoggerFactory.getLogger(PartialAcknowledgement.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String ACCEPT_PARTIAL_HEADER = "X-Accept-Partial";
+    static final String ACCEPT_PARTIAL_BYTES = "bytes";
+    static final String ACCEPTED_BYTES_HEADER = "X-Accepted-Bytes";
+    // Partial Content
+    static final int PARTIAL_ACK_STATUS = 206;
+
+    private PartialAcknowledgement()
+    {
+    }
+
+    /**
+     * @param response response of the collector to the upload of file
+     * @param file     file uploaded
+     * @return the number of bytes of the file accepted by the collector, -1 if it didn't say (or said nonsense)
+     */
+    static long getAcceptedBytes(final Response response, final File file)
+    {
+        final String acceptedBytes = response.getHeader(ACCEPTED_BYTES_HEADER);
+        if (acceptedBytes == null) {
+            return -1;
+        }
+
+        try {
+            final long accepted = Long.parseLong(acceptedBytes.trim());
+            if (accepted >= 0 && accepted <= file.length()) {
+                return accepted;
+            }
+        }
+        catch (NumberFormatException ignored) {
+        }
+
+        log.warn("Ignoring invalid {} header for {} ({} bytes): {}", new Object[]{ACCEPTED_BYTES_HEADER, file, file.length(), acceptedBytes});
+        return -1;
+    }
+
+    /**
+     * Cut the accepted prefix of a spool file. The remainder is copied aside, then renamed over the file, so that
+     * a crash leaves either the whole file or the remainder in the spool. Its offset in the original file is
+     * recorded beforehand, along with its length: the recorded offset only applies once the rename happened.
+     *
+     * @param file          spool file, not being sent
+     * @param acceptedBytes length of the prefix to cut
+     * @throws IOException if the file couldn't be rewritten, in which case it is left as is
+     */
+    static void trim(final File file, final long acceptedBytes) throws IOException
+    {
+        final File offsetsFile = SpoolFiles.getOffsetsFile(file);
+        final File partialDirectory = offsetsFile.getParentFile();
+        if (!partialDirectory.isDirectory() && !partialDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory " + partialDirectory);
+        }
+
+        final File remainder = new File(partialDirectory, file.getName());
+        final long offset = getOffset(file) + acceptedBytes;
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileOutputStream out = new FileOutputStream(remainder);
+            try {
+                final FileChannel source = in.getChannel();
+                final FileChannel target = out.getChannel();
+                long position = acceptedBytes;
+                final long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                target.force(true);
+            }
+            finally {
+                out.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+
+        final FileOutputStream offsets = new FileOutputStream(offsetsFile, true);
+        try {
+            offsets.write(String.format("%d\t%d\n", offset, remainder.length()).getBytes(UTF_8));
+            offsets.getFD().sync();
+        }
+        finally {
+            offsets.close();
+        }
+
+        if (!remainder.renameTo(file)) {
+            remainder.delete();
+            throw new IOException(String.format("Unable to rename %s to %s", remainder, file));
+        }
+    }
+
+    /**
+     * @param file spool file
+     * @return the offset of the file in the original spool file, 0 if it was never trimmed
+     */
+    static long getOffset(final File file)
+    {
+        final File offsetsFile = SpoolFiles.getOffsetsFile(file);
+        if (!offsetsFile.exists()) {
+            return 0;
+        }
+
+        // One line per trim: offset, then length of the remainder. Lengths only decrease, at most one matches
+        final long length = file.length();
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(offsetsFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] fields = line.split("\t");
+                    if (fields.length == 2 && Long.parseLong(fields[1]) == length) {
+                        return Long.parseLong(fields[0]);
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (NumberFormatException e) {
+            // Crash while recording the last trim, whose rename didn't happen
+        }
+        catch (IOException e) {
+            log.warn("Unable to read " + offsetsFile, e);
+        }
+
+        return 0;
+    }
+}
@@ -16,13 +16,16 @@
 
 package com.ning.metrics.eventtracker;
 
-import java.util.concurrent.BlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class SenderWorker implements Runnable
 {
-    private final BlockingQueue<HttpJob> jobQueue;
+    private static final Logger log = LoggerFactory.getLogger(SenderWorker.class);
 
-    public SenderWorker(final BlockingQueue<HttpJob> jobQueue)
+    private final LocalQueueAndWorkers jobQueue;
+
+    public SenderWorker(final LocalQueueAndWorkers jobQueue)
     {
         this.jobQueue = jobQueue;
     }
@@ -30,14 +33,36 @@ public class SenderWorker implements Runnable
     public void run()
     {
         while (true) {
+            final HttpJob job;
             try {
-                final HttpJob job = jobQueue.take();
-                job.submitRequest();
+                job = jobQueue.take();
             }
             catch (InterruptedException ex) {
                 Thread.currentThread().interrupt();
                 return;
             }
+
+            submit(job);
+        }
+    }
+
+    private void submit(final HttpJob job)
+    {
+        boolean submitted = false;
+        try {
+            job.submitRequest();
+            submitted = true;
+        }
+        catch (RuntimeException e) {
+            // Don't let the worker die, nor the files of the job wait forever
+            log.warn(String.format("Unable to send %s", job.getFiles()), e);
+            job.onSubmitFailed(e);
+        }
+        finally {
+            if (!submitted) {
+                // Otherwise released once the request completes
+                jobQueue.releaseAll(job.getFiles());
+            }
         }
     }
-}
\ No newline at end of file
+}
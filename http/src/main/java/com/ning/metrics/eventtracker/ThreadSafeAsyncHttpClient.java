@@ -19,22 +19,35 @@ package com.ning.metrics.eventtracker;
 import com.ning.http.client.AsyncCompletionHandler;
 import com.ning.http.client.AsyncHttpClient;
 import com.ning.http.client.AsyncHttpClientConfig;
+import com.ning.http.client.FilePart;
+import com.ning.http.client.ListenableFuture;
 import com.ning.http.client.Request;
+import com.ning.http.client.RequestBuilder;
 import com.ning.http.client.Response;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Thread-safe wrapper class around the AsyncHttpClient which has weak synchronization contracts
  * between the client itself and the underlying providers (e.g. on close).
+ * <p/>
+ * Requests are submitted without locking: the client is held in an atomic reference and replaced with a
+ * compare-and-set when it fails, so that a handful of threads can keep it busy.
  */
 public class ThreadSafeAsyncHttpClient
 {
     private static final String URI_PATH = "/rest/1.0/event";
     private static final int DEFAULT_IDLE_CONNECTION_IN_POOL_TIMEOUT_IN_MS = 120000; // 2 minutes
+    // Delivery headers, repeated in the order of the parts for batches (see DeliveryTracker)
+    private static final String FILE_ID_HEADER = "X-Spool-File-Id";
+    private static final String FILE_OFFSET_HEADER = "X-Spool-File-Offset";
+    private static final String FILE_ATTEMPT_HEADER = "X-Spool-File-Attempt";
     private static final Map<EventType, String> headers = new HashMap<EventType, String>();
 
     static {
@@ -47,79 +60,220 @@ public class ThreadSafeAsyncHttpClient
     private final AtomicBoolean isClosed = new AtomicBoolean(false);
     private final String collectorURI;
     private final EventType eventType;
-    private final AsyncHttpClientConfig clientConfig;
     /**
-     * Timer used for ensuring we close persistent HTTP connections every now
-     * and then.
+     * How long can we keep on using the same persistent HTTP connection?
      */
-    private final ExpirationTimer httpConnectionExpiration;
+    private final long httpMaxKeepAliveInMillis;
+    /**
+     * Content-Encoding of the spool files (uploaded as is), null when not compressed
+     */
+    private final String contentEncoding;
+    /**
+     * Whether to let the collector acknowledge part of a spool file, see PartialAcknowledgement
+     */
+    private final boolean acceptPartialAcks;
+    /**
+     * Identifies the spool files sent, null not to
+     */
+    private final DeliveryTracker deliveryTracker;
 
-    private AsyncHttpClient client = null;
+    // Swapped atomically on failure, so that request submission never blocks
+    private final AtomicReference<AsyncHttpClient> clientReference = new AtomicReference<AsyncHttpClient>();
 
     public ThreadSafeAsyncHttpClient(final String collectorHost, final int collectorPort, final EventType eventType, final long httpMaxKeepAliveInMillis)
+    {
+        this(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis, SpoolCompression.NONE);
+    }
+
+    public ThreadSafeAsyncHttpClient(final String collectorHost, final int collectorPort, final EventType eventType, final long httpMaxKeepAliveInMillis,
+                                     final SpoolCompression spoolCompression)
+    {
+        this(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis, spoolCompression, false);
+    }
+
+    /**
+     * @param acceptPartialAcks whether the collector can acknowledge part of an uncompressed spool file
+     */
+    public ThreadSafeAsyncHttpClient(final String collectorHost, final int collectorPort, final EventType eventType, final long httpMaxKeepAliveInMillis,
+                                     final SpoolCompression spoolCompression, final boolean acceptPartialAcks)
+    {
+        this(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis, spoolCompression, acceptPartialAcks, null);
+    }
+
+    /**
+     * @param acceptPartialAcks whether the collector can acknowledge part of an uncompressed spool file
+     * @param deliveryTracker   identifies the spool files sent (ids, offsets and attempts), null not to
+     */
+    public ThreadSafeAsyncHttpClient(final String collectorHost, final int collectorPort, final EventType eventType, final long httpMaxKeepAliveInMillis,
+                                     final SpoolCompression spoolCompression, final boolean acceptPartialAcks, final DeliveryTracker deliveryTracker)
     {
         this.collectorURI = String.format("http://%s:%d%s", collectorHost, collectorPort, URI_PATH);
         this.eventType = eventType;
-        this.httpConnectionExpiration = new ExpirationTimer(httpMaxKeepAliveInMillis);
+        this.httpMaxKeepAliveInMillis = httpMaxKeepAliveInMillis;
+        this.contentEncoding = spoolCompression.getContentEncoding();
+        // Offsets in compressed files can't be matched with the events the collector decoded
+        this.acceptPartialAcks = acceptPartialAcks && contentEncoding == null;
+        this.deliveryTracker = deliveryTracker;
+    }
 
-        // CAUTION: it is not enforced that the actual event encoding type on the wire matches what the config says it is
-        // the event encoding type is determined by the Event's writeExternal() method.
-        this.clientConfig = new AsyncHttpClientConfig.Builder()
-                .setIdleConnectionInPoolTimeoutInMs(DEFAULT_IDLE_CONNECTION_IN_POOL_TIMEOUT_IN_MS)
-                .setConnectionTimeoutInMs(100)
-                .setMaximumConnectionsPerHost(-1) // unlimited connections
-                .build();
+    /**
+     * Send a spool file. The handler is always notified, also when the client is closed.
+     *
+     * @param file              file to send
+     * @param completionHandler handler for the request
+     * @return the future of the request, null if it couldn't be sent (the handler was notified)
+     */
+    public ListenableFuture<Response> executeRequest(final File file, final AsyncCompletionHandler<Response> completionHandler)
+    {
+        return execute(createPostRequest(file), completionHandler);
     }
 
-    public synchronized void executeRequest(final File file, final AsyncCompletionHandler<Response> completionHandler)
+    /**
+     * Send several spool files in a single multipart request, one part per file
+     *
+     * @param files             files to send
+     * @param completionHandler handler for the combined request
+     * @return the future of the request, null if it couldn't be sent (the handler was notified)
+     */
+    public ListenableFuture<Response> executeBatchRequest(final List<File> files, final AsyncCompletionHandler<Response> completionHandler)
     {
-        if (isClosed.get()) {
-            return;
-        }
+        return execute(createBatchPostRequest(files), completionHandler);
+    }
 
-        if (client == null || client.isClosed()) {
-            client = createClient();
+    private ListenableFuture<Response> execute(final Request request, final AsyncCompletionHandler<Response> completionHandler)
+    {
+        final AsyncHttpClient client = getOrCreateClient();
+        if (client == null) {
+            completionHandler.onThrowable(new IOException("Client to " + collectorURI + " closed"));
+            return null;
         }
 
-        final Request request = createPostRequest(file);
         try {
-            client.executeRequest(request, completionHandler);
+            return client.executeRequest(request, completionHandler);
         }
         catch (Exception e) {
             // Recycle the client on IOException and RuntimeExceptions
-            client.close();
-            client = createClient();
+            recycleClient(client);
             completionHandler.onThrowable(e);
+            return null;
         }
     }
 
-    public synchronized void close()
+    public void close()
     {
         isClosed.set(true);
+        final AsyncHttpClient client = clientReference.getAndSet(null);
         if (client != null) {
             client.close();
         }
     }
 
-    synchronized AsyncHttpClient createClient()
+    /**
+     * @return the current client, or null if we are closed
+     */
+    private AsyncHttpClient getOrCreateClient()
+    {
+        while (!isClosed.get()) {
+            final AsyncHttpClient current = clientReference.get();
+            if (current != null && !current.isClosed()) {
+                return current;
+            }
+
+            final AsyncHttpClient fresh = createClient();
+            if (!clientReference.compareAndSet(current, fresh)) {
+                // Another thread beat us to it, use its client
+                fresh.close();
+                continue;
+            }
+
+            if (isClosed.get()) {
+                // Raced with close()
+                clientReference.compareAndSet(fresh, null);
+                fresh.close();
+                return null;
+            }
+
+            return fresh;
+        }
+
+        return null;
+    }
+
+    /**
+     * Replace a client that failed. When several threads fail on the same client, only the first one recycles it.
+     */
+    private void recycleClient(final AsyncHttpClient failed)
     {
+        final AsyncHttpClient fresh = createClient();
+        if (clientReference.compareAndSet(failed, fresh)) {
+            failed.close();
+            if (isClosed.get() && clientReference.compareAndSet(fresh, null)) {
+                fresh.close();
+            }
+        }
+        else {
+            fresh.close();
+        }
+    }
+
+    AsyncHttpClient createClient()
+    {
+        // CAUTION: it is not enforced that the actual event encoding type on the wire matches what the config says it is
+        // the event encoding type is determined by the Event's writeExternal() method.
+        final AsyncHttpClientConfig clientConfig = new AsyncHttpClientConfig.Builder()
+                .setIdleConnectionInPoolTimeoutInMs(DEFAULT_IDLE_CONNECTION_IN_POOL_TIMEOUT_IN_MS)
+                .setConnectionTimeoutInMs(100)
+                .setMaximumConnectionsPerHost(-1) // unlimited connections
+                // Closing the client destroys its pool, each client needs its own
+                .setConnectionsPool(new ExpiringConnectionsPool(httpMaxKeepAliveInMillis, DEFAULT_IDLE_CONNECTION_IN_POOL_TIMEOUT_IN_MS))
+                .build();
+
         return new AsyncHttpClient(clientConfig);
     }
 
     Request createPostRequest(final File file)
     {
-        AsyncHttpClient.BoundRequestBuilder requestBuilder = client
-                .preparePost(collectorURI).setBody(file)
+        // Connections are rotated by the pool, to ensure load balancing works
+        final RequestBuilder requestBuilder = new RequestBuilder("POST")
+                .setUrl(collectorURI).setBody(file)
                 .setHeader("Content-Type", headers.get(eventType)); // zero-bytes-copy
+        if (contentEncoding != null) {
+            requestBuilder.setHeader("Content-Encoding", contentEncoding);
+        }
+        if (acceptPartialAcks) {
+            requestBuilder.setHeader(PartialAcknowledgement.ACCEPT_PARTIAL_HEADER, PartialAcknowledgement.ACCEPT_PARTIAL_BYTES);
+        }
+        addDeliveryHeaders(requestBuilder, file);
+
+        return requestBuilder.build();
+    }
 
-        /*
-         * Need to ensure we won't be using a single connection indefinitely,
-         * to ensure load balancing works.
-         */
-        if (httpConnectionExpiration.isExpired()) {
-            requestBuilder = requestBuilder.setHeader("Connection", "close");
+    Request createBatchPostRequest(final List<File> files)
+    {
+        // Parts can't carry their own Content-Encoding
+        if (contentEncoding != null) {
+            throw new IllegalStateException("Batching compressed spool files is not supported");
+        }
+
+        final RequestBuilder requestBuilder = new RequestBuilder("POST").setUrl(collectorURI);
+        for (final File file : files) {
+            // Parts are streamed from the files
+            requestBuilder.addBodyPart(new FilePart(file.getName(), file, headers.get(eventType), null));
+            addDeliveryHeaders(requestBuilder, file);
         }
 
         return requestBuilder.build();
     }
-}
\ No newline at end of file
+
+    private void addDeliveryHeaders(final RequestBuilder requestBuilder, final File file)
+    {
+        if (deliveryTracker == null) {
+            return;
+        }
+
+        // Together with the offset of each event in the body, the collector gets a unique key for it
+        requestBuilder.addHeader(FILE_ID_HEADER, deliveryTracker.getFileId(file));
+        requestBuilder.addHeader(FILE_OFFSET_HEADER, String.valueOf(PartialAcknowledgement.getOffset(file)));
+        requestBuilder.addHeader(FILE_ATTEMPT_HEADER, String.valueOf(Math.max(1, deliveryTracker.getAttempts(file))));
+    }
+}
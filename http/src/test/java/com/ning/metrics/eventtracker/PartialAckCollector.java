@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local collector stand-in, accepting at most maxBytesPerRequest of each upload (newline separated events).
+ * Requests advertising partial acknowledgements get the accepted prefix acknowledged, the others are all-or-nothing
+ * (unless the collector is told to ignore the opt-in).
+ */
+class PartialAckCollector
+{
+    private final ByteArrayOutputStream accepted = new ByteArrayOutputStream();
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final Server server;
+    private volatile boolean ignoreOptIn = false;
+
+    PartialAckCollector(final int maxBytesPerRequest)
+    {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException
+            {
+                requests.incrementAndGet();
+                final byte[] body = read(request.getInputStream());
+                final boolean acceptPartial = ignoreOptIn ||
+                                              PartialAcknowledgement.ACCEPT_PARTIAL_BYTES.equals(request.getHeader(PartialAcknowledgement.ACCEPT_PARTIAL_HEADER));
+
+                if (body.length <= maxBytesPerRequest) {
+                    accept(body, body.length);
+                    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                }
+                else {
+                    if (acceptPartial) {
+                        // Up to the last complete event fitting in the limit
+                        int acceptedBytes = maxBytesPerRequest;
+                        while (acceptedBytes > 0 && body[acceptedBytes - 1] != '\n') {
+                            acceptedBytes--;
+                        }
+                        accept(body, acceptedBytes);
+                        response.setHeader(PartialAcknowledgement.ACCEPTED_BYTES_HEADER, String.valueOf(acceptedBytes));
+                        response.setStatus(PartialAcknowledgement.PARTIAL_ACK_STATUS);
+                    }
+                    else {
+                        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    }
+                }
+                baseRequest.setHandled(true);
+            }
+        });
+    }
+
+    private byte[] read(final InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private synchronized void accept(final byte[] body, final int length)
+    {
+        accepted.write(body, 0, length);
+    }
+
+    void start() throws Exception
+    {
+        server.start();
+    }
+
+    void stop() throws Exception
+    {
+        server.stop();
+    }
+
+    /**
+     * @param ignoreOptIn true to acknowledge part of the uploads even if the request didn't advertise it
+     */
+    void setIgnoreOptIn(final boolean ignoreOptIn)
+    {
+        this.ignoreOptIn = ignoreOptIn;
+    }
+
+    int getPort()
+    {
+        return server.getConnectors()[0].getLocalPort();
+    }
+
+    int getRequests()
+    {
+        return requests.get();
+    }
+
+    synchronized String getAccepted()
+    {
+        return new String(accepted.toByteArray());
+    }
+}
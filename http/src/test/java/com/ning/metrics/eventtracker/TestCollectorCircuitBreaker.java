@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.Request;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.yammer.metrics.core.Timer;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestCollectorCircuitBreaker
+{
+    @Test(groups = "fast")
+    public void testOpensOnFailureRate() throws Exception
+    {
+        final CollectorCircuitBreaker breaker = new CollectorCircuitBreaker(50, 4, 60000);
+
+        // Not enough requests to judge
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onSuccess();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(breaker.getFailureRatePercent(), 33);
+        Assert.assertTrue(breaker.tryAcquire());
+
+        // 2 failures out of 4
+        breaker.onFailure();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.OPEN);
+        Assert.assertEquals(breaker.getTimesOpened(), 1);
+
+        Assert.assertFalse(breaker.tryAcquire());
+        Assert.assertTrue(breaker.reject());
+        Assert.assertEquals(breaker.getRequestsRejected(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testSlidingWindow() throws Exception
+    {
+        final CollectorCircuitBreaker breaker = new CollectorCircuitBreaker(75, 4, 60000);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onSuccess();
+        // The oldest failures slide out of the window
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.CLOSED);
+        Assert.assertEquals(breaker.getFailureRatePercent(), 50);
+
+        breaker.onFailure();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.OPEN);
+    }
+
+    @Test(groups = "slow")
+    public void testSingleProbeWhileHalfOpen() throws Exception
+    {
+        final CollectorCircuitBreaker breaker = new CollectorCircuitBreaker(100, 1, 100);
+        breaker.onFailure();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.OPEN);
+        Assert.assertFalse(breaker.tryAcquire());
+
+        Thread.sleep(150);
+        Assert.assertTrue(breaker.tryAcquire());
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.HALF_OPEN);
+        // A single probe at a time
+        Assert.assertFalse(breaker.tryAcquire());
+
+        // Failed probe
+        breaker.onFailure();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.OPEN);
+        Assert.assertEquals(breaker.getTimesOpened(), 2);
+
+        Thread.sleep(150);
+        Assert.assertTrue(breaker.tryAcquire());
+        // Given back without an outcome: another request can probe
+        breaker.release();
+        Assert.assertTrue(breaker.tryAcquire());
+        breaker.onSuccess();
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.CLOSED);
+        Assert.assertTrue(breaker.getTimeOpenInMillis() >= 200);
+        // OPEN, HALF_OPEN, OPEN, HALF_OPEN, CLOSED
+        Assert.assertEquals(breaker.getTransitions(), 5);
+    }
+
+    @Test(groups = "slow")
+    public void testHttpSenderSkipsRequestsWhileOpen() throws Exception
+    {
+        final ThreadSafeWithMockedAsyncHttpClient client = new ThreadSafeWithMockedAsyncHttpClient(new AtomicInteger(0), true, false);
+        final CollectorCircuitBreaker breaker = new CollectorCircuitBreaker(100, 2, 60000);
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(client))
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(2)
+            .circuitBreaker(breaker)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertFalse(sendAndWait(sender, new File("file-" + i)));
+        }
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.OPEN);
+
+        // Left in the spool right away, without any request nor callback
+        final File spoolDirectory = createSpoolDirectory();
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+        try {
+            for (int i = 2; i < 5; i++) {
+                sender.send(createLockedFile(spoolDirectory, "file-" + i), handler);
+                Assert.assertTrue(new File(spoolDirectory, "file-" + i).isFile());
+            }
+            Mockito.verifyZeroInteractions(handler);
+            Mockito.verify(client.getClient(), Mockito.times(2)).executeRequest(Mockito.<Request>any(), Mockito.<AsyncHandler<Object>>any());
+            Assert.assertEquals(breaker.getRequestsRejected(), 3);
+        }
+        finally {
+            sender.close();
+            deleteRecursively(spoolDirectory);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testRejectedFilesAreSentOnceTheBreakerCloses() throws Exception
+    {
+        final ThreadSafeWithMockedAsyncHttpClient client = new ThreadSafeWithMockedAsyncHttpClient(new AtomicInteger(0), true, false);
+        final CollectorCircuitBreaker breaker = new CollectorCircuitBreaker(100, 1, 100);
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(client))
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(2)
+            .circuitBreaker(breaker)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+
+        final File spoolDirectory = createSpoolDirectory();
+        try {
+            Assert.assertFalse(sendAndWait(sender, new File("file-0")));
+            Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.OPEN);
+
+            final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+            sender.send(createLockedFile(spoolDirectory, "file-1"), handler);
+            Mockito.verifyZeroInteractions(handler);
+
+            // The collector is back: the next flush sends the file again
+            client.setShouldFailDuringCallback(false);
+            Thread.sleep(150);
+            final File spooledFile = new File(spoolDirectory, "file-1");
+            Assert.assertTrue(spooledFile.isFile());
+            final File lockedFile = new File(new File(spoolDirectory, "_lock"), "file-1");
+            Assert.assertTrue(spooledFile.renameTo(lockedFile));
+            Assert.assertTrue(sendAndWait(sender, lockedFile));
+            Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.CLOSED);
+        }
+        finally {
+            sender.close();
+            deleteRecursively(spoolDirectory);
+        }
+    }
+
+    @Test(groups = "slow")
+    public void testDuplicateUploadGivesBackTheProbe() throws Exception
+    {
+        final CollectorCircuitBreaker breaker = new CollectorCircuitBreaker(100, 1, 100);
+        // No worker: uploads stay queued
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(new ThreadSafeWithMockedAsyncHttpClient()))
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(0)
+            .circuitBreaker(breaker)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+
+        final File file = new File("file");
+        sender.send(file, handler);
+
+        breaker.onFailure();
+        Thread.sleep(150);
+        // Deduplicated by the workers, no request will probe the collector
+        sender.send(file, handler);
+        Assert.assertEquals(breaker.getState(), CollectorCircuitBreaker.State.HALF_OPEN);
+        Assert.assertTrue(breaker.tryAcquire());
+
+        sender.close();
+    }
+
+    /**
+     * @return true if the file was sent, false if it failed
+     */
+    private boolean sendAndWait(final HttpSender sender, final File file) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean sent = new AtomicBoolean(false);
+        sender.send(file, new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                sent.set(true);
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return sent.get();
+    }
+
+    private File createSpoolDirectory() throws IOException
+    {
+        final File spoolDirectory = File.createTempFile("TestCollectorCircuitBreaker", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(new File(spoolDirectory, "_lock").mkdirs());
+        return spoolDirectory;
+    }
+
+    // A file handed to the sender by the DiskSpoolEventWriter
+    private File createLockedFile(final File spoolDirectory, final String name) throws IOException
+    {
+        final File file = new File(new File(spoolDirectory, "_lock"), name);
+        Assert.assertTrue(file.createNewFile());
+        return file;
+    }
+
+    private static void deleteRecursively(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.Response;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestCollectorLoadBalancer
+{
+    private static final List<File> FILES = Collections.singletonList(new File("spool-file.bin"));
+
+    @Test(groups = "fast")
+    public void testLeastOutstanding() throws Exception
+    {
+        // Requests never complete
+        final CollectorEndpoint first = new CollectorEndpoint("first:8080", Mockito.mock(ThreadSafeAsyncHttpClient.class), null, 3, 60000);
+        final CollectorEndpoint second = new CollectorEndpoint("second:8080", Mockito.mock(ThreadSafeAsyncHttpClient.class), null, 3, 60000);
+        final CollectorLoadBalancer loadBalancer = new CollectorLoadBalancer(Arrays.asList(first, second), CollectorSelection.LEAST_OUTSTANDING, "collectors");
+
+        for (int i = 0; i < 10; i++) {
+            loadBalancer.select().execute(FILES, new NoOpCompletionHandler());
+            Assert.assertTrue(Math.abs(first.getOutstandingRequests() - second.getOutstandingRequests()) <= 1);
+        }
+        Assert.assertEquals(first.getOutstandingRequests(), 5);
+        Assert.assertEquals(second.getOutstandingRequests(), 5);
+    }
+
+    @Test(groups = "slow")
+    public void testEjectionAndReinstatement() throws Exception
+    {
+        final CollectorEndpoint healthy = new CollectorEndpoint("healthy:8080", createClient(202), null, 2, 100);
+        final CollectorEndpoint failing = new CollectorEndpoint("failing:8080", createClient(503), null, 2, 100);
+        final CollectorLoadBalancer loadBalancer = new CollectorLoadBalancer(Arrays.asList(healthy, failing), CollectorSelection.LATENCY_WEIGHTED, "collectors");
+
+        failing.execute(FILES, new NoOpCompletionHandler());
+        Assert.assertEquals(loadBalancer.getEjectedCollectorCount(), 0);
+        failing.execute(FILES, new NoOpCompletionHandler());
+        Assert.assertEquals(loadBalancer.getEjectedCollectorCount(), 1);
+        Assert.assertEquals(loadBalancer.getEjections(), 1);
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertSame(loadBalancer.select(), healthy);
+        }
+
+        // Reinstated, on probation: a single failure ejects it again
+        Thread.sleep(150);
+        Assert.assertEquals(loadBalancer.getEjectedCollectorCount(), 0);
+        failing.execute(FILES, new NoOpCompletionHandler());
+        Assert.assertEquals(loadBalancer.getEjectedCollectorCount(), 1);
+        Assert.assertEquals(loadBalancer.getEjections(), 2);
+    }
+
+    @Test(groups = "fast")
+    public void testAllEjected() throws Exception
+    {
+        final CollectorEndpoint first = new CollectorEndpoint("first:8080", createClient(500), null, 1, 60000);
+        final CollectorEndpoint second = new CollectorEndpoint("second:8080", createClient(500), null, 1, 60000);
+        final CollectorLoadBalancer loadBalancer = new CollectorLoadBalancer(Arrays.asList(first, second), CollectorSelection.LEAST_OUTSTANDING, "collectors");
+
+        first.execute(FILES, new NoOpCompletionHandler());
+        Thread.sleep(10);
+        second.execute(FILES, new NoOpCompletionHandler());
+        Assert.assertEquals(loadBalancer.getEjectedCollectorCount(), 2);
+
+        // Still sending, to the collector reinstated first
+        Assert.assertSame(loadBalancer.select(), first);
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void testClosedClientFailsRequests() throws Exception
+    {
+        final ThreadSafeWithMockedAsyncHttpClient client = new ThreadSafeWithMockedAsyncHttpClient();
+        final CollectorEndpoint endpoint = new CollectorEndpoint("closed:8080", client, null, 0, 0);
+        endpoint.close();
+
+        final AsyncCompletionHandler<Response> handler = Mockito.mock(AsyncCompletionHandler.class);
+        endpoint.execute(FILES, handler);
+        Mockito.verify(handler, Mockito.times(1)).onThrowable(Mockito.<Throwable>any());
+        Assert.assertEquals(endpoint.getOutstandingRequests(), 0);
+        Assert.assertNull(client.getClient());
+    }
+
+    @SuppressWarnings("unchecked")
+    private ThreadSafeAsyncHttpClient createClient(final int statusCode)
+    {
+        final ThreadSafeAsyncHttpClient client = Mockito.mock(ThreadSafeAsyncHttpClient.class);
+        Mockito.doAnswer(new Answer()
+        {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable
+            {
+                final Response response = Mockito.mock(Response.class);
+                Mockito.when(response.getStatusCode()).thenReturn(statusCode);
+                ((AsyncCompletionHandler<Response>) invocation.getArguments()[1]).onCompleted(response);
+                return null;
+            }
+        }).when(client).executeRequest(Mockito.<File>any(), Mockito.<AsyncCompletionHandler<Response>>any());
+
+        return client;
+    }
+
+    private static final class NoOpCompletionHandler extends AsyncCompletionHandler<Response>
+    {
+        @Override
+        public Response onCompleted(final Response response)
+        {
+            return response;
+        }
+    }
+}
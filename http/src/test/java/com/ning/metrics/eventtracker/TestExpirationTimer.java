@@ -32,4 +32,35 @@ public class TestExpirationTimer
         // Check the timer is reset
         Assert.assertFalse(timer.isExpired());
     }
+
+    @Test(groups = "fast")
+    public void testExpiresAfterMaxKeepAlive() throws Exception
+    {
+        final ExpirationTimer timer = new ExpirationTimer(1000);
+
+        // Starts the timer
+        Assert.assertFalse(timer.isExpired(5000));
+        Assert.assertFalse(timer.isExpired(5500));
+        Assert.assertFalse(timer.isExpired(5999));
+        // Only one caller is told about the expiration
+        Assert.assertTrue(timer.isExpired(6000));
+        Assert.assertFalse(timer.isExpired(6000));
+        Assert.assertFalse(timer.isExpired(6999));
+        Assert.assertTrue(timer.isExpired(7000));
+    }
+
+    @Test(groups = "fast")
+    public void testHasExpiredDoesNotReset() throws Exception
+    {
+        final ExpirationTimer timer = new ExpirationTimer(1000);
+
+        // Not started yet
+        Assert.assertFalse(timer.hasExpired(5000));
+        Assert.assertFalse(timer.isExpired(5000));
+        Assert.assertFalse(timer.hasExpired(5999));
+        Assert.assertTrue(timer.hasExpired(6000));
+        Assert.assertTrue(timer.hasExpired(6000));
+        Assert.assertTrue(timer.isExpired(6000));
+        Assert.assertFalse(timer.hasExpired(6000));
+    }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.Response;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestExpiringConnectionsPool
+{
+    private static final MetricName CONNECTIONS_POOLED = new MetricName(ExpiringConnectionsPool.class, "connectionsPooled");
+    private static final MetricName CONNECTIONS_ROTATED = new MetricName(ExpiringConnectionsPool.class, "connectionsRotated");
+    private static final String URI = "http://127.0.0.1:8080";
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        // The default registry is static :(
+        Metrics.defaultRegistry().removeMetric(CONNECTIONS_POOLED);
+        Metrics.defaultRegistry().removeMetric(CONNECTIONS_ROTATED);
+    }
+
+    @Test(groups = "fast")
+    public void testReuseUntilExpiration() throws Exception
+    {
+        final ExpiringConnectionsPool pool = createPool(1000, 60000);
+        final Channel channel = createChannel();
+
+        Assert.assertNull(pool.poll(URI, 0));
+        Assert.assertTrue(pool.offer(URI, channel, 0));
+        Assert.assertSame(pool.poll(URI, 500), channel);
+        Assert.assertTrue(pool.offer(URI, channel, 600));
+        Assert.assertEquals(pool.getOpenConnections(), 1);
+        Assert.assertEquals(getMeter(CONNECTIONS_POOLED).count(), 1);
+
+        // Past the keep-alive time, the connection is refused (and closed by the provider)
+        Assert.assertSame(pool.poll(URI, 700), channel);
+        Assert.assertFalse(pool.offer(URI, channel, 1000));
+        Assert.assertEquals(pool.getOpenConnections(), 0);
+        Assert.assertEquals(getMeter(CONNECTIONS_ROTATED).count(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testConnectionsExpireIndependently() throws Exception
+    {
+        final ExpiringConnectionsPool pool = createPool(1000, 60000);
+        final Channel first = createChannel();
+        final Channel second = createChannel();
+
+        Assert.assertTrue(pool.offer(URI, first, 0));
+        Assert.assertTrue(pool.offer(URI, second, 500));
+
+        // The first connection is expired by now: it is closed, and the second one is handed out
+        Assert.assertSame(pool.poll(URI, 1200), second);
+        Mockito.verify(first, Mockito.times(1)).close();
+        Mockito.verify(second, Mockito.times(0)).close();
+        Assert.assertNull(pool.poll(URI, 1200));
+
+        Assert.assertTrue(pool.offer(URI, second, 1300));
+        Assert.assertEquals(getMeter(CONNECTIONS_POOLED).count(), 2);
+        Assert.assertEquals(getMeter(CONNECTIONS_ROTATED).count(), 1);
+    }
+
+    @Test(groups = "fast")
+    public void testIdleConnectionsAreClosed() throws Exception
+    {
+        final ExpiringConnectionsPool pool = createPool(60000, 1000);
+        final Channel channel = createChannel();
+
+        Assert.assertTrue(pool.offer(URI, channel, 0));
+        Assert.assertNull(pool.poll(URI, 1000));
+        Mockito.verify(channel, Mockito.times(1)).close();
+        Assert.assertEquals(getMeter(CONNECTIONS_ROTATED).count(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testReaperClosesStaleIdleConnections() throws Exception
+    {
+        final ExpiringConnectionsPool pool = createPool(1000, 500);
+        final Channel expired = createChannel();
+        final Channel idle = createChannel();
+        final Channel fresh = createChannel();
+
+        Assert.assertTrue(pool.offer(URI, expired, 0));
+        Assert.assertSame(pool.poll(URI, 400), expired);
+        Assert.assertTrue(pool.offer(URI, expired, 900));
+        Assert.assertTrue(pool.offer(URI, idle, 400));
+        Assert.assertTrue(pool.offer(URI, fresh, 1000));
+
+        // No offer nor poll needed
+        pool.reap(1100);
+        Mockito.verify(expired, Mockito.times(1)).close();
+        Mockito.verify(idle, Mockito.times(1)).close();
+        Mockito.verify(fresh, Mockito.times(0)).close();
+        Assert.assertEquals(pool.getOpenConnections(), 1);
+        Assert.assertEquals(getMeter(CONNECTIONS_ROTATED).count(), 1);
+
+        Assert.assertSame(pool.poll(URI, 1100), fresh);
+        Assert.assertNull(pool.poll(URI, 1100));
+        pool.destroy();
+    }
+
+    @Test(groups = "fast")
+    public void testDestroy() throws Exception
+    {
+        final ExpiringConnectionsPool pool = createPool(60000, 60000);
+        final Channel channel = createChannel();
+
+        Assert.assertTrue(pool.offer(URI, channel, 0));
+        pool.destroy();
+        Mockito.verify(channel, Mockito.times(1)).close();
+        Assert.assertFalse(pool.canCacheConnection());
+        Assert.assertFalse(pool.offer(URI, createChannel(), 0));
+    }
+
+    @Test(groups = "slow")
+    public void testKeepAliveReuse() throws Exception
+    {
+        final Server server = new Server(0);
+        server.setHandler(new AbstractHandler()
+        {
+            @Override
+            public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException
+            {
+                final InputStream in = request.getInputStream();
+                while (in.read() != -1) {
+                    // Drain the body
+                }
+
+                response.setStatus(HttpServletResponse.SC_ACCEPTED);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+
+        final File file = File.createTempFile("TestExpiringConnectionsPool", ".json");
+        final FileWriter writer = new FileWriter(file);
+        writer.write("{ \"eventName\":\"Hello\", \"payload\": { \"dontcare\": \"World\" } }");
+        writer.close();
+
+        final int port = server.getConnectors()[0].getLocalPort();
+        final ThreadSafeAsyncHttpClient client = new ThreadSafeAsyncHttpClient("127.0.0.1", port, EventType.JSON, 120000);
+        try {
+            for (int i = 0; i < 5; i++) {
+                final CountDownLatch latch = new CountDownLatch(1);
+                client.executeRequest(file, new AsyncCompletionHandler<Response>()
+                {
+                    @Override
+                    public Response onCompleted(final Response response)
+                    {
+                        Assert.assertEquals(response.getStatusCode(), 202);
+                        latch.countDown();
+                        return response;
+                    }
+                });
+                Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            }
+
+            // All requests went over the same persistent connection
+            Assert.assertEquals(getMeter(CONNECTIONS_POOLED).count(), 1);
+            Assert.assertEquals(getMeter(CONNECTIONS_ROTATED).count(), 0);
+        }
+        finally {
+            client.close();
+            server.stop();
+            file.delete();
+        }
+    }
+
+    // Without the reaper: the tests drive the clock
+    private ExpiringConnectionsPool createPool(final long maxKeepAliveInMillis, final long idleTimeoutInMillis)
+    {
+        return new ExpiringConnectionsPool(maxKeepAliveInMillis, idleTimeoutInMillis, 0);
+    }
+
+    private Channel createChannel()
+    {
+        final Channel channel = Mockito.mock(Channel.class);
+        Mockito.when(channel.isOpen()).thenReturn(true);
+        Mockito.when(channel.getCloseFuture()).thenReturn(Mockito.mock(ChannelFuture.class));
+        return channel;
+    }
+
+    private Meter getMeter(final MetricName name)
+    {
+        return (Meter) Metrics.defaultRegistry().allMetrics().get(name);
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Timer;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestHedgedUploads
+{
+    private final Timer sendTimer = Metrics.newTimer(TestHedgedUploads.class, "uploads", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+    @Test(groups = "slow")
+    public void testFirstAcknowledgementWins() throws Exception
+    {
+        final BlockingQueue<AsyncCompletionHandler<Response>> requests = new LinkedBlockingQueue<AsyncCompletionHandler<Response>>();
+        final BlockingQueue<ListenableFuture<Response>> futures = new LinkedBlockingQueue<ListenableFuture<Response>>();
+        final HttpSender sender = createSender(requests, futures);
+        final CountingCallbackHandler handler = new CountingCallbackHandler();
+
+        sender.send(new File("spool-file.bin"), handler);
+        final AsyncCompletionHandler<Response> primary = requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(primary);
+
+        // Sent to the other collector after the minimum delay
+        final AsyncCompletionHandler<Response> hedge = requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(hedge);
+        Assert.assertEquals(sender.getHedgedUploads(), 1);
+
+        hedge.onCompleted(createResponse(202));
+        Assert.assertEquals(handler.successes.get(), 1);
+        Assert.assertEquals(sender.getHedgesWon(), 1);
+
+        // The request to the slow collector is abandoned
+        final ListenableFuture<Response> primaryFuture = futures.poll();
+        final ListenableFuture<Response> hedgeFuture = futures.poll();
+        Mockito.verify(primaryFuture).cancel(true);
+        Mockito.verify(hedgeFuture, Mockito.never()).cancel(Mockito.anyBoolean());
+
+        // The slow collector answers eventually
+        primary.onCompleted(createResponse(202));
+        Assert.assertEquals(handler.successes.get(), 1);
+        Assert.assertEquals(handler.errors.get(), 0);
+
+        sender.close();
+    }
+
+    @Test(groups = "slow")
+    public void testFailsOnceAllAttemptsFailed() throws Exception
+    {
+        final BlockingQueue<AsyncCompletionHandler<Response>> requests = new LinkedBlockingQueue<AsyncCompletionHandler<Response>>();
+        final BlockingQueue<ListenableFuture<Response>> futures = new LinkedBlockingQueue<ListenableFuture<Response>>();
+        final HttpSender sender = createSender(requests, futures);
+        final CountingCallbackHandler handler = new CountingCallbackHandler();
+
+        sender.send(new File("spool-file.bin"), handler);
+        final AsyncCompletionHandler<Response> primary = requests.poll(5, TimeUnit.SECONDS);
+        final AsyncCompletionHandler<Response> hedge = requests.poll(5, TimeUnit.SECONDS);
+        Assert.assertNotNull(hedge);
+
+        // The hedge may still succeed
+        primary.onThrowable(new IOException("Connection reset"));
+        Assert.assertEquals(handler.errors.get(), 0);
+
+        hedge.onCompleted(createResponse(503));
+        Assert.assertEquals(handler.errors.get(), 1);
+        Assert.assertEquals(handler.successes.get(), 0);
+
+        // Nothing left to cancel
+        for (final ListenableFuture<Response> future : futures) {
+            Mockito.verify(future, Mockito.never()).cancel(Mockito.anyBoolean());
+        }
+
+        sender.close();
+    }
+
+    @Test(groups = "slow")
+    public void testNoHedgeForFastUploads() throws Exception
+    {
+        final BlockingQueue<AsyncCompletionHandler<Response>> requests = new LinkedBlockingQueue<AsyncCompletionHandler<Response>>();
+        final BlockingQueue<ListenableFuture<Response>> futures = new LinkedBlockingQueue<ListenableFuture<Response>>();
+        final HttpSender sender = createSender(requests, futures);
+        final CountingCallbackHandler handler = new CountingCallbackHandler();
+
+        sender.send(new File("spool-file.bin"), handler);
+        requests.poll(5, TimeUnit.SECONDS).onCompleted(createResponse(202));
+
+        Assert.assertNull(requests.poll(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(sender.getHedgedUploads(), 0);
+        Assert.assertEquals(handler.successes.get(), 1);
+        Mockito.verify(futures.poll(), Mockito.never()).cancel(Mockito.anyBoolean());
+
+        sender.close();
+    }
+
+    private HttpSender createSender(final BlockingQueue<AsyncCompletionHandler<Response>> requests, final BlockingQueue<ListenableFuture<Response>> futures)
+    {
+        final CollectorEndpoint first = new CollectorEndpoint("first:8080", createClient(requests, futures), null, 3, 60000);
+        final CollectorEndpoint second = new CollectorEndpoint("second:8080", createClient(requests, futures), null, 3, 60000);
+        final CollectorLoadBalancer loadBalancer = new CollectorLoadBalancer(Arrays.asList(first, second), CollectorSelection.LEAST_OUTSTANDING, "collectors");
+
+        // No upload times yet: hedge after the minimum delay
+        return new HttpSender.Builder(loadBalancer)
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(1)
+            .hedging(0.95, 100)
+            .sendTimer(sendTimer)
+            .build();
+    }
+
+    // Requests are completed by the tests
+    @SuppressWarnings("unchecked")
+    private ThreadSafeAsyncHttpClient createClient(final BlockingQueue<AsyncCompletionHandler<Response>> requests, final BlockingQueue<ListenableFuture<Response>> futures)
+    {
+        final ThreadSafeAsyncHttpClient client = Mockito.mock(ThreadSafeAsyncHttpClient.class);
+        Mockito.doAnswer(new Answer()
+        {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable
+            {
+                final ListenableFuture<Response> future = Mockito.mock(ListenableFuture.class);
+                futures.add(future);
+                requests.add((AsyncCompletionHandler<Response>) invocation.getArguments()[1]);
+                return future;
+            }
+        }).when(client).executeRequest(Mockito.<File>any(), Mockito.<AsyncCompletionHandler<Response>>any());
+
+        return client;
+    }
+
+    private Response createResponse(final int statusCode)
+    {
+        final Response response = Mockito.mock(Response.class);
+        Mockito.when(response.getStatusCode()).thenReturn(statusCode);
+        return response;
+    }
+
+    private static final class CountingCallbackHandler implements CallbackHandler
+    {
+        private final AtomicInteger successes = new AtomicInteger(0);
+        private final AtomicInteger errors = new AtomicInteger(0);
+
+        @Override
+        public void onError(final Throwable t, final File file)
+        {
+            errors.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess(final File file)
+        {
+            successes.incrementAndGet();
+        }
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.ning.metrics.eventtracker;
 
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.Request;
 import com.ning.metrics.serialization.writer.CallbackHandler;
 
 import com.yammer.metrics.core.Timer;
@@ -24,7 +26,11 @@ import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestHttpSenderWorkers
@@ -165,4 +171,150 @@ public class TestHttpSenderWorkers
         sender.close();
         Mockito.verify(client.getClient(), Mockito.times(1)).close();
     }
-}
\ No newline at end of file
+
+    @Test(groups = "slow")
+    public void testSmallFilesAreBatched() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(3);
+        final AtomicInteger successes = new AtomicInteger(0);
+        final CallbackHandler handler = new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(final File obj)
+            {
+                successes.incrementAndGet();
+                latch.countDown();
+            }
+        };
+        final ThreadSafeWithMockedAsyncHttpClient client = new ThreadSafeWithMockedAsyncHttpClient();
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(client))
+            .httpMaxWaitTimeInMillis(System.currentTimeMillis())
+            .httpWorkersPoolSize(10)
+            .httpBatching(1024, 50)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            final File file = File.createTempFile("TestHttpSenderWorkers", ".bin");
+            final FileWriter writer = new FileWriter(file);
+            writer.write("some events");
+            writer.close();
+            files.add(file);
+            sender.send(file, handler);
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(successes.get(), 3);
+        // All three files went in a single request
+        Mockito.verify(client.getClient(), Mockito.times(1)).executeRequest(Mockito.<Request>any(), Mockito.<AsyncHandler<Object>>any());
+
+        sender.close();
+        for (final File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testQueueFullLeavesFilesInSpool() throws Exception
+    {
+        final File spoolDirectory = File.createTempFile("TestHttpSenderWorkers", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        final File lockDirectory = new File(spoolDirectory, "_lock");
+        Assert.assertTrue(lockDirectory.mkdirs());
+
+        final AtomicInteger callbacks = new AtomicInteger(0);
+        final CallbackHandler handler = new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                callbacks.incrementAndGet();
+            }
+
+            @Override
+            public void onSuccess(final File obj)
+            {
+                callbacks.incrementAndGet();
+            }
+        };
+        // No worker to drain the queue
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(new ThreadSafeWithMockedAsyncHttpClient()))
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(0)
+            .httpQueueCapacity(1)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+
+        final File queuedFile = new File(lockDirectory, "queued.bin");
+        final File rejectedFile = new File(lockDirectory, "rejected.bin");
+        Assert.assertTrue(queuedFile.createNewFile());
+        Assert.assertTrue(rejectedFile.createNewFile());
+        sender.send(queuedFile, handler);
+        sender.send(rejectedFile, handler);
+
+        // Back in the spool area for the next flush, not failed (which would quarantine it)
+        Assert.assertEquals(callbacks.get(), 0);
+        Assert.assertTrue(queuedFile.exists());
+        Assert.assertFalse(rejectedFile.exists());
+        Assert.assertTrue(new File(spoolDirectory, "rejected.bin").exists());
+
+        sender.close();
+        Assert.assertTrue(queuedFile.delete());
+        Assert.assertTrue(new File(spoolDirectory, "rejected.bin").delete());
+        Assert.assertTrue(lockDirectory.delete());
+        Assert.assertTrue(spoolDirectory.delete());
+    }
+
+    @Test(groups = "fast")
+    public void testCloseLeavesOpenBatchInSpool() throws Exception
+    {
+        final File spoolDirectory = File.createTempFile("TestHttpSenderWorkers", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        final File lockDirectory = new File(spoolDirectory, "_lock");
+        Assert.assertTrue(lockDirectory.mkdirs());
+
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+        // Closed long before the batch would be sent
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(new ThreadSafeWithMockedAsyncHttpClient()))
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(1)
+            .httpBatching(1024, 60000)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 2; i++) {
+            final File file = new File(lockDirectory, "spool-file-" + i + ".bin");
+            final FileWriter writer = new FileWriter(file);
+            writer.write("some events");
+            writer.close();
+            files.add(file);
+            sender.send(file, handler);
+        }
+        sender.close();
+
+        // Back in the spool area for the next run, not failed (which would quarantine them)
+        Mockito.verifyZeroInteractions(handler);
+        for (final File file : files) {
+            Assert.assertFalse(file.exists());
+            Assert.assertTrue(new File(spoolDirectory, file.getName()).delete());
+        }
+
+        // Files sent once closed aren't held either
+        final File lateFile = new File(lockDirectory, "late.bin");
+        Assert.assertTrue(lateFile.createNewFile());
+        sender.send(lateFile, handler);
+        Mockito.verifyZeroInteractions(handler);
+        Assert.assertTrue(new File(spoolDirectory, "late.bin").delete());
+
+        Assert.assertTrue(lockDirectory.delete());
+        Assert.assertTrue(spoolDirectory.delete());
+    }
+}
@@ -18,27 +18,41 @@ package com.ning.metrics.eventtracker;
 
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.MetricName;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class TestLocalQueueAndWorkers
 {
     private static final MetricName JOBS_ENQUEUED = new MetricName(LocalQueueAndWorkers.class, "jobsEnqueued");
     private static final MetricName JOBS_DROPPED = new MetricName(LocalQueueAndWorkers.class, "jobsDropped");
+    private static final MetricName JOBS_DEDUPLICATED = new MetricName(LocalQueueAndWorkers.class, "jobsDeduplicated");
+    private static final MetricName JOBS_WAIT_TIME = new MetricName(LocalQueueAndWorkers.class, "jobsWaitTime");
+    private static final MetricName QUEUE_SIZE = new MetricName(LocalQueueAndWorkers.class, "queueSize");
 
+    @BeforeMethod(alwaysRun = true)
     @AfterMethod(alwaysRun = true)
-    public void tearDown() throws Exception
+    public void resetMetrics() throws Exception
     {
-        // The default registry is static :(
+        // The default registry is static :( Other tests of the JVM update the counters too
         Metrics.defaultRegistry().removeMetric(JOBS_ENQUEUED);
         Metrics.defaultRegistry().removeMetric(JOBS_DROPPED);
+        Metrics.defaultRegistry().removeMetric(JOBS_DEDUPLICATED);
+        Metrics.defaultRegistry().removeMetric(JOBS_WAIT_TIME);
+        Metrics.defaultRegistry().removeMetric(QUEUE_SIZE);
     }
 
     @Test(groups = "fast", expectedExceptions = IllegalArgumentException.class)
@@ -52,7 +66,6 @@ public class TestLocalQueueAndWorkers
     @Test(groups = "fast")
     public void testSubmitJobsWithNoWorker() throws Exception
     {
-        final HttpJob job = Mockito.mock(HttpJob.class);
         final LocalQueueAndWorkers workers = new LocalQueueAndWorkers(0);
         final Counter jobsEnqueued = (Counter) Metrics.defaultRegistry().allMetrics().get(JOBS_ENQUEUED);
         final Counter jobsDropped = (Counter) Metrics.defaultRegistry().allMetrics().get(JOBS_DROPPED);
@@ -63,8 +76,11 @@ public class TestLocalQueueAndWorkers
         Assert.assertEquals(jobsEnqueued.count(), 0);
         Assert.assertEquals(jobsDropped.count(), 0);
 
+        final List<HttpJob> jobs = new ArrayList<HttpJob>();
         for (int i = 1; i < 10; i++) {
-            workers.offer(job);
+            final HttpJob job = createJob("file-" + i, i);
+            jobs.add(job);
+            Assert.assertTrue(workers.offer(job));
             Assert.assertEquals(workers.queueSize(), i);
             Assert.assertEquals(workers.isShutdown(), false);
             Assert.assertEquals(jobsEnqueued.count(), i);
@@ -77,7 +93,30 @@ public class TestLocalQueueAndWorkers
         Assert.assertEquals(workers.isShutdown(), true);
 
         // Verify no worker was ever spawned
-        Mockito.verify(job, Mockito.times(0)).submitRequest();
+        for (final HttpJob job : jobs) {
+            Mockito.verify(job, Mockito.times(0)).submitRequest();
+        }
+    }
+
+    @Test(groups = "fast")
+    @SuppressWarnings("unchecked")
+    public void testQueueSizeGaugeFollowsTheLatestInstance() throws Exception
+    {
+        final LocalQueueAndWorkers previousWorkers = new LocalQueueAndWorkers(0);
+        Assert.assertTrue(previousWorkers.offer(createJob("file-1", 1)));
+        final LocalQueueAndWorkers workers = new LocalQueueAndWorkers(0);
+        Assert.assertTrue(workers.offer(createJob("file-2", 2)));
+        Assert.assertTrue(workers.offer(createJob("file-3", 3)));
+
+        final Gauge<Integer> queueSize = (Gauge<Integer>) Metrics.defaultRegistry().allMetrics().get(QUEUE_SIZE);
+        Assert.assertEquals((int) queueSize.value(), 2);
+
+        // Closing a previous instance leaves the gauge of the current one
+        previousWorkers.close();
+        Assert.assertSame(Metrics.defaultRegistry().allMetrics().get(QUEUE_SIZE), queueSize);
+
+        workers.close();
+        Assert.assertNull(Metrics.defaultRegistry().allMetrics().get(QUEUE_SIZE));
     }
 
     @Test(groups = "fast")
@@ -85,7 +124,7 @@ public class TestLocalQueueAndWorkers
     {
         // Latch to make this thread block until the worker has done his job
         final CountDownLatch latch = new CountDownLatch(1);
-        final HttpJob job = Mockito.mock(HttpJob.class);
+        final HttpJob job = createJob("file", 1);
         Mockito.doAnswer(new Answer()
         {
             @Override
@@ -120,4 +159,119 @@ public class TestLocalQueueAndWorkers
         Assert.assertEquals(workers.queueSize(), 0);
         Assert.assertEquals(workers.isShutdown(), true);
     }
-}
\ No newline at end of file
+
+    @Test(groups = "fast")
+    public void testWorkerSurvivesFailedSubmission() throws Exception
+    {
+        final HttpJob failingJob = createJob("failing", 1);
+        Mockito.doThrow(new IllegalStateException("IGNORE - Expected exception for tests")).when(failingJob).submitRequest();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final HttpJob job = createJob("file", 2);
+        Mockito.doAnswer(new Answer()
+        {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable
+            {
+                latch.countDown();
+                return null;
+            }
+        }).when(job).submitRequest();
+
+        final LocalQueueAndWorkers workers = new LocalQueueAndWorkers(1);
+        workers.offer(failingJob);
+        workers.offer(job);
+
+        // The worker is still alive, the failed job was failed back and its file released
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Mockito.verify(failingJob, Mockito.times(1)).onSubmitFailed(Mockito.<Throwable>any());
+        Assert.assertFalse(workers.isPending(failingJob.getFile()));
+        // Still in flight
+        Assert.assertTrue(workers.isPending(job.getFile()));
+
+        workers.close();
+    }
+
+    @Test(groups = "fast")
+    public void testBoundedQueue() throws Exception
+    {
+        final LocalQueueAndWorkers workers = new LocalQueueAndWorkers(0, 2);
+        final Counter jobsDropped = (Counter) Metrics.defaultRegistry().allMetrics().get(JOBS_DROPPED);
+
+        Assert.assertTrue(workers.offer(createJob("file-1", 1)));
+        Assert.assertEquals(workers.tryOffer(createJob("file-2", 2)), LocalQueueAndWorkers.Offer.QUEUED);
+        Assert.assertFalse(workers.offer(createJob("file-3", 3)));
+        Assert.assertEquals(workers.tryOffer(createJob("file-3", 3)), LocalQueueAndWorkers.Offer.FULL);
+        Assert.assertEquals(workers.queueSize(), 2);
+        Assert.assertEquals(jobsDropped.count(), 2);
+
+        // The rejected file can be offered again once there is room
+        workers.take();
+        Assert.assertTrue(workers.offer(createJob("file-3", 3)));
+        Assert.assertEquals(workers.queueSize(), 2);
+
+        workers.close();
+    }
+
+    @Test(groups = "fast")
+    public void testDeduplicateFilesInFlight() throws Exception
+    {
+        final LocalQueueAndWorkers workers = new LocalQueueAndWorkers(0);
+        final Counter jobsEnqueued = (Counter) Metrics.defaultRegistry().allMetrics().get(JOBS_ENQUEUED);
+        final Counter jobsDeduplicated = (Counter) Metrics.defaultRegistry().allMetrics().get(JOBS_DEDUPLICATED);
+
+        Assert.assertTrue(workers.offer(createJob("file", 1)));
+        Assert.assertEquals(workers.tryOffer(createJob("file", 1)), LocalQueueAndWorkers.Offer.DUPLICATE);
+        Assert.assertEquals(workers.queueSize(), 1);
+        Assert.assertEquals(jobsDeduplicated.count(), 1);
+
+        // Still deduplicated while in flight
+        workers.take();
+        Assert.assertTrue(workers.offer(createJob("file", 1)));
+        Assert.assertEquals(workers.queueSize(), 0);
+        Assert.assertEquals(jobsDeduplicated.count(), 2);
+
+        // Accepted again once completed
+        workers.release(new File("file"));
+        Assert.assertTrue(workers.offer(createJob("file", 1)));
+        Assert.assertEquals(workers.queueSize(), 1);
+        Assert.assertEquals(jobsEnqueued.count(), 2);
+
+        workers.close();
+    }
+
+    @Test(groups = "fast")
+    public void testOldestFileFirst() throws Exception
+    {
+        final LocalQueueAndWorkers workers = new LocalQueueAndWorkers(0);
+        final HttpJob newest = createJob("newest", 3000);
+        final HttpJob oldest = createJob("oldest", 1000);
+        final HttpJob middle = createJob("middle", 2000);
+        workers.offer(newest);
+        workers.offer(oldest);
+        workers.offer(middle);
+
+        Assert.assertSame(workers.take(), oldest);
+        Assert.assertSame(workers.take(), middle);
+        Assert.assertSame(workers.take(), newest);
+
+        workers.close();
+    }
+
+    private HttpJob createJob(final String fileName, final long lastModified)
+    {
+        final File file = new File(fileName)
+        {
+            @Override
+            public long lastModified()
+            {
+                return lastModified;
+            }
+        };
+
+        final HttpJob job = Mockito.mock(HttpJob.class);
+        Mockito.when(job.getFile()).thenReturn(file);
+        Mockito.when(job.getFiles()).thenReturn(Collections.<File>singletonList(file));
+        return job;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.Request;
+import com.ning.http.client.Response;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.yammer.metrics.core.Timer;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TestPartialAcknowledgement
+{
+    private PartialAckCollector collector;
+    private File spoolDirectory;
+    private File spoolFile;
+    private String events;
+
+    @BeforeMethod(alwaysRun = true)
+    public void setUp() throws Exception
+    {
+        // 10 events of 10 bytes, the collector takes 45 bytes at most per request
+        collector = new PartialAckCollector(45);
+        collector.start();
+
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            builder.append(String.format("event-%03d\n", i));
+        }
+        events = builder.toString();
+
+        spoolDirectory = File.createTempFile("TestPartialAcknowledgement", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(spoolDirectory.mkdir());
+        spoolFile = new File(spoolDirectory, "spool-file.bin");
+        final FileWriter writer = new FileWriter(spoolFile);
+        writer.write(events);
+        writer.close();
+    }
+
+    @AfterMethod(alwaysRun = true)
+    public void tearDown() throws Exception
+    {
+        collector.stop();
+        delete(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testOptIn() throws Exception
+    {
+        final ThreadSafeAsyncHttpClient client = new ThreadSafeAsyncHttpClient("127.0.0.1", 8080, EventType.JSON, 120000, SpoolCompression.NONE, true);
+        Assert.assertEquals(client.createPostRequest(spoolFile).getHeaders().getFirstValue(PartialAcknowledgement.ACCEPT_PARTIAL_HEADER), "bytes");
+
+        // Offsets in compressed files are meaningless to the collector
+        final ThreadSafeAsyncHttpClient gzipClient = new ThreadSafeAsyncHttpClient("127.0.0.1", 8080, EventType.JSON, 120000, SpoolCompression.GZIP, true);
+        Assert.assertNull(gzipClient.createPostRequest(spoolFile).getHeaders().getFirstValue(PartialAcknowledgement.ACCEPT_PARTIAL_HEADER));
+    }
+
+    @Test(groups = "slow")
+    public void testOnlyRemainingEventsAreResent() throws Exception
+    {
+        final HttpSender sender = createSender(true);
+
+        // 40 + 40 + 20 bytes
+        Assert.assertFalse(send(sender));
+        Assert.assertEquals(spoolFile.length(), 60);
+        Assert.assertFalse(send(sender));
+        Assert.assertEquals(spoolFile.length(), 20);
+        Assert.assertTrue(send(sender));
+
+        Assert.assertEquals(collector.getRequests(), 3);
+        Assert.assertEquals(sender.getPartialAcks(), 2);
+        // Each event received exactly once, in order
+        Assert.assertEquals(collector.getAccepted(), events);
+
+        sender.close();
+    }
+
+    @Test(groups = "fast")
+    public void testOffsetAfterTrim() throws Exception
+    {
+        final DeliveryTracker deliveryTracker = new DeliveryTracker("host-1");
+        final ThreadSafeAsyncHttpClient client = new ThreadSafeAsyncHttpClient("127.0.0.1", 8080, EventType.JSON, 120000, SpoolCompression.NONE,
+                                                                               true, deliveryTracker);
+        Assert.assertEquals(client.createPostRequest(spoolFile).getHeaders().getFirstValue("X-Spool-File-Offset"), "0");
+
+        PartialAcknowledgement.trim(spoolFile, 40);
+        PartialAcknowledgement.trim(spoolFile, 20);
+        Assert.assertEquals(spoolFile.length(), 40);
+        Assert.assertEquals(PartialAcknowledgement.getOffset(spoolFile), 60);
+
+        // Same id, the collector tells events apart by their offset in the original file
+        deliveryTracker.onAttempt(spoolFile);
+        deliveryTracker.onAttempt(spoolFile);
+        final Request request = client.createPostRequest(spoolFile);
+        Assert.assertEquals(request.getHeaders().getFirstValue("X-Spool-File-Id"), deliveryTracker.getFileId(spoolFile));
+        Assert.assertEquals(request.getHeaders().getFirstValue("X-Spool-File-Offset"), "60");
+        Assert.assertEquals(request.getHeaders().getFirstValue("X-Spool-File-Attempt"), "2");
+
+        SpoolFiles.forget(spoolFile);
+        Assert.assertEquals(PartialAcknowledgement.getOffset(spoolFile), 0);
+    }
+
+    @Test(groups = "slow")
+    public void testAllOrNothingWithoutOptIn() throws Exception
+    {
+        final HttpSender sender = createSender(false);
+
+        Assert.assertFalse(send(sender));
+        Assert.assertFalse(send(sender));
+        Assert.assertEquals(spoolFile.length(), 100);
+        Assert.assertEquals(collector.getAccepted(), "");
+        Assert.assertEquals(sender.getPartialAcks(), 0);
+
+        sender.close();
+    }
+
+    @Test(groups = "slow")
+    public void testAcceptedBytesIgnoredWithoutOptIn() throws Exception
+    {
+        // The collector acknowledges part of the upload anyway
+        collector.setIgnoreOptIn(true);
+        final HttpSender sender = createSender(false);
+
+        Assert.assertFalse(send(sender));
+        Assert.assertEquals(spoolFile.length(), 100);
+        Assert.assertEquals(sender.getPartialAcks(), 0);
+
+        sender.close();
+    }
+
+    @Test(groups = "slow")
+    public void testCompressedSpoolFilesAreNeverTrimmed() throws Exception
+    {
+        collector.setIgnoreOptIn(true);
+        final HttpSender sender = createSender(true, SpoolCompression.GZIP);
+
+        // Cutting a prefix out of a compressed file would corrupt it
+        Assert.assertFalse(send(sender));
+        Assert.assertEquals(spoolFile.length(), 100);
+        Assert.assertEquals(sender.getPartialAcks(), 0);
+
+        sender.close();
+    }
+
+    @Test(groups = "fast")
+    public void testOnlyPartialContentIsAPartialAck() throws Exception
+    {
+        final BlockingQueue<AsyncCompletionHandler<Response>> requests = new LinkedBlockingQueue<AsyncCompletionHandler<Response>>();
+        final ThreadSafeAsyncHttpClient client = Mockito.mock(ThreadSafeAsyncHttpClient.class);
+        Mockito.doAnswer(new Answer()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer(final InvocationOnMock invocation) throws Throwable
+            {
+                requests.add((AsyncCompletionHandler<Response>) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(client).executeRequest(Mockito.<File>any(), Mockito.<AsyncCompletionHandler<Response>>any());
+        final HttpSender sender = new HttpSender.Builder(new CollectorLoadBalancer(client))
+            .acceptPartialAcks(true)
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(1)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+        final CallbackHandler handler = Mockito.mock(CallbackHandler.class);
+
+        // A server error claiming the whole file is neither a success nor a partial ack
+        sender.send(spoolFile, handler);
+        requests.poll(5, TimeUnit.SECONDS).onCompleted(createResponse(503, 100));
+        Mockito.verify(handler).onError(Mockito.<Throwable>any(), Mockito.eq(spoolFile));
+        Assert.assertEquals(spoolFile.length(), 100);
+        Assert.assertEquals(sender.getPartialAcks(), 0);
+
+        // The whole file acknowledged through a partial ack
+        sender.send(spoolFile, handler);
+        requests.poll(5, TimeUnit.SECONDS).onCompleted(createResponse(PartialAcknowledgement.PARTIAL_ACK_STATUS, 100));
+        Mockito.verify(handler).onSuccess(spoolFile);
+
+        sender.close();
+    }
+
+    private Response createResponse(final int statusCode, final long acceptedBytes)
+    {
+        final Response response = Mockito.mock(Response.class);
+        Mockito.when(response.getStatusCode()).thenReturn(statusCode);
+        Mockito.when(response.getHeader(PartialAcknowledgement.ACCEPTED_BYTES_HEADER)).thenReturn(String.valueOf(acceptedBytes));
+        return response;
+    }
+
+    private static void delete(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private HttpSender createSender(final boolean acceptPartialAcks)
+    {
+        return createSender(acceptPartialAcks, SpoolCompression.NONE);
+    }
+
+    private HttpSender createSender(final boolean acceptPartialAcks, final SpoolCompression spoolCompression)
+    {
+        final ThreadSafeAsyncHttpClient client = new ThreadSafeAsyncHttpClient("127.0.0.1", collector.getPort(), EventType.JSON, 120000,
+            spoolCompression, acceptPartialAcks);
+        return new HttpSender.Builder(new CollectorLoadBalancer(client))
+            .spoolCompression(spoolCompression)
+            .acceptPartialAcks(acceptPartialAcks)
+            .httpMaxWaitTimeInMillis(0)
+            .httpWorkersPoolSize(1)
+            .sendTimer(Mockito.mock(Timer.class))
+            .build();
+    }
+
+    /**
+     * @return true if the spool file was acknowledged
+     */
+    private boolean send(final HttpSender sender) throws InterruptedException
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean success = new AtomicBoolean(false);
+        sender.send(spoolFile, new CallbackHandler()
+        {
+            @Override
+            public void onError(final Throwable t, final File file)
+            {
+                latch.countDown();
+            }
+
+            @Override
+            public void onSuccess(final File file)
+            {
+                success.set(true);
+                latch.countDown();
+            }
+        });
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // The sender lets go of the file right after the callback
+        Thread.sleep(100);
+        return success.get();
+    }
+}
@@ -19,6 +19,7 @@ package com.ning.metrics.eventtracker;
 import com.ning.http.client.Request;
 
 import org.mockito.Mockito;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import java.io.File;
@@ -44,4 +45,18 @@ public class TestThreadSafeAsyncHttpClient
         Mockito.verify(client.getClient(), Mockito.times(1)).close();
         Mockito.verify(client.getClient(), Mockito.times(1)).executeRequest(Mockito.<Request>any(), Mockito.<AsyncResponseCompletionHandler>any());
     }
-}
\ No newline at end of file
+
+    @Test(groups = "fast")
+    public void testContentEncoding() throws Exception
+    {
+        final File file = new File("spool.smile");
+
+        final ThreadSafeAsyncHttpClient plainClient = new ThreadSafeAsyncHttpClient("127.0.0.1", 8080, EventType.SMILE, 120000);
+        Assert.assertNull(plainClient.createPostRequest(file).getHeaders().getFirstValue("Content-Encoding"));
+
+        final ThreadSafeAsyncHttpClient gzipClient = new ThreadSafeAsyncHttpClient("127.0.0.1", 8080, EventType.SMILE, 120000, SpoolCompression.GZIP);
+        final Request request = gzipClient.createPostRequest(file);
+        Assert.assertEquals(request.getHeaders().getFirstValue("Content-Encoding"), "gzip");
+        Assert.assertEquals(request.getHeaders().getFirstValue("Content-Type"), "application/json+smile");
+    }
+}
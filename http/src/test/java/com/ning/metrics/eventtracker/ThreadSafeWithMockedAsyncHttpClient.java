@@ -29,6 +29,7 @@ import org.testng.Assert;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -101,6 +102,17 @@ public class ThreadSafeWithMockedAsyncHttpClient extends ThreadSafeAsyncHttpClie
         return Mockito.mock(Request.class);
     }
 
+    @Override
+    Request createBatchPostRequest(final List<File> files)
+    {
+        return Mockito.mock(Request.class);
+    }
+
+    public void setShouldFailDuringCallback(final boolean shouldFailDuringCallback)
+    {
+        this.shouldFailDuringCallback.set(shouldFailDuringCallback);
+    }
+
     public AsyncHttpClient getClient()
     {
         return clientAtomicReference.get();
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.transport.TTransportException;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+
+import java.util.List;
+
+/**
+ * Non-blocking counterpart of ScribeClient: log() returns as soon as the request is queued, the callback is
+ * invoked from the selector thread once Scribe answers.
+ * <p/>
+ * Thrift allows a single call in flight per client.
+ */
+interface AsyncScribeClient
+{
+    public void openLogger() throws TTransportException;
+
+    public void log(List<LogEntry> messages, AsyncMethodCallback<ResultCode> callback) throws TException;
+
+    public void closeLogger();
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TNonblockingSocket;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+import scribe.thrift.scribe;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Scribe client on a non-blocking socket. All clients sharing a TAsyncClientManager are driven by its
+ * single selector thread.
+ */
+class AsyncScribeClientImpl implements AsyncScribeClient
+{
+    private static final Logger logger = LoggerFactory.getLogger(AsyncScribeClientImpl.class);
+
+    private final String host;
+    private final int port;
+    private final TAsyncClientManager clientManager;
+    private final long timeoutInMillis;
+    private TNonblockingSocket transport;
+    private scribe.AsyncClient client;
+
+    /**
+     * @param host            Scribe host
+     * @param port            Scribe port
+     * @param clientManager   selector driving the client
+     * @param timeoutInMillis maximum time to wait for Scribe to answer a Log call, 0 to wait forever
+     */
+    public AsyncScribeClientImpl(final String host, final int port, final TAsyncClientManager clientManager, final long timeoutInMillis)
+    {
+        this.host = host;
+        this.port = port;
+        this.clientManager = clientManager;
+        this.timeoutInMillis = timeoutInMillis;
+    }
+
+    public synchronized void openLogger() throws TTransportException
+    {
+        try {
+            // The connection is established asynchronously, by the selector thread, before the first call
+            transport = new TNonblockingSocket(host, port);
+        }
+        catch (IOException e) {
+            throw new TTransportException(e);
+        }
+
+        // A client in error can't be reused, start from a fresh one
+        client = new scribe.AsyncClient(new TBinaryProtocol.Factory(false, false), clientManager, transport);
+        // The selector fails calls taking longer than that with a TimeoutException
+        client.setTimeout(timeoutInMillis);
+    }
+
+    public synchronized void log(final List<LogEntry> messages, final AsyncMethodCallback<ResultCode> callback) throws TException
+    {
+        if (messages == null || messages.size() == 0) {
+            callback.onComplete(ResultCode.OK);
+            return;
+        }
+
+        if (client == null) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Scribe client is not open");
+        }
+
+        client.Log(messages, new AsyncMethodCallback<scribe.AsyncClient.Log_call>()
+        {
+            @Override
+            public void onComplete(final scribe.AsyncClient.Log_call response)
+            {
+                final ResultCode rescode;
+                try {
+                    rescode = response.getResult();
+                }
+                catch (TException e) {
+                    callback.onError(e);
+                    return;
+                }
+
+                switch (rescode) {
+                    case OK:
+                        logger.debug("{} Messages sent successfully", messages.size());
+                        break;
+                    case TRY_LATER:
+                        // Push the error back to the caller
+                        logger.warn("Try later");
+                        break;
+                    default:
+                        logger.warn("Unknown error: {}", rescode.getValue());
+                }
+                callback.onComplete(rescode);
+            }
+
+            @Override
+            public void onError(final Exception exception)
+            {
+                callback.onError(exception);
+            }
+        });
+    }
+
+    public synchronized void closeLogger()
+    {
+        if (transport != null) {
+            transport.close();
+        }
+        client = null;
+    }
+}
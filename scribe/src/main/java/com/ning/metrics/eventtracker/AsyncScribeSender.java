@@ -0,0 +1,559 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.mogwee.executors.FailsafeScheduledExecutor;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weakref.jmx.Managed;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scribe sender built on Thrift's non-blocking transport.
+ * <p/>
+ * The flusher thread encodes a file, hands the Log request to an idle connection and moves on to the next file
+ * without waiting for Scribe: up to one request per connection is in flight, all connections being driven by a
+ * single selector thread. The CallbackHandler is completed from the selector thread once Scribe answers. The
+ * flusher only blocks when all connections have a request in flight.
+ * <p/>
+ * TRY_LATER responses are handled as in ScribeSender: the file is kept and resent after an exponential backoff, and
+ * other files are left in the spool meanwhile. Requests Scribe doesn't answer in time fail the file. Connections are re-opened by a dedicated thread, not by
+ * the selector thread, and become available again once re-opened.
+ * <p/>
+ * The class needs to be public for JMX.
+ */
+public class AsyncScribeSender implements EventSender
+{
+    private static final Logger log = LoggerFactory.getLogger(AsyncScribeSender.class);
+
+    private final AtomicInteger connectionRetries = new AtomicInteger(0);
+
+    private final TAsyncClientManager clientManager;
+    private final List<Connection> connections = new ArrayList<Connection>();
+    // Connections without a request in flight
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+    private final ScheduledExecutorService watchdog;
+    // Re-opens connections off the selector thread
+    private final ExecutorService reconnector;
+
+    private final AtomicInteger messagesSuccessfullySent = new AtomicInteger(0);
+    private final int messagesToSendBeforeReconnecting;
+
+    private final ExponentialBackoff backoff;
+    private final ScheduledExecutorService retryExecutor;
+    private final AtomicInteger tryLaterResponses = new AtomicInteger(0);
+    // Files with a request in flight or waiting for a retry: moved back to the spool area on close
+    private final ConcurrentMap<File, CallbackHandler> heldFiles = new ConcurrentHashMap<File, CallbackHandler>();
+
+    private final DeliveryTracker deliveryTracker;
+    // Whether to prefix messages with a dedupe token, see ScribeLogEntryEncoder
+    private final boolean dedupeTokens;
+
+    /**
+     * @param scribeHost                       Scribe host
+     * @param scribePort                       Scribe port
+     * @param connections                      number of connections, i.e. maximum number of Log requests in flight
+     * @param messagesToSendBeforeReconnecting number of messages to send on a connection before refreshing it
+     * @param maxIdleTimeInMinutes             maximum idle time of a connection before refreshing it
+     * @param initialBackoffInMillis           initial delay before retrying when Scribe answers TRY_LATER
+     * @param maxBackoffInMillis               maximum delay before retrying when Scribe answers TRY_LATER
+     * @param timeoutInMillis                  maximum time to wait for Scribe to answer a Log request, 0 to wait forever
+     * @throws IOException if the selector can't be opened
+     */
+    public AsyncScribeSender(final String scribeHost, final int scribePort, final int connections, final int messagesToSendBeforeReconnecting,
+                             final int maxIdleTimeInMinutes, final long initialBackoffInMillis, final long maxBackoffInMillis,
+                             final long timeoutInMillis) throws IOException
+    {
+        this(scribeHost, scribePort, connections, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, initialBackoffInMillis,
+             maxBackoffInMillis, timeoutInMillis, false);
+    }
+
+    /**
+     * @param dedupeTokens whether to identify each message by its spool file and position in it, so that Scribe
+     *                     consumers can drop the duplicates of retried files
+     */
+    public AsyncScribeSender(final String scribeHost, final int scribePort, final int connections, final int messagesToSendBeforeReconnecting,
+                             final int maxIdleTimeInMinutes, final long initialBackoffInMillis, final long maxBackoffInMillis,
+                             final long timeoutInMillis, final boolean dedupeTokens) throws IOException
+    {
+        this(new TAsyncClientManager(), scribeHost, scribePort, connections, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes,
+             initialBackoffInMillis, maxBackoffInMillis, timeoutInMillis, dedupeTokens);
+    }
+
+    private AsyncScribeSender(final TAsyncClientManager clientManager, final String scribeHost, final int scribePort, final int connections,
+                              final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes, final long initialBackoffInMillis,
+                              final long maxBackoffInMillis, final long timeoutInMillis, final boolean dedupeTokens)
+    {
+        this(createClients(clientManager, scribeHost, scribePort, connections, timeoutInMillis), clientManager, messagesToSendBeforeReconnecting,
+             maxIdleTimeInMinutes, initialBackoffInMillis, maxBackoffInMillis, new FailsafeScheduledExecutor(1, "ScribeRetrier"),
+             new FailsafeScheduledExecutor(1, "AsyncScribeReconnector"), new DeliveryTracker(), dedupeTokens);
+    }
+
+    // For testing
+    AsyncScribeSender(final List<? extends AsyncScribeClient> scribeClients, final TAsyncClientManager clientManager,
+                      final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes, final long initialBackoffInMillis,
+                      final long maxBackoffInMillis, final ScheduledExecutorService retryExecutor, final ExecutorService reconnector)
+    {
+        this(scribeClients, clientManager, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, initialBackoffInMillis, maxBackoffInMillis,
+             retryExecutor, reconnector, new DeliveryTracker(), false);
+    }
+
+    AsyncScribeSender(final List<? extends AsyncScribeClient> scribeClients, final TAsyncClientManager clientManager,
+                      final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes, final long initialBackoffInMillis,
+                      final long maxBackoffInMillis, final ScheduledExecutorService retryExecutor, final ExecutorService reconnector,
+                      final DeliveryTracker deliveryTracker, final boolean dedupeTokens)
+    {
+        if (scribeClients.isEmpty()) {
+            throw new IllegalArgumentException("At least one Scribe client is required");
+        }
+
+        for (final AsyncScribeClient scribeClient : scribeClients) {
+            final Connection connection = new Connection(scribeClient);
+            connections.add(connection);
+            idleConnections.add(connection);
+        }
+
+        this.clientManager = clientManager;
+        this.messagesToSendBeforeReconnecting = messagesToSendBeforeReconnecting;
+        this.backoff = new ExponentialBackoff(initialBackoffInMillis, maxBackoffInMillis);
+        this.retryExecutor = retryExecutor;
+        this.reconnector = reconnector;
+        this.deliveryTracker = deliveryTracker;
+        this.dedupeTokens = dedupeTokens;
+
+        // See ScribeSender: don't keep idle connections open forever
+        watchdog = new FailsafeScheduledExecutor(1, "AsyncScribeWatchdog");
+        watchdog.scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (final Connection connection : connections) {
+                    // Leave connections with a request in flight alone
+                    if (connection.checkIdle() && idleConnections.remove(connection)) {
+                        log.info("Idle connection to Scribe, re-opening it");
+                        reconnect(connection);
+                        idleConnections.add(connection);
+                    }
+                }
+            }
+        }, maxIdleTimeInMinutes, maxIdleTimeInMinutes, TimeUnit.MINUTES);
+    }
+
+    private static List<AsyncScribeClient> createClients(final TAsyncClientManager clientManager, final String scribeHost,
+                                                         final int scribePort, final int connections, final long timeoutInMillis)
+    {
+        final List<AsyncScribeClient> scribeClients = new ArrayList<AsyncScribeClient>();
+        for (int i = 0; i < connections; i++) {
+            scribeClients.add(new AsyncScribeClientImpl(scribeHost, scribePort, clientManager, timeoutInMillis));
+        }
+
+        return scribeClients;
+    }
+
+    /**
+     * Re-initialize the connections with the Scribe endpoint.
+     */
+    public synchronized void createConnection()
+    {
+        for (final Connection connection : connections) {
+            reconnect(connection);
+        }
+    }
+
+    private void reconnect(final Connection connection)
+    {
+        connectionRetries.incrementAndGet();
+        connection.open();
+    }
+
+    /**
+     * Re-open the connection from the reconnector thread, then make it available again. Opening a connection
+     * blocks (name resolution, closing the previous socket), which the selector thread can't afford.
+     */
+    private void reconnectLater(final Connection connection)
+    {
+        try {
+            reconnector.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    reconnect(connection);
+                    idleConnections.add(connection);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Closed, the connection won't be used anymore
+            idleConnections.add(connection);
+        }
+    }
+
+    /**
+     * Disconnect from Scribe for good.
+     * <p/>
+     * The writer moved the files handed to the sender to the spool lock directory, and won't look at them again: files
+     * with a request in flight, or waiting for a retry, are moved back to the spool area, for the next run to send them.
+     * Their handlers aren't invoked, even if Scribe answers in the meantime.
+     */
+    @Override
+    public synchronized void close()
+    {
+        retryExecutor.shutdownNow();
+        watchdog.shutdownNow();
+        reconnector.shutdownNow();
+
+        for (final Connection connection : connections) {
+            connection.close();
+        }
+
+        if (clientManager != null) {
+            clientManager.stop();
+        }
+
+        for (final File file : heldFiles.keySet()) {
+            final CallbackHandler handler = heldFiles.remove(file);
+            if (handler != null) {
+                requeue(file, handler);
+            }
+        }
+    }
+
+    @Override
+    public void send(final File file, final CallbackHandler handler)
+    {
+        // Throttle sends while Scribe is overloaded: leave the file in the spool for a later flush
+        if (backoff.getRemainingDelayInMillis() > 0) {
+            requeue(file, handler);
+            return;
+        }
+
+        // Encode before waiting for a connection, while previous requests are in flight
+        final List<LogEntry> list = createScribePayload(file, dedupeTokens ? deliveryTracker.getFileId(file) : null, handler);
+        if (list == null) {
+            // Something went wrong
+            return;
+        }
+
+        final Connection connection;
+        try {
+            connection = idleConnections.take();
+        }
+        catch (InterruptedException e) {
+            // Closing
+            Thread.currentThread().interrupt();
+            requeue(file, handler);
+            return;
+        }
+
+        if (connection.isClosed()) {
+            reconnect(connection);
+        }
+
+        final int attempt = deliveryTracker.onAttempt(file);
+        if (attempt > 1) {
+            log.debug("Attempt {} to send {}", attempt, file);
+        }
+
+        heldFiles.put(file, handler);
+        try {
+            connection.log(list, new LogCallback(connection, file, handler, list.size()));
+        }
+        catch (TException e) {
+            heldFiles.remove(file);
+            onSendError(connection, file, handler, e);
+        }
+        catch (IllegalStateException e) {
+            // Thrift refuses calls on a client in error
+            heldFiles.remove(file);
+            onSendError(connection, file, handler, e);
+        }
+    }
+
+    private void onSendError(final Connection connection, final File file, final CallbackHandler handler, final Exception e)
+    {
+        // Connection flacky? Or Scribe didn't answer in time (TimeoutException)
+        log.warn("Error while sending message to Scribe: {}", e.getLocalizedMessage());
+        reconnectLater(connection);
+        handler.onError(new Throwable(e), file);
+    }
+
+    private void onTryLater(final File file, final CallbackHandler handler)
+    {
+        tryLaterResponses.incrementAndGet();
+        final long delayInMillis = backoff.onFailure();
+        log.warn("Scribe is overloaded, retrying {} in {} ms", file, delayInMillis);
+
+        retryLater(file, handler, delayInMillis);
+    }
+
+    /**
+     * Hold on to the file and send it again later. The handler is notified once the retry completes.
+     */
+    private void retryLater(final File file, final CallbackHandler handler, final long delayInMillis)
+    {
+        heldFiles.put(file, handler);
+        try {
+            retryExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Unless moved back to the spool area on close
+                    if (heldFiles.remove(file) != null) {
+                        send(file, handler);
+                    }
+                }
+            }, delayInMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Scribe sender closed, leaving {} in the spool", file);
+            if (heldFiles.remove(file) != null) {
+                requeue(file, handler);
+            }
+        }
+    }
+
+    // Back in the spool area, without notifying the handler (failing the file would quarantine it)
+    private void requeue(final File file, final CallbackHandler handler)
+    {
+        if (!SpoolFiles.requeue(file)) {
+            handler.onError(new IOException("Unable to leave the file in the spool"), file);
+        }
+    }
+
+    private List<LogEntry> createScribePayload(final File file, final String fileId, final CallbackHandler handler)
+    {
+        try {
+            return ScribeLogEntryEncoder.forCurrentThread().toLogEntries(file, fileId);
+        }
+        catch (ClassNotFoundException e) {
+            handler.onError(new Throwable(e), file);
+            return null;
+        }
+        catch (IOException e) {
+            handler.onError(new Throwable(e), file);
+            return null;
+        }
+    }
+
+    /**
+     * Completes the CallbackHandler of a file, invoked from the selector thread
+     */
+    private final class LogCallback implements AsyncMethodCallback<ResultCode>
+    {
+        private final Connection connection;
+        private final File file;
+        private final CallbackHandler handler;
+        private final int messages;
+
+        private LogCallback(final Connection connection, final File file, final CallbackHandler handler, final int messages)
+        {
+            this.connection = connection;
+            this.file = file;
+            this.handler = handler;
+            this.messages = messages;
+        }
+
+        @Override
+        public void onComplete(final ResultCode resultCode)
+        {
+            if (heldFiles.remove(file) == null) {
+                // Closed, the file was moved back to the spool area
+                return;
+            }
+
+            if (resultCode == ResultCode.TRY_LATER) {
+                idleConnections.add(connection);
+                // Keep the file around
+                onTryLater(file, handler);
+                return;
+            }
+
+            backoff.onSuccess();
+            deliveryTracker.onDelivered(file);
+            handler.onSuccess(file);
+
+            messagesSuccessfullySent.addAndGet(messages);
+            connection.onMessagesSent(messages);
+
+            // For load balancing capabilities, we don't want to make sticky connections to Scribe.
+            // After a certain threshold, force a refresh of the connection.
+            if (connection.getMessagesSentSinceLastReconnection() > messagesToSendBeforeReconnecting) {
+                log.info("Recycling connection with Scribe");
+                reconnectLater(connection);
+            }
+            else {
+                idleConnections.add(connection);
+            }
+        }
+
+        @Override
+        public void onError(final Exception exception)
+        {
+            if (heldFiles.remove(file) == null) {
+                // Closed, the file was moved back to the spool area
+                return;
+            }
+
+            onSendError(connection, file, handler, exception);
+        }
+    }
+
+    /**
+     * A non-blocking connection to Scribe, with at most one request in flight
+     */
+    private static final class Connection
+    {
+        private final AsyncScribeClient scribeClient;
+        private final AtomicInteger messagesSentSinceLastReconnection = new AtomicInteger(0);
+        private final AtomicBoolean sleeping = new AtomicBoolean(true);
+        private final AtomicBoolean isClosed = new AtomicBoolean(true);
+
+        private Connection(final AsyncScribeClient scribeClient)
+        {
+            this.scribeClient = scribeClient;
+        }
+
+        synchronized void open()
+        {
+            messagesSentSinceLastReconnection.set(0);
+            try {
+                scribeClient.closeLogger();
+                scribeClient.openLogger();
+                isClosed.set(false);
+
+                log.info("Connection to Scribe established");
+            }
+            catch (TTransportException e) {
+                log.warn("Unable to connect to Scribe: {}", e.getLocalizedMessage());
+                scribeClient.closeLogger();
+            }
+        }
+
+        synchronized void close()
+        {
+            if (!isClosed.get()) {
+                scribeClient.closeLogger();
+                isClosed.set(true);
+            }
+        }
+
+        boolean isClosed()
+        {
+            return isClosed.get();
+        }
+
+        void log(final List<LogEntry> messages, final AsyncMethodCallback<ResultCode> callback) throws TException
+        {
+            // Tell the watchdog that we are doing something
+            sleeping.set(false);
+            scribeClient.log(messages, callback);
+        }
+
+        void onMessagesSent(final int messages)
+        {
+            messagesSentSinceLastReconnection.addAndGet(messages);
+        }
+
+        boolean checkIdle()
+        {
+            return sleeping.getAndSet(true);
+        }
+
+        int getMessagesSentSinceLastReconnection()
+        {
+            return messagesSentSinceLastReconnection.get();
+        }
+    }
+
+    @Managed(description = "Get the number of messages successfully sent since startup to Scribe")
+    public long getMessagesSuccessfullySent()
+    {
+        return messagesSuccessfullySent.get();
+    }
+
+    @Managed(description = "Get the number of connections to Scribe, i.e. the maximum number of Log requests in flight")
+    public int getConnections()
+    {
+        return connections.size();
+    }
+
+    @Managed(description = "Get the number of Log requests to Scribe currently in flight")
+    public int getRequestsInFlight()
+    {
+        return connections.size() - idleConnections.size();
+    }
+
+    @Managed(description = "Get the number of TRY_LATER responses received from Scribe")
+    public long getTryLaterResponses()
+    {
+        return tryLaterResponses.get();
+    }
+
+    @Managed(description = "Get the number of file sends retried since startup")
+    public long getRetries()
+    {
+        return deliveryTracker.getRetries();
+    }
+
+    @Managed(description = "Get the number of files sent more than once, waiting to be acknowledged")
+    public int getFilesBeingRetried()
+    {
+        return deliveryTracker.getFilesBeingRetried();
+    }
+
+    @Managed(description = "Get the highest number of attempts of a file waiting to be acknowledged")
+    public int getMaxAttempts()
+    {
+        return deliveryTracker.getMaxAttempts();
+    }
+
+    @Managed(description = "Get the current delay before retrying to send to Scribe, in milliseconds (0 if Scribe is healthy)")
+    public long getCurrentBackoffInMillis()
+    {
+        return backoff.getCurrentDelayInMillis();
+    }
+
+    @Managed(description = "Get the number of times we retried to connect to Scribe")
+    public long getConnectionRetries()
+    {
+        return connectionRetries.get();
+    }
+}
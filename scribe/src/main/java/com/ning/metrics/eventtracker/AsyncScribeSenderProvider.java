@@ -0,0 +1,50 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import java.io.IOException;
+
+/**
+ * We only have a provider here to avoid Guice dependencies in the AsyncScribeSender class
+ */
+class AsyncScribeSenderProvider implements Provider<AsyncScribeSender>
+{
+    private final EventTrackerConfig config;
+
+    @Inject
+    public AsyncScribeSenderProvider(final EventTrackerConfig config)
+    {
+        this.config = config;
+    }
+
+    @Override
+    public AsyncScribeSender get()
+    {
+        try {
+            return new AsyncScribeSender(config.getScribeHost(), config.getScribePort(), config.getScribeConnections(),
+                                         config.getScribeRefreshRate(), config.getScribeMaxIdleTimeInMinutes(),
+                                         config.getScribeInitialBackoff().getMillis(), config.getScribeMaxBackoff().getMillis(),
+                                         config.getScribeAsyncTimeout().getMillis(), config.isScribeDedupeTokensEnabled());
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("Unable to create the Scribe selector", e);
+        }
+    }
+}
@@ -43,8 +43,14 @@ public class CollectorControllerScribeModule extends CollectorControllerModule
 
         switch (eventTrackerConfig.getType()) {
             case SCRIBE:
-                bind(EventSender.class).toProvider(ScribeSenderProvider.class).asEagerSingleton();
-                log.info("Enabled Scribe Event Logging");
+                if (eventTrackerConfig.isScribeAsyncEnabled()) {
+                    bind(EventSender.class).toProvider(AsyncScribeSenderProvider.class).asEagerSingleton();
+                    log.info("Enabled non-blocking Scribe Event Logging");
+                }
+                else {
+                    bind(EventSender.class).toProvider(ScribeSenderProvider.class).asEagerSingleton();
+                    log.info("Enabled Scribe Event Logging");
+                }
                 break;
             case NO_LOGGING:
                 bind(EventSender.class).to(NoLoggingSender.class).asEagerSingleton();
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A connection to Scribe, along with the state used to decide when to refresh it.
+ * <p/>
+ * A connection is used by one sender thread at a time.
+ */
+class ScribeConnection
+{
+    private static final Logger log = LoggerFactory.getLogger(ScribeConnection.class);
+
+    private final ScribeClient scribeClient;
+    private final AtomicInteger messagesSentSinceLastReconnection = new AtomicInteger(0);
+    private final AtomicBoolean sleeping = new AtomicBoolean(true);
+    private final AtomicBoolean isClosed = new AtomicBoolean(true);
+
+    ScribeConnection(final ScribeClient scribeClient)
+    {
+        this.scribeClient = scribeClient;
+    }
+
+    /**
+     * (Re-)open the connection
+     *
+     * @return true if the connection could be established
+     */
+    synchronized boolean open()
+    {
+        if (scribeClient == null) {
+            log.warn("Scribe client has not been set up correctly.");
+            return false;
+        }
+
+        messagesSentSinceLastReconnection.set(0);
+        try {
+            scribeClient.closeLogger();
+            scribeClient.openLogger();
+            isClosed.set(false);
+
+            log.info("Connection to Scribe established");
+            return true;
+        }
+        catch (TTransportException e) {
+            log.warn("Unable to connect to Scribe: {}", e.getLocalizedMessage());
+            scribeClient.closeLogger();
+            return false;
+        }
+    }
+
+    synchronized void close()
+    {
+        if (scribeClient != null && !isClosed.get()) {
+            scribeClient.closeLogger();
+            isClosed.set(true);
+        }
+    }
+
+    boolean isClosed()
+    {
+        return isClosed.get();
+    }
+
+    ResultCode log(final List<LogEntry> messages) throws TException
+    {
+        // Tell the watchdog that we are doing something
+        sleeping.set(false);
+
+        final ResultCode resultCode = scribeClient.log(messages);
+        if (resultCode != ResultCode.TRY_LATER) {
+            messagesSentSinceLastReconnection.addAndGet(messages.size());
+        }
+
+        return resultCode;
+    }
+
+    /**
+     * Called periodically by the watchdog
+     *
+     * @return true if the connection hasn't been used since the last call
+     */
+    boolean checkIdle()
+    {
+        return sleeping.getAndSet(true);
+    }
+
+    int getMessagesSentSinceLastReconnection()
+    {
+        return messagesSentSinceLastReconnection.get();
+    }
+}
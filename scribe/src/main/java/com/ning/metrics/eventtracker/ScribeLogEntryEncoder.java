@@ -0,0 +1,257 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.Events;
+import scribe.thrift.LogEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes events into Scribe LogEntry messages: "&lt;event timestamp in millis&gt;:&lt;payload&gt;", or
+ * "&lt;event timestamp in millis&gt;:&lt;file id&gt;#&lt;event sequence&gt;:&lt;payload&gt;" with dedupe tokens
+ * (see DeliveryTracker).
+ * <p/>
+ * The timestamp and the payload (ISO-8859-1 decoded if the event provides its own serialization, Base64 encoded
+ * ObjectOutputStream otherwise) are written directly into a reusable buffer, so that the message String is
+ * the only per-event copy.
+ * <p/>
+ * Buffers are reused across calls: instances are not thread-safe and must be confined to a single thread.
+ */
+class ScribeLogEntryEncoder
+{
+    private static final char[] BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    private static final char BASE64_PAD = '=';
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    // Don't hold on to the buffers grown for unusually large events
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+
+    // Encoders reuse their buffers, one per sender thread
+    private static final ThreadLocal<ScribeLogEntryEncoder> encoders = new ThreadLocal<ScribeLogEntryEncoder>()
+    {
+        @Override
+        protected ScribeLogEntryEncoder initialValue()
+        {
+            return new ScribeLogEntryEncoder();
+        }
+    };
+
+    private final PayloadOutputStream payloadOut = new PayloadOutputStream();
+    private char[] message = new char[INITIAL_BUFFER_SIZE];
+
+    /**
+     * @return the encoder confined to the calling thread
+     */
+    static ScribeLogEntryEncoder forCurrentThread()
+    {
+        return encoders.get();
+    }
+
+    /**
+     * Encode all events of a spool file
+     *
+     * @param file spool file, written by ObjectOutputEventSerializer
+     * @return LogEntry messages for Scribe
+     */
+    List<LogEntry> toLogEntries(final File file) throws IOException, ClassNotFoundException
+    {
+        return toLogEntries(file, null);
+    }
+
+    /**
+     * Encode all events of a spool file, with dedupe tokens
+     *
+     * @param file   spool file, written by ObjectOutputEventSerializer
+     * @param fileId id of the file, null for no dedupe tokens
+     * @return LogEntry messages for Scribe
+     */
+    List<LogEntry> toLogEntries(final File file, final String fileId) throws IOException, ClassNotFoundException
+    {
+        final List<Event> events = Events.fromFile(file);
+        final List<LogEntry> list = new ArrayList<LogEntry>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            list.add(toLogEntry(events.get(i), fileId == null ? null : getDedupeToken(fileId, i)));
+        }
+
+        return list;
+    }
+
+    LogEntry toLogEntry(final Event event) throws IOException
+    {
+        return toLogEntry(event, null);
+    }
+
+    LogEntry toLogEntry(final Event event, final String dedupeToken) throws IOException
+    {
+        return new LogEntry(event.getName(), encode(event, dedupeToken));
+    }
+
+    /**
+     * @param fileId   id of the spool file
+     * @param sequence position of the event in the file, from 0
+     * @return the token identifying the event
+     */
+    static String getDedupeToken(final String fileId, final int sequence)
+    {
+        return fileId + "#" + sequence;
+    }
+
+    String encode(final Event event) throws IOException
+    {
+        return encode(event, null);
+    }
+
+    String encode(final Event event, final String dedupeToken) throws IOException
+    {
+        int length = appendTimestamp(event.getEventDateTime().getMillis());
+        message[length++] = ':';
+        if (dedupeToken != null) {
+            ensureCapacity(length + dedupeToken.length() + 1);
+            dedupeToken.getChars(0, dedupeToken.length(), message, length);
+            length += dedupeToken.length();
+            message[length++] = ':';
+        }
+
+        // Has the sender specified how to send the data?
+        final byte[] serializedEvent = event.getSerializedEvent();
+        if (serializedEvent != null) {
+            length = appendLatin1(serializedEvent, length);
+        }
+        else {
+            // Nope, default to ObjectOutputStream, 64-bit encoded
+            payloadOut.reset();
+            final ObjectOutputStream objectOut = new ObjectOutputStream(payloadOut);
+            event.writeExternal(objectOut);
+            objectOut.flush();
+            length = appendBase64(payloadOut.getBuffer(), payloadOut.size(), length);
+            payloadOut.trim();
+        }
+
+        final String encoded = new String(message, 0, length);
+        if (message.length > MAX_RETAINED_BUFFER_SIZE) {
+            message = new char[INITIAL_BUFFER_SIZE];
+        }
+
+        return encoded;
+    }
+
+    private int appendTimestamp(final long millis)
+    {
+        if (millis < 0) {
+            final String timestamp = Long.toString(millis);
+            timestamp.getChars(0, timestamp.length(), message, 0);
+            return timestamp.length();
+        }
+
+        int digits = 1;
+        for (long remaining = millis / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+
+        long remaining = millis;
+        for (int i = digits - 1; i >= 0; i--) {
+            message[i] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+
+        return digits;
+    }
+
+    private int appendLatin1(final byte[] bytes, final int offset)
+    {
+        ensureCapacity(offset + bytes.length);
+
+        int position = offset;
+        for (final byte b : bytes) {
+            message[position++] = (char) (b & 0xff);
+        }
+
+        return position;
+    }
+
+    private int appendBase64(final byte[] bytes, final int count, final int offset)
+    {
+        ensureCapacity(offset + 4 * ((count + 2) / 3));
+
+        int position = offset;
+        int i = 0;
+        for (; i + 2 < count; i += 3) {
+            final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            message[position++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            message[position++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            message[position++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+            message[position++] = BASE64_ALPHABET[bits & 0x3f];
+        }
+
+        final int remaining = count - i;
+        if (remaining == 1) {
+            final int bits = (bytes[i] & 0xff) << 16;
+            message[position++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            message[position++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            message[position++] = BASE64_PAD;
+            message[position++] = BASE64_PAD;
+        }
+        else if (remaining == 2) {
+            final int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+            message[position++] = BASE64_ALPHABET[(bits >>> 18) & 0x3f];
+            message[position++] = BASE64_ALPHABET[(bits >>> 12) & 0x3f];
+            message[position++] = BASE64_ALPHABET[(bits >>> 6) & 0x3f];
+            message[position++] = BASE64_PAD;
+        }
+
+        return position;
+    }
+
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity > message.length) {
+            message = Arrays.copyOf(message, Math.max(capacity, 2 * message.length));
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream giving access to its buffer, to avoid the copy in toByteArray()
+     */
+    private static final class PayloadOutputStream extends ByteArrayOutputStream
+    {
+        private PayloadOutputStream()
+        {
+            super(INITIAL_BUFFER_SIZE);
+        }
+
+        byte[] getBuffer()
+        {
+            return buf;
+        }
+
+        void trim()
+        {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[INITIAL_BUFFER_SIZE];
+                count = 0;
+            }
+        }
+    }
+}
@@ -18,25 +18,29 @@ package com.ning.metrics.eventtracker;
 
 import com.mogwee.executors.FailsafeScheduledExecutor;
 import com.ning.metrics.serialization.event.Event;
-import com.ning.metrics.serialization.event.Events;
 import com.ning.metrics.serialization.writer.CallbackHandler;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.thrift.transport.TTransportException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weakref.jmx.Managed;
 import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.nio.charset.Charset;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -48,24 +52,109 @@ public class ScribeSender implements EventSender
 {
     private static final Logger log = LoggerFactory.getLogger(ScribeSender.class);
 
-    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
-
     private final AtomicInteger connectionRetries = new AtomicInteger(0);
-    private final ScribeClient scribeClient;
+
+    // Connections not currently used by a sender thread
+    private final List<ScribeConnection> connections = new ArrayList<ScribeConnection>();
+    private final BlockingQueue<ScribeConnection> idleConnections = new LinkedBlockingQueue<ScribeConnection>();
+    // Ships files in parallel when there are several connections, null otherwise
+    private final ExecutorService senderExecutor;
 
     private final AtomicInteger messagesSuccessfullySent = new AtomicInteger(0);
-    private final AtomicInteger messagesSuccessfullySentSinceLastReconnection = new AtomicInteger(0);
     private int messagesToSendBeforeReconnecting = 0;
 
-    private final AtomicBoolean sleeping = new AtomicBoolean(true);
-    private final AtomicBoolean isClosed = new AtomicBoolean(true);
+    // Number of events per Log call in streaming mode, 0 to send files in one call
+    private final int chunkSize;
+    // Number of events already acknowledged by Scribe, for files partially sent and retried after a TRY_LATER
+    private final ConcurrentMap<String, Integer> partiallySentFiles = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger resumedSends = new AtomicInteger(0);
+
+    // Backpressure: Scribe answers TRY_LATER when overloaded
+    private final ExponentialBackoff backoff;
+    private final ScheduledExecutorService retryExecutor;
+    private final AtomicInteger tryLaterResponses = new AtomicInteger(0);
+    // Files held in memory, waiting for a retry or for a connection: moved back to the spool area on close
+    private final ConcurrentMap<File, CallbackHandler> heldFiles = new ConcurrentHashMap<File, CallbackHandler>();
+
+    // Identifies the spool files and counts their attempts
+    private final DeliveryTracker deliveryTracker;
+    // Whether to prefix messages with a dedupe token, see ScribeLogEntryEncoder
+    private final boolean dedupeTokens;
 
     public ScribeSender(final ScribeClient scribeClient, final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes)
     {
-        this.scribeClient = scribeClient;
+        this(scribeClient, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, 0);
+    }
+
+    public ScribeSender(final ScribeClient scribeClient, final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes,
+                        final int chunkSize)
+    {
+        this(Collections.singletonList(scribeClient), messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, chunkSize, 1000, 60000);
+    }
+
+    /**
+     * @param scribeClients                    one client per connection to Scribe. With more than one, files are sent concurrently
+     * @param messagesToSendBeforeReconnecting number of messages to send on a connection before refreshing it
+     * @param maxIdleTimeInMinutes             maximum idle time of a connection before refreshing it
+     * @param chunkSize                        number of events per Log call, 0 to send each file in a single call
+     * @param initialBackoffInMillis           initial delay before retrying when Scribe answers TRY_LATER
+     * @param maxBackoffInMillis               maximum delay before retrying when Scribe answers TRY_LATER
+     */
+    public ScribeSender(final List<? extends ScribeClient> scribeClients, final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes,
+                        final int chunkSize, final long initialBackoffInMillis, final long maxBackoffInMillis)
+    {
+        this(scribeClients, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, chunkSize, initialBackoffInMillis, maxBackoffInMillis, false);
+    }
+
+    /**
+     * @param dedupeTokens whether to identify each message by its spool file and position in it, so that Scribe
+     *                     consumers can drop the duplicates of retried files
+     */
+    public ScribeSender(final List<? extends ScribeClient> scribeClients, final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes,
+                        final int chunkSize, final long initialBackoffInMillis, final long maxBackoffInMillis, final boolean dedupeTokens)
+    {
+        this(scribeClients, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, chunkSize, initialBackoffInMillis, maxBackoffInMillis,
+             new FailsafeScheduledExecutor(1, "ScribeRetrier"), new DeliveryTracker(), dedupeTokens);
+    }
+
+    // For testing
+    ScribeSender(final List<? extends ScribeClient> scribeClients, final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes,
+                 final int chunkSize, final long initialBackoffInMillis, final long maxBackoffInMillis, final ScheduledExecutorService retryExecutor)
+    {
+        this(scribeClients, messagesToSendBeforeReconnecting, maxIdleTimeInMinutes, chunkSize, initialBackoffInMillis, maxBackoffInMillis, retryExecutor,
+             new DeliveryTracker(), false);
+    }
+
+    ScribeSender(final List<? extends ScribeClient> scribeClients, final int messagesToSendBeforeReconnecting, final int maxIdleTimeInMinutes,
+                 final int chunkSize, final long initialBackoffInMillis, final long maxBackoffInMillis, final ScheduledExecutorService retryExecutor,
+                 final DeliveryTracker deliveryTracker, final boolean dedupeTokens)
+    {
+        if (scribeClients.isEmpty()) {
+            throw new IllegalArgumentException("At least one Scribe client is required");
+        }
+
+        for (final ScribeClient scribeClient : scribeClients) {
+            final ScribeConnection connection = new ScribeConnection(scribeClient);
+            connections.add(connection);
+            idleConnections.add(connection);
+        }
+
         this.messagesToSendBeforeReconnecting = messagesToSendBeforeReconnecting;
+        this.chunkSize = chunkSize;
+        this.backoff = new ExponentialBackoff(initialBackoffInMillis, maxBackoffInMillis);
+        this.retryExecutor = retryExecutor;
+        this.deliveryTracker = deliveryTracker;
+        this.dedupeTokens = dedupeTokens;
+
+        if (connections.size() > 1) {
+            senderExecutor = new FailsafeScheduledExecutor(connections.size(), "ScribeSender");
+        }
+        else {
+            // Send on the flusher thread
+            senderExecutor = null;
+        }
 
-        // Setup a watchdog for the Scribe connection. We don't want to keep it open forever. For instance, SLB VIP
+        // Setup a watchdog for the Scribe connections. We don't want to keep them open forever. For instance, SLB VIP
         // may trigger a RST if idle more than a few minutes.
         final ScheduledExecutorService executor = new FailsafeScheduledExecutor(1, "ScribeWatchdog");
         executor.scheduleAtFixedRate(new Runnable()
@@ -73,142 +162,369 @@ public class ScribeSender implements EventSender
             @Override
             public void run()
             {
-                if (sleeping.get()) {
-                    log.info("Idle connection to Scribe, re-opening it");
-                    createConnection();
+                for (final ScribeConnection connection : connections) {
+                    // Leave connections currently in use alone
+                    if (connection.checkIdle() && idleConnections.remove(connection)) {
+                        log.info("Idle connection to Scribe, re-opening it");
+                        reconnect(connection);
+                        idleConnections.add(connection);
+                    }
                 }
-                sleeping.set(true);
             }
         }, maxIdleTimeInMinutes, maxIdleTimeInMinutes, TimeUnit.MINUTES);
     }
 
     /**
-     * Re-initialize the connection with the Scribe endpoint.
+     * Re-initialize the connections with the Scribe endpoint.
      */
     public synchronized void createConnection()
     {
-        if (scribeClient != null) {
-            try {
-                connectionRetries.incrementAndGet();
-                scribeClient.closeLogger();
-                scribeClient.openLogger();
-                isClosed.set(false);
-
-                log.info("Connection to Scribe established");
-            }
-            catch (TTransportException e) {
-                log.warn("Unable to connect to Scribe: {}", e.getLocalizedMessage());
-                scribeClient.closeLogger();
-            }
-        }
-        else {
-            log.warn("Scribe client has not been set up correctly.");
+        for (final ScribeConnection connection : connections) {
+            reconnect(connection);
         }
     }
 
+    private void reconnect(final ScribeConnection connection)
+    {
+        connectionRetries.incrementAndGet();
+        connection.open();
+    }
+
     /**
      * Disconnect from Scribe for good.
+     * <p/>
+     * The writer moved the files handed to the sender to the spool lock directory, and won't look at them again: files
+     * waiting for a retry or for a connection are moved back to the spool area, for the next run to send them.
      */
     @Override
     public synchronized void close()
     {
-        if (scribeClient != null && !isClosed.get()) {
-            scribeClient.closeLogger();
-            isClosed.set(true);
+        retryExecutor.shutdownNow();
+        if (senderExecutor != null) {
+            senderExecutor.shutdownNow();
+        }
+
+        for (final File file : heldFiles.keySet()) {
+            final CallbackHandler handler = heldFiles.remove(file);
+            if (handler != null) {
+                requeue(file, handler);
+            }
+        }
+        // The next run sends the files moved back to the spool area in full
+        partiallySentFiles.clear();
+
+        for (final ScribeConnection connection : connections) {
+            connection.close();
         }
     }
 
     @Override
     public void send(final File file, final CallbackHandler handler)
     {
-        if (isClosed.get()) {
-            createConnection();
+        if (senderExecutor == null) {
+            sendOnIdleConnection(file, handler);
+            return;
         }
 
-        // Tell the watchdog that we are doing something
-        sleeping.set(false);
+        heldFiles.put(file, handler);
+        try {
+            senderExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Unless moved back to the spool area on close
+                    if (heldFiles.remove(file) != null) {
+                        sendOnIdleConnection(file, handler);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Scribe sender closed, leaving {} in the spool", file);
+            if (heldFiles.remove(file) != null) {
+                requeue(file, handler);
+            }
+        }
+    }
+
+    private void sendOnIdleConnection(final File file, final CallbackHandler handler)
+    {
+        // Throttle sends while Scribe is overloaded: leave the file in the spool for a later flush
+        if (backoff.getRemainingDelayInMillis() > 0) {
+            requeue(file, handler);
+            return;
+        }
+
+        final ScribeConnection connection;
+        try {
+            connection = idleConnections.take();
+        }
+        catch (InterruptedException e) {
+            // Closing
+            Thread.currentThread().interrupt();
+            requeue(file, handler);
+            return;
+        }
+
+        try {
+            if (connection.isClosed()) {
+                reconnect(connection);
+            }
+
+            final int attempt = deliveryTracker.onAttempt(file);
+            if (attempt > 1) {
+                log.debug("Attempt {} to send {}", attempt, file);
+            }
+
+            if (chunkSize > 0) {
+                sendInChunks(connection, file, handler);
+            }
+            else {
+                sendAtOnce(connection, file, handler);
+            }
+        }
+        finally {
+            idleConnections.add(connection);
+        }
+    }
 
+    private void sendAtOnce(final ScribeConnection connection, final File file, final CallbackHandler handler)
+    {
         // Parse the underlying file and generate the payload for Scribe
-        final List<LogEntry> list = createScribePayload(file, handler);
+        final List<LogEntry> list = createScribePayload(file, dedupeTokens ? deliveryTracker.getFileId(file) : null, handler);
         if (list == null) {
             // Something went wrong
             return;
         }
 
         try {
-            scribeClient.log(list);
+            if (connection.log(list) == ResultCode.TRY_LATER) {
+                // Keep the file around
+                onTryLater(file, handler);
+                return;
+            }
+
+            backoff.onSuccess();
+            deliveryTracker.onDelivered(file);
             // Get rid of the file. We do it early, because the reconnection may fail
             handler.onSuccess(file);
 
             messagesSuccessfullySent.addAndGet(list.size());
-            messagesSuccessfullySentSinceLastReconnection.addAndGet(list.size());
-
-            // For load balancing capabilities, we don't want to make sticky connections to Scribe.
-            // After a certain threshold, force a refresh of the connection.
-            if (messagesSuccessfullySentSinceLastReconnection.get() > messagesToSendBeforeReconnecting) {
-                log.info("Recycling connection with Scribe");
-                messagesSuccessfullySentSinceLastReconnection.set(0);
-                createConnection();
-            }
+
+            recycleConnectionIfNeeded(connection);
         }
         catch (org.apache.thrift.TException e) {
             // Connection flacky?
             log.warn("Error while sending message to Scribe: {}", e.getLocalizedMessage());
-            createConnection();
+            reconnect(connection);
             handler.onError(new Throwable(e), file);
         }
     }
 
     /**
-     * Give a file of events, generate LogEntry messages for Scribe
+     * Stream a file of events to Scribe, chunkSize events at a time, without loading the whole file in memory.
+     * <p/>
+     * If Scribe asks to try a chunk later, the number of events acknowledged so far is remembered: the retry of
+     * this file skips them. Progress is forgotten once the file leaves the sender (sent, failed or closed): a file
+     * failed back to the writer is sent again in full.
      *
      * @param file    File containing events
      * @param handler notifier for the serialization-writer library
-     * @return list of Scirbe-ready events on success, null otherwise
      */
-    private List<LogEntry> createScribePayload(final File file, final CallbackHandler handler)
+    private void sendInChunks(final ScribeConnection connection, final File file, final CallbackHandler handler)
     {
+        // Spool files keep their name when moved around by the writer, the size guards against name reuse
+        final String fileKey = String.format("%s:%d", file.getName(), file.length());
+        final Integer previouslySent = partiallySentFiles.get(fileKey);
+        final int eventsToSkip = previouslySent == null ? 0 : previouslySent;
+        if (eventsToSkip > 0) {
+            log.info("Resuming send of {} after {} acknowledged events", file, eventsToSkip);
+            resumedSends.incrementAndGet();
+        }
+
+        final String fileId = dedupeTokens ? deliveryTracker.getFileId(file) : null;
+        int eventsRead = 0;
+        int eventsSent = eventsToSkip;
+        ObjectInputStream in = null;
         try {
-            final List<Event> events = Events.fromFile(file);
-            final List<LogEntry> list = new ArrayList<LogEntry>(events.size());
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
 
-            for (final Event event : events) {
-                final String logEntryMessage = eventToLogEntryMessage(event);
-                list.add(new LogEntry(event.getName(), logEntryMessage));
+            final ScribeLogEntryEncoder encoder = ScribeLogEntryEncoder.forCurrentThread();
+            final List<LogEntry> chunk = new ArrayList<LogEntry>(chunkSize);
+            // See ObjectOutputEventSerializer: each event is prefixed by a marker byte
+            while (in.read() != -1) {
+                final Event event = (Event) in.readObject();
+                eventsRead++;
+                if (eventsRead <= eventsToSkip) {
+                    continue;
+                }
+
+                chunk.add(encoder.toLogEntry(event, fileId == null ? null : ScribeLogEntryEncoder.getDedupeToken(fileId, eventsRead - 1)));
+                if (chunk.size() == chunkSize) {
+                    if (!sendChunk(connection, chunk)) {
+                        rememberProgress(fileKey, eventsSent);
+                        onTryLater(file, handler);
+                        return;
+                    }
+                    eventsSent += chunk.size();
+                    chunk.clear();
+                }
             }
 
-            return list;
+            if (!chunk.isEmpty()) {
+                if (!sendChunk(connection, chunk)) {
+                    rememberProgress(fileKey, eventsSent);
+                    onTryLater(file, handler);
+                    return;
+                }
+                eventsSent += chunk.size();
+            }
+        }
+        catch (org.apache.thrift.TException e) {
+            log.warn("Error while sending message to Scribe ({} events of {} acknowledged): {}",
+                     new Object[]{eventsSent, file, e.getLocalizedMessage()});
+            partiallySentFiles.remove(fileKey);
+            reconnect(connection);
+            handler.onError(new Throwable(e), file);
+            return;
         }
         catch (ClassNotFoundException e) {
+            partiallySentFiles.remove(fileKey);
             handler.onError(new Throwable(e), file);
-            return null;
+            return;
         }
         catch (IOException e) {
+            partiallySentFiles.remove(fileKey);
             handler.onError(new Throwable(e), file);
-            return null;
+            return;
+        }
+        finally {
+            closeQuietly(in);
         }
+
+        partiallySentFiles.remove(fileKey);
+        backoff.onSuccess();
+        deliveryTracker.onDelivered(file);
+        handler.onSuccess(file);
+
+        recycleConnectionIfNeeded(connection);
     }
 
-    protected static String eventToLogEntryMessage(final Event event) throws IOException
+    /**
+     * @return false if Scribe asked us to try later
+     */
+    private boolean sendChunk(final ScribeConnection connection, final List<LogEntry> chunk) throws org.apache.thrift.TException
+    {
+        if (connection.log(chunk) == ResultCode.TRY_LATER) {
+            return false;
+        }
+
+        messagesSuccessfullySent.addAndGet(chunk.size());
+        return true;
+    }
+
+    private void rememberProgress(final String fileKey, final int eventsSent)
+    {
+        if (eventsSent > 0) {
+            partiallySentFiles.put(fileKey, eventsSent);
+        }
+    }
+
+    private void onTryLater(final File file, final CallbackHandler handler)
+    {
+        tryLaterResponses.incrementAndGet();
+        final long delayInMillis = backoff.onFailure();
+        log.warn("Scribe is overloaded, retrying {} in {} ms", file, delayInMillis);
+
+        retryLater(file, handler, delayInMillis);
+    }
+
+    /**
+     * Hold on to the file and send it again later. The handler is notified once the retry completes.
+     */
+    private void retryLater(final File file, final CallbackHandler handler, final long delayInMillis)
     {
-        // Has the sender specified how to send the data?
-        byte[] payload = event.getSerializedEvent();
+        heldFiles.put(file, handler);
+        try {
+            retryExecutor.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Unless moved back to the spool area on close
+                    if (heldFiles.remove(file) != null) {
+                        send(file, handler);
+                    }
+                }
+            }, delayInMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Scribe sender closed, leaving {} in the spool", file);
+            if (heldFiles.remove(file) != null) {
+                requeue(file, handler);
+            }
+        }
+    }
 
-        // Nope, default to ObjectOutputStream
-        if (payload == null) {
-            final ByteArrayOutputStream out = new ByteArrayOutputStream();
-            event.writeExternal(new ObjectOutputStream(out));
-            payload = out.toByteArray();
+    // Back in the spool area, without notifying the handler (failing the file would quarantine it)
+    private void requeue(final File file, final CallbackHandler handler)
+    {
+        if (!SpoolFiles.requeue(file)) {
+            handler.onError(new IOException("Unable to leave the file in the spool"), file);
+        }
+    }
 
-            // 64-bit encode the serialized object
-            payload = new Base64().encode(payload);
+    private void recycleConnectionIfNeeded(final ScribeConnection connection)
+    {
+        // For load balancing capabilities, we don't want to make sticky connections to Scribe.
+        // After a certain threshold, force a refresh of the connection.
+        if (connection.getMessagesSentSinceLastReconnection() > messagesToSendBeforeReconnecting) {
+            log.info("Recycling connection with Scribe");
+            reconnect(connection);
         }
+    }
 
-        final String scribePayload = new String(payload, CHARSET);
+    private void closeQuietly(final ObjectInputStream in)
+    {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                log.debug("Unable to close spool file", e);
+            }
+        }
+    }
+
+    /**
+     * Give a file of events, generate LogEntry messages for Scribe
+     *
+     * @param file    File containing events
+     * @param fileId  id of the file, null for no dedupe tokens
+     * @param handler notifier for the serialization-writer library
+     * @return list of Scirbe-ready events on success, null otherwise
+     */
+    private List<LogEntry> createScribePayload(final File file, final String fileId, final CallbackHandler handler)
+    {
+        try {
+            return ScribeLogEntryEncoder.forCurrentThread().toLogEntries(file, fileId);
+        }
+        catch (ClassNotFoundException e) {
+            handler.onError(new Throwable(e), file);
+            return null;
+        }
+        catch (IOException e) {
+            handler.onError(new Throwable(e), file);
+            return null;
+        }
+    }
 
+    protected static String eventToLogEntryMessage(final Event event) throws IOException
+    {
         // To avoid costly Thrift deserialization on the collector side, we embed the
         // timestamp in the format, outside of the payload. We need it for HDFS routing.
-        return String.format("%s:%s", event.getEventDateTime().getMillis(), scribePayload);
+        return ScribeLogEntryEncoder.forCurrentThread().encode(event);
     }
 
     @Managed(description = "Get the number of messages successfully sent since startup to Scribe")
@@ -220,7 +536,66 @@ public class ScribeSender implements EventSender
     @Managed(description = "Get the number of messages successfully sent since last reconnection to Scribe")
     public long getMessagesSuccessfullySentSinceLastReconnection()
     {
-        return messagesSuccessfullySentSinceLastReconnection.get();
+        long messagesSent = 0;
+        for (final ScribeConnection connection : connections) {
+            messagesSent += connection.getMessagesSentSinceLastReconnection();
+        }
+
+        return messagesSent;
+    }
+
+    @Managed(description = "Get the number of connections to Scribe")
+    public int getConnections()
+    {
+        return connections.size();
+    }
+
+    @Managed(description = "Get the number of connections to Scribe currently sending files")
+    public int getBusyConnections()
+    {
+        return connections.size() - idleConnections.size();
+    }
+
+    @Managed(description = "Get the number of files partially sent to Scribe, waiting to be resumed after a TRY_LATER")
+    public long getPartiallySentFiles()
+    {
+        return partiallySentFiles.size();
+    }
+
+    @Managed(description = "Get the number of file sends resumed after the last acknowledged chunk")
+    public long getResumedSends()
+    {
+        return resumedSends.get();
+    }
+
+    @Managed(description = "Get the number of TRY_LATER responses received from Scribe")
+    public long getTryLaterResponses()
+    {
+        return tryLaterResponses.get();
+    }
+
+    @Managed(description = "Get the number of file sends retried since startup")
+    public long getRetries()
+    {
+        return deliveryTracker.getRetries();
+    }
+
+    @Managed(description = "Get the number of files sent more than once, waiting to be acknowledged")
+    public int getFilesBeingRetried()
+    {
+        return deliveryTracker.getFilesBeingRetried();
+    }
+
+    @Managed(description = "Get the highest number of attempts of a file waiting to be acknowledged")
+    public int getMaxAttempts()
+    {
+        return deliveryTracker.getMaxAttempts();
+    }
+
+    @Managed(description = "Get the current delay before retrying to send to Scribe, in milliseconds (0 if Scribe is healthy)")
+    public long getCurrentBackoffInMillis()
+    {
+        return backoff.getCurrentDelayInMillis();
     }
 
     @Managed(description = "Get the number of times we retried to connect to Scribe")
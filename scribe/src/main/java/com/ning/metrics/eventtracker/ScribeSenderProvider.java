@@ -19,6 +19,9 @@ package com.ning.metrics.eventtracker;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * We only have a provider here to avoid Guice dependencies in the ScribeSender class
  */
@@ -35,7 +38,13 @@ class ScribeSenderProvider implements Provider<ScribeSender>
     @Override
     public ScribeSender get()
     {
-        final ScribeClientImpl scribeClient = new ScribeClientImpl(config.getScribeHost(), config.getScribePort());
-        return new ScribeSender(scribeClient, config.getScribeRefreshRate(), config.getScribeMaxIdleTimeInMinutes());
+        final List<ScribeClientImpl> scribeClients = new ArrayList<ScribeClientImpl>();
+        for (int i = 0; i < config.getScribeConnections(); i++) {
+            scribeClients.add(new ScribeClientImpl(config.getScribeHost(), config.getScribePort()));
+        }
+
+        return new ScribeSender(scribeClients, config.getScribeRefreshRate(), config.getScribeMaxIdleTimeInMinutes(),
+                                config.getScribeChunkSize(), config.getScribeInitialBackoff().getMillis(),
+                                config.getScribeMaxBackoff().getMillis(), config.isScribeDedupeTokensEnabled());
     }
 }
\ No newline at end of file
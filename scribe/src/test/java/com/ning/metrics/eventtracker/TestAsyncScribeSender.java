@@ -0,0 +1,399 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.ThriftToThriftEnvelopeEvent;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
+import com.ning.metrics.serialization.writer.StubScheduledExecutorService;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.transport.TTransportException;
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.BeforeTest;
+import org.testng.annotations.Test;
+import scribe.thrift.LogEntry;
+import scribe.thrift.ResultCode;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestAsyncScribeSender
+{
+    private Event thriftEvent;
+
+    @BeforeTest
+    public void setUp()
+    {
+        final byte[] data = {1, 2, 3, 4, 5};
+        this.thriftEvent = ThriftToThriftEnvelopeEvent.extractEvent("thrift", new DateTime(), new Click("thrift", 12, new String(data)));
+    }
+
+    @Test(groups = "fast")
+    public void testRequestsArePipelined() throws Exception
+    {
+        final List<PendingScribeClient> clients = createClients(3);
+        final AsyncScribeSender sender = new AsyncScribeSender(clients, null, 1000, 1, 1000, 60000, new RecordingScheduledExecutorService(),
+                                                               new RecordingScheduledExecutorService());
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            final File file = createSpoolFile(10);
+            files.add(file);
+            sender.send(file, new CountingCallbackHandler(successes, errors));
+        }
+
+        // send() returned without waiting for Scribe: one request in flight per connection
+        Assert.assertEquals(sender.getRequestsInFlight(), 3);
+        Assert.assertEquals(successes.get(), 0);
+
+        // Responses complete the handlers
+        for (final PendingScribeClient client : clients) {
+            client.respond(ResultCode.OK);
+        }
+
+        Assert.assertEquals(successes.get(), 3);
+        Assert.assertEquals(errors.get(), 0);
+        Assert.assertEquals(sender.getRequestsInFlight(), 0);
+        Assert.assertEquals(sender.getMessagesSuccessfullySent(), 30);
+
+        sender.close();
+        for (final File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testTryLaterKeepsTheFile() throws Exception
+    {
+        final List<PendingScribeClient> clients = createClients(1);
+        final RecordingScheduledExecutorService retryExecutor = new RecordingScheduledExecutorService();
+        final AsyncScribeSender sender = new AsyncScribeSender(clients, null, 1000, 1, 1, 1, retryExecutor,
+                                                               new RecordingScheduledExecutorService());
+        final File file = createSpoolFile(10);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+        clients.get(0).respond(ResultCode.TRY_LATER);
+
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(errors.get(), 0);
+        Assert.assertEquals(sender.getTryLaterResponses(), 1);
+        Assert.assertEquals(sender.getRequestsInFlight(), 0);
+        Assert.assertEquals(sender.getRetries(), 0);
+        Assert.assertEquals(sender.getMaxAttempts(), 1);
+
+        // Wait for the backoff to expire and retry
+        Thread.sleep(10);
+        retryExecutor.runNext();
+        Assert.assertEquals(sender.getRetries(), 1);
+        Assert.assertEquals(sender.getFilesBeingRetried(), 1);
+        Assert.assertEquals(sender.getMaxAttempts(), 2);
+        clients.get(0).respond(ResultCode.OK);
+
+        Assert.assertEquals(successes.get(), 1);
+        Assert.assertEquals(sender.getCurrentBackoffInMillis(), 0);
+        // Delivered files aren't tracked anymore
+        Assert.assertEquals(sender.getFilesBeingRetried(), 0);
+        Assert.assertEquals(sender.getMaxAttempts(), 0);
+
+        sender.close();
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testErrorReconnects() throws Exception
+    {
+        final List<PendingScribeClient> clients = createClients(1);
+        final RecordingScheduledExecutorService reconnector = new RecordingScheduledExecutorService();
+        final AsyncScribeSender sender = new AsyncScribeSender(clients, null, 1000, 1, 1000, 60000, new RecordingScheduledExecutorService(),
+                                                               reconnector);
+        final File file = createSpoolFile(5);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+        final long retriesBefore = sender.getConnectionRetries();
+        clients.get(0).fail(new TTransportException("Connection reset"));
+
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(errors.get(), 1);
+
+        // The selector thread doesn't re-open the connection itself
+        Assert.assertEquals(sender.getConnectionRetries(), retriesBefore);
+        Assert.assertEquals(sender.getRequestsInFlight(), 1);
+
+        reconnector.runNext();
+        Assert.assertEquals(sender.getConnectionRetries(), retriesBefore + 1);
+        Assert.assertEquals(sender.getRequestsInFlight(), 0);
+
+        sender.close();
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testTimeoutFailsTheFile() throws Exception
+    {
+        final List<PendingScribeClient> clients = createClients(1);
+        final RecordingScheduledExecutorService reconnector = new RecordingScheduledExecutorService();
+        final AsyncScribeSender sender = new AsyncScribeSender(clients, null, 1000, 1, 1000, 60000, new RecordingScheduledExecutorService(),
+                                                               reconnector);
+        final File file = createSpoolFile(5);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+
+        // What the selector does when Scribe doesn't answer in time
+        clients.get(0).fail(new TimeoutException("Operation timed out"));
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(errors.get(), 1);
+
+        // The connection is usable again once re-opened
+        reconnector.runNext();
+        Assert.assertEquals(sender.getRequestsInFlight(), 0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+        clients.get(0).respond(ResultCode.OK);
+        Assert.assertEquals(successes.get(), 1);
+
+        sender.close();
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testCloseLeavesHeldFilesInSpool() throws Exception
+    {
+        final List<PendingScribeClient> clients = createClients(2);
+        final RecordingScheduledExecutorService retryExecutor = new RecordingScheduledExecutorService();
+        final AsyncScribeSender sender = new AsyncScribeSender(clients, null, 1000, 1, 60000, 60000, retryExecutor,
+                                                               new RecordingScheduledExecutorService());
+        final File spoolDirectory = File.createTempFile("async-scribe-sender", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        final File lockDirectory = new File(spoolDirectory, "_lock");
+        Assert.assertTrue(lockDirectory.mkdirs());
+        final File retriedFile = new File(lockDirectory, "retried.bin");
+        Assert.assertTrue(createSpoolFile(5).renameTo(retriedFile));
+        final File inFlightFile = new File(lockDirectory, "in-flight.bin");
+        Assert.assertTrue(createSpoolFile(5).renameTo(inFlightFile));
+        final File throttledFile = new File(lockDirectory, "throttled.bin");
+        Assert.assertTrue(createSpoolFile(5).renameTo(throttledFile));
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(retriedFile, new CountingCallbackHandler(successes, errors));
+        sender.send(inFlightFile, new CountingCallbackHandler(successes, errors));
+        clients.get(0).respond(ResultCode.TRY_LATER);
+
+        // Left in the spool while backing off
+        sender.send(throttledFile, new CountingCallbackHandler(successes, errors));
+        Assert.assertTrue(new File(spoolDirectory, "throttled.bin").exists());
+
+        // Neither the file waiting for its retry nor the one in flight is stranded in the lock area
+        sender.close();
+        Assert.assertEquals(lockDirectory.list().length, 0);
+        Assert.assertTrue(new File(spoolDirectory, "retried.bin").exists());
+        Assert.assertTrue(new File(spoolDirectory, "in-flight.bin").exists());
+
+        // Late answers and retries are ignored
+        clients.get(1).respond(ResultCode.OK);
+        retryExecutor.runNext();
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(errors.get(), 0);
+
+        for (final String name : new String[]{"retried.bin", "in-flight.bin", "throttled.bin"}) {
+            Assert.assertTrue(new File(spoolDirectory, name).delete());
+        }
+        Assert.assertTrue(lockDirectory.delete());
+        Assert.assertTrue(spoolDirectory.delete());
+    }
+
+    @Test(groups = "fast")
+    public void testDedupeTokens() throws Exception
+    {
+        final List<PendingScribeClient> clients = createClients(1);
+        final DeliveryTracker deliveryTracker = new DeliveryTracker("test-host");
+        final AsyncScribeSender sender = new AsyncScribeSender(clients, null, 1000, 1, 1000, 60000, new RecordingScheduledExecutorService(),
+                                                               new RecordingScheduledExecutorService(), deliveryTracker, true);
+
+        final File spoolDirectory = File.createTempFile("async-scribe-sender", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        final File file = new File(new File(spoolDirectory, "_lock"), "spool-file.bin");
+        Assert.assertTrue(file.getParentFile().mkdirs());
+        Assert.assertTrue(createSpoolFile(5).renameTo(file));
+        final String fileId = deliveryTracker.getFileId(file);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+
+        // Each event identified by the file and its position in it, after the timestamp
+        final List<LogEntry> messages = clients.get(0).getMessages();
+        Assert.assertEquals(messages.size(), 5);
+        for (int i = 0; i < messages.size(); i++) {
+            final String[] fields = messages.get(i).getMessage().split(":", 3);
+            Assert.assertEquals(fields[1], fileId + "#" + i);
+        }
+
+        clients.get(0).respond(ResultCode.OK);
+        Assert.assertEquals(successes.get(), 1);
+
+        sender.close();
+        file.delete();
+        new File(new File(spoolDirectory, "_generation"), "id").delete();
+        new File(spoolDirectory, "_generation").delete();
+        file.getParentFile().delete();
+        spoolDirectory.delete();
+    }
+
+    private List<PendingScribeClient> createClients(final int numberOfClients)
+    {
+        final List<PendingScribeClient> clients = new ArrayList<PendingScribeClient>();
+        for (int i = 0; i < numberOfClients; i++) {
+            clients.add(new PendingScribeClient());
+        }
+
+        return clients;
+    }
+
+    private File createSpoolFile(final int numberOfEvents) throws IOException
+    {
+        final File file = File.createTempFile("async-scribe-sender", ".bin");
+        final OutputStream out = new FileOutputStream(file);
+        final ObjectOutputEventSerializer serializer = new ObjectOutputEventSerializer();
+        serializer.open(out);
+        for (int i = 0; i < numberOfEvents; i++) {
+            serializer.serialize(thriftEvent);
+        }
+        serializer.close();
+
+        return file;
+    }
+
+    /**
+     * Holds on to the request in flight until the test answers it
+     */
+    private static final class PendingScribeClient implements AsyncScribeClient
+    {
+        private AsyncMethodCallback<ResultCode> pending;
+        private List<LogEntry> messages;
+
+        @Override
+        public void openLogger() throws TTransportException
+        {
+        }
+
+        @Override
+        public void log(final List<LogEntry> messages, final AsyncMethodCallback<ResultCode> callback) throws TException
+        {
+            if (pending != null) {
+                throw new IllegalStateException("Client is currently executing another method");
+            }
+            pending = callback;
+            this.messages = messages;
+        }
+
+        @Override
+        public void closeLogger()
+        {
+        }
+
+        List<LogEntry> getMessages()
+        {
+            return messages;
+        }
+
+        void respond(final ResultCode resultCode)
+        {
+            final AsyncMethodCallback<ResultCode> callback = pending;
+            pending = null;
+            callback.onComplete(resultCode);
+        }
+
+        void fail(final Exception exception)
+        {
+            final AsyncMethodCallback<ResultCode> callback = pending;
+            pending = null;
+            callback.onError(exception);
+        }
+    }
+
+    private static final class CountingCallbackHandler implements CallbackHandler
+    {
+        private final AtomicInteger successes;
+        private final AtomicInteger errors;
+
+        private CountingCallbackHandler(final AtomicInteger successes, final AtomicInteger errors)
+        {
+            this.successes = successes;
+            this.errors = errors;
+        }
+
+        @Override
+        public void onError(final Throwable t, final File file)
+        {
+            errors.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess(final File file)
+        {
+            successes.incrementAndGet();
+        }
+    }
+
+    private static final class RecordingScheduledExecutorService extends StubScheduledExecutorService
+    {
+        private final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+        @Override
+        public ScheduledFuture<?> schedule(final Runnable runnable, final long delay, final TimeUnit unit)
+        {
+            scheduled.add(runnable);
+            return null;
+        }
+
+        @Override
+        public void execute(final Runnable runnable)
+        {
+            scheduled.add(runnable);
+        }
+
+        public void runNext()
+        {
+            scheduled.remove(0).run();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return scheduled;
+        }
+    }
+}
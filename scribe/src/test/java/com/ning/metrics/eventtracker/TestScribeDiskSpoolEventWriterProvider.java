@@ -16,6 +16,8 @@
 
 package com.ning.metrics.eventtracker;
 
+import com.google.inject.util.Providers;
+import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
 import com.ning.metrics.serialization.thrift.ThriftEnvelope;
 import com.ning.metrics.serialization.thrift.ThriftField;
@@ -34,6 +36,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -117,11 +120,14 @@ public class TestScribeDiskSpoolEventWriterProvider
      */
     private DiskSpoolEventWriter diskWriterProvider(EventSender sender) throws IOException
     {
+        final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, Executors.defaultThreadFactory());
         return new DiskSpoolEventWriterProvider(
             config,
             sender,
-            new ScheduledThreadPoolExecutor(1, Executors.defaultThreadFactory()),
-            new ObjectOutputEventSerializer()
+            executor,
+            Providers.<EventSerializer>of(new ObjectOutputEventSerializer()),
+            new AdaptiveFlushScheduler(config, executor),
+            new SpoolQuota(config)
         ).get();
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2010-2012 Ning, Inc.
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.ning.metrics.eventtracker;
+
+import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.ThriftEnvelopeEvent;
+import com.ning.metrics.serialization.event.ThriftToThriftEnvelopeEvent;
+import com.ning.metrics.serialization.thrift.ThriftEnvelope;
+import org.apache.commons.codec.binary.Base64;
+import org.joda.time.DateTime;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import scribe.thrift.LogEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+
+public class TestScribeLogEntryEncoder
+{
+    private final ScribeLogEntryEncoder encoder = new ScribeLogEntryEncoder();
+
+    @Test(groups = "fast")
+    public void testSerializedEvent() throws Exception
+    {
+        final Event event = createEvent("Mozilla-foo");
+
+        final LogEntry entry = encoder.toLogEntry(event);
+        Assert.assertEquals(entry.getCategory(), event.getName());
+        Assert.assertEquals(entry.getMessage(), String.format("%s:%s", event.getEventDateTime().getMillis(), new String(event.getSerializedEvent(), "ISO-8859-1")));
+    }
+
+    @Test(groups = "fast")
+    public void testObjectOutputFallback() throws Exception
+    {
+        // Vary the payload size to cover all Base64 padding cases
+        for (int i = 0; i < 6; i++) {
+            final ThriftEnvelopeEvent original = createEvent("Mozilla-foo".substring(i));
+            final Event event = new ThriftEnvelopeEvent(original.getEventDateTime(), (ThriftEnvelope) original.getData())
+            {
+                @Override
+                public byte[] getSerializedEvent()
+                {
+                    return null;
+                }
+            };
+
+            final String message = encoder.encode(event);
+            final int separator = message.indexOf(':');
+            Assert.assertEquals(Long.parseLong(message.substring(0, separator)), event.getEventDateTime().getMillis());
+
+            final byte[] payload = new Base64().decode(message.substring(separator + 1).getBytes("ISO-8859-1"));
+            Assert.assertEquals(message.substring(separator + 1), new String(new Base64().encode(payload), "ISO-8859-1"));
+
+            final ThriftEnvelopeEvent decoded = new ThriftEnvelopeEvent();
+            decoded.readExternal(new ObjectInputStream(new ByteArrayInputStream(payload)));
+            Assert.assertEquals(decoded.getEventDateTime(), event.getEventDateTime());
+            Assert.assertEquals(decoded.getSerializedEvent(), original.getSerializedEvent());
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testLargeEventsAreNotTruncated() throws Exception
+    {
+        final StringBuilder userAgent = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            userAgent.append('a');
+        }
+
+        final Event largeEvent = createEvent(userAgent.toString());
+        Assert.assertEquals(encoder.encode(largeEvent), ScribeSender.eventToLogEntryMessage(largeEvent));
+
+        // The encoder is still usable once the buffers have been released
+        final Event smallEvent = createEvent("Mozilla-foo");
+        Assert.assertEquals(encoder.encode(smallEvent), ScribeSender.eventToLogEntryMessage(smallEvent));
+    }
+
+    private ThriftEnvelopeEvent createEvent(final String userAgent)
+    {
+        return (ThriftEnvelopeEvent) ThriftToThriftEnvelopeEvent.extractEvent("thrift", new DateTime(), new Click("impression", 12, userAgent));
+    }
+}
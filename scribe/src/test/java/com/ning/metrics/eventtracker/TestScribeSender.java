@@ -18,6 +18,10 @@ package com.ning.metrics.eventtracker;
 
 import com.ning.metrics.serialization.event.Event;
 import com.ning.metrics.serialization.event.ThriftToThriftEnvelopeEvent;
+import com.ning.metrics.serialization.writer.CallbackHandler;
+import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
+import com.ning.metrics.serialization.writer.StubScheduledExecutorService;
+import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
 import org.joda.time.DateTime;
 import org.testng.Assert;
@@ -27,7 +31,18 @@ import org.testng.annotations.Test;
 import scribe.thrift.LogEntry;
 import scribe.thrift.ResultCode;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestScribeSender
 {
@@ -59,7 +74,7 @@ public class TestScribeSender
             open = true;
         }
 
-        public ResultCode log(List<LogEntry> messages)
+        public ResultCode log(List<LogEntry> messages) throws TException
         {
             messagesSent += messages.size();
             return ResultCode.OK;
@@ -134,6 +149,416 @@ public class TestScribeSender
         }
     }
 
+    @Test(groups = "fast")
+    public void testSendInChunks() throws Exception
+    {
+        final ChunkRecordingScribeClient client = new ChunkRecordingScribeClient(-1);
+        final ScribeSender sender = new ScribeSender(client, 1000, 1, 10);
+        final File file = createSpoolFile(25);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, new AtomicInteger(0)));
+
+        Assert.assertEquals(successes.get(), 1);
+        Assert.assertEquals(client.getChunkSizes(), Arrays.asList(10, 10, 5));
+        Assert.assertEquals(sender.getMessagesSuccessfullySent(), 25);
+        Assert.assertEquals(sender.getPartiallySentFiles(), 0);
+
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testFailedFilesAreSentInFull() throws Exception
+    {
+        // Fail the third chunk, once
+        final ChunkRecordingScribeClient client = new ChunkRecordingScribeClient(2);
+        final ScribeSender sender = new ScribeSender(client, 1000, 1, 10);
+        final File file = createSpoolFile(45);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+
+        Assert.assertEquals(errors.get(), 1);
+        Assert.assertEquals(client.getMessagesSent(), 20);
+        // The file is failed back to the writer: its progress is forgotten
+        Assert.assertEquals(sender.getPartiallySentFiles(), 0);
+
+        // The retry (e.g. once moved back from quarantine) starts over
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+
+        Assert.assertEquals(successes.get(), 1);
+        Assert.assertEquals(client.getMessagesSent(), 65);
+        Assert.assertEquals(client.getChunkSizes(), Arrays.asList(10, 10, 10, 10, 10, 10, 5));
+        Assert.assertEquals(sender.getResumedSends(), 0);
+
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testTryLaterKeepsTheFile() throws Exception
+    {
+        final ChunkRecordingScribeClient client = new ChunkRecordingScribeClient(-1);
+        client.setCallToTryLater(0);
+        final RecordingScheduledExecutorService retryExecutor = new RecordingScheduledExecutorService();
+        final ScribeSender sender = new ScribeSender(Collections.singletonList(client), 1000, 1, 0, 1000, 60000, retryExecutor);
+        final File file = createSpoolFile(10);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+
+        // The file is neither acknowledged nor quarantined, a retry is scheduled instead
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(errors.get(), 0);
+        Assert.assertEquals(sender.getTryLaterResponses(), 1);
+        Assert.assertEquals(retryExecutor.delays.size(), 1);
+        Assert.assertTrue(retryExecutor.delays.get(0) >= 500 && retryExecutor.delays.get(0) <= 1000);
+        Assert.assertEquals(sender.getCurrentBackoffInMillis(), (long) retryExecutor.delays.get(0));
+
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testThrottledFilesStayInTheSpool() throws Exception
+    {
+        final ChunkRecordingScribeClient client = new ChunkRecordingScribeClient(-1);
+        client.setCallToTryLater(0);
+        final RecordingScheduledExecutorService retryExecutor = new RecordingScheduledExecutorService();
+        final ScribeSender sender = new ScribeSender(Collections.singletonList(client), 1000, 1, 0, 1000, 60000, retryExecutor);
+        final File spoolDirectory = createSpoolDirectory();
+        final File file = createLockedFile(spoolDirectory, "spool-file.bin", 10);
+        final File otherFile = createLockedFile(spoolDirectory, "other-spool-file.bin", 1);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+        Assert.assertEquals(retryExecutor.delays.size(), 1);
+
+        // Other files are throttled while backing off: back in the spool area for a later flush, not held in memory
+        sender.send(otherFile, new CountingCallbackHandler(successes, errors));
+        Assert.assertEquals(client.getMessagesSent(), 0);
+        Assert.assertEquals(retryExecutor.delays.size(), 1);
+        Assert.assertFalse(otherFile.exists());
+        Assert.assertTrue(new File(spoolDirectory, otherFile.getName()).exists());
+
+        // The file waiting for its retry isn't stranded in the lock area on close
+        Assert.assertTrue(file.exists());
+        sender.close();
+        Assert.assertFalse(file.exists());
+        Assert.assertTrue(new File(spoolDirectory, file.getName()).exists());
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(errors.get(), 0);
+
+        // The cancelled retry doesn't send it
+        retryExecutor.runNext();
+        Assert.assertEquals(client.getMessagesSent(), 0);
+
+        deleteRecursively(spoolDirectory);
+    }
+
+    @Test(groups = "fast")
+    public void testTryLaterResumesChunks() throws Exception
+    {
+        // Scribe is overloaded for the second chunk
+        final ChunkRecordingScribeClient client = new ChunkRecordingScribeClient(-1);
+        client.setCallToTryLater(1);
+        final RecordingScheduledExecutorService retryExecutor = new RecordingScheduledExecutorService();
+        final ScribeSender sender = new ScribeSender(Collections.singletonList(client), 1000, 1, 10, 1, 1, retryExecutor);
+        final File file = createSpoolFile(25);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+
+        Assert.assertEquals(client.getMessagesSent(), 10);
+        Assert.assertEquals(successes.get(), 0);
+        Assert.assertEquals(sender.getTryLaterResponses(), 1);
+
+        // Wait for the backoff to expire and retry
+        Thread.sleep(10);
+        retryExecutor.runNext();
+
+        Assert.assertEquals(successes.get(), 1);
+        Assert.assertEquals(errors.get(), 0);
+        Assert.assertEquals(client.getChunkSizes(), Arrays.asList(10, 10, 5));
+        Assert.assertEquals(sender.getCurrentBackoffInMillis(), 0);
+        Assert.assertEquals(sender.getPartiallySentFiles(), 0);
+
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testCloseForgetsProgress() throws Exception
+    {
+        // Scribe is overloaded for the second chunk
+        final ChunkRecordingScribeClient client = new ChunkRecordingScribeClient(-1);
+        client.setCallToTryLater(1);
+        final ScribeSender sender = new ScribeSender(Collections.singletonList(client), 1000, 1, 10, 60000, 60000,
+                                                     new RecordingScheduledExecutorService());
+        final File file = createSpoolFile(25);
+
+        sender.send(file, new CountingCallbackHandler(new AtomicInteger(0), new AtomicInteger(0)));
+        Assert.assertEquals(sender.getPartiallySentFiles(), 1);
+
+        // The file is moved back to the spool area, for the next run to send it in full
+        sender.close();
+        Assert.assertEquals(sender.getPartiallySentFiles(), 0);
+
+        file.delete();
+    }
+
+    @Test(groups = "fast")
+    public void testConnectionsAreUsedConcurrently() throws Exception
+    {
+        final CountDownLatch allConnectionsBusy = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ScribeClient> clients = new ArrayList<ScribeClient>();
+        for (int i = 0; i < 3; i++) {
+            clients.add(new ScribeMockClient("127.0.0.1", 7911)
+            {
+                @Override
+                public ResultCode log(final List<LogEntry> messages) throws TException
+                {
+                    allConnectionsBusy.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+
+                    return super.log(messages);
+                }
+            });
+        }
+
+        final ScribeSender sender = new ScribeSender(clients, 1000, 1, 0, 1000, 60000, new RecordingScheduledExecutorService());
+        Assert.assertEquals(sender.getConnections(), 3);
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 3; i++) {
+            final File file = createSpoolFile(10);
+            files.add(file);
+            sender.send(file, new CountingCallbackHandler(successes, new AtomicInteger(0)));
+        }
+
+        // One file per connection, in parallel
+        Assert.assertTrue(allConnectionsBusy.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(sender.getBusyConnections(), 3);
+
+        release.countDown();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (successes.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(successes.get(), 3);
+        Assert.assertEquals(sender.getMessagesSuccessfullySent(), 30);
+        for (final ScribeClient client : clients) {
+            Assert.assertEquals(((ScribeMockClient) client).getMessagesSent(), 10);
+        }
+
+        sender.close();
+        for (final File file : files) {
+            file.delete();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDedupeTokens() throws Exception
+    {
+        // Fail the third chunk, once
+        final List<String> messages = new ArrayList<String>();
+        final ScribeMockClient client = new ScribeMockClient("127.0.0.1", 7911)
+        {
+            private int calls = 0;
+
+            @Override
+            public ResultCode log(final List<LogEntry> entries) throws TException
+            {
+                if (calls++ == 2) {
+                    throw new TTransportException("Connection reset");
+                }
+                for (final LogEntry entry : entries) {
+                    messages.add(entry.getMessage());
+                }
+                return super.log(entries);
+            }
+        };
+        final DeliveryTracker deliveryTracker = new DeliveryTracker("test-host");
+        final ScribeSender sender = new ScribeSender(Collections.singletonList(client), 1000, 1, 10, 1000, 60000,
+                                                     new RecordingScheduledExecutorService(), deliveryTracker, true);
+
+        final File spoolDirectory = File.createTempFile("scribe-sender", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        final File file = new File(new File(spoolDirectory, "_lock"), "spool-file.bin");
+        Assert.assertTrue(file.getParentFile().mkdirs());
+        Assert.assertTrue(createSpoolFile(25).renameTo(file));
+        final String fileId = deliveryTracker.getFileId(file);
+        Assert.assertTrue(fileId.startsWith("test-host/"));
+        Assert.assertTrue(fileId.endsWith("/spool-file.bin"));
+
+        final AtomicInteger successes = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+        Assert.assertEquals(errors.get(), 1);
+        Assert.assertEquals(deliveryTracker.getAttempts(file), 1);
+
+        sender.send(file, new CountingCallbackHandler(successes, errors));
+        Assert.assertEquals(successes.get(), 1);
+        Assert.assertEquals(sender.getRetries(), 1);
+        Assert.assertEquals(deliveryTracker.getAttempts(file), 0);
+
+        // Each event identified by the file and its position in it, after the timestamp: the retry sends the
+        // first two chunks again, with the same tokens
+        Assert.assertEquals(messages.size(), 45);
+        for (int i = 0; i < messages.size(); i++) {
+            final String[] fields = messages.get(i).split(":", 3);
+            Assert.assertEquals(fields[1], fileId + "#" + (i < 20 ? i : i - 20));
+        }
+
+        file.delete();
+        new File(new File(spoolDirectory, "_generation"), "id").delete();
+        new File(spoolDirectory, "_generation").delete();
+        file.getParentFile().delete();
+        spoolDirectory.delete();
+    }
+
+    private File createSpoolDirectory() throws IOException
+    {
+        final File spoolDirectory = File.createTempFile("scribe-sender", "");
+        Assert.assertTrue(spoolDirectory.delete());
+        Assert.assertTrue(new File(spoolDirectory, "_lock").mkdirs());
+        return spoolDirectory;
+    }
+
+    // Spool file handed to the sender by the writer
+    private File createLockedFile(final File spoolDirectory, final String name, final int numberOfEvents) throws IOException
+    {
+        final File file = new File(new File(spoolDirectory, "_lock"), name);
+        Assert.assertTrue(createSpoolFile(numberOfEvents).renameTo(file));
+        return file;
+    }
+
+    private void deleteRecursively(final File file)
+    {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File createSpoolFile(final int numberOfEvents) throws IOException
+    {
+        final File file = File.createTempFile("scribe-sender", ".bin");
+        final OutputStream out = new FileOutputStream(file);
+        final ObjectOutputEventSerializer serializer = new ObjectOutputEventSerializer();
+        serializer.open(out);
+        for (int i = 0; i < numberOfEvents; i++) {
+            serializer.serialize(thriftEvent);
+        }
+        serializer.close();
+
+        return file;
+    }
+
+    private static final class CountingCallbackHandler implements CallbackHandler
+    {
+        private final AtomicInteger successes;
+        private final AtomicInteger errors;
+
+        private CountingCallbackHandler(final AtomicInteger successes, final AtomicInteger errors)
+        {
+            this.successes = successes;
+            this.errors = errors;
+        }
+
+        @Override
+        public void onError(final Throwable t, final File file)
+        {
+            errors.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess(final File file)
+        {
+            successes.incrementAndGet();
+        }
+    }
+
+    private static final class ChunkRecordingScribeClient extends ScribeMockClient
+    {
+        private final List<Integer> chunkSizes = new ArrayList<Integer>();
+        private int callToFail;
+        private int callToTryLater = -1;
+        private int calls = 0;
+
+        private ChunkRecordingScribeClient(final int callToFail)
+        {
+            super("127.0.0.1", 7911);
+            this.callToFail = callToFail;
+        }
+
+        @Override
+        public ResultCode log(final List<LogEntry> messages) throws TException
+        {
+            if (calls == callToFail) {
+                calls++;
+                callToFail = -1;
+                throw new TTransportException("Connection reset");
+            }
+            if (calls == callToTryLater) {
+                calls++;
+                callToTryLater = -1;
+                return ResultCode.TRY_LATER;
+            }
+
+            calls++;
+            chunkSizes.add(messages.size());
+            return super.log(messages);
+        }
+
+        public List<Integer> getChunkSizes()
+        {
+            return chunkSizes;
+        }
+
+        public void setCallToTryLater(final int callToTryLater)
+        {
+            this.callToTryLater = callToTryLater;
+        }
+    }
+
+    private static final class RecordingScheduledExecutorService extends StubScheduledExecutorService
+    {
+        private final List<Runnable> scheduled = new ArrayList<Runnable>();
+        private final List<Long> delays = new ArrayList<Long>();
+
+        @Override
+        public ScheduledFuture<?> schedule(final Runnable runnable, final long delay, final TimeUnit unit)
+        {
+            scheduled.add(runnable);
+            delays.add(unit.toMillis(delay));
+            return null;
+        }
+
+        public void runNext()
+        {
+            scheduled.remove(0).run();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return scheduled;
+        }
+    }
+
     @Test(groups = "slow", enabled = false)
     public void testWatchDog() throws Exception
     {
@@ -16,6 +16,7 @@
 
 package com.ning.metrics.eventtracker;
 
+import com.google.inject.Provider;
 import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
 import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
@@ -32,15 +33,32 @@ public class CollectorControllerSmileModule extends CollectorControllerHttpModul
         super.configure();
 
         switch (eventTrackerConfig.getEventType()) {
+            // Serializers are stateful: each spool writer (one per shard) needs its own
             case SMILE:
-                bind(EventSerializer.class).toInstance(new SmileEnvelopeEventSerializer(false));
+                bind(EventSerializer.class).toProvider(new SmileEnvelopeEventSerializerProvider(false));
                 break;
             case JSON:
-                bind(EventSerializer.class).toInstance(new SmileEnvelopeEventSerializer(true));
+                bind(EventSerializer.class).toProvider(new SmileEnvelopeEventSerializerProvider(true));
                 break;
             default:
                 bind(EventSerializer.class).to(ObjectOutputEventSerializer.class);
                 break;
         }
     }
+
+    private static final class SmileEnvelopeEventSerializerProvider implements Provider<EventSerializer>
+    {
+        private final boolean plainJson;
+
+        private SmileEnvelopeEventSerializerProvider(final boolean plainJson)
+        {
+            this.plainJson = plainJson;
+        }
+
+        @Override
+        public EventSerializer get()
+        {
+            return new SmileEnvelopeEventSerializer(plainJson);
+        }
+    }
 }
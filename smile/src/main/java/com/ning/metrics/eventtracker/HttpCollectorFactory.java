@@ -22,7 +22,6 @@ import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
 import com.ning.metrics.serialization.writer.CallbackHandler;
 import com.ning.metrics.serialization.writer.DiskSpoolEventWriter;
 import com.ning.metrics.serialization.writer.EventHandler;
-import com.ning.metrics.serialization.writer.NoCompressionCodec;
 import com.ning.metrics.serialization.writer.ObjectOutputEventSerializer;
 import com.ning.metrics.serialization.writer.SyncType;
 import com.ning.metrics.serialization.writer.ThresholdEventWriter;
@@ -53,6 +52,29 @@ public class HttpCollectorFactory
         final int maxUncommittedPeriodInSeconds,
         final int httpWorkersPoolSize
     ) throws IOException
+    {
+        return createHttpController(collectorHost, collectorPort, eventType, httpMaxWaitTimeInMillis, httpMaxKeepAliveInMillis,
+            spoolDirectoryName, isFlushEnabled, flushIntervalInSeconds, syncType, syncBatchSize, maxUncommittedWriteCount,
+            maxUncommittedPeriodInSeconds, httpWorkersPoolSize, SpoolCompression.NONE, 1);
+    }
+
+    public static synchronized CollectorController createHttpController(
+        final String collectorHost,
+        final int collectorPort,
+        final EventType eventType,
+        final long httpMaxWaitTimeInMillis,
+        final long httpMaxKeepAliveInMillis,
+        final String spoolDirectoryName,
+        final boolean isFlushEnabled,
+        final int flushIntervalInSeconds,
+        final SyncType syncType,
+        final int syncBatchSize,
+        final long maxUncommittedWriteCount,
+        final int maxUncommittedPeriodInSeconds,
+        final int httpWorkersPoolSize,
+        final SpoolCompression spoolCompression,
+        final int spoolCompressionLevel
+    ) throws IOException
     {
         if (singletonController == null) {
             singletonController = new HttpCollectorFactory(
@@ -68,7 +90,9 @@ public class HttpCollectorFactory
                 syncBatchSize,
                 maxUncommittedWriteCount,
                 maxUncommittedPeriodInSeconds,
-                httpWorkersPoolSize
+                httpWorkersPoolSize,
+                spoolCompression,
+                spoolCompressionLevel
             ).get();
         }
 
@@ -88,11 +112,15 @@ public class HttpCollectorFactory
         final int syncBatchSize,
         final long maxUncommittedWriteCount,
         final int maxUncommittedPeriodInSeconds,
-        final int httpWorkersPoolSize
+        final int httpWorkersPoolSize,
+        final SpoolCompression spoolCompression,
+        final int spoolCompressionLevel
     )
     {
-        eventSender = new HttpSender(collectorHost, collectorPort, eventType,
-                httpMaxWaitTimeInMillis, httpMaxKeepAliveInMillis, httpWorkersPoolSize);
+        eventSender = HttpSender.Builder.forCollector(collectorHost, collectorPort, eventType, httpMaxKeepAliveInMillis, spoolCompression)
+                                        .httpMaxWaitTimeInMillis(httpMaxWaitTimeInMillis)
+                                        .httpWorkersPoolSize(httpWorkersPoolSize)
+                                        .build();
 
         EventSerializer serializer = new ObjectOutputEventSerializer();
         switch (eventType) {
@@ -112,7 +140,7 @@ public class HttpCollectorFactory
                 eventSender.send(file, handler);
             }
         }, spoolDirectoryName, isFlushEnabled, flushIntervalInSeconds, new FailsafeScheduledExecutor(1, "EventtrackerFlusher"),
-            syncType, syncBatchSize, new NoCompressionCodec(), serializer);
+            syncType, syncBatchSize, spoolCompression.createCodec(spoolCompressionLevel), serializer);
 
         final ThresholdEventWriter thresholdEventWriter = new ThresholdEventWriter(eventWriter, maxUncommittedWriteCount, maxUncommittedPeriodInSeconds);
         controller = new CollectorController(thresholdEventWriter);
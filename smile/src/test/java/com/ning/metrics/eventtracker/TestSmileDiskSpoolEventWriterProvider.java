@@ -16,7 +16,9 @@
 
 package com.ning.metrics.eventtracker;
 
+import com.google.inject.util.Providers;
 import com.ning.metrics.serialization.event.Event;
+import com.ning.metrics.serialization.event.EventSerializer;
 import com.ning.metrics.serialization.event.SmileEnvelopeEvent;
 import com.ning.metrics.serialization.smile.SmileEnvelopeEventDeserializer;
 import com.ning.metrics.serialization.smile.SmileEnvelopeEventSerializer;
@@ -34,6 +36,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -136,11 +139,14 @@ public class TestSmileDiskSpoolEventWriterProvider
      */
     private DiskSpoolEventWriter diskWriterProvider(final EventSender sender) throws IOException
     {
+        final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1, Executors.defaultThreadFactory());
         return new DiskSpoolEventWriterProvider(
             config,
             sender,
-            new ScheduledThreadPoolExecutor(1, Executors.defaultThreadFactory()),
-            new SmileEnvelopeEventSerializer(false)
+            executor,
+            Providers.<EventSerializer>of(new SmileEnvelopeEventSerializer(false)),
+            new AdaptiveFlushScheduler(config, executor),
+            new SpoolQuota(config)
         ).get();
     }
 }